@@ -128,6 +128,17 @@ public class ConsoleProxyResource extends ServerResourceBase implements
         }
     }
 
+    private void openPublicPort(int port) {
+        // the system vm firewall only lets the console ports in
+        Script command = new Script("/bin/bash", s_logger);
+        command.add("-c");
+        command.add("iptables -I INPUT -i eth2 -p tcp -m state --state NEW -m tcp --dport " + port + " -j ACCEPT");
+        String result = command.execute();
+        if (result != null) {
+            s_logger.warn("Unable to open port " + port + " on the public interface, err=" + result);
+        }
+    }
+
     private boolean copyCertToDirectory(String certificate, String filePath)
             throws IOException {
         boolean success;
@@ -288,6 +299,12 @@ public class ConsoleProxyResource extends ServerResourceBase implements
             disableRpFilter();
         }
 
+        value = (String) params.get("consoleproxy.webSocketListenPort");
+        int webSocketPort = NumbersUtil.parseInt(value, 0);
+        if (webSocketPort > 0 && eth2ip != null) {
+            openPublicPort(webSocketPort);
+        }
+
         if (s_logger.isInfoEnabled())
             s_logger.info("Receive proxyVmId in ConsoleProxyResource configuration as "
                     + _proxyVmId);
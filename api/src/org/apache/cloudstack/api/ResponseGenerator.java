@@ -316,6 +316,8 @@ public interface ResponseGenerator {
 
     NetworkResponse createNetworkResponse(Network network);
 
+    List<NetworkResponse> createNetworkResponses(List<? extends Network> networks);
+
     UserResponse createUserResponse(User user);
 
     //List<UserResponse> createUserResponse(UserAccountJoinVO... users);
@@ -16,7 +16,6 @@
 // under the License.
 package org.apache.cloudstack.api.command.user.network;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.cloudstack.api.APICommand;
@@ -152,11 +151,7 @@ public class ListNetworksCmd extends BaseListTaggedResourcesCmd {
     public void execute(){
         List<? extends Network> networks = _networkService.searchForNetworks(this);
         ListResponse<NetworkResponse> response = new ListResponse<NetworkResponse>();
-        List<NetworkResponse> networkResponses = new ArrayList<NetworkResponse>();
-        for (Network network : networks) {
-            NetworkResponse networkResponse = _responseGenerator.createNetworkResponse(network);
-            networkResponses.add(networkResponse);
-        }
+        List<NetworkResponse> networkResponses = _responseGenerator.createNetworkResponses(networks);
 
         response.setResponses(networkResponses);
         response.setResponseName(getCommandName());
@@ -20,6 +20,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class FileRangeInputStream extends InputStream {
 	private RandomAccessFile randomAccessFile;
@@ -87,6 +89,26 @@ public class FileRangeInputStream extends InputStream {
 		return skipped;
 	}
 	
+	/**
+	 * Sends the rest of the range to the target with FileChannel.transferTo, which lets the
+	 * kernel move the data when the target is a file or a socket.
+	 * @return the number of bytes sent
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		FileChannel channel = randomAccessFile.getChannel();
+		long transferred = 0;
+		while(curPos < endPos) {
+			long count = channel.transferTo(curPos, endPos - curPos, target);
+			if(count <= 0)
+				break;
+			
+			curPos += count;
+			transferred += count;
+		}
+		randomAccessFile.seek(curPos);
+		return transferred;
+	}
+	
 	@Override
 	public void close() throws IOException {
 		randomAccessFile.close();
@@ -17,16 +17,22 @@
 package com.cloud.bridge.io;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
+import javax.activation.FileDataSource;
 
 import org.apache.log4j.Logger;
 
@@ -40,6 +46,16 @@ import com.cloud.bridge.util.OrderedPair;
 
 public class S3FileSystemBucketAdapter implements S3BucketAdapter {
     protected final static Logger logger = Logger.getLogger(S3FileSystemBucketAdapter.class);
+
+	private final static int BUFFER_SIZE = 1024 * 1024;
+
+	// -> direct buffers are costly to allocate, every request thread keeps its own
+	private final static ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
 	
 	public S3FileSystemBucketAdapter() {
 	}
@@ -97,13 +113,19 @@ public class S3FileSystemBucketAdapter implements S3BucketAdapter {
 			file.createNewFile();
 			
 	        fos = new FileOutputStream(file);
-	        byte[] buffer = new byte[4096];
-	        int len = 0;
-	        while( (len = is.read(buffer)) > 0) {
-	        	fos.write(buffer, 0, len);
-	        	md5.update(buffer, 0, len);
-	        	
-	        }       
+	        FileChannel out = fos.getChannel();
+	        ReadableByteChannel in = Channels.newChannel(is);
+	        
+	        // -> fill a large direct buffer before hashing and writing it, the file channel writes
+	        //    a direct buffer without copying it again
+	        ByteBuffer buffer = buffers.get();
+	        buffer.clear();
+	        while (in.read(buffer) >= 0) {
+	        	if (!buffer.hasRemaining())
+	        		writeHashed(buffer, out, md5);
+	        }
+	        writeHashed(buffer, out, md5);
+	        
 	        //Convert MD4 digest to (lowercase) hex String
 	        return StringHelper.toHexString(md5.digest());
 	        
@@ -122,6 +144,14 @@ public class S3FileSystemBucketAdapter implements S3BucketAdapter {
 		}
 	}
 	
+	private static void writeHashed(ByteBuffer buffer, FileChannel out, MessageDigest md5) throws IOException {
+		buffer.flip();
+		md5.update(buffer.duplicate());
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+	
 	/**
 	 * From a list of files (each being one part of the multipart upload), concatentate all files into a single
 	 * object that can be accessed by normal S3 calls.  This function could take a long time since a multipart is
@@ -134,43 +164,40 @@ public class S3FileSystemBucketAdapter implements S3BucketAdapter {
 	 * @param sourceBucket - special bucket used to save uploaded file parts
 	 * @param parts - an array of file names in the sourceBucket
 	 * @param client - if not null, then keep the servlet connection alive while this potentially long concatentation takes place
-	 * @return OrderedPair with the first value the MD5 of the final object, and the second value the length of the final object
+	 * @return OrderedPair with the first value the ETag of the final object, and the second value the length of the final object
 	 */
 	@Override
 	public OrderedPair<String,Long> concatentateObjects(String mountedRoot, String destBucket, String fileName, String sourceBucket, S3MultipartPart[] parts, OutputStream client) 
 	{
-		MessageDigest md5;
 		long totalLength = 0;
 		
-		try {
-			md5 = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			logger.error("Unexpected exception " + e.getMessage(), e);
-			throw new InternalErrorException("Unable to get MD5 MessageDigest", e);
-		}
-		
 		File file = new File(getBucketFolderDir(mountedRoot, destBucket) + File.separatorChar + fileName);
+		FileOutputStream fos = null;
 		try {
 			// -> when versioning is off we need to rewrite the file contents
 			file.delete();
 			file.createNewFile();
 			
-	        final FileOutputStream fos = new FileOutputStream(file);
-	        byte[] buffer = new byte[4096];
+	        fos = new FileOutputStream(file);
+	        FileChannel out = fos.getChannel();
 	        
-	        // -> get the input stream for the next file part
+	        // -> append each file part with transferTo, the data does not have to pass through the heap
+	        File[] partFiles = new File[parts.length];
 	        for( int i=0; i < parts.length; i++ )
 	        {
-	           DataHandler nextPart = loadObject( mountedRoot, sourceBucket, parts[i].getPath());
-	           InputStream is = nextPart.getInputStream();
-	           
-	           int len = 0;
-	           while( (len = is.read(buffer)) > 0) {
-	        	   fos.write(buffer, 0, len);
-	        	   md5.update(buffer, 0, len);
-	        	   totalLength += len;
+	           File partFile = new File(getBucketFolderDir(mountedRoot, sourceBucket) + File.separatorChar + parts[i].getPath());
+	           partFiles[i] = partFile;
+	           FileInputStream fis = new FileInputStream(partFile);
+	           try {
+	        	   FileChannel in = fis.getChannel();
+	        	   long size = in.size();
+	        	   long position = 0;
+	        	   while (position < size)
+	        		   position += in.transferTo(position, size - position, out);
+	        	   totalLength += size;
+	           } finally {
+	        	   fis.close();
 	           }
-	           is.close();
 	           
 	           // -> after each file write tell the client we are still here to keep connection alive
 	           if (null != client) {
@@ -178,24 +205,89 @@ public class S3FileSystemBucketAdapter implements S3BucketAdapter {
 	        	   client.flush();
 	           }
 	        }        
-	        fos.close();	
-	        return new OrderedPair<String, Long>(StringHelper.toHexString(md5.digest()), new Long(totalLength));
-	        //Create an ordered pair whose first element is the MD4 digest as a (lowercase) hex String
+	        fos.close();
+	        fos = null;
+	        return new OrderedPair<String, Long>(getMultipartETag(parts, partFiles), new Long(totalLength));
 		} 
 		catch(IOException e) {
 			logger.error("concatentateObjects unexpected exception " + e.getMessage(), e);
 			throw new OutOfStorageException(e);
-		}	
+		}
+		finally {
+			try {
+			    if (null != fos) fos.close();
+			}
+			catch( Exception e ) {
+				logger.error("Can't close FileOutputStream " + e.getMessage(), e);			
+			}
+		}
+	}
+	
+	/**
+	 * Amazon reports the ETag of a multipart object as the MD5 of the MD5s of its parts followed by the
+	 * number of parts. The MD5 of every part was computed when it was uploaded, so the final object is not
+	 * read again; only a part without a usable MD5 is hashed from its file.
+	 */
+	static String getMultipartETag(S3MultipartPart[] parts, File[] partFiles) throws IOException {
+		MessageDigest md5;
+		MessageDigest partMD5s;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+			partMD5s = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			logger.error("Unexpected exception " + e.getMessage(), e);
+			throw new InternalErrorException("Unable to get MD5 MessageDigest", e);
+		}
+		
+		for (int i = 0; i < parts.length; i++) {
+			byte[] partMD5 = fromHexString(parts[i].getETag());
+			if (null == partMD5 || partMD5.length != 16) {
+				logger.warn("Part " + parts[i].getPartNumber() + " has no MD5, hashing " + partFiles[i].getName());
+				partMD5 = hashFile(partFiles[i], md5);
+			}
+			partMD5s.update(partMD5);
+		}
+		return StringHelper.toHexString(partMD5s.digest()) + "-" + parts.length;
+	}
+	
+	private static byte[] hashFile(File file, MessageDigest md5) throws IOException {
+		md5.reset();
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel in = fis.getChannel();
+			ByteBuffer buffer = buffers.get();
+			buffer.clear();
+			while (in.read(buffer) >= 0) {
+				buffer.flip();
+				md5.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			fis.close();
+		}
+		return md5.digest();
+	}
+	
+	private static byte[] fromHexString(String hex) {
+		if (null == hex || hex.length() % 2 != 0)
+			return null;
+		
+		byte[] b = new byte[hex.length() / 2];
+		for (int i = 0; i < b.length; i++) {
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0)
+				return null;
+			b[i] = (byte)((high << 4) | low);
+		}
+		return b;
 	}
 	
 	@Override
 	public DataHandler loadObject(String mountedRoot, String bucket, String fileName) {
 		File file = new File(getBucketFolderDir(mountedRoot, bucket) + File.separatorChar + fileName);
-		try {
-			return new DataHandler(file.toURL());
-		} catch (MalformedURLException e) {
-			throw new FileNotExistException("Unable to open underlying object file");
-		}
+		// -> a file data source hands out the FileInputStream itself, which can be served with transferTo
+		return new DataHandler(new FileDataSource(file));
 	}
 	
 	@Override
@@ -17,10 +17,14 @@
 package com.cloud.bridge.service;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.SignatureException;
 import java.sql.SQLException;
 import java.util.Enumeration;
@@ -43,6 +47,7 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import com.cloud.bridge.io.FileRangeInputStream;
 import com.cloud.bridge.io.MultiPartDimeInputStream;
 import com.cloud.bridge.model.SAcl;
 import com.cloud.bridge.model.UserCredentialsVO;
@@ -486,10 +491,31 @@ public class S3RestServlet extends HttpServlet {
     }
 
     public static void writeResponse(HttpServletResponse response, InputStream is) throws IOException {
-        byte[] data = new byte[4096];
+        OutputStream os = response.getOutputStream();
+
+        // -> object files are sent with FileChannel.transferTo rather than copied through a byte array
+        if (is instanceof FileRangeInputStream) {
+            ((FileRangeInputStream)is).transferTo(Channels.newChannel(os));
+            return;
+        }
+        if (is instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream)is).getChannel();
+            WritableByteChannel target = Channels.newChannel(os);
+            long position = channel.position();
+            long size = channel.size();
+            while (position < size) {
+                long count = channel.transferTo(position, size - position, target);
+                if (count <= 0)
+                    break;
+                position += count;
+            }
+            return;
+        }
+
+        byte[] data = new byte[64 * 1024];
         int length = 0;
         while((length = is.read(data)) > 0) {
-            response.getOutputStream().write(data, 0, length);
+            os.write(data, 0, length);
         }
     }
 
@@ -363,7 +363,12 @@ public class S3ObjectAction implements ServletAction {
                     DateHelper.GMT_TIMEZONE, engineResponse.getLastModified().getTime(), "E, d MMM yyyy HH:mm:ss z"));
 
             response.setContentLength((int)engineResponse.getContentLength());			
-            S3RestServlet.writeResponse(response, dataHandler.getInputStream());
+            InputStream is = dataHandler.getInputStream();
+            try {
+                S3RestServlet.writeResponse(response, is);
+            } finally {
+                is.close();
+            }
         }
     }
 
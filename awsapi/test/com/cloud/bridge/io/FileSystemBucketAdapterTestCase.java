@@ -0,0 +1,231 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.bridge.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import com.cloud.bridge.service.core.s3.S3MultipartPart;
+import com.cloud.bridge.util.OrderedPair;
+import com.cloud.bridge.util.StringHelper;
+import com.cloud.gate.testcase.BaseTestCase;
+
+public class FileSystemBucketAdapterTestCase extends BaseTestCase {
+	private static final String BUCKET = "bucket";
+	private static final String MULTIPART_BUCKET = "__multipart";
+
+	private File root;
+	private S3FileSystemBucketAdapter adapter;
+
+	@Override
+	protected void setUp() {
+		super.setUp();
+		try {
+			root = File.createTempFile("awsapi", "store");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		root.delete();
+		adapter = new S3FileSystemBucketAdapter();
+		adapter.createContainer(root.getAbsolutePath(), BUCKET);
+		adapter.createContainer(root.getAbsolutePath(), MULTIPART_BUCKET);
+	}
+
+	@Override
+	protected void tearDown() {
+		S3FileSystemBucketAdapter.deleteDirectory(root);
+	}
+
+	public void testSaveObject() throws Exception {
+		byte[] data = randomData(3 * 1024 * 1024 + 17, 1);
+
+		String md5 = adapter.saveObject(new ByteArrayInputStream(data), root.getAbsolutePath(), BUCKET, "object");
+
+		Assert.assertEquals(md5(data), md5);
+		Assert.assertTrue(Arrays.equals(data, read(adapter.loadObject(root.getAbsolutePath(), BUCKET, "object").getInputStream())));
+	}
+
+	public void testConcatenateReusesPartMD5s() throws Exception {
+		byte[][] partData = { randomData(5 * 1024 * 1024, 2), randomData(5 * 1024 * 1024, 3), randomData(1234, 4) };
+		S3MultipartPart[] parts = new S3MultipartPart[partData.length];
+		ByteArrayOutputStream object = new ByteArrayOutputStream();
+		MessageDigest md5s = MessageDigest.getInstance("MD5");
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = new S3MultipartPart();
+			parts[i].setPartNumber(i + 1);
+			parts[i].setPath("1-" + (i + 1));
+			parts[i].setEtag(adapter.saveObject(new ByteArrayInputStream(partData[i]), root.getAbsolutePath(), MULTIPART_BUCKET, parts[i].getPath()));
+			object.write(partData[i]);
+			md5s.update(MessageDigest.getInstance("MD5").digest(partData[i]));
+		}
+
+		ByteArrayOutputStream client = new ByteArrayOutputStream();
+		OrderedPair<String, Long> result = adapter.concatentateObjects(root.getAbsolutePath(), BUCKET, "object", MULTIPART_BUCKET, parts, client);
+
+		Assert.assertEquals(StringHelper.toHexString(md5s.digest()) + "-3", result.getFirst());
+		Assert.assertEquals(object.size(), result.getSecond().longValue());
+		Assert.assertEquals("   ", client.toString());
+		Assert.assertTrue(Arrays.equals(object.toByteArray(), read(adapter.loadObject(root.getAbsolutePath(), BUCKET, "object").getInputStream())));
+	}
+
+	public void testConcatenateHashesPartsWithoutMD5() throws Exception {
+		byte[] data = randomData(4096, 5);
+		adapter.saveObject(new ByteArrayInputStream(data), root.getAbsolutePath(), MULTIPART_BUCKET, "1-1");
+		S3MultipartPart part = new S3MultipartPart();
+		part.setPartNumber(1);
+		part.setPath("1-1");
+
+		OrderedPair<String, Long> result = adapter.concatentateObjects(root.getAbsolutePath(), BUCKET, "object", MULTIPART_BUCKET, new S3MultipartPart[] { part }, null);
+
+		// same format as when the part MD5s are known
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		Assert.assertEquals(StringHelper.toHexString(md5.digest(md5.digest(data))) + "-1", result.getFirst());
+	}
+
+	public void testRangeTransfer() throws Exception {
+		byte[] data = randomData(1024 * 1024, 6);
+		adapter.saveObject(new ByteArrayInputStream(data), root.getAbsolutePath(), BUCKET, "object");
+
+		FileRangeInputStream is = (FileRangeInputStream)adapter.loadObjectRange(root.getAbsolutePath(), BUCKET, "object", 1000, 500000).getInputStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			Assert.assertEquals(499000, is.transferTo(Channels.newChannel(out)));
+			Assert.assertEquals(-1, is.read());
+		} finally {
+			is.close();
+		}
+		Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1000, 500000), out.toByteArray()));
+	}
+
+	/**
+	 * Put, get and complete multipart upload of an object larger than the transfer buffers.
+	 */
+	public void testLargeObject() throws Exception {
+		int partSize = 8 * 1024 * 1024;
+		int partCount = 3;
+		long size = (long)partCount * partSize;
+		byte[] data = randomData(partSize, 7);
+		byte[] dataMD5 = MessageDigest.getInstance("MD5").digest(data);
+
+		MessageDigest expected = MessageDigest.getInstance("MD5");
+		for (int i = 0; i < partCount; i++)
+			expected.update(data);
+		Assert.assertEquals(StringHelper.toHexString(expected.digest()),
+				adapter.saveObject(new RepeatingInputStream(data, size), root.getAbsolutePath(), BUCKET, "object"));
+
+		FileInputStream is = (FileInputStream)adapter.loadObject(root.getAbsolutePath(), BUCKET, "object").getInputStream();
+		try {
+			FileChannel channel = is.getChannel();
+			Assert.assertEquals(size, channel.size());
+			long position = 0;
+			while (position < size)
+				position += channel.transferTo(position, size - position, Channels.newChannel(new NullOutputStream()));
+			Assert.assertEquals(size, position);
+		} finally {
+			is.close();
+		}
+
+		S3MultipartPart[] parts = new S3MultipartPart[partCount];
+		MessageDigest md5s = MessageDigest.getInstance("MD5");
+		for (int i = 0; i < partCount; i++) {
+			parts[i] = new S3MultipartPart();
+			parts[i].setPartNumber(i + 1);
+			parts[i].setPath("2-" + (i + 1));
+			parts[i].setEtag(adapter.saveObject(new ByteArrayInputStream(data), root.getAbsolutePath(), MULTIPART_BUCKET, parts[i].getPath()));
+			md5s.update(dataMD5);
+		}
+		OrderedPair<String, Long> result = adapter.concatentateObjects(root.getAbsolutePath(), BUCKET, "multipart", MULTIPART_BUCKET, parts, null);
+
+		Assert.assertEquals(StringHelper.toHexString(md5s.digest()) + "-" + partCount, result.getFirst());
+		Assert.assertEquals(size, result.getSecond().longValue());
+		Assert.assertEquals(size, new File(adapter.getBucketFolderDir(root.getAbsolutePath(), BUCKET), "multipart").length());
+	}
+
+	private static byte[] randomData(int size, long seed) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static String md5(byte[] data) throws Exception {
+		return StringHelper.toHexString(MessageDigest.getInstance("MD5").digest(data));
+	}
+
+	private static byte[] read(InputStream is) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[65536];
+			int len;
+			while ((len = is.read(buffer)) > 0)
+				out.write(buffer, 0, len);
+			return out.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	private static class RepeatingInputStream extends InputStream {
+		private final byte[] data;
+		private final long length;
+		private long remaining;
+
+		RepeatingInputStream(byte[] data, long length) {
+			this.data = data;
+			this.length = length;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int offset = (int)((length - remaining) % data.length);
+			int count = (int)Math.min(Math.min(len, remaining), data.length - offset);
+			System.arraycopy(data, offset, b, off, count);
+			remaining -= count;
+			return count;
+		}
+	}
+
+	private static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
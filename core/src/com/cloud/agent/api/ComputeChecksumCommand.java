@@ -23,6 +23,7 @@ import com.cloud.agent.api.to.DataStoreTO;
 public class ComputeChecksumCommand extends ssCommand {
 	private DataStoreTO store;
     private String templatePath;
+    private String algorithm;
     public ComputeChecksumCommand() {
         super();
     }
@@ -44,5 +45,16 @@ public class ComputeChecksumCommand extends ssCommand {
 		this.store = store;
 	}
 
+	/**
+	 * @return digest algorithm to compute, MD5 when not set
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	public void setAlgorithm(String algorithm) {
+		this.algorithm = algorithm;
+	}
+
 
 }
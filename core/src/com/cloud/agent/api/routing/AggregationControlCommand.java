@@ -0,0 +1,51 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api.routing;
+
+/**
+ * Brackets a run of router configuration commands. Between Start and Finish a resource that
+ * supports it only collects the rules, DHCP entries and vm data sent for the router, and on
+ * Finish pushes them to the router as one payload. Resources that configure the router rule by
+ * rule anyway simply answer it.
+ */
+public class AggregationControlCommand extends NetworkElementCommand {
+    public enum Action {
+        Start,
+        Finish,
+        Cleanup,
+    }
+
+    Action action;
+
+    protected AggregationControlCommand() {
+    }
+
+    public AggregationControlCommand(Action action, String routerName, String routerIp) {
+        this.action = action;
+        setAccessDetail(NetworkElementCommand.ROUTER_NAME, routerName);
+        setAccessDetail(NetworkElementCommand.ROUTER_IP, routerIp);
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return true;
+    }
+}
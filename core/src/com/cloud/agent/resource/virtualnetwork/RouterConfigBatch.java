@@ -0,0 +1,121 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Router configuration collected between the Start and Finish of an AggregationControlCommand.
+ * Every line is a script command line as it would have been run inside the router over its own
+ * ssh session; the lines are pushed to the router as one file which vr_cfg.sh checks completely
+ * before it runs any of them.
+ */
+public class RouterConfigBatch {
+    public static final String MAGIC = "#vr_cfg";
+    public static final int FORMAT = 1;
+
+    private final String _routerName;
+    private final long _created;
+    private int _sequence;
+    private final List<String> _lines = new ArrayList<String>();
+    private String _failure;
+
+    public RouterConfigBatch(String routerName) {
+        _routerName = routerName;
+        _created = System.currentTimeMillis();
+    }
+
+    public String getRouterName() {
+        return _routerName;
+    }
+
+    public boolean isExpired(long timeout) {
+        return System.currentTimeMillis() - _created > timeout;
+    }
+
+    public void add(String line) {
+        if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Router configuration lines can not span lines: " + line);
+        }
+        _lines.add(line);
+    }
+
+    public List<String> getLines() {
+        return Collections.unmodifiableList(_lines);
+    }
+
+    public boolean isEmpty() {
+        return _lines.isEmpty();
+    }
+
+    /**
+     * Identifies the configuration, the router does not apply a file with the id it applied last again.
+     */
+    public String getId() {
+        return _routerName + "-" + _created + "-" + _sequence;
+    }
+
+    public String getFileName() {
+        return "vr_cfg." + getId();
+    }
+
+    public byte[] toPayload() {
+        StringBuilder body = new StringBuilder();
+        for (String line : _lines) {
+            body.append(line).append('\n');
+        }
+        try {
+            byte[] bodyBytes = body.toString().getBytes("UTF-8");
+            String header = MAGIC + " " + FORMAT + " " + getId() + " " + _lines.size() + " " + DigestUtils.md5Hex(bodyBytes) + "\n";
+            byte[] headerBytes = header.getBytes("UTF-8");
+
+            byte[] payload = new byte[headerBytes.length + bodyBytes.length];
+            System.arraycopy(headerBytes, 0, payload, 0, headerBytes.length);
+            System.arraycopy(bodyBytes, 0, payload, headerBytes.length, bodyBytes.length);
+            return payload;
+        } catch (UnsupportedEncodingException e) {
+            throw new CloudRuntimeException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Marks the batch as failed, keeping the lines that were not applied. Commands collected
+     * afterwards and the Finish are answered with the failure.
+     */
+    public void fail(String failure) {
+        _failure = failure;
+    }
+
+    public String getFailure() {
+        return _failure;
+    }
+
+    /**
+     * Starts over after the collected lines were applied; the next push gets a new id.
+     */
+    public void reset() {
+        _lines.clear();
+        _sequence++;
+    }
+}
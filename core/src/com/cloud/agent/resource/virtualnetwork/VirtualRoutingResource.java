@@ -30,6 +30,7 @@ import com.cloud.agent.api.GetDomRVersionCmd;
 import com.cloud.agent.api.proxy.CheckConsoleProxyLoadCommand;
 import com.cloud.agent.api.proxy.ConsoleProxyLoadAnswer;
 import com.cloud.agent.api.proxy.WatchConsoleProxyLoadCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand;
 import com.cloud.agent.api.routing.CreateIpAliasCommand;
 import com.cloud.agent.api.routing.DeleteIpAliasCommand;
 import com.cloud.agent.api.routing.DhcpEntryCommand;
@@ -88,8 +89,11 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.nio.channels.SocketChannel;
 import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * VirtualNetworkResource controls and configures virtual networking
@@ -123,9 +127,22 @@ public class VirtualRoutingResource implements Manager {
     private int _sleep;
     private int _retry;
     private int _port;
+    private long _aggregationTimeout = 600000;
+
+    // configuration collected for routers between the Start and Finish of an aggregation, by router ip
+    private final ConcurrentMap<String, RouterConfigBatch> _batches = new ConcurrentHashMap<String, RouterConfigBatch>();
 
     public Answer executeRequest(final Command cmd) {
         try {
+            if (cmd instanceof AggregationControlCommand) {
+                return execute((AggregationControlCommand)cmd);
+            } else if (cmd instanceof NetworkElementCommand) {
+                Answer answer = aggregate((NetworkElementCommand)cmd);
+                if (answer != null) {
+                    return answer;
+                }
+            }
+
             if (cmd instanceof SetPortForwardingRulesVpcCommand ) {
                 return execute((SetPortForwardingRulesVpcCommand)cmd);
             } else if (cmd instanceof SetPortForwardingRulesCommand){
@@ -179,6 +196,241 @@ public class VirtualRoutingResource implements Manager {
         }
     }
 
+    protected Answer execute(AggregationControlCommand cmd) {
+        String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+        String routerName = cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME);
+        if (routerIp == null) {
+            return new Answer(cmd, false, "Router ip is missing");
+        }
+
+        switch (cmd.getAction()) {
+        case Start:
+            RouterConfigBatch previous = _batches.put(routerIp, new RouterConfigBatch(routerName));
+            if (previous != null) {
+                s_logger.warn("Dropping the unfinished configuration collected for router " + previous.getRouterName());
+            }
+            return new Answer(cmd);
+        case Finish:
+            RouterConfigBatch batch = getBatch(routerIp, routerName);
+            if (batch == null || !_batches.remove(routerIp, batch)) {
+                return new Answer(cmd, false, "No configuration is being collected for router " + routerName);
+            }
+            if (batch.getFailure() != null) {
+                return new Answer(cmd, false, batch.getFailure());
+            }
+            String result = applyBatch(routerIp, batch);
+            return new Answer(cmd, result == null, result);
+        case Cleanup:
+            // the router ip may be gone already when a stopped router is cleaned up
+            for (Map.Entry<String, RouterConfigBatch> entry : _batches.entrySet()) {
+                if (entry.getKey().equals(routerIp) || entry.getValue().getRouterName() != null && entry.getValue().getRouterName().equals(routerName)) {
+                    if (_batches.remove(entry.getKey(), entry.getValue()) && !entry.getValue().isEmpty()) {
+                        s_logger.warn("Dropping " + entry.getValue().getLines().size() + " configuration lines collected for router "
+                                + entry.getValue().getRouterName() + " that were never applied");
+                    }
+                }
+            }
+            return new Answer(cmd);
+        default:
+            return Answer.createUnsupportedCommandAnswer(cmd);
+        }
+    }
+
+    /**
+     * Collects the command into the configuration of its router if an aggregation is running for it.
+     *
+     * @return the answer of the collected command, null if the command has to be executed now
+     */
+    protected Answer aggregate(NetworkElementCommand cmd) {
+        String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+        RouterConfigBatch batch = getBatch(routerIp, cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME));
+        if (batch == null) {
+            return null;
+        }
+        if (batch.getFailure() != null) {
+            // nothing collected after a failed push would be applied
+            return new Answer(cmd, false, batch.getFailure());
+        }
+
+        List<String> lines = getConfigLines(cmd);
+        if (lines == null) {
+            // keep the order of the configuration, anything collected so far goes first
+            String result = applyBatch(routerIp, batch);
+            if (result != null) {
+                return new Answer(cmd, false, result);
+            }
+            return null;
+        }
+
+        for (String line : lines) {
+            batch.add(line);
+        }
+        if (cmd instanceof SetPortForwardingRulesCommand) {
+            return new SetPortForwardingRulesAnswer((SetPortForwardingRulesCommand)cmd, new String[((SetPortForwardingRulesCommand)cmd).getRules().length], true);
+        } else if (cmd instanceof SetStaticNatRulesCommand) {
+            return new SetStaticNatRulesAnswer((SetStaticNatRulesCommand)cmd, new String[((SetStaticNatRulesCommand)cmd).getRules().length], true);
+        } else if (cmd instanceof SetFirewallRulesCommand) {
+            return new SetFirewallRulesAnswer((SetFirewallRulesCommand)cmd, true, null);
+        }
+        return new Answer(cmd);
+    }
+
+    /**
+     * The batch collecting the configuration of the router, if any. A batch that outlived the aggregation timeout
+     * or was started for another router that had the same link local ip is dropped, so its commands are executed
+     * right away instead of being collected into a batch that nobody finishes.
+     */
+    protected RouterConfigBatch getBatch(String routerIp, String routerName) {
+        RouterConfigBatch batch = routerIp != null ? _batches.get(routerIp) : null;
+        if (batch == null) {
+            return null;
+        }
+
+        String reason = null;
+        if (batch.isExpired(_aggregationTimeout)) {
+            reason = "it was not finished within " + _aggregationTimeout + " ms";
+        } else if (routerName != null && batch.getRouterName() != null && !routerName.equals(batch.getRouterName())) {
+            reason = "router ip " + routerIp + " now belongs to router " + routerName;
+        }
+        if (reason == null) {
+            return batch;
+        }
+
+        if (_batches.remove(routerIp, batch)) {
+            s_logger.warn("Dropping the configuration collected for router " + batch.getRouterName() + " as " + reason
+                    + (batch.isEmpty() ? "" : ", " + batch.getLines().size() + " lines were never applied"));
+        }
+        return null;
+    }
+
+    /**
+     * @return the command lines run inside the router for the command, null if the command can not be aggregated
+     */
+    protected List<String> getConfigLines(NetworkElementCommand cmd) {
+        List<String> lines = new ArrayList<String>();
+        if (cmd instanceof SetPortForwardingRulesVpcCommand) {
+            for (PortForwardingRuleTO rule : ((SetPortForwardingRulesVpcCommand)cmd).getRules()) {
+                lines.add("/opt/cloud/bin/vpc_portforwarding.sh" + (rule.revoked() ? " -D" : " -A") + " -P " + rule.getProtocol().toLowerCase()
+                        + " -l " + rule.getSrcIp() + " -p " + rule.getStringSrcPortRange() + " -r " + rule.getDstIp()
+                        + " -d " + rule.getStringDstPortRange().replace(":", "-"));
+            }
+        } else if (cmd instanceof SetPortForwardingRulesCommand) {
+            for (PortForwardingRuleTO rule : ((SetPortForwardingRulesCommand)cmd).getRules()) {
+                lines.add("/root/firewall.sh" + (rule.revoked() ? " -D" : " -A") + " -P " + rule.getProtocol().toLowerCase()
+                        + " -l " + rule.getSrcIp() + " -p " + rule.getStringSrcPortRange() + " -r " + rule.getDstIp()
+                        + " -d " + rule.getStringDstPortRange());
+            }
+        } else if (cmd instanceof SetStaticNatRulesCommand) {
+            SetStaticNatRulesCommand natCmd = (SetStaticNatRulesCommand)cmd;
+            for (StaticNatRuleTO rule : natCmd.getRules()) {
+                if (natCmd.getVpcId() != null) {
+                    lines.add("/opt/cloud/bin/vpc_staticnat.sh" + (rule.revoked() ? " -D" : " -A") + " -l " + rule.getSrcIp() + " -r " + rule.getDstIp());
+                } else {
+                    StringBuilder line = new StringBuilder("/root/firewall.sh");
+                    line.append(rule.revoked() ? " -D" : " -A");
+                    line.append(" -l ").append(rule.getSrcIp()).append(" -r ").append(rule.getDstIp());
+                    if (rule.getProtocol() != null) {
+                        line.append(" -P ").append(rule.getProtocol().toLowerCase());
+                    }
+                    line.append(" -d ").append(rule.getStringSrcPortRange()).append(" -G");
+                    lines.add(line.toString());
+                }
+            }
+        } else if (cmd instanceof SetFirewallRulesCommand) {
+            SetFirewallRulesCommand fwCmd = (SetFirewallRulesCommand)cmd;
+            if (fwCmd.getRules().length == 0) {
+                return null;
+            }
+            StringBuilder line = new StringBuilder();
+            if (fwCmd.getRules()[0].getTrafficType() == FirewallRule.TrafficType.Egress) {
+                String egressDefault = cmd.getAccessDetail(NetworkElementCommand.FIREWALL_EGRESS_DEFAULT);
+                line.append("/root/firewallRule_egress.sh -F -E -P ");
+                line.append("true".equals(egressDefault) ? "1" : "System".equals(egressDefault) ? "2" : "0");
+            } else {
+                line.append("/root/firewall_rule.sh -F");
+            }
+            String[] fwRules = fwCmd.generateFwRules()[0];
+            if (fwRules.length > 0) {
+                line.append(" -a ");
+                for (String fwRule : fwRules) {
+                    line.append(fwRule).append(',');
+                }
+            }
+            lines.add(line.toString());
+        } else if (cmd instanceof DhcpEntryCommand) {
+            DhcpEntryCommand dhcpCmd = (DhcpEntryCommand)cmd;
+            StringBuilder line = new StringBuilder("/root/edithosts.sh");
+            if (dhcpCmd.getVmIpAddress() != null) {
+                line.append(" -4 ").append(dhcpCmd.getVmIpAddress());
+            }
+            line.append(" -m ").append(dhcpCmd.getVmMac());
+            line.append(" -h ").append(dhcpCmd.getVmName());
+            if (dhcpCmd.getDefaultRouter() != null) {
+                line.append(" -d ").append(dhcpCmd.getDefaultRouter());
+            }
+            if (dhcpCmd.getStaticRoutes() != null) {
+                line.append(" -s ").append(dhcpCmd.getStaticRoutes());
+            }
+            if (dhcpCmd.getDefaultDns() != null) {
+                line.append(" -n ").append(dhcpCmd.getDefaultDns());
+            }
+            if (dhcpCmd.getVmIp6Address() != null) {
+                line.append(" -6 ").append(dhcpCmd.getVmIp6Address());
+                line.append(" -u ").append(dhcpCmd.getDuid());
+            }
+            if (!dhcpCmd.isDefault()) {
+                line.append(" -N");
+            }
+            lines.add(line.toString());
+        } else if (cmd instanceof VmDataCommand) {
+            VmDataCommand vmDataCmd = (VmDataCommand)cmd;
+            Map<String, List<String[]>> data = new HashMap<String, List<String[]>>();
+            data.put(vmDataCmd.getVmIpAddress(), vmDataCmd.getVmData());
+            lines.add("/opt/cloud/bin/vmdata.py -d " + Base64.encodeBase64String(new Gson().toJson(data).getBytes()));
+        } else {
+            return null;
+        }
+        return lines;
+    }
+
+    /**
+     * Pushes the configuration collected for a router in one copy and applies it with one call.
+     *
+     * @return null on success, the error otherwise
+     */
+    protected String applyBatch(String routerIp, RouterConfigBatch batch) {
+        if (batch.isEmpty()) {
+            return null;
+        }
+
+        int count = batch.getLines().size();
+        long start = System.currentTimeMillis();
+        try {
+            copyToRouter(routerIp, "/var/cache/cloud/", batch.getFileName(), batch.toPayload());
+        } catch (Exception e) {
+            s_logger.warn("Unable to copy the configuration to router " + routerIp, e);
+            batch.fail("Unable to copy the configuration to router " + routerIp + ": " + e.getMessage());
+            return batch.getFailure();
+        }
+        String result = routerProxy("vr_cfg.sh", routerIp, "-c /var/cache/cloud/" + batch.getFileName());
+        if (result != null) {
+            // vr_cfg.sh stops at the first failing line, the lines are kept for diagnosis but never pushed again
+            batch.fail("Applying " + count + " configuration lines on router " + routerIp + " failed: " + result);
+            s_logger.warn(batch.getFailure());
+            return batch.getFailure();
+        }
+        batch.reset();
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Applied " + count + " configuration lines on router " + routerIp + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        return null;
+    }
+
+    protected void copyToRouter(String routerIp, String path, String fileName, byte[] content) throws Exception {
+        SshHelper.scpTo(routerIp, 3922, "root", new File("/root/.ssh/id_rsa.cloud"), null, path, content, fileName, null);
+    }
+
     private Answer execute(VpnUsersCfgCommand cmd) {
         for (VpnUsersCfgCommand.UsernamePassword userpwd: cmd.getUserpwds()) {         
             String args = "";
@@ -1092,6 +1344,8 @@ public class VirtualRoutingResource implements Manager {
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
         _name = name;
 
+        SshHelper.configure(params);
+
         _scriptsDir = (String)params.get("domr.scripts.dir");
         if (_scriptsDir == null) {
             if(s_logger.isInfoEnabled()) {
@@ -1119,6 +1373,9 @@ public class VirtualRoutingResource implements Manager {
         value = (String)params.get("ssh.port");
         _port = NumbersUtil.parseInt(value, 3922);
 
+        value = (String)params.get("router.aggregation.timeout");
+        _aggregationTimeout = NumbersUtil.parseLong(value, 600) * 1000;
+
         _publicIpAddress = (String)params.get("public.ip.address");
         if (_publicIpAddress != null) {
             s_logger.warn("Incoming public ip address is overriden.  Will always be using the same ip address: " + _publicIpAddress);
@@ -0,0 +1,121 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Computes one or more digests of a byte stream in a single pass, so a template can be
+ * checksummed while it is being written instead of being read back from secondary storage.
+ */
+public class ChecksumCalculator {
+    public static final String MD5 = "MD5";
+    public static final String SHA256 = "SHA-256";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Map<String, MessageDigest> _digests = new LinkedHashMap<String, MessageDigest>();
+    private Map<String, String> _checksums;
+
+    public ChecksumCalculator(String... algorithms) {
+        for (String algorithm : algorithms) {
+            if (_digests.containsKey(algorithm)) {
+                continue;
+            }
+            try {
+                _digests.put(algorithm, MessageDigest.getInstance(algorithm));
+            } catch (NoSuchAlgorithmException e) {
+                throw new CloudRuntimeException("Unsupported checksum algorithm " + algorithm, e);
+            }
+        }
+    }
+
+    public void update(byte[] buf, int offset, int length) {
+        if (_checksums != null) {
+            throw new IllegalStateException("Checksums have already been computed");
+        }
+        for (MessageDigest digest : _digests.values()) {
+            digest.update(buf, offset, length);
+        }
+    }
+
+    /**
+     * Feeds up to length bytes of the stream to the digests.
+     * @return number of bytes read
+     */
+    public long update(InputStream in, long length) throws IOException {
+        byte[] buffer = new byte[(int)Math.min(BUFFER_SIZE, Math.max(length, 1))];
+        long total = 0;
+        while (total < length) {
+            int read = in.read(buffer, 0, (int)Math.min(buffer.length, length - total));
+            if (read < 0) {
+                break;
+            }
+            update(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Completes the digests, no more data can be added afterwards.
+     * @return hex encoded checksums keyed by algorithm
+     */
+    public synchronized Map<String, String> finish() {
+        if (_checksums == null) {
+            Map<String, String> checksums = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, MessageDigest> entry : _digests.entrySet()) {
+                checksums.put(entry.getKey(), toHex(entry.getValue().digest()));
+            }
+            _checksums = Collections.unmodifiableMap(checksums);
+        }
+        return _checksums;
+    }
+
+    /**
+     * @return hex encoded checksum, null if the calculation is not finished or the algorithm was not requested
+     */
+    public synchronized String getChecksum(String algorithm) {
+        return _checksums != null ? _checksums.get(algorithm) : null;
+    }
+
+    public static String toHex(byte[] digest) {
+        return String.format("%0" + (digest.length * 2) + "x", new BigInteger(1, digest));
+    }
+
+    public static Map<String, String> compute(File file, String... algorithms) throws IOException {
+        ChecksumCalculator calculator = new ChecksumCalculator(algorithms);
+        InputStream in = new FileInputStream(file);
+        try {
+            calculator.update(in, Long.MAX_VALUE);
+        } finally {
+            in.close();
+        }
+        return calculator.finish();
+    }
+}
@@ -0,0 +1,147 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sidecar file kept next to template.properties that remembers the checksums of the files in a
+ * template directory. An entry is only trusted while the size and modification time of the file
+ * still match the values recorded with it, so a file changed behind our back is checksummed again.
+ */
+public class ChecksumIndex {
+    private static final Logger s_logger = Logger.getLogger(ChecksumIndex.class);
+
+    public final static String Filename = "checksum.index";
+
+    // index files of all template directories are small, one lock is enough
+    private static final Object s_lock = new Object();
+
+    private final File _indexFile;
+
+    public ChecksumIndex(File dir) {
+        _indexFile = new File(dir, Filename);
+    }
+
+    /**
+     * @return the recorded checksum, null if there is none or the file has changed since it was recorded
+     */
+    public String getChecksum(File file, String algorithm) {
+        synchronized (s_lock) {
+            Properties props = load();
+            String name = file.getName();
+            if (!isCurrent(props, name, file)) {
+                return null;
+            }
+            return props.getProperty(getKey(name, algorithm));
+        }
+    }
+
+    /**
+     * Records checksums of the file as it is now, entries of other algorithms are kept as long as the file did not change.
+     */
+    public void setChecksums(File file, Map<String, String> checksums) throws IOException {
+        synchronized (s_lock) {
+            Properties props = load();
+            String name = file.getName();
+            if (!isCurrent(props, name, file)) {
+                removeEntries(props, name);
+                props.setProperty(name + ".size", Long.toString(file.length()));
+                props.setProperty(name + ".mtime", Long.toString(file.lastModified()));
+            }
+            for (Map.Entry<String, String> entry : checksums.entrySet()) {
+                props.setProperty(getKey(name, entry.getKey()), entry.getValue());
+            }
+            save(props);
+        }
+    }
+
+    public void remove(File file) throws IOException {
+        synchronized (s_lock) {
+            Properties props = load();
+            removeEntries(props, file.getName());
+            save(props);
+        }
+    }
+
+    private static boolean isCurrent(Properties props, String name, File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        return Long.toString(file.length()).equals(props.getProperty(name + ".size"))
+                && Long.toString(file.lastModified()).equals(props.getProperty(name + ".mtime"));
+    }
+
+    private static void removeEntries(Properties props, String name) {
+        String prefix = name + ".";
+        for (Object key : props.keySet().toArray()) {
+            if (((String)key).startsWith(prefix)) {
+                props.remove(key);
+            }
+        }
+    }
+
+    private static String getKey(String name, String algorithm) {
+        return name + "." + algorithm.replace("-", "").toLowerCase();
+    }
+
+    private Properties load() {
+        Properties props = new Properties();
+        if (!_indexFile.exists()) {
+            return props;
+        }
+
+        FileInputStream strm = null;
+        try {
+            strm = new FileInputStream(_indexFile);
+            props.load(strm);
+        } catch (IOException e) {
+            s_logger.warn("Unable to read checksum index " + _indexFile.getAbsolutePath() + ", ignoring it", e);
+            props.clear();
+        } finally {
+            if (strm != null) {
+                try {
+                    strm.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return props;
+    }
+
+    private void save(Properties props) throws IOException {
+        // write a temporary file and rename it, readers never see a half written index
+        File tmpFile = new File(_indexFile.getParentFile(), Filename + ".tmp");
+        FileOutputStream strm = new FileOutputStream(tmpFile);
+        try {
+            props.store(strm, "");
+        } finally {
+            strm.close();
+        }
+        if (!tmpFile.renameTo(_indexFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to update checksum index " + _indexFile.getAbsolutePath());
+        }
+    }
+}
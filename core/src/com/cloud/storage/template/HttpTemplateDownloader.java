@@ -19,6 +19,7 @@ package com.cloud.storage.template;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
@@ -61,6 +62,15 @@ public class HttpTemplateDownloader implements TemplateDownloader {
     private static final MultiThreadedHttpConnectionManager s_httpClientManager = new MultiThreadedHttpConnectionManager();
 
 	private static final int CHUNK_SIZE = 1024*1024; //1M
+	// smaller templates are not worth opening several connections for
+	private static final long MIN_SEGMENTED_DOWNLOAD_SIZE = 64L*1024*1024;
+	private static final int MAX_SEGMENTED_DOWNLOAD_ATTEMPTS = 3;
+
+	static {
+		// segmented downloads open several connections to the same server
+		s_httpClientManager.getParams().setDefaultMaxConnectionsPerHost(16);
+		s_httpClientManager.getParams().setMaxTotalConnections(64);
+	}
 	private String downloadUrl;
 	private String toFile;
 	public TemplateDownloader.Status status= TemplateDownloader.Status.NOT_STARTED;
@@ -79,6 +89,11 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	private long MAX_TEMPLATE_SIZE_IN_BYTES;
 	private ResourceType resourceType = ResourceType.TEMPLATE;
 	private final HttpMethodRetryHandler myretryhandler;
+	private String[] checksumAlgorithms = new String[] {ChecksumCalculator.MD5};
+	private ChecksumCalculator checksum;
+	private int segmentCount = 1;
+	private volatile SegmentedHttpDownload segmentedDownload;
+	private int segmentedAttempts = 0;
 
 
 
@@ -173,6 +188,19 @@ public class HttpTemplateDownloader implements TemplateDownloader {
         int bytes=0;
 		File file = new File(toFile);
 		try {
+			if (segmentCount > 1) {
+				long size = getRangeSupportedSize();
+				if (size >= MIN_SEGMENTED_DOWNLOAD_SIZE) {
+					return downloadSegmented(file, size, resume);
+				}
+			}
+
+			File segmentMap = new File(toFile + SegmentedHttpDownload.SegmentMapSuffix);
+			if (segmentMap.exists()) {
+				// a preallocated file of a segmented attempt cannot be resumed from its length
+				segmentMap.delete();
+				file.delete();
+			}
 
 			long localFileSize = 0;
 			if (file.exists() && resume) {
@@ -239,6 +267,17 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             InputStream in = !chunked?new BufferedInputStream(request.getResponseBodyAsStream())
             						: new ChunkedInputStream(request.getResponseBodyAsStream());
 
+            // digest the data as it is written, the template does not have to be read back for its checksum
+            checksum = new ChecksumCalculator(checksumAlgorithms);
+            if (localFileSize > 0) {
+            	FileInputStream prefix = new FileInputStream(file);
+            	try {
+            		checksum.update(prefix, localFileSize);
+            	} finally {
+            		prefix.close();
+            	}
+            }
+
             RandomAccessFile out = new RandomAccessFile(file, "rwd");
             out.seek(localFileSize);
 
@@ -251,6 +290,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             while (!done && status != Status.ABORTED && offset <= remoteSize) {
             	if ( (bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
             		out.write(block, 0, bytes);
+            		checksum.update(block, 0, bytes);
             		offset +=bytes;
             		out.seek(offset);
             		totalBytes += bytes;
@@ -263,6 +303,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             if (totalBytes >= remoteSize) {
             	status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
             	downloaded = "(download complete remote=" + remoteSize + "bytes)";
+            	checksum.finish();
             }
             errorString = "Downloaded " + totalBytes + " bytes " + downloaded;
             downloadTime += finish.getTime() - start.getTime();
@@ -278,6 +319,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		} finally {
 			if (status == Status.UNRECOVERABLE_ERROR && file.exists() && !file.isDirectory()) {
 				file.delete();
+				new File(toFile + SegmentedHttpDownload.SegmentMapSuffix).delete();
 			}
 			request.releaseConnection();
             if (callback != null) {
@@ -287,6 +329,60 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		return 0;
 	}
 
+	private long getRangeSupportedSize() {
+		try {
+			return SegmentedHttpDownload.getRangeSupportedSize(client, downloadUrl);
+		} catch (IOException e) {
+			s_logger.info("Unable to probe " + downloadUrl + " for range support, downloading with a single connection: " + e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * Download the file over several connections, each one fetching its own byte range
+	 */
+	private long downloadSegmented(File file, long size, boolean resume) throws IOException {
+		if (size > MAX_TEMPLATE_SIZE_IN_BYTES) {
+			s_logger.info("Remote size is too large: " + size + " , max=" + MAX_TEMPLATE_SIZE_IN_BYTES);
+			status = Status.UNRECOVERABLE_ERROR;
+			errorString = "Download file size is too large";
+			return 0;
+		}
+		remoteSize = size;
+
+		checksum = new ChecksumCalculator(checksumAlgorithms);
+		SegmentedHttpDownload download = new SegmentedHttpDownload(client, downloadUrl, file, size, segmentCount, checksum);
+		segmentedDownload = download;
+		status = TemplateDownloader.Status.IN_PROGRESS;
+		s_logger.info("Starting segmented download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , segments=" + segmentCount);
+
+		Date start = new Date();
+		boolean finished;
+		try {
+			finished = download.download(resume);
+		} catch (IOException e) {
+			errorString = "Segmented download failed: " + e.getMessage();
+			if (++segmentedAttempts >= MAX_SEGMENTED_DOWNLOAD_ATTEMPTS) {
+				status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+			} else {
+				// keep the file and segment map around, the next run continues from there
+				this.resume = true;
+				status = TemplateDownloader.Status.RECOVERABLE_ERROR;
+			}
+			return 0;
+		} finally {
+			totalBytes = download.getDownloadedBytes();
+			downloadTime += new Date().getTime() - start.getTime();
+		}
+
+		if (finished) {
+			status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
+			checksum.finish();
+			errorString = "Downloaded " + totalBytes + " bytes (download complete remote=" + remoteSize + "bytes)";
+		}
+		return totalBytes;
+	}
+
 	public String getDownloadUrl() {
 		return downloadUrl;
 	}
@@ -308,7 +404,8 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 
 
 	public long getDownloadedBytes() {
-		return totalBytes;
+		SegmentedHttpDownload download = segmentedDownload;
+		return download != null ? download.getDownloadedBytes() : totalBytes;
 	}
 
 	@Override
@@ -319,6 +416,9 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 			if (request != null) {
 				request.abort();
 			}
+			if (segmentedDownload != null) {
+				segmentedDownload.stop();
+			}
 			status = TemplateDownloader.Status.ABORTED;
 			return true;
 		case UNKNOWN:
@@ -332,6 +432,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 			if (f.exists()) {
 				f.delete();
 			}
+			new File(toFile + SegmentedHttpDownload.SegmentMapSuffix).delete();
 			return true;
 
 		default:
@@ -345,7 +446,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 			return 0;
 		}
 
-		return (int)(100.0*totalBytes/remoteSize);
+		return (int)(100.0*getDownloadedBytes()/remoteSize);
 	}
 
 	@Override
@@ -432,4 +533,20 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		return resourceType;
 	}
 
+	/**
+	 * Number of connections used when the server supports range requests, 1 downloads with a single stream
+	 */
+	public void setSegmentCount(int segmentCount) {
+		this.segmentCount = segmentCount;
+	}
+
+	public void setChecksumAlgorithms(String... algorithms) {
+		this.checksumAlgorithms = algorithms;
+	}
+
+	@Override
+	public String getChecksum(String algorithm) {
+		return checksum != null ? checksum.getChecksum(algorithm) : null;
+	}
+
 }
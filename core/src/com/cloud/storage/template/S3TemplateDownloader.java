@@ -20,6 +20,7 @@ import static com.cloud.utils.StringUtils.join;
 import static java.util.Arrays.asList;
 
 import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
@@ -85,6 +86,8 @@ public class S3TemplateDownloader implements TemplateDownloader {
     private long maxTemplateSizeInByte;
     private ResourceType resourceType = ResourceType.TEMPLATE;
     private final HttpMethodRetryHandler myretryhandler;
+    private String[] checksumAlgorithms = new String[] {ChecksumCalculator.MD5};
+    private ChecksumCalculator checksum;
 
     public S3TemplateDownloader(S3TO storageLayer, String downloadUrl, String installPath,
             DownloadCompleteCallback callback, long maxTemplateSizeInBytes, String user, String password, Proxy proxy,
@@ -218,6 +221,9 @@ public class S3TemplateDownloader implements TemplateDownloader {
 
             InputStream in = !chunked ? new BufferedInputStream(request.getResponseBodyAsStream())
                     : new ChunkedInputStream(request.getResponseBodyAsStream());
+            // digest the object while it streams to S3, there is no local copy to checksum afterwards
+            checksum = new ChecksumCalculator(checksumAlgorithms);
+            in = new ChecksumInputStream(in, checksum);
 
             s_logger.info("Starting download from " + getDownloadUrl() + " to s3 bucket " + s3.getBucketName()
                     + " remoteSize=" + remoteSize + " , max size=" + maxTemplateSizeInByte);
@@ -273,6 +279,9 @@ public class S3TemplateDownloader implements TemplateDownloader {
             if (totalBytes >= remoteSize) {
                 status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
                 downloaded = "(download complete remote=" + remoteSize + "bytes)";
+            }
+            if (status == TemplateDownloader.Status.DOWNLOAD_FINISHED) {
+                checksum.finish();
             } else {
                 errorString = "Downloaded " + totalBytes + " bytes " + downloaded;
             }
@@ -415,4 +424,77 @@ public class S3TemplateDownloader implements TemplateDownloader {
         return resourceType;
     }
 
+    public void setChecksumAlgorithms(String... algorithms) {
+        this.checksumAlgorithms = algorithms;
+    }
+
+    @Override
+    public String getChecksum(String algorithm) {
+        return checksum != null ? checksum.getChecksum(algorithm) : null;
+    }
+
+    /**
+     * Feeds every byte read to the checksum exactly once, bytes read again after a reset
+     * (the S3 client rewinds the stream when it retries a request) are not digested twice.
+     */
+    private static class ChecksumInputStream extends FilterInputStream {
+        private final ChecksumCalculator checksum;
+        private long position = 0;
+        private long markPosition = 0;
+        private long digested = 0;
+
+        ChecksumInputStream(InputStream in, ChecksumCalculator checksum) {
+            super(in);
+            this.checksum = checksum;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                long end = position + n;
+                if (end > digested) {
+                    int skip = (int)Math.max(0, digested - position);
+                    checksum.update(b, off + skip, n - skip);
+                    digested = end;
+                }
+                position = end;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes still have to be digested
+            byte[] buf = new byte[(int)Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buf, 0, (int)Math.min(buf.length, n - skipped));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            super.mark(readlimit);
+            markPosition = position;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            super.reset();
+            position = markPosition;
+        }
+    }
 }
@@ -0,0 +1,564 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Downloads a file over several HTTP connections at once, each fetching its own byte range and
+ * writing it at its offset in a preallocated file. Progress of every segment is persisted in a
+ * segment map next to the file, so an interrupted download resumes where each segment stopped.
+ *
+ * The checksum is still computed in file order, by a digest thread that reads back what the
+ * segments have written up to the first gap. Segment threads only update their progress under
+ * the lock; hashing, flushing the file and saving the segment map happen outside of it.
+ */
+public class SegmentedHttpDownload {
+    private static final Logger s_logger = Logger.getLogger(SegmentedHttpDownload.class);
+
+    public static final String SegmentMapSuffix = ".segments";
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final long MIN_SEGMENT_SIZE = 16L * 1024 * 1024;
+    // flush the file and persist the segment map every so many bytes, but not more often than every so many ms
+    private static final long MAP_SAVE_INTERVAL = 64L * 1024 * 1024;
+    private static final long MAP_SAVE_MIN_MILLIS = 5000;
+    private static final int MAX_SEGMENT_RETRIES = 3;
+
+    private final HttpClient _client;
+    private final String _url;
+    private final File _file;
+    private final File _mapFile;
+    private final long _size;
+    private final int _maxSegments;
+    private final ChecksumCalculator _checksum;
+
+    private final List<Segment> _segments = new ArrayList<Segment>();
+    private final List<HttpMethodBase> _activeMethods = new ArrayList<HttpMethodBase>();
+    private FileChannel _channel;
+    private long _downloaded;
+    // only the digest thread moves the hashing position
+    private volatile long _hashed;
+    private long _unsaved;
+    private long _lastSave;
+    private boolean _saving;
+    private boolean _segmentsDone;
+    private long _retryDelay = 1000;
+    private volatile boolean _stopped;
+    // set when stopped or when a segment failed for good, the other segments give up too
+    private volatile boolean _aborted;
+
+    private static class Segment {
+        final long start;
+        final long end; // exclusive
+        long done;
+
+        Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+
+        boolean isComplete() {
+            return start + done >= end;
+        }
+    }
+
+    /**
+     * @param checksum digests the file in order while it downloads, may be null
+     */
+    public SegmentedHttpDownload(HttpClient client, String url, File file, long size, int segments, ChecksumCalculator checksum) {
+        _client = client;
+        _url = url;
+        _file = file;
+        _mapFile = new File(file.getPath() + SegmentMapSuffix);
+        _size = size;
+        _maxSegments = Math.max(1, segments);
+        _checksum = checksum;
+    }
+
+    /**
+     * Asks the server for the size of the file and whether it serves byte ranges.
+     * @return size of the remote file, -1 if the server does not support range requests
+     */
+    public static long getRangeSupportedSize(HttpClient client, String url) throws IOException {
+        HeadMethod method = new HeadMethod(url);
+        try {
+            if (client.executeMethod(method) != HttpStatus.SC_OK) {
+                return -1;
+            }
+            Header acceptRanges = method.getResponseHeader("Accept-Ranges");
+            Header contentLength = method.getResponseHeader("Content-Length");
+            if (acceptRanges == null || !"bytes".equalsIgnoreCase(acceptRanges.getValue().trim()) || contentLength == null) {
+                return -1;
+            }
+            return NumbersUtil.parseLong(contentLength.getValue().trim(), -1);
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Downloads all segments that are not complete yet, blocks until they are done.
+     * @param resume continue from the segment map of an earlier attempt if there is one
+     * @return false if the download was stopped
+     * @throws IOException if a segment keeps failing, progress so far stays in the segment map
+     */
+    public boolean download(boolean resume) throws IOException {
+        _aborted = _stopped;
+        _segmentsDone = false;
+        RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+        try {
+            _channel = raf.getChannel();
+            synchronized (this) {
+                if (!resume || !loadMap()) {
+                    createSegments();
+                    raf.setLength(_size);
+                    saveMap(getProgress());
+                } else if (s_logger.isInfoEnabled()) {
+                    s_logger.info("Resuming download of " + _url + " at " + _downloaded + " of " + _size + " bytes");
+                }
+                _lastSave = System.currentTimeMillis();
+            }
+
+            IOException failure = null;
+            ExecutorService executor = Executors.newFixedThreadPool(_segments.size() + 1, new NamedThreadFactory("SegmentedDownload"));
+            try {
+                Future<Void> digest = null;
+                if (_checksum != null) {
+                    digest = executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            digest();
+                            return null;
+                        }
+                    });
+                }
+
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (final Segment segment : _segments) {
+                    if (segment.isComplete()) {
+                        continue;
+                    }
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            downloadSegment(segment);
+                            return null;
+                        }
+                    }));
+                }
+
+                for (Future<Void> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause().toString());
+                            // no point in going on, the other segments resume from the map next time
+                            _aborted = true;
+                            abortConnections();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        stop();
+                        failure = new InterruptedIOException("Interrupted while downloading " + _url);
+                    }
+                }
+
+                // let the digest thread hash what is left and finish
+                synchronized (this) {
+                    _segmentsDone = true;
+                    notifyAll();
+                }
+                if (digest != null) {
+                    try {
+                        digest.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause().toString());
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        stop();
+                        failure = new InterruptedIOException("Interrupted while downloading " + _url);
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            synchronized (this) {
+                if (isComplete()) {
+                    _mapFile.delete();
+                } else {
+                    _channel.force(false);
+                    saveMap(getProgress());
+                }
+            }
+
+            if (failure != null && !_stopped) {
+                throw failure;
+            }
+            return !_stopped;
+        } finally {
+            _channel = null;
+            raf.close();
+        }
+    }
+
+    /**
+     * Stops the download, segments keep their progress for a later resume.
+     */
+    public void stop() {
+        _stopped = true;
+        _aborted = true;
+        abortConnections();
+    }
+
+    public synchronized long getDownloadedBytes() {
+        return _downloaded;
+    }
+
+    public synchronized boolean isComplete() {
+        for (Segment segment : _segments) {
+            if (!segment.isComplete()) {
+                return false;
+            }
+        }
+        return !_segments.isEmpty();
+    }
+
+    public File getSegmentMapFile() {
+        return _mapFile;
+    }
+
+    public int getSegmentCount() {
+        return _segments.size();
+    }
+
+    void setRetryDelay(long retryDelay) {
+        _retryDelay = retryDelay;
+    }
+
+    private void createSegments() {
+        _segments.clear();
+        int count = (int)Math.max(1, Math.min(_maxSegments, _size / MIN_SEGMENT_SIZE));
+        long length = (_size + count - 1) / count;
+        for (long start = 0; start < _size; start += length) {
+            _segments.add(new Segment(start, Math.min(start + length, _size), 0));
+        }
+        _downloaded = 0;
+        _hashed = 0;
+    }
+
+    private void downloadSegment(Segment segment) throws IOException {
+        int attempt = 0;
+        while (true) {
+            try {
+                fetch(segment);
+                return;
+            } catch (IOException e) {
+                if (_aborted || ++attempt > MAX_SEGMENT_RETRIES) {
+                    throw e;
+                }
+                s_logger.info("Segment at " + segment.start + " of " + _url + " failed (" + e.getMessage() + "), retry " + attempt + " of "
+                        + MAX_SEGMENT_RETRIES);
+                try {
+                    Thread.sleep(_retryDelay * attempt);
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException("Interrupted while retrying segment at " + segment.start);
+                }
+            }
+        }
+    }
+
+    private void fetch(Segment segment) throws IOException {
+        long position;
+        synchronized (this) {
+            position = segment.start + segment.done;
+        }
+        if (position >= segment.end) {
+            return;
+        }
+
+        GetMethod method = new GetMethod(_url);
+        method.addRequestHeader("Range", "bytes=" + position + "-" + (segment.end - 1));
+        if (!register(method)) {
+            return;
+        }
+        try {
+            int responseCode = _client.executeMethod(method);
+            if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                throw new IOException("HTTP Server returned " + responseCode + " (expected 206 Partial Content) for range at " + position);
+            }
+            Header contentRange = method.getResponseHeader("Content-Range");
+            if (contentRange == null || !contentRange.getValue().trim().startsWith("bytes " + position + "-")) {
+                throw new IOException("HTTP Server returned unexpected range " + (contentRange != null ? contentRange.getValue() : null)
+                        + " for range at " + position);
+            }
+
+            InputStream in = method.getResponseBodyAsStream();
+            byte[] block = new byte[BLOCK_SIZE];
+            while (position < segment.end && !_aborted) {
+                int length = read(in, block, (int)Math.min(block.length, segment.end - position));
+                if (length <= 0) {
+                    throw new IOException("Connection closed at offset " + position + " of segment at " + segment.start);
+                }
+                write(block, length, position);
+                completed(segment, length);
+                position += length;
+            }
+        } finally {
+            unregister(method);
+            if (position < segment.end) {
+                // do not let the connection drain the rest of the range
+                method.abort();
+            }
+            method.releaseConnection();
+        }
+    }
+
+    private static int read(InputStream in, byte[] block, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(block, total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private void write(byte[] block, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+        while (buffer.hasRemaining()) {
+            _channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void completed(Segment segment, int length) throws IOException {
+        long[] progress = null;
+        synchronized (this) {
+            segment.done += length;
+            _downloaded += length;
+            _unsaved += length;
+            if (!_saving && _unsaved >= MAP_SAVE_INTERVAL && System.currentTimeMillis() - _lastSave >= MAP_SAVE_MIN_MILLIS) {
+                // this thread saves the map, the other segments go on meanwhile
+                _saving = true;
+                _unsaved = 0;
+                progress = getProgress();
+            }
+            if (_checksum != null) {
+                notifyAll();
+            }
+        }
+
+        if (progress != null) {
+            try {
+                // data has to be on disk before the map claims it, the progress was taken before the flush
+                _channel.force(false);
+                saveMap(progress);
+            } finally {
+                synchronized (this) {
+                    _saving = false;
+                    _lastSave = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes the file in order, moving the hashing position over data the segments have written
+     * as soon as it is there. Returns when the whole file is hashed or no more data will come.
+     */
+    private void digest() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        while (true) {
+            long available;
+            synchronized (this) {
+                while ((available = getDigestible()) <= 0) {
+                    if (_hashed >= _size || _segmentsDone || _aborted) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while hashing " + _file.getAbsolutePath());
+                    }
+                }
+            }
+
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), available));
+            int read = _channel.read(buffer, _hashed);
+            if (read <= 0) {
+                throw new IOException("Unable to read back " + _file.getAbsolutePath() + " at offset " + _hashed);
+            }
+            _checksum.update(buffer.array(), 0, read);
+            _hashed += read;
+        }
+    }
+
+    /**
+     * @return bytes written contiguously from the hashing position on, must hold the lock
+     */
+    private long getDigestible() {
+        if (_hashed >= _size) {
+            return 0;
+        }
+        Segment segment = getSegment(_hashed);
+        return segment.start + segment.done - _hashed;
+    }
+
+    /**
+     * @return the bytes done of every segment, must hold the lock
+     */
+    private long[] getProgress() {
+        long[] progress = new long[_segments.size()];
+        for (int i = 0; i < progress.length; i++) {
+            progress[i] = _segments.get(i).done;
+        }
+        return progress;
+    }
+
+    private Segment getSegment(long position) {
+        for (Segment segment : _segments) {
+            if (position >= segment.start && position < segment.end) {
+                return segment;
+            }
+        }
+        throw new IllegalStateException("No segment at offset " + position);
+    }
+
+    private synchronized boolean register(HttpMethodBase method) {
+        if (_aborted) {
+            return false;
+        }
+        _activeMethods.add(method);
+        return true;
+    }
+
+    private synchronized void unregister(HttpMethodBase method) {
+        _activeMethods.remove(method);
+    }
+
+    private synchronized void abortConnections() {
+        for (HttpMethodBase method : _activeMethods) {
+            method.abort();
+        }
+    }
+
+    private boolean loadMap() throws IOException {
+        if (!_mapFile.exists() || _file.length() != _size) {
+            return false;
+        }
+
+        Properties props = new Properties();
+        FileInputStream strm = new FileInputStream(_mapFile);
+        try {
+            props.load(strm);
+        } finally {
+            strm.close();
+        }
+
+        if (!_url.equals(props.getProperty("url")) || NumbersUtil.parseLong(props.getProperty("size"), -1) != _size) {
+            s_logger.info("Segment map " + _mapFile.getAbsolutePath() + " belongs to another download, starting over");
+            return false;
+        }
+
+        List<Segment> segments = new ArrayList<Segment>();
+        int count = NumbersUtil.parseInt(props.getProperty("segments"), 0);
+        long expectedStart = 0;
+        for (int i = 0; i < count; i++) {
+            long start = NumbersUtil.parseLong(props.getProperty("segment." + i + ".start"), -1);
+            long end = NumbersUtil.parseLong(props.getProperty("segment." + i + ".end"), -1);
+            long done = NumbersUtil.parseLong(props.getProperty("segment." + i + ".done"), -1);
+            if (start != expectedStart || end <= start || done < 0 || start + done > end) {
+                s_logger.warn("Segment map " + _mapFile.getAbsolutePath() + " is inconsistent, starting over");
+                return false;
+            }
+            segments.add(new Segment(start, end, done));
+            expectedStart = end;
+        }
+        if (segments.isEmpty() || expectedStart != _size) {
+            return false;
+        }
+
+        _segments.clear();
+        _segments.addAll(segments);
+        _downloaded = 0;
+        for (Segment segment : _segments) {
+            _downloaded += segment.done;
+        }
+        _hashed = 0;
+        return true;
+    }
+
+    private void saveMap(long[] progress) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("url", _url);
+        props.setProperty("size", Long.toString(_size));
+        props.setProperty("segments", Integer.toString(_segments.size()));
+        for (int i = 0; i < _segments.size(); i++) {
+            Segment segment = _segments.get(i);
+            props.setProperty("segment." + i + ".start", Long.toString(segment.start));
+            props.setProperty("segment." + i + ".end", Long.toString(segment.end));
+            props.setProperty("segment." + i + ".done", Long.toString(progress[i]));
+        }
+
+        File tmpFile = new File(_mapFile.getPath() + ".tmp");
+        FileOutputStream strm = new FileOutputStream(tmpFile);
+        try {
+            props.store(strm, "");
+        } finally {
+            strm.close();
+        }
+        if (!tmpFile.renameTo(_mapFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to update segment map " + _mapFile.getAbsolutePath());
+        }
+    }
+}
@@ -90,4 +90,11 @@ public interface TemplateDownloader extends Runnable{
 	
 	public long getMaxTemplateSizeInBytes();
 
+	/**
+	 * Get the checksum computed while the file was downloaded
+	 * @param algorithm digest algorithm, e.g. MD5
+	 * @return hex encoded checksum, null if the download is not finished or the downloader does not compute it
+	 */
+	public String getChecksum(String algorithm);
+
 }
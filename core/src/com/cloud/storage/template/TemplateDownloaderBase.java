@@ -143,4 +143,9 @@ public abstract class TemplateDownloaderBase implements TemplateDownloader {
 	public boolean isInited() {
 		return _inited;
 	}
+
+	@Override
+	public String getChecksum(String algorithm) {
+		return null;
+	}
 }
@@ -0,0 +1,310 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Persistent inventory of the templates (or volumes) below a directory of an image store.
+ *
+ * Listing used to run find over the whole tree and parse every properties file. The inventory
+ * remembers, for every directory, its modification time, its sub directories and the parsed
+ * properties file, and is saved next to the tree so a restarted SSVM starts from it. A listing
+ * only re-reads directories whose modification time changed (a template was added or removed
+ * below them) and properties files whose modification time changed; everything else comes
+ * from the inventory. A directory modified within the file system's timestamp granularity of
+ * its last scan is scanned again, a second change in the same tick would not move its
+ * modification time.
+ */
+public class TemplateInventory {
+    private static final Logger s_logger = Logger.getLogger(TemplateInventory.class);
+
+    public final static String Filename = ".inventory";
+    private final static int VERSION = 1;
+    // NFS servers and older file systems keep modification times in whole seconds
+    private final static long DEFAULT_MTIME_GRANULARITY = 2000;
+
+    /**
+     * Parses the properties file of a template directory.
+     */
+    public interface Loader {
+        /**
+         * @return the template in the directory, null if it is not installed completely
+         */
+        TemplateProp load(String path);
+    }
+
+    private static class DirEntry {
+        long mtime;
+        long scanned;
+        List<String> children;
+        boolean hasProperties;
+        long propertiesMtime;
+        long propertiesSize;
+        TemplateProp template;
+    }
+
+    private static class Index {
+        int version;
+        Map<String, DirEntry> entries;
+    }
+
+    private final File _root;
+    private final String _propertiesFilename;
+    private final File _indexFile;
+    private long _mtimeGranularity = DEFAULT_MTIME_GRANULARITY;
+    private Map<String, DirEntry> _entries;
+    private boolean _dirty;
+    private int _directoriesScanned;
+    private int _templatesLoaded;
+
+    public TemplateInventory(File root, String propertiesFilename) {
+        _root = root;
+        _propertiesFilename = propertiesFilename;
+        _indexFile = new File(root, Filename);
+    }
+
+    /**
+     * Lists all templates below the root, re-reading only what changed since the last listing.
+     */
+    public synchronized List<TemplateProp> list(Loader loader) {
+        if (_entries == null) {
+            _entries = load();
+        }
+        _directoriesScanned = 0;
+        _templatesLoaded = 0;
+
+        List<TemplateProp> result = new ArrayList<TemplateProp>();
+        Set<String> visited = new HashSet<String>();
+        walk("", _root, loader, result, visited);
+
+        if (_entries.keySet().retainAll(visited)) {
+            _dirty = true;
+        }
+
+        if (_dirty) {
+            try {
+                save();
+                _dirty = false;
+                // writing the index touched the root directory itself
+                DirEntry rootEntry = _entries.get("");
+                if (rootEntry != null) {
+                    rootEntry.mtime = _root.lastModified();
+                    rootEntry.scanned = System.currentTimeMillis();
+                }
+            } catch (IOException e) {
+                s_logger.warn("Unable to save template inventory " + _indexFile.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Listed " + result.size() + " templates under " + _root.getAbsolutePath() + ", rescanned " + _directoriesScanned
+                    + " directories and loaded " + _templatesLoaded + " properties files");
+        }
+        return result;
+    }
+
+    /**
+     * Forgets what is known about a directory, for changes that keep directory modification times,
+     * e.g. a properties file rewritten in place within the same second.
+     */
+    public synchronized void invalidate(String path) {
+        if (_entries == null) {
+            return;
+        }
+        String relativePath = getRelativePath(path);
+        if (relativePath == null) {
+            return;
+        }
+        if (_entries.remove(relativePath) != null) {
+            _dirty = true;
+        }
+        // make the parent list its children again, the directory may have been created or removed
+        int pos = relativePath.lastIndexOf('/');
+        DirEntry parent = _entries.get(pos > 0 ? relativePath.substring(0, pos) : "");
+        if (parent != null) {
+            parent.mtime = -1;
+            _dirty = true;
+        }
+    }
+
+    public boolean contains(String path) {
+        return getRelativePath(path) != null;
+    }
+
+    synchronized void setMtimeGranularity(long mtimeGranularity) {
+        _mtimeGranularity = mtimeGranularity;
+    }
+
+    public synchronized int getDirectoriesScanned() {
+        return _directoriesScanned;
+    }
+
+    public synchronized int getTemplatesLoaded() {
+        return _templatesLoaded;
+    }
+
+    private void walk(String relativePath, File dir, Loader loader, List<TemplateProp> result, Set<String> visited) {
+        long mtime = dir.lastModified();
+        if (mtime == 0) {
+            // removed while we were looking
+            return;
+        }
+        visited.add(relativePath);
+
+        DirEntry entry = _entries.get(relativePath);
+        if (entry == null || entry.mtime != mtime || mtime > entry.scanned - _mtimeGranularity) {
+            DirEntry previous = entry;
+            entry = scan(dir, mtime, previous);
+            _entries.put(relativePath, entry);
+            if (previous == null || previous.mtime != mtime || previous.hasProperties != entry.hasProperties || !previous.children.equals(entry.children)) {
+                _dirty = true;
+            }
+        }
+
+        if (entry.hasProperties) {
+            File properties = new File(dir, _propertiesFilename);
+            long propertiesMtime = properties.lastModified();
+            long propertiesSize = properties.length();
+            if (entry.template == null || entry.propertiesMtime != propertiesMtime || entry.propertiesSize != propertiesSize) {
+                _templatesLoaded++;
+                entry.template = loader.load(dir.getAbsolutePath());
+                // a template that could not be loaded is tried again next time
+                entry.propertiesMtime = entry.template != null ? propertiesMtime : 0;
+                entry.propertiesSize = propertiesSize;
+                _dirty = true;
+            }
+            if (entry.template != null) {
+                result.add(entry.template);
+            }
+        }
+
+        for (String child : entry.children) {
+            walk(relativePath.isEmpty() ? child : relativePath + "/" + child, new File(dir, child), loader, result, visited);
+        }
+    }
+
+    private DirEntry scan(File dir, long mtime, DirEntry previous) {
+        _directoriesScanned++;
+
+        DirEntry entry = new DirEntry();
+        entry.mtime = mtime;
+        entry.scanned = System.currentTimeMillis();
+        entry.children = new ArrayList<String>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    entry.children.add(file.getName());
+                } else if (file.getName().equals(_propertiesFilename)) {
+                    entry.hasProperties = true;
+                }
+            }
+        }
+
+        // a new file next to the properties does not make the properties stale
+        if (previous != null && previous.hasProperties && entry.hasProperties) {
+            entry.template = previous.template;
+            entry.propertiesMtime = previous.propertiesMtime;
+            entry.propertiesSize = previous.propertiesSize;
+        }
+        return entry;
+    }
+
+    private String getRelativePath(String path) {
+        String root = _root.getAbsolutePath();
+        String absolutePath = new File(path).getAbsolutePath();
+        if (absolutePath.equals(root)) {
+            return "";
+        }
+        if (!absolutePath.startsWith(root + File.separator)) {
+            return null;
+        }
+        return absolutePath.substring(root.length() + 1).replace(File.separatorChar, '/');
+    }
+
+    private Map<String, DirEntry> load() {
+        if (!_indexFile.exists()) {
+            return new HashMap<String, DirEntry>();
+        }
+
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(_indexFile), "UTF-8");
+            Index index = new Gson().fromJson(reader, Index.class);
+            if (index != null && index.version == VERSION && index.entries != null) {
+                return index.entries;
+            }
+            s_logger.info("Ignoring template inventory " + _indexFile.getAbsolutePath() + " of another version");
+        } catch (IOException e) {
+            s_logger.warn("Unable to read template inventory " + _indexFile.getAbsolutePath() + ", rebuilding it: " + e.getMessage());
+        } catch (JsonParseException e) {
+            s_logger.warn("Template inventory " + _indexFile.getAbsolutePath() + " is corrupted, rebuilding it: " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return new HashMap<String, DirEntry>();
+    }
+
+    private void save() throws IOException {
+        Index index = new Index();
+        index.version = VERSION;
+        index.entries = _entries;
+
+        // several SSVMs may share the store, readers must never see a half written file and
+        // writers must not share a temp file
+        File tmpFile = File.createTempFile(Filename + ".", ".tmp", _root);
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+            try {
+                new Gson().toJson(index, writer);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        if (!tmpFile.renameTo(_indexFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to replace " + _indexFile.getAbsolutePath());
+        }
+    }
+}
@@ -206,6 +206,10 @@ public class TemplateLocation {
         _props.setProperty("virtualsize", Long.toString(virtualSize));
     }
 
+    public void updateChecksum(String checksum) {
+        _props.setProperty("checksum", checksum);
+    }
+
     protected boolean checkFormatValidity(FormatInfo info) {
         return (info.format != null && info.size > 0 && info.virtualSize > 0 && info.filename != null);
     }
@@ -0,0 +1,240 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.routing.AggregationControlCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand.Action;
+import com.cloud.agent.api.routing.DhcpEntryCommand;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.RemoteAccessVpnCfgCommand;
+import com.cloud.agent.api.routing.SetPortForwardingRulesAnswer;
+import com.cloud.agent.api.routing.SetPortForwardingRulesVpcCommand;
+import com.cloud.agent.api.routing.VmDataCommand;
+import com.cloud.agent.api.to.PortForwardingRuleTO;
+
+public class VirtualRoutingResourceTest extends TestCase {
+    private static final String ROUTER_IP = "169.254.1.10";
+    private static final String ROUTER_NAME = "r-4-VM";
+    private static final int RULES = 5000;
+
+    private RouterStandIn _router;
+
+    @Override
+    protected void setUp() {
+        _router = new RouterStandIn();
+    }
+
+    public void testRulesArePushedInOneGo() {
+        List<Answer> answers = replay(true);
+
+        for (Answer answer : answers) {
+            assertTrue(answer.getDetails(), answer.getResult());
+        }
+        assertEquals(1, _router._copies);
+        assertEquals(2, _router._sessions);
+        assertEquals(RULES + 2, _router._applied.size());
+        assertEquals("/opt/cloud/bin/vpc_portforwarding.sh -A -P tcp -l 10.1.0.1 -p 1000:1000 -r 192.168.0.1 -d 22-22", _router._applied.get(0));
+        assertTrue(_router._applied.get(RULES).startsWith("/root/edithosts.sh -4 192.168.0.5 -m 02:00:00:00:00:05 -h vm-5"));
+        assertTrue(_router._applied.get(RULES + 1).startsWith("/opt/cloud/bin/vmdata.py -d "));
+
+        // without aggregation every rule costs a session
+        _router = new RouterStandIn();
+        replay(false);
+        assertEquals(RULES + 1, _router._sessions);
+    }
+
+    public void testOtherCommandsKeepTheirOrder() {
+        _router.executeRequest(control(Action.Start));
+        _router.executeRequest(rules(0, 10));
+
+        RemoteAccessVpnCfgCommand vpn = new RemoteAccessVpnCfgCommand(true, "10.1.0.1", "10.1.1.1", "10.1.2.2-10.1.2.8", "psk");
+        vpn.setAccessDetail(NetworkElementCommand.ROUTER_IP, ROUTER_IP);
+        assertTrue(_router.executeRequest(vpn).getResult());
+        assertEquals(Arrays.asList("vr_cfg.sh", "vpn_l2tp.sh"), _router._scripts);
+        assertEquals(10, _router._applied.size());
+
+        // nothing left to push
+        assertTrue(_router.executeRequest(control(Action.Finish)).getResult());
+        assertEquals(3, _router._sessions);
+    }
+
+    public void testFailedApplyFailsFinish() {
+        _router._fail = true;
+        _router.executeRequest(control(Action.Start));
+        Answer answer = _router.executeRequest(rules(0, 10));
+        assertTrue(answer instanceof SetPortForwardingRulesAnswer);
+        assertTrue(answer.getResult());
+
+        answer = _router.executeRequest(control(Action.Finish));
+        assertFalse(answer.getResult());
+        assertTrue(_router._applied.isEmpty());
+    }
+
+    public void testFailedFlushFailsTheBatch() {
+        _router._fail = true;
+        _router.executeRequest(control(Action.Start));
+        _router.executeRequest(rules(0, 10));
+
+        RemoteAccessVpnCfgCommand vpn = new RemoteAccessVpnCfgCommand(true, "10.1.0.1", "10.1.1.1", "10.1.2.2-10.1.2.8", "psk");
+        vpn.setAccessDetail(NetworkElementCommand.ROUTER_IP, ROUTER_IP);
+        assertFalse(_router.executeRequest(vpn).getResult());
+
+        // nothing collected after the failure is reported as applied
+        assertFalse(_router.executeRequest(rules(10, 10)).getResult());
+        assertFalse(_router.executeRequest(control(Action.Finish)).getResult());
+        assertEquals(1, _router._copies);
+    }
+
+    public void testBatchOfAnotherRouterIsNotUsed() {
+        // a router that failed to start left its batch behind, its link local ip is reused
+        _router.executeRequest(control(Action.Start));
+
+        SetPortForwardingRulesVpcCommand cmd = rules(0, 10);
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, "r-5-VM");
+        assertTrue(_router.executeRequest(cmd).getResult());
+        assertEquals(0, _router._copies);
+        assertFalse(_router._scripts.isEmpty());
+        assertFalse(_router._scripts.contains("vr_cfg.sh"));
+
+        assertFalse(_router.executeRequest(control(Action.Finish)).getResult());
+    }
+
+    public void testCleanupByRouterName() {
+        _router.executeRequest(control(Action.Start));
+        _router.executeRequest(rules(0, 10));
+
+        // the control ip of a stopped router may be released already
+        assertTrue(_router.executeRequest(new AggregationControlCommand(Action.Cleanup, ROUTER_NAME, "0.0.0.0")).getResult());
+        assertFalse(_router.executeRequest(control(Action.Finish)).getResult());
+    }
+
+    public void testFinishWithoutStart() {
+        assertFalse(_router.executeRequest(control(Action.Finish)).getResult());
+
+        _router.executeRequest(control(Action.Start));
+        _router.executeRequest(rules(0, 10));
+        assertTrue(_router.executeRequest(control(Action.Cleanup)).getResult());
+        assertFalse(_router.executeRequest(control(Action.Finish)).getResult());
+        assertEquals(0, _router._copies);
+    }
+
+    private List<Answer> replay(boolean aggregate) {
+        List<Answer> answers = new ArrayList<Answer>();
+        if (aggregate) {
+            answers.add(_router.executeRequest(control(Action.Start)));
+        }
+        for (int i = 0; i < RULES; i += 100) {
+            answers.add(_router.executeRequest(rules(i, 100)));
+        }
+
+        // dhcp_entry.sh runs outside of the stand-in, the entry is only pushed along with the rest
+        if (aggregate) {
+            DhcpEntryCommand dhcp = new DhcpEntryCommand("02:00:00:00:00:05", "192.168.0.5", "vm-5", null, true);
+            dhcp.setAccessDetail(NetworkElementCommand.ROUTER_IP, ROUTER_IP);
+            answers.add(_router.executeRequest(dhcp));
+        }
+
+        VmDataCommand vmData = new VmDataCommand("192.168.0.5", "vm-5", true);
+        vmData.addVmData("userdata", "user-data", "hello");
+        vmData.setAccessDetail(NetworkElementCommand.ROUTER_IP, ROUTER_IP);
+        answers.add(_router.executeRequest(vmData));
+
+        if (aggregate) {
+            answers.add(_router.executeRequest(control(Action.Finish)));
+        }
+        return answers;
+    }
+
+    private static SetPortForwardingRulesVpcCommand rules(int first, int count) {
+        List<PortForwardingRuleTO> rules = new ArrayList<PortForwardingRuleTO>();
+        for (int i = first; i < first + count; i++) {
+            rules.add(new PortForwardingRuleTO(i, "10.1." + (i / 250) + "." + (i % 250 + 1), 1000 + i, 1000 + i, "192.168." + (i / 250) + "."
+                    + (i % 250 + 1), 22, 22, "TCP", false, false));
+        }
+        SetPortForwardingRulesVpcCommand cmd = new SetPortForwardingRulesVpcCommand(rules);
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_IP, ROUTER_IP);
+        return cmd;
+    }
+
+    private static AggregationControlCommand control(Action action) {
+        return new AggregationControlCommand(action, ROUTER_NAME, ROUTER_IP);
+    }
+
+    /**
+     * Stands in for the router: every script call or copy counts as an ssh session, copied configuration
+     * files are checked and applied the way vr_cfg.sh does.
+     */
+    private static class RouterStandIn extends VirtualRoutingResource {
+        int _sessions;
+        int _copies;
+        boolean _fail;
+        final List<String> _scripts = new ArrayList<String>();
+        final Map<String, byte[]> _files = new HashMap<String, byte[]>();
+        final List<String> _applied = new ArrayList<String>();
+
+        @Override
+        protected void copyToRouter(String routerIp, String path, String fileName, byte[] content) throws Exception {
+            assertEquals(ROUTER_IP, routerIp);
+            openSession();
+            _copies++;
+            _files.put(path + fileName, content);
+        }
+
+        @Override
+        public String routerProxy(String script, String routerIP, String args) {
+            assertEquals(ROUTER_IP, routerIP);
+            openSession();
+            _scripts.add(script);
+            if (!script.equals("vr_cfg.sh")) {
+                return null;
+            }
+            if (_fail) {
+                return "line 1 failed";
+            }
+
+            byte[] payload = _files.remove(args.substring("-c ".length()));
+            assertNotNull(payload);
+            String content = new String(payload);
+            int headerEnd = content.indexOf('\n');
+            String[] header = content.substring(0, headerEnd).split(" ");
+            String body = content.substring(headerEnd + 1);
+            assertEquals(RouterConfigBatch.MAGIC, header[0]);
+            assertEquals("1", header[1]);
+            assertTrue(header[2].startsWith(ROUTER_NAME + "-"));
+            assertEquals(DigestUtils.md5Hex(body), header[4]);
+            List<String> lines = Arrays.asList(body.split("\n"));
+            assertEquals(Integer.parseInt(header[3]), lines.size());
+            _applied.addAll(lines);
+            return null;
+        }
+
+        private void openSession() {
+            _sessions++;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ChecksumIndexTest extends TestCase {
+    private File _dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        _dir = File.createTempFile("checksum", "test");
+        _dir.delete();
+        _dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    public void testKnownDigests() throws Exception {
+        ChecksumCalculator calculator = new ChecksumCalculator(ChecksumCalculator.MD5, ChecksumCalculator.SHA256);
+        calculator.update("abc".getBytes("US-ASCII"), 0, 3);
+        Map<String, String> checksums = calculator.finish();
+
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", checksums.get(ChecksumCalculator.MD5));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", checksums.get(ChecksumCalculator.SHA256));
+        assertEquals(checksums.get(ChecksumCalculator.MD5), calculator.getChecksum(ChecksumCalculator.MD5));
+    }
+
+    public void testLeadingZerosArePreserved() {
+        assertEquals("000f", ChecksumCalculator.toHex(new byte[] {0, 0x0f}));
+    }
+
+    public void testIncrementalMatchesSinglePass() throws Exception {
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(data);
+        File f = writeFile("template.qcow2", data);
+
+        // written in uneven blocks, like the downloaders do
+        ChecksumCalculator calculator = new ChecksumCalculator(ChecksumCalculator.MD5, ChecksumCalculator.SHA256);
+        int offset = 0;
+        int block = 1;
+        while (offset < data.length) {
+            int length = Math.min(block, data.length - offset);
+            calculator.update(data, offset, length);
+            offset += length;
+            block = block * 3 + 1;
+        }
+
+        assertEquals(ChecksumCalculator.compute(f, ChecksumCalculator.MD5, ChecksumCalculator.SHA256), calculator.finish());
+    }
+
+    public void testResumedDigestFromPrefix() throws Exception {
+        byte[] data = new byte[100000];
+        new Random(11).nextBytes(data);
+
+        ChecksumCalculator calculator = new ChecksumCalculator(ChecksumCalculator.MD5);
+        assertEquals(40000, calculator.update(new ByteArrayInputStream(data), 40000));
+        calculator.update(data, 40000, data.length - 40000);
+
+        File f = writeFile("template.vhd", data);
+        assertEquals(ChecksumCalculator.compute(f, ChecksumCalculator.MD5).get(ChecksumCalculator.MD5), calculator.finish().get(ChecksumCalculator.MD5));
+    }
+
+    public void testIndexServesUnchangedFile() throws Exception {
+        File f = writeFile("template.qcow2", "some template".getBytes("US-ASCII"));
+        Map<String, String> checksums = ChecksumCalculator.compute(f, ChecksumCalculator.MD5, ChecksumCalculator.SHA256);
+
+        ChecksumIndex index = new ChecksumIndex(_dir);
+        assertNull(index.getChecksum(f, ChecksumCalculator.MD5));
+        index.setChecksums(f, checksums);
+
+        // a fresh instance reads the sidecar file
+        index = new ChecksumIndex(_dir);
+        assertEquals(checksums.get(ChecksumCalculator.MD5), index.getChecksum(f, ChecksumCalculator.MD5));
+        assertEquals(checksums.get(ChecksumCalculator.SHA256), index.getChecksum(f, ChecksumCalculator.SHA256));
+        assertNull(index.getChecksum(f, "SHA-1"));
+        assertTrue(new File(_dir, ChecksumIndex.Filename).exists());
+        assertFalse(new File(_dir, ChecksumIndex.Filename + ".tmp").exists());
+    }
+
+    public void testIndexIgnoresModifiedFile() throws Exception {
+        File f = writeFile("template.qcow2", "some template".getBytes("US-ASCII"));
+        ChecksumIndex index = new ChecksumIndex(_dir);
+        index.setChecksums(f, ChecksumCalculator.compute(f, ChecksumCalculator.MD5));
+
+        writeFile("template.qcow2", "some other template".getBytes("US-ASCII"));
+        assertNull(index.getChecksum(f, ChecksumCalculator.MD5));
+
+        // same size, different modification time
+        f.setLastModified(f.lastModified() - 10000);
+        index.setChecksums(f, ChecksumCalculator.compute(f, ChecksumCalculator.MD5));
+        assertNotNull(index.getChecksum(f, ChecksumCalculator.MD5));
+        f.setLastModified(f.lastModified() + 5000);
+        assertNull(index.getChecksum(f, ChecksumCalculator.MD5));
+    }
+
+    public void testIndexKeepsEntriesOfOtherFiles() throws Exception {
+        File a = writeFile("a.vhd", "aaaa".getBytes("US-ASCII"));
+        File b = writeFile("b.vhd", "bbbb".getBytes("US-ASCII"));
+        ChecksumIndex index = new ChecksumIndex(_dir);
+        index.setChecksums(a, ChecksumCalculator.compute(a, ChecksumCalculator.MD5));
+        index.setChecksums(b, ChecksumCalculator.compute(b, ChecksumCalculator.MD5));
+
+        assertNotNull(index.getChecksum(a, ChecksumCalculator.MD5));
+        index.remove(b);
+        assertNotNull(index.getChecksum(a, ChecksumCalculator.MD5));
+        assertNull(index.getChecksum(b, ChecksumCalculator.MD5));
+    }
+
+    private File writeFile(String name, byte[] data) throws IOException {
+        File f = new File(_dir, name);
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+}
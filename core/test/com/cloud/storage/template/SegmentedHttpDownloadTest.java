@@ -0,0 +1,257 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SegmentedHttpDownloadTest extends TestCase {
+    private static final int SIZE = 48 * 1024 * 1024 + 12345;
+
+    private static byte[] s_data;
+
+    private HttpServer _server;
+    private String _url;
+    private HttpClient _client;
+    private File _file;
+
+    private volatile boolean _acceptRanges = true;
+    // bytes the server is willing to send before it starts answering 503
+    private final AtomicLong _budget = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong _bytesServed = new AtomicLong();
+    private final AtomicInteger _rangeRequests = new AtomicInteger();
+    // ranges whose first request is cut off after a megabyte
+    private final Set<Long> _dropFirstRequestOf = new HashSet<Long>();
+
+    @Override
+    protected void setUp() throws Exception {
+        if (s_data == null) {
+            s_data = new byte[SIZE];
+            new Random(42).nextBytes(s_data);
+        }
+
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/template.qcow2", new TemplateHandler());
+        _server.setExecutor(Executors.newCachedThreadPool());
+        _server.start();
+        _url = "http://127.0.0.1:" + _server.getAddress().getPort() + "/template.qcow2";
+
+        MultiThreadedHttpConnectionManager manager = new MultiThreadedHttpConnectionManager();
+        manager.getParams().setDefaultMaxConnectionsPerHost(8);
+        _client = new HttpClient(manager);
+
+        _file = File.createTempFile("dnld", "tmp_");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _server.stop(0);
+        _file.delete();
+        new File(_file.getPath() + SegmentedHttpDownload.SegmentMapSuffix).delete();
+    }
+
+    public void testRangeProbe() throws Exception {
+        assertEquals(SIZE, SegmentedHttpDownload.getRangeSupportedSize(_client, _url));
+
+        _acceptRanges = false;
+        assertEquals(-1, SegmentedHttpDownload.getRangeSupportedSize(_client, _url));
+    }
+
+    public void testParallelDownload() throws Exception {
+        ChecksumCalculator checksum = new ChecksumCalculator(ChecksumCalculator.MD5, ChecksumCalculator.SHA256);
+        SegmentedHttpDownload download = new SegmentedHttpDownload(_client, _url, _file, SIZE, 4, checksum);
+
+        assertTrue(download.download(false));
+
+        assertEquals(3, download.getSegmentCount());
+        assertEquals(3, _rangeRequests.get());
+        assertEquals(SIZE, download.getDownloadedBytes());
+        assertTrue(download.isComplete());
+        assertFalse(download.getSegmentMapFile().exists());
+        assertDownloaded(checksum);
+    }
+
+    public void testRetriesDroppedConnections() throws Exception {
+        // every segment loses its first connection part way through
+        long segmentLength = (SIZE + 2) / 3;
+        _dropFirstRequestOf.addAll(Arrays.asList(0L, segmentLength, 2 * segmentLength));
+
+        ChecksumCalculator checksum = new ChecksumCalculator(ChecksumCalculator.MD5);
+        SegmentedHttpDownload download = new SegmentedHttpDownload(_client, _url, _file, SIZE, 3, checksum);
+        download.setRetryDelay(10);
+
+        assertTrue(download.download(false));
+
+        assertEquals(6, _rangeRequests.get());
+        // only the bytes lost with the dropped connections are fetched twice
+        assertTrue(_bytesServed.get() < SIZE + 3 * 1024 * 1024 + 1);
+        assertDownloaded(checksum);
+    }
+
+    public void testResumeFromSegmentMap() throws Exception {
+        _budget.set(20L * 1024 * 1024);
+
+        SegmentedHttpDownload download = new SegmentedHttpDownload(_client, _url, _file, SIZE, 3, new ChecksumCalculator(ChecksumCalculator.MD5));
+        download.setRetryDelay(10);
+        try {
+            download.download(false);
+            fail("download should have failed once the server stopped serving");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(download.getSegmentMapFile().exists());
+        long firstRun = download.getDownloadedBytes();
+        assertTrue(firstRun > 0);
+
+        _budget.set(Long.MAX_VALUE);
+        _bytesServed.set(0);
+
+        ChecksumCalculator checksum = new ChecksumCalculator(ChecksumCalculator.MD5);
+        download = new SegmentedHttpDownload(_client, _url, _file, SIZE, 3, checksum);
+        assertTrue(download.download(true));
+
+        assertEquals(SIZE, download.getDownloadedBytes());
+        assertEquals(SIZE - firstRun, _bytesServed.get());
+        assertFalse(download.getSegmentMapFile().exists());
+        assertDownloaded(checksum);
+    }
+
+    public void testStartOverWithoutResume() throws Exception {
+        _budget.set(20L * 1024 * 1024);
+        SegmentedHttpDownload download = new SegmentedHttpDownload(_client, _url, _file, SIZE, 3, null);
+        download.setRetryDelay(10);
+        try {
+            download.download(false);
+            fail("download should have failed once the server stopped serving");
+        } catch (IOException e) {
+            // expected
+        }
+
+        _budget.set(Long.MAX_VALUE);
+        _bytesServed.set(0);
+
+        ChecksumCalculator checksum = new ChecksumCalculator(ChecksumCalculator.MD5);
+        download = new SegmentedHttpDownload(_client, _url, _file, SIZE, 3, checksum);
+        assertTrue(download.download(false));
+        assertEquals(SIZE, _bytesServed.get());
+        assertDownloaded(checksum);
+    }
+
+    private void assertDownloaded(ChecksumCalculator checksum) throws IOException {
+        assertEquals(SIZE, _file.length());
+
+        byte[] content = new byte[SIZE];
+        FileInputStream in = new FileInputStream(_file);
+        try {
+            int offset = 0;
+            while (offset < SIZE) {
+                int read = in.read(content, offset, SIZE - offset);
+                assertTrue(read > 0);
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        assertTrue(Arrays.equals(s_data, content));
+
+        ChecksumCalculator expected = new ChecksumCalculator(ChecksumCalculator.MD5, ChecksumCalculator.SHA256);
+        expected.update(s_data, 0, SIZE);
+        for (String algorithm : checksum.finish().keySet()) {
+            assertEquals(expected.finish().get(algorithm), checksum.getChecksum(algorithm));
+        }
+    }
+
+    private class TemplateHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (_acceptRanges) {
+                    exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                }
+
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Content-Length", Integer.toString(SIZE));
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range == null || !_acceptRanges) {
+                    exchange.sendResponseHeaders(200, SIZE);
+                    send(exchange.getResponseBody(), 0, SIZE);
+                    return;
+                }
+
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                long start = Long.parseLong(bounds[0]);
+                long end = bounds.length > 1 ? Long.parseLong(bounds[1]) : SIZE - 1;
+                _rangeRequests.incrementAndGet();
+
+                if (_budget.get() <= 0) {
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+
+                long length = end - start + 1;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + SIZE);
+                exchange.sendResponseHeaders(206, length);
+
+                boolean drop;
+                synchronized (_dropFirstRequestOf) {
+                    drop = _dropFirstRequestOf.remove(start);
+                }
+                long allowed = Math.min(length, drop ? 1024 * 1024 : _budget.get());
+                send(exchange.getResponseBody(), start, allowed);
+            } finally {
+                // closing a fixed length response early drops the connection
+                exchange.close();
+            }
+        }
+
+        private void send(OutputStream out, long start, long length) throws IOException {
+            int offset = (int)start;
+            int end = (int)(start + length);
+            while (offset < end) {
+                int chunk = Math.min(64 * 1024, end - offset);
+                out.write(s_data, offset, chunk);
+                offset += chunk;
+                _bytesServed.addAndGet(chunk);
+                _budget.addAndGet(-chunk);
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class TemplateInventoryTest extends TestCase {
+    private File _root;
+    private final List<String> _loaded = new ArrayList<String>();
+
+    private final TemplateInventory.Loader _loader = new TemplateInventory.Loader() {
+        @Override
+        public TemplateProp load(String path) {
+            _loaded.add(new File(path).getName());
+            Properties props = new Properties();
+            try {
+                FileInputStream in = new FileInputStream(new File(path, TemplateLocation.Filename));
+                try {
+                    props.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+            if (props.getProperty("uniquename") == null) {
+                return null;
+            }
+            return new TemplateProp(props.getProperty("uniquename"), path, Long.parseLong(props.getProperty("size", "0")), 0, true, false);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        _root = File.createTempFile("template", "inventory");
+        _root.delete();
+        new File(_root, "tmpl").mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(_root);
+    }
+
+    public void testUnchangedTreeIsNotRead() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            createTemplate(2, 200 + i, "t" + i, 100);
+        }
+
+        TemplateInventory inventory = createInventory();
+        assertEquals(20, inventory.list(_loader).size());
+        assertEquals(20, _loaded.size());
+
+        _loaded.clear();
+        assertEquals(20, inventory.list(_loader).size());
+        assertTrue(_loaded.isEmpty());
+        assertEquals(0, inventory.getDirectoriesScanned());
+    }
+
+    public void testOnlyChangesAreRead() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            createTemplate(2, 200 + i, "t" + i, 100);
+        }
+        TemplateInventory inventory = createInventory();
+        inventory.list(_loader);
+
+        _loaded.clear();
+        createTemplate(3, 300, "new", 100);
+        touch(new File(_root, "tmpl"));
+        List<TemplateProp> templates = inventory.list(_loader);
+        assertEquals(11, templates.size());
+        assertEquals(Collections.singletonList("300"), _loaded);
+
+        // properties rewritten in place, directory mtime does not change
+        _loaded.clear();
+        File props = createTemplate(2, 205, "t5", 12345);
+        props.setLastModified(props.lastModified() + 2000);
+        templates = inventory.list(_loader);
+        assertEquals(Collections.singletonList("205"), _loaded);
+        assertEquals(12345, find(templates, "t5").getSize());
+
+        // removed template
+        _loaded.clear();
+        delete(new File(_root, "tmpl/2/203"));
+        touch(new File(_root, "tmpl/2"));
+        templates = inventory.list(_loader);
+        assertEquals(10, templates.size());
+        assertNull(find(templates, "t3"));
+        assertTrue(_loaded.isEmpty());
+    }
+
+    public void testIncompleteTemplateIsRetried() throws Exception {
+        createTemplate(2, 200, null, 0);
+        TemplateInventory inventory = createInventory();
+        assertTrue(inventory.list(_loader).isEmpty());
+
+        _loaded.clear();
+        assertTrue(inventory.list(_loader).isEmpty());
+        assertEquals(Collections.singletonList("200"), _loaded);
+    }
+
+    public void testInventorySurvivesRestart() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            createTemplate(2, 200 + i, "t" + i, 100 + i);
+        }
+        createInventory().list(_loader);
+        assertTrue(new File(_root, TemplateInventory.Filename).exists());
+
+        _loaded.clear();
+        TemplateInventory inventory = createInventory();
+        List<TemplateProp> templates = inventory.list(_loader);
+        assertEquals(5, templates.size());
+        assertTrue(_loaded.isEmpty());
+        assertEquals(104, find(templates, "t4").getSize());
+        assertEquals(new File(_root, "tmpl/2/204").getAbsolutePath(), find(templates, "t4").getInstallPath());
+    }
+
+    public void testInvalidate() throws Exception {
+        createTemplate(2, 200, "t0", 100);
+        createTemplate(2, 201, "t1", 100);
+        TemplateInventory inventory = createInventory();
+        inventory.list(_loader);
+
+        _loaded.clear();
+        assertTrue(inventory.contains(new File(_root, "tmpl/2/201").getAbsolutePath()));
+        assertFalse(inventory.contains("/somewhere/else"));
+        inventory.invalidate(new File(_root, "tmpl/2/201").getAbsolutePath());
+        assertEquals(2, inventory.list(_loader).size());
+        assertEquals(Collections.singletonList("201"), _loaded);
+    }
+
+    public void testCorruptedInventoryIsRebuilt() throws Exception {
+        createTemplate(2, 200, "t0", 100);
+        FileOutputStream out = new FileOutputStream(new File(_root, TemplateInventory.Filename));
+        out.write("{not json".getBytes("US-ASCII"));
+        out.close();
+
+        TemplateInventory inventory = createInventory();
+        assertEquals(1, inventory.list(_loader).size());
+        assertEquals(1, _loaded.size());
+    }
+
+    public void testChangeWithinMtimeGranularityIsFound() throws Exception {
+        createTemplate(2, 200, "t0", 100);
+        TemplateInventory inventory = new TemplateInventory(_root, TemplateLocation.Filename);
+        assertEquals(1, inventory.list(_loader).size());
+
+        // a second template added in the same tick leaves the directory mtime as it was
+        File dir = new File(_root, "tmpl/2");
+        long mtime = dir.lastModified();
+        createTemplate(2, 201, "t1", 100);
+        dir.setLastModified(mtime);
+
+        _loaded.clear();
+        assertEquals(2, inventory.list(_loader).size());
+        assertEquals(Collections.singletonList("201"), _loaded);
+    }
+
+    private TemplateInventory createInventory() {
+        // the directories are created right before they are listed, only changes of the mtime count
+        TemplateInventory inventory = new TemplateInventory(_root, TemplateLocation.Filename);
+        inventory.setMtimeGranularity(0);
+        return inventory;
+    }
+
+    private File createTemplate(long accountId, long templateId, String name, long size) throws IOException {
+        File dir = new File(_root, "tmpl/" + accountId + "/" + templateId);
+        dir.mkdirs();
+        File file = new File(dir, TemplateLocation.Filename);
+        Properties props = new Properties();
+        if (name != null) {
+            props.setProperty("uniquename", name);
+            props.setProperty("size", Long.toString(size));
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            props.store(out, "");
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static TemplateProp find(List<TemplateProp> templates, String name) {
+        for (TemplateProp template : templates) {
+            if (template.getTemplateName().equals(name)) {
+                return template;
+            }
+        }
+        return null;
+    }
+
+    private static void touch(File dir) {
+        // directory mtimes may have a coarse granularity, make sure the change is visible
+        dir.setLastModified(dir.lastModified() + 2000);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
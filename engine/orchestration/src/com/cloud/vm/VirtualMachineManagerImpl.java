@@ -18,6 +18,8 @@
 package com.cloud.vm;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -1915,17 +1917,16 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
     public Commands fullHostSync(final long hostId, StartupRoutingCommand startup) {
         Commands commands = new Commands(Command.OnError.Continue);
 
-        Map<Long, AgentVmInfo> infos = convertToInfos(startup);
-
         final List<? extends VMInstanceVO> vms = _vmDao.listByHostId(hostId);
         s_logger.debug("Found " + vms.size() + " VMs for host " + hostId);
+        VmSyncState syncState = new VmSyncState(vms, null);
+        Map<Long, AgentVmInfo> infos = convertToInfos(startup, syncState);
+
         for (VMInstanceVO vm : vms) {
             AgentVmInfo info = infos.remove(vm.getId());
 
             // sync VM Snapshots related transient states
-            List<VMSnapshotVO> vmSnapshotsInTrasientStates = _vmSnapshotDao.listByInstanceId(vm.getId(), VMSnapshot.State.Expunging, VMSnapshot.State.Reverting,
-                VMSnapshot.State.Creating);
-            if (vmSnapshotsInTrasientStates.size() > 1) {
+            if (syncState.getTransientSnapshotCount(vm.getId()) > 1) {
                 s_logger.info("Found vm " + vm.getInstanceName() + " with VM snapshots in transient states, needs to sync VM snapshot state");
                 if (!_vmSnapshotMgr.syncVMSnapshot(vm, hostId)) {
                     s_logger.warn("Failed to sync VM in a transient snapshot related state: " + vm.getInstanceName());
@@ -1948,7 +1949,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
         for (final AgentVmInfo left : infos.values()) {
             boolean found = false;
-            VMInstanceVO vm = _vmDao.findVMByInstanceName(left.name);
+            VMInstanceVO vm = left.vm;
             if (vm != null) {
                 found = true;
                 HypervisorGuru hvGuru = _hvGuruMgr.getGuru(vm.getHypervisorType());
@@ -2001,13 +2002,15 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
     public void deltaSync(Map<String, Pair<String, State>> newStates) {
         Map<Long, AgentVmInfo> states = convertToInfos(newStates);
+        // the report usually comes from a single host, look it up once
+        Map<String, Host> hosts = new HashMap<String, Host>();
 
         for (Map.Entry<Long, AgentVmInfo> entry : states.entrySet()) {
             AgentVmInfo info = entry.getValue();
             VMInstanceVO vm = info.vm;
             Command command = null;
             if (vm != null) {
-                Host host = _resourceMgr.findHostByGuid(info.getHostUuid());
+                Host host = findHostByGuid(hosts, info.getHostUuid());
                 long hId = host.getId();
 
                 HypervisorGuru hvGuru = _hvGuruMgr.getGuru(vm.getHypervisorType());
@@ -2020,7 +2023,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
             }
             if (command != null) {
                 try {
-                    Host host = _resourceMgr.findHostByGuid(info.getHostUuid());
+                    Host host = findHostByGuid(hosts, info.getHostUuid());
                     if (host != null) {
                         Answer answer = _agentMgr.send(host.getId(), cleanup(info.name));
                         if (!answer.getResult()) {
@@ -2034,26 +2037,33 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
         }
     }
 
+    private Host findHostByGuid(Map<String, Host> hosts, String guid) {
+        if (!hosts.containsKey(guid)) {
+            hosts.put(guid, _resourceMgr.findHostByGuid(guid));
+        }
+        return hosts.get(guid);
+    }
+
     public void fullSync(final long clusterId, Map<String, Pair<String, State>> newStates) {
         if (newStates == null)
             return;
-        Map<Long, AgentVmInfo> infos = convertToInfos(newStates);
         Set<VMInstanceVO> set_vms = Collections.synchronizedSet(new HashSet<VMInstanceVO>());
         set_vms.addAll(_vmDao.listByClusterId(clusterId));
         set_vms.addAll(_vmDao.listLHByClusterId(clusterId));
+        // everything needed to compare the vms is loaded up front, the number of queries must not grow with the cluster
+        VmSyncState syncState = new VmSyncState(set_vms, _hostDao.findByClusterId(clusterId));
+        Map<Long, AgentVmInfo> infos = convertToInfos(newStates, syncState);
 
         for (VMInstanceVO vm : set_vms) {
             AgentVmInfo info = infos.remove(vm.getId());
 
             // sync VM Snapshots related transient states
-            List<VMSnapshotVO> vmSnapshotsInExpungingStates = _vmSnapshotDao.listByInstanceId(vm.getId(), VMSnapshot.State.Expunging, VMSnapshot.State.Creating,
-                VMSnapshot.State.Reverting);
-            if (vmSnapshotsInExpungingStates.size() > 0) {
+            if (syncState.getTransientSnapshotCount(vm.getId()) > 0) {
                 s_logger.info("Found vm " + vm.getInstanceName() + " in state. " + vm.getState() + ", needs to sync VM snapshot state");
                 Long hostId = null;
                 Host host = null;
                 if (info != null && info.getHostUuid() != null) {
-                    host = _hostDao.findByGuid(info.getHostUuid());
+                    host = syncState.getHost(info.getHostUuid());
                 }
                 hostId = host == null ? (vm.getHostId() == null ? vm.getLastHostId() : vm.getHostId()) : host.getId();
                 if (!_vmSnapshotMgr.syncVMSnapshot(vm, hostId)) {
@@ -2071,7 +2081,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                 info = new AgentVmInfo(vm.getInstanceName(), vm, State.Stopped);
 
                 // Bug 13850- grab outstanding work item if any for this VM state so that we mark it as DONE after we change VM state, else it will remain pending
-                ItWorkVO work = _workDao.findByOutstandingWork(vm.getId(), vm.getState());
+                ItWorkVO work = syncState.findOutstandingWork(vm.getId(), vm.getState());
                 if (work != null) {
                     if (s_logger.isDebugEnabled()) {
                         s_logger.debug("Found an outstanding work item for this vm " + vm + " in state:" + vm.getState() + ", work id:" + work.getId());
@@ -2089,7 +2099,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                 }
 
                 try {
-                    Host host = _hostDao.findByGuid(info.getHostUuid());
+                    Host host = syncState.getHost(info.getHostUuid());
                     long hostId = host == null ? (vm.getHostId() == null ? vm.getLastHostId() : vm.getHostId()) : host.getId();
                     HypervisorGuru hvGuru = _hvGuruMgr.getGuru(vm.getHypervisorType());
                     Command command = compareState(hostId, vm, info, true, hvGuru.trackVmHostChange());
@@ -2105,7 +2115,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                 }
             } else if (info != null &&
                        (vm.getState() == State.Stopped || vm.getState() == State.Stopping || vm.isRemoved() || vm.getState() == State.Destroyed || vm.getState() == State.Expunging)) {
-                Host host = _hostDao.findByGuid(info.getHostUuid());
+                Host host = syncState.getHost(info.getHostUuid());
                 if (host != null) {
                     s_logger.warn("Stopping a VM which is stopped/stopping/destroyed/expunging " + info.name);
                     if (vm.getState() == State.Stopped || vm.getState() == State.Stopping) {
@@ -2126,7 +2136,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
             // host id can change
             if (info != null && vm.getState() == State.Running) {
                 // check for host id changes
-                Host host = _hostDao.findByGuid(info.getHostUuid());
+                Host host = syncState.getHost(info.getHostUuid());
                 if (host != null && (vm.getHostId() == null || host.getId() != vm.getHostId())) {
                     s_logger.info("Found vm " + vm.getInstanceName() + " with inconsistent host in db, new host is " + host.getId());
                     try {
@@ -2149,7 +2159,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
             if (!VirtualMachineName.isValidVmName(left.name))
                 continue;  // if the vm doesn't follow CS naming ignore it for stopping
             try {
-                Host host = _hostDao.findByGuid(left.getHostUuid());
+                Host host = syncState.getHost(left.getHostUuid());
                 if (host != null) {
                     s_logger.warn("Stopping a VM which we do not have any record of " + left.name);
                     Answer answer = _agentMgr.send(host.getId(), cleanup(left.name));
@@ -2165,6 +2175,10 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
     }
 
     protected Map<Long, AgentVmInfo> convertToInfos(final Map<String, Pair<String, State>> newStates) {
+        return convertToInfos(newStates, new VmSyncState(Collections.<VMInstanceVO> emptyList(), null));
+    }
+
+    protected Map<Long, AgentVmInfo> convertToInfos(final Map<String, Pair<String, State>> newStates, VmSyncState syncState) {
         final HashMap<Long, AgentVmInfo> map = new HashMap<Long, AgentVmInfo>();
         if (newStates == null) {
             return map;
@@ -2174,7 +2188,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
         for (Map.Entry<String, Pair<String, State>> entry : newStates.entrySet()) {
             is_alien_vm = true;
             String name = entry.getKey();
-            VMInstanceVO vm = _vmDao.findVMByInstanceName(name);
+            VMInstanceVO vm = syncState.getVm(name);
             if (vm != null) {
                 map.put(vm.getId(), new AgentVmInfo(entry.getKey(), vm, entry.getValue().second(), entry.getValue().first()));
                 is_alien_vm = false;
@@ -2188,7 +2202,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
         return map;
     }
 
-    protected Map<Long, AgentVmInfo> convertToInfos(StartupRoutingCommand cmd) {
+    protected Map<Long, AgentVmInfo> convertToInfos(StartupRoutingCommand cmd, VmSyncState syncState) {
         final Map<String, VmState> states = cmd.getVmStates();
         final HashMap<Long, AgentVmInfo> map = new HashMap<Long, AgentVmInfo>();
         if (states == null) {
@@ -2197,7 +2211,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
         for (Map.Entry<String, VmState> entry : states.entrySet()) {
             String name = entry.getKey();
-            VMInstanceVO vm = _vmDao.findVMByInstanceName(name);
+            VMInstanceVO vm = syncState.getVm(name);
             if (vm != null) {
                 map.put(vm.getId(), new AgentVmInfo(entry.getKey(), vm, entry.getValue().getState(), entry.getValue().getHost()));
             }
@@ -2645,6 +2659,86 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
         }
     }
 
+    /**
+     * What the database knows about the vms of a cluster or host, loaded with a fixed number of set based
+     * queries so that comparing an agent report does not cost several queries per vm. Lookups of vms and
+     * hosts outside of the prefetched set fall back to single queries and are remembered.
+     */
+    protected class VmSyncState {
+        private final Collection<? extends VMInstanceVO> _vms;
+        private final Map<String, VMInstanceVO> _vmsByName = new HashMap<String, VMInstanceVO>();
+        private final Map<String, Host> _hostsByGuid = new HashMap<String, Host>();
+        private Map<Long, Integer> _transientSnapshots;
+        private Map<Long, List<ItWorkVO>> _outstandingWork;
+
+        public VmSyncState(Collection<? extends VMInstanceVO> vms, List<? extends Host> hosts) {
+            _vms = vms;
+            for (VMInstanceVO vm : vms) {
+                _vmsByName.put(vm.getInstanceName(), vm);
+            }
+            if (hosts != null) {
+                for (Host host : hosts) {
+                    _hostsByGuid.put(host.getGuid(), host);
+                }
+            }
+        }
+
+        public VMInstanceVO getVm(String instanceName) {
+            if (!_vmsByName.containsKey(instanceName)) {
+                _vmsByName.put(instanceName, _vmDao.findVMByInstanceName(instanceName));
+            }
+            return _vmsByName.get(instanceName);
+        }
+
+        public Host getHost(String guid) {
+            if (guid == null) {
+                return null;
+            }
+            if (!_hostsByGuid.containsKey(guid)) {
+                _hostsByGuid.put(guid, _hostDao.findByGuid(guid));
+            }
+            return _hostsByGuid.get(guid);
+        }
+
+        /**
+         * @return number of snapshots of the vm that are being created, reverted or expunged
+         */
+        public int getTransientSnapshotCount(long vmId) {
+            if (_transientSnapshots == null) {
+                _transientSnapshots = new HashMap<Long, Integer>();
+                for (VMSnapshotVO snapshot : _vmSnapshotDao.listByState(VMSnapshot.State.Expunging, VMSnapshot.State.Creating, VMSnapshot.State.Reverting)) {
+                    Integer count = _transientSnapshots.get(snapshot.getVmId());
+                    _transientSnapshots.put(snapshot.getVmId(), count == null ? 1 : count + 1);
+                }
+            }
+            Integer count = _transientSnapshots.get(vmId);
+            return count == null ? 0 : count;
+        }
+
+        public ItWorkVO findOutstandingWork(long vmId, State state) {
+            if (_outstandingWork == null) {
+                _outstandingWork = new HashMap<Long, List<ItWorkVO>>();
+                for (VMInstanceVO vm : _vms) {
+                    _outstandingWork.put(vm.getId(), new ArrayList<ItWorkVO>());
+                }
+                for (ItWorkVO work : _workDao.listOutstandingWork(_outstandingWork.keySet())) {
+                    _outstandingWork.get(work.getInstanceId()).add(work);
+                }
+            }
+            List<ItWorkVO> works = _outstandingWork.get(vmId);
+            if (works == null) {
+                // not one of the prefetched vms
+                return _workDao.findByOutstandingWork(vmId, state);
+            }
+            for (ItWorkVO work : works) {
+                if (work.getType() == state) {
+                    return work;
+                }
+            }
+            return null;
+        }
+    }
+
     @Override
     public VMInstanceVO findById(long vmId) {
         return _vmDao.findById(vmId);
@@ -0,0 +1,193 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.api.Command;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.hypervisor.HypervisorGuru;
+import com.cloud.hypervisor.HypervisorGuruManager;
+import com.cloud.resource.ResourceManager;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+import com.cloud.vm.dao.VMInstanceDao;
+import com.cloud.vm.snapshot.VMSnapshot;
+import com.cloud.vm.snapshot.VMSnapshotManager;
+import com.cloud.vm.snapshot.VMSnapshotVO;
+import com.cloud.vm.snapshot.dao.VMSnapshotDao;
+
+/**
+ * The number of queries a full sync of a cluster costs must not depend on the number of vms in it.
+ */
+public class VirtualMachineManagerImplSyncTest {
+    private static final long CLUSTER_ID = 1L;
+    private static final String HOST_GUID = "host-1";
+
+    VirtualMachineManagerImpl _vmMgr = new VirtualMachineManagerImpl();
+    @Mock
+    VMInstanceDao _vmDao;
+    @Mock
+    HostDao _hostDao;
+    @Mock
+    ItWorkDao _workDao;
+    @Mock
+    VMSnapshotDao _vmSnapshotDao;
+    @Mock
+    VMSnapshotManager _vmSnapshotMgr;
+    @Mock
+    AgentManager _agentMgr;
+    @Mock
+    ResourceManager _resourceMgr;
+    @Mock
+    HypervisorGuruManager _hvGuruMgr;
+    @Mock
+    HypervisorGuru _hvGuru;
+
+    private final HostVO _host = new HostVO(HOST_GUID);
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        _vmMgr._vmDao = _vmDao;
+        _vmMgr._hostDao = _hostDao;
+        _vmMgr._workDao = _workDao;
+        _vmMgr._vmSnapshotDao = _vmSnapshotDao;
+        _vmMgr._vmSnapshotMgr = _vmSnapshotMgr;
+        _vmMgr._agentMgr = _agentMgr;
+        _vmMgr._resourceMgr = _resourceMgr;
+        _vmMgr._hvGuruMgr = _hvGuruMgr;
+
+        when(_agentMgr.send(anyLong(), any(Command.class))).thenAnswer(new Answer<com.cloud.agent.api.Answer>() {
+            @Override
+            public com.cloud.agent.api.Answer answer(InvocationOnMock invocation) throws Throwable {
+                return new com.cloud.agent.api.Answer((Command)invocation.getArguments()[1]);
+            }
+        });
+        when(_hvGuruMgr.getGuru(any(HypervisorType.class))).thenReturn(_hvGuru);
+        when(_hvGuru.trackVmHostChange()).thenReturn(true);
+        when(_vmSnapshotMgr.syncVMSnapshot(any(VMInstanceVO.class), anyLong())).thenReturn(true);
+    }
+
+    @Test
+    public void testFullSyncQueriesDoNotGrowWithVms() throws Exception {
+        fullSync(10);
+        verifyConstantQueries();
+
+        reset(_vmDao, _hostDao, _workDao, _vmSnapshotDao);
+        fullSync(500);
+        verifyConstantQueries();
+    }
+
+    @Test
+    public void testFullSyncReconcilesStates() throws Exception {
+        List<VMInstanceVO> vms = fullSync(10);
+
+        // vms stopped in the db but running on the host are stopped there, as is the unknown vm
+        verify(_agentMgr, times(6)).send(anyLong(), any(Command.class));
+        assertEquals(State.Stopped, vms.get(1).getState());
+        // one snapshot of every tenth vm is in a transient state
+        verify(_vmSnapshotMgr, times(1)).syncVMSnapshot(vms.get(0), _host.getId());
+    }
+
+    @Test
+    public void testDeltaSyncLooksUpHostOnce() throws Exception {
+        Map<String, Pair<String, State>> states = new HashMap<String, Pair<String, State>>();
+        for (int i = 0; i < 20; i++) {
+            VMInstanceVO vm = createVm(i, State.Running);
+            when(_vmDao.findVMByInstanceName(vm.getInstanceName())).thenReturn(vm);
+            states.put(vm.getInstanceName(), new Pair<String, State>(HOST_GUID, State.Running));
+        }
+        when(_resourceMgr.findHostByGuid(HOST_GUID)).thenReturn(_host);
+
+        _vmMgr.deltaSync(states);
+
+        verify(_resourceMgr, times(1)).findHostByGuid(HOST_GUID);
+    }
+
+    private List<VMInstanceVO> fullSync(int count) {
+        List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+        List<VMSnapshotVO> snapshots = new ArrayList<VMSnapshotVO>();
+        Map<String, Pair<String, State>> states = new HashMap<String, Pair<String, State>>();
+        for (int i = 0; i < count; i++) {
+            // even vms run as expected, odd ones were stopped in the db behind the agent's back
+            VMInstanceVO vm = createVm(i, i % 2 == 0 ? State.Running : State.Stopped);
+            vms.add(vm);
+            states.put(vm.getInstanceName(), new Pair<String, State>(HOST_GUID, State.Running));
+            if (i % 10 == 0) {
+                VMSnapshotVO snapshot = new VMSnapshotVO(2L, 1L, vm.getId(), null, "snap-" + i, null, 1L, VMSnapshot.Type.Disk, false);
+                snapshot.setState(VMSnapshot.State.Creating);
+                snapshots.add(snapshot);
+            }
+        }
+        // a vm that the management server does not know about
+        states.put("i-2-" + (count + 1000) + "-VM", new Pair<String, State>(HOST_GUID, State.Running));
+
+        when(_vmDao.listByClusterId(CLUSTER_ID)).thenReturn(vms);
+        when(_vmDao.listLHByClusterId(CLUSTER_ID)).thenReturn(Collections.<VMInstanceVO> emptyList());
+        when(_hostDao.findByClusterId(CLUSTER_ID)).thenReturn(Collections.singletonList(_host));
+        when(_vmSnapshotDao.listByState(VMSnapshot.State.Expunging, VMSnapshot.State.Creating, VMSnapshot.State.Reverting)).thenReturn(snapshots);
+
+        _vmMgr.fullSync(CLUSTER_ID, states);
+        return vms;
+    }
+
+    private void verifyConstantQueries() {
+        verify(_vmDao, times(1)).listByClusterId(CLUSTER_ID);
+        verify(_vmDao, times(1)).listLHByClusterId(CLUSTER_ID);
+        verify(_hostDao, times(1)).findByClusterId(CLUSTER_ID);
+        verify(_vmSnapshotDao, times(1)).listByState(VMSnapshot.State.Expunging, VMSnapshot.State.Creating, VMSnapshot.State.Reverting);
+        // only the alien vm needs a lookup of its own
+        verify(_vmDao, times(1)).findVMByInstanceName(anyString());
+        verify(_hostDao, never()).findByGuid(anyString());
+        verify(_vmSnapshotDao, never()).listByInstanceId(anyLong(), any(VMSnapshot.State[].class));
+        verify(_workDao, never()).findByOutstandingWork(anyLong(), any(State.class));
+        verify(_workDao, never()).listOutstandingWork(anyCollectionOf(Long.class));
+    }
+
+    private VMInstanceVO createVm(long id, State state) {
+        VMInstanceVO vm = new VMInstanceVO(id, 1L, "vm-" + id, "i-2-" + id + "-VM", VirtualMachine.Type.User, 1L, HypervisorType.XenServer, 1L, 1L, 2L, false);
+        vm.setState(state);
+        vm.setHostId(_host.getId());
+        return vm;
+    }
+}
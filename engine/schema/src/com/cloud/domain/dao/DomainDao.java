@@ -32,4 +32,19 @@ public interface DomainDao extends GenericDao<DomainVO, Long> {
     List<DomainVO> findInactiveDomains();
     Set<Long> getDomainParentIds(long domainId);
     List<Long> getDomainChildrenIds(String path);
+
+    /**
+     * @return the domain followed by its ancestors up to the root domain, empty if the domain does not exist
+     */
+    List<Long> getDomainAncestorIds(long domainId);
+
+    /**
+     * @return all domains below the domain, without the domain itself
+     */
+    List<Long> getDomainDescendantIds(long domainId);
+
+    /**
+     * Makes the next lookup load the domain hierarchy again.
+     */
+    void invalidateDomainTree();
 }
@@ -19,8 +19,11 @@ package com.cloud.domain.dao;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.ejb.Local;
@@ -36,11 +39,21 @@ import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 @Local(value={DomainDao.class})
 public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements DomainDao {
     private static final Logger s_logger = Logger.getLogger(DomainDaoImpl.class);
+
+    // how long the domain tree is trusted before checking whether other management servers changed the domains
+    private static final long DOMAIN_TREE_CHECK_INTERVAL = 5000;
+    private static final String DOMAIN_TREE_SQL = "SELECT id, parent FROM domain WHERE removed IS NULL";
+    private static final String DOMAIN_TREE_VERSION_SQL = "SELECT COUNT(*), MAX(id) FROM domain WHERE removed IS NULL";
+
+    private final Object _domainTreeLock = new Object();
+    private volatile DomainTree _domainTree;
+    private volatile long _domainTreeCheckedAt;
     
 	protected SearchBuilder<DomainVO> DomainNameLikeSearch;
 	protected SearchBuilder<DomainVO> ParentDomainNameLikeSearch;
@@ -136,6 +149,7 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             update(parentDomain.getId(), parentDomain);
             
     		txn.commit();
+    		invalidateDomainTree();
     		return domain;
     	} catch(Exception e) {
     		s_logger.error("Unable to create domain due to " + e.getMessage(), e);
@@ -192,6 +206,7 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
         	update(parentDomain.getId(), parentDomain);
             success = super.remove(id);
             txn.commit();
+            invalidateDomainTree();
         } catch (SQLException ex) {
             success = false;
             s_logger.error("error removing domain: " + id, ex);
@@ -246,6 +261,11 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             return true;
         }
 
+        DomainTree tree = getDomainTree();
+        if (tree.contains(parentId) && tree.contains(childId)) {
+            return tree.isDescendantOrSelf(parentId, childId);
+        }
+
         boolean result = false;
         SearchCriteria<DomainVO> sc = DomainPairSearch.create();
         sc.setParameters("id", parentId, childId);
@@ -261,6 +281,8 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             } else {
                 result = d1.getPath().startsWith(d2.getPath());
             }
+            // created by another management server since the tree was loaded
+            invalidateDomainTree();
         }
         return result;
     }
@@ -274,7 +296,17 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
     
     @Override
     public Set<Long> getDomainParentIds(long domainId) {
-        Set<Long> parentDomains = new HashSet<Long>();
+        return new HashSet<Long>(getDomainAncestorIds(domainId));
+    }
+
+    @Override
+    public List<Long> getDomainAncestorIds(long domainId) {
+        DomainTree tree = getDomainTree();
+        if (tree.contains(domainId)) {
+            return tree.getAncestorIds(domainId);
+        }
+
+        List<Long> parentDomains = new ArrayList<Long>();
         Domain domain = findById(domainId);
 
         if (domain != null) {
@@ -284,9 +316,81 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
                 domain = findById(domain.getParent());
                 parentDomains.add(domain.getId());
             }
+            invalidateDomainTree();
         }
         
         return parentDomains;
     }
 
+    @Override
+    public List<Long> getDomainDescendantIds(long domainId) {
+        DomainTree tree = getDomainTree();
+        if (tree.contains(domainId)) {
+            return tree.getDescendantIds(domainId);
+        }
+
+        DomainVO domain = findById(domainId);
+        if (domain == null) {
+            return new ArrayList<Long>();
+        }
+        invalidateDomainTree();
+        List<Long> ids = getDomainChildrenIds(domain.getPath());
+        ids.remove(Long.valueOf(domainId));
+        return ids;
+    }
+
+    @Override
+    public void invalidateDomainTree() {
+        _domainTree = null;
+    }
+
+    /**
+     * @return the domain tree, loaded again when domains were created or removed
+     */
+    protected DomainTree getDomainTree() {
+        DomainTree tree = _domainTree;
+        if (tree != null && System.currentTimeMillis() - _domainTreeCheckedAt < DOMAIN_TREE_CHECK_INTERVAL) {
+            return tree;
+        }
+
+        synchronized (_domainTreeLock) {
+            tree = _domainTree;
+            if (tree != null && System.currentTimeMillis() - _domainTreeCheckedAt < DOMAIN_TREE_CHECK_INTERVAL) {
+                return tree;
+            }
+
+            Transaction txn = Transaction.open("getDomainTree");
+            try {
+                // ids only grow and domains never move, the count and the highest id tell whether the tree changed
+                if (tree != null) {
+                    PreparedStatement pstmt = txn.prepareAutoCloseStatement(DOMAIN_TREE_VERSION_SQL);
+                    ResultSet rs = pstmt.executeQuery();
+                    if (rs.next() && rs.getInt(1) == tree.size() && rs.getLong(2) == tree.getMaxId()) {
+                        _domainTreeCheckedAt = System.currentTimeMillis();
+                        return tree;
+                    }
+                }
+
+                Map<Long, Long> parents = new HashMap<Long, Long>();
+                PreparedStatement pstmt = txn.prepareAutoCloseStatement(DOMAIN_TREE_SQL);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    long parent = rs.getLong(2);
+                    parents.put(rs.getLong(1), rs.wasNull() ? null : parent);
+                }
+                tree = new DomainTree(parents);
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Loaded the domain tree of " + tree.size() + " domains");
+                }
+            } catch (SQLException e) {
+                throw new CloudRuntimeException("Unable to load the domain tree", e);
+            } finally {
+                txn.close();
+            }
+            _domainTree = tree;
+            _domainTreeCheckedAt = System.currentTimeMillis();
+            return tree;
+        }
+    }
+
 }
@@ -0,0 +1,176 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.domain.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the domain hierarchy.
+ *
+ * Every domain is labeled with its position in a pre-order walk of the tree and the size of its
+ * subtree, so the descendants of a domain are the domains whose position falls within its
+ * subtree. Ancestor checks take constant time and descendants are a slice of the walk. Domains
+ * never move to another parent, so the ids of a snapshot only change when domains are created or
+ * removed.
+ */
+public class DomainTree {
+    private static class Node {
+        final long id;
+        final Long parent;
+        int depth;
+        int position;
+        int size;
+
+        Node(long id, Long parent) {
+            this.id = id;
+            this.parent = parent;
+        }
+    }
+
+    private final Map<Long, Node> _nodes;
+    private final long[] _walk;
+    private final long _maxId;
+
+    /**
+     * @param parents parent id, null for the root, by domain id
+     */
+    public DomainTree(Map<Long, Long> parents) {
+        _nodes = new HashMap<Long, Node>(parents.size() * 2);
+        long maxId = 0;
+        for (Map.Entry<Long, Long> entry : parents.entrySet()) {
+            _nodes.put(entry.getKey(), new Node(entry.getKey(), entry.getValue()));
+            maxId = Math.max(maxId, entry.getKey());
+        }
+        _maxId = maxId;
+
+        Map<Long, List<Node>> children = new HashMap<Long, List<Node>>();
+        List<Node> roots = new ArrayList<Node>();
+        for (Node node : _nodes.values()) {
+            if (node.parent == null || !_nodes.containsKey(node.parent)) {
+                // the root, or a domain whose parent is gone
+                roots.add(node);
+                continue;
+            }
+            List<Node> siblings = children.get(node.parent);
+            if (siblings == null) {
+                siblings = new ArrayList<Node>();
+                children.put(node.parent, siblings);
+            }
+            siblings.add(node);
+        }
+
+        _walk = new long[_nodes.size()];
+        int position = 0;
+        // iterative, a deep hierarchy must not exhaust the stack
+        List<Node> stack = new ArrayList<Node>();
+        List<Node> visited = new ArrayList<Node>();
+        for (Node root : roots) {
+            stack.add(root);
+            while (!stack.isEmpty()) {
+                Node node = stack.remove(stack.size() - 1);
+                node.position = position;
+                _walk[position++] = node.id;
+                visited.add(node);
+                List<Node> nodeChildren = children.get(node.id);
+                if (nodeChildren != null) {
+                    for (Node child : nodeChildren) {
+                        child.depth = node.depth + 1;
+                        stack.add(child);
+                    }
+                }
+            }
+        }
+        // a subtree ends where the walk leaves it, accumulate sizes bottom up
+        for (int i = visited.size() - 1; i >= 0; i--) {
+            Node node = visited.get(i);
+            node.size++;
+            if (node.parent != null) {
+                Node parent = _nodes.get(node.parent);
+                if (parent != null) {
+                    parent.size += node.size;
+                }
+            }
+        }
+    }
+
+    public boolean contains(long id) {
+        return _nodes.containsKey(id);
+    }
+
+    public int size() {
+        return _nodes.size();
+    }
+
+    public long getMaxId() {
+        return _maxId;
+    }
+
+    /**
+     * @return the depth of the domain, 0 for the root, -1 if the domain is not in the tree
+     */
+    public int getDepth(long id) {
+        Node node = _nodes.get(id);
+        return node != null ? node.depth : -1;
+    }
+
+    /**
+     * @return true if the domain is the ancestor itself or one of its descendants
+     */
+    public boolean isDescendantOrSelf(long ancestorId, long id) {
+        Node ancestor = _nodes.get(ancestorId);
+        Node node = _nodes.get(id);
+        if (ancestor == null || node == null) {
+            return false;
+        }
+        return node.position >= ancestor.position && node.position < ancestor.position + ancestor.size;
+    }
+
+    /**
+     * @return the domain followed by its ancestors up to the root, empty if the domain is not in the tree
+     */
+    public List<Long> getAncestorIds(long id) {
+        Node node = _nodes.get(id);
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        List<Long> ids = new ArrayList<Long>(node.depth + 1);
+        while (node != null) {
+            ids.add(node.id);
+            node = node.parent != null ? _nodes.get(node.parent) : null;
+        }
+        return ids;
+    }
+
+    /**
+     * @return the descendants of the domain, without the domain itself
+     */
+    public List<Long> getDescendantIds(long id) {
+        Node node = _nodes.get(id);
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        List<Long> ids = new ArrayList<Long>(node.size - 1);
+        for (int i = node.position + 1; i < node.position + node.size; i++) {
+            ids.add(_walk[i]);
+        }
+        return ids;
+    }
+}
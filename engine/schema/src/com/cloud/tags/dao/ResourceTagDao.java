@@ -34,4 +34,9 @@ public interface ResourceTagDao extends GenericDao<ResourceTagVO, Long>{
     
     List<? extends ResourceTag> listBy(long resourceId, TaggedResourceType resourceType);
 
+    /**
+     * @return the tags of all the given resources of a type, loaded with one query
+     */
+    List<? extends ResourceTag> listBy(List<Long> resourceIds, TaggedResourceType resourceType);
+
 }
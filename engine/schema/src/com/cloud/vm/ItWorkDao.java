@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.vm;
 
+import java.util.Collection;
 import java.util.List;
 
 import com.cloud.utils.db.GenericDao;
@@ -31,6 +32,15 @@ public interface ItWorkDao extends GenericDao<ItWorkVO, String> {
      * @return ItWorkVO if found; null if not.
      */
     ItWorkVO findByOutstandingWork(long instanceId, State state);
+
+    /**
+     * list the work items that are not done yet for a set of vms, the bulk
+     * version of findByOutstandingWork.
+     *
+     * @param instanceIds vm instance ids
+     * @return outstanding work items of these vms.
+     */
+    List<ItWorkVO> listOutstandingWork(Collection<Long> instanceIds);
     
     /**
      * cleanup rows that are either Done or Cancelled and been that way 
@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.vm;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.ejb.Local;
@@ -36,6 +38,7 @@ public class ItWorkDaoImpl extends GenericDaoBase<ItWorkVO, String> implements I
     protected final SearchBuilder<ItWorkVO> AllFieldsSearch;
     protected final SearchBuilder<ItWorkVO> CleanupSearch;
     protected final SearchBuilder<ItWorkVO> OutstandingWorkSearch;
+    protected final SearchBuilder<ItWorkVO> OutstandingWorkListSearch;
     protected final SearchBuilder<ItWorkVO> WorkInProgressSearch;
     
     protected ItWorkDaoImpl() {
@@ -58,6 +61,11 @@ public class ItWorkDaoImpl extends GenericDaoBase<ItWorkVO, String> implements I
         OutstandingWorkSearch.and("step", OutstandingWorkSearch.entity().getStep(), Op.NEQ);
         OutstandingWorkSearch.done();
         
+        OutstandingWorkListSearch = createSearchBuilder();
+        OutstandingWorkListSearch.and("instances", OutstandingWorkListSearch.entity().getInstanceId(), Op.IN);
+        OutstandingWorkListSearch.and("step", OutstandingWorkListSearch.entity().getStep(), Op.NEQ);
+        OutstandingWorkListSearch.done();
+        
         WorkInProgressSearch = createSearchBuilder();
         WorkInProgressSearch.and("server", WorkInProgressSearch.entity().getManagementServerId(), Op.EQ);
         WorkInProgressSearch.and("step", WorkInProgressSearch.entity().getStep(), Op.NIN);
@@ -74,6 +82,18 @@ public class ItWorkDaoImpl extends GenericDaoBase<ItWorkVO, String> implements I
         return findOneBy(sc);
     }
     
+    @Override
+    public List<ItWorkVO> listOutstandingWork(Collection<Long> instanceIds) {
+        if (instanceIds.isEmpty()) {
+            return new ArrayList<ItWorkVO>();
+        }
+        SearchCriteria<ItWorkVO> sc = OutstandingWorkListSearch.create();
+        sc.setParameters("instances", instanceIds.toArray());
+        sc.setParameters("step", Step.Done);
+        
+        return listBy(sc);
+    }
+    
     @Override
     public void cleanup(long wait) {
         SearchCriteria<ItWorkVO> sc = CleanupSearch.create();
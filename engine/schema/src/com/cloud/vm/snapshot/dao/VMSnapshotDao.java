@@ -31,6 +31,8 @@ public interface VMSnapshotDao extends GenericDao<VMSnapshotVO, Long>, StateDao<
 
     List<VMSnapshotVO> listByInstanceId(Long vmId, VMSnapshot.State... status);
 
+    List<VMSnapshotVO> listByState(VMSnapshot.State... status);
+
 	VMSnapshotVO findCurrentSnapshotByVmId(Long vmId);
 	
 	List<VMSnapshotVO> listByParent(Long vmSnapshotId);
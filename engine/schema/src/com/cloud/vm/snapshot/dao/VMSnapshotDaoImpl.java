@@ -42,6 +42,7 @@ public class VMSnapshotDaoImpl extends GenericDaoBase<VMSnapshotVO, Long>
     private final SearchBuilder<VMSnapshotVO> SnapshotSearch;
     private final SearchBuilder<VMSnapshotVO> ExpungingSnapshotSearch;
     private final SearchBuilder<VMSnapshotVO> SnapshotStatusSearch;
+    private final SearchBuilder<VMSnapshotVO> StateSearch;
     private final SearchBuilder<VMSnapshotVO> AllFieldsSearch;
 
     protected VMSnapshotDaoImpl() {
@@ -78,6 +79,10 @@ public class VMSnapshotDaoImpl extends GenericDaoBase<VMSnapshotVO, Long>
         SnapshotStatusSearch.and("state", SnapshotStatusSearch.entity()
                 .getState(), SearchCriteria.Op.IN);
         SnapshotStatusSearch.done();
+
+        StateSearch = createSearchBuilder();
+        StateSearch.and("state", StateSearch.entity().getState(), SearchCriteria.Op.IN);
+        StateSearch.done();
     }
 
     @Override
@@ -102,6 +107,13 @@ public class VMSnapshotDaoImpl extends GenericDaoBase<VMSnapshotVO, Long>
         return listBy(sc, null);
     }
 
+    @Override
+    public List<VMSnapshotVO> listByState(State... status) {
+        SearchCriteria<VMSnapshotVO> sc = StateSearch.create();
+        sc.setParameters("state", (Object[]) status);
+        return listBy(sc, null);
+    }
+
 	@Override
 	public VMSnapshotVO findCurrentSnapshotByVmId(Long vmId) {
         SearchCriteria<VMSnapshotVO> sc = AllFieldsSearch.create();
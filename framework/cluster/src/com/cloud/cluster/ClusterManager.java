@@ -27,6 +27,8 @@ public interface ClusterManager extends Manager {
     final ConfigKey<Integer> HeartbeatThreshold = new ConfigKey<Integer>(Integer.class, "cluster.heartbeat.threshold", "management-server", "150000",
         "Threshold before self-fence the management server", true);
     final ConfigKey<String> ManagementHostIPAdr = new ConfigKey<String>("Advanced", String.class, "host", "localhost", "The ip address of management server", true);
+    final ConfigKey<Integer> ClusterPduBatchSize = new ConfigKey<Integer>(Integer.class, "cluster.pdu.batch.size", "management-server", "50",
+        "Maximum number of queued PDUs delivered to a peer management server in a single request", true);
 
     void OnReceiveClusterServicePdu(ClusterServicePdu pdu);
 
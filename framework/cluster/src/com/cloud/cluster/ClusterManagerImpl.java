@@ -34,8 +34,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -112,8 +116,9 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
     private String _clusterNodeIP = "127.0.0.1";
     
-    private final List<ClusterServicePdu> _clusterPduOutgoingQueue = new ArrayList<ClusterServicePdu>();
-    private final List<ClusterServicePdu> _clusterPduIncomingQueue = new ArrayList<ClusterServicePdu>();
+    private final ConcurrentMap<String, ClusterServicePduQueue> _clusterPduOutgoingQueues = new ConcurrentHashMap<String, ClusterServicePduQueue>();
+    private final BlockingQueue<ClusterServicePduQueue> _clusterPduReadyQueues = new LinkedBlockingQueue<ClusterServicePduQueue>();
+    private final BlockingQueue<ClusterServicePdu> _clusterPduIncomingQueue = new LinkedBlockingQueue<ClusterServicePdu>();
     private final Map<Long, ClusterServiceRequestPdu> _outgoingPdusWaitingForAck = new HashMap<Long, ClusterServiceRequestPdu>();
     
     public ClusterManagerImpl() {
@@ -171,51 +176,60 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
     }
     
     private void addOutgoingClusterPdu(ClusterServicePdu pdu) {
-    	synchronized(_clusterPduOutgoingQueue) {
-    		_clusterPduOutgoingQueue.add(pdu);
-    		_clusterPduOutgoingQueue.notifyAll();
-    	}
+        ClusterServicePduQueue queue = getOutgoingPduQueue(pdu.getDestPeer());
+        queue.add(pdu);
+        if (queue.trySchedule()) {
+            _clusterPduReadyQueues.offer(queue);
+        }
     }
-    
-    private ClusterServicePdu popOutgoingClusterPdu(long timeoutMs) {
-    	synchronized(_clusterPduOutgoingQueue) {
-    		try {
-				_clusterPduOutgoingQueue.wait(timeoutMs);
-			} catch (InterruptedException e) {
-			}
-			
-			if(_clusterPduOutgoingQueue.size() > 0) {
-				ClusterServicePdu pdu = _clusterPduOutgoingQueue.get(0);
-				_clusterPduOutgoingQueue.remove(0);
-				return pdu;
-			}
-    	}
-    	return null;
+
+    private ClusterServicePduQueue getOutgoingPduQueue(String strPeer) {
+        ClusterServicePduQueue queue = _clusterPduOutgoingQueues.get(strPeer);
+        if (queue == null) {
+            queue = new ClusterServicePduQueue(strPeer);
+            ClusterServicePduQueue existing = _clusterPduOutgoingQueues.putIfAbsent(strPeer, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        return queue;
+    }
+
+    public ClusterServicePduQueue getPeerPduQueue(String strPeer) {
+        return _clusterPduOutgoingQueues.get(strPeer);
+    }
+
+    private void removeOutgoingPduQueue(String strPeer) {
+        ClusterServicePduQueue queue = _clusterPduOutgoingQueues.remove(strPeer);
+        if (queue != null) {
+            int dropped = queue.drain(Integer.MAX_VALUE).size();
+            if (dropped > 0) {
+                queue.recordBatch(dropped, 0, false);
+                s_logger.warn("Dropped " + dropped + " cluster PDUs queued to departed peer: " + strPeer);
+            }
+        }
+    }
+
+    private ClusterServicePduQueue popReadyPduQueue(long timeoutMs) {
+        try {
+            return _clusterPduReadyQueues.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+        }
+        return null;
     }
 
     private void addIncomingClusterPdu(ClusterServicePdu pdu) {
-    	synchronized(_clusterPduIncomingQueue) {
-    		_clusterPduIncomingQueue.add(pdu);
-    		_clusterPduIncomingQueue.notifyAll();
-    	}
+        _clusterPduIncomingQueue.offer(pdu);
     }
-    
+
     private ClusterServicePdu popIncomingClusterPdu(long timeoutMs) {
-    	synchronized(_clusterPduIncomingQueue) {
-    		try {
-    			_clusterPduIncomingQueue.wait(timeoutMs);
-			} catch (InterruptedException e) {
-			}
-			
-			if(_clusterPduIncomingQueue.size() > 0) {
-				ClusterServicePdu pdu = _clusterPduIncomingQueue.get(0);
-				_clusterPduIncomingQueue.remove(0);
-				return pdu;
-			}
-    	}
-    	return null;
+        try {
+            return _clusterPduIncomingQueue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+        }
+        return null;
     }
-    
+
     private Runnable getClusterPduSendingTask() {
         return new Runnable() {
             @Override
@@ -237,51 +251,109 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
     private void onSendingClusterPdu() {
         while(true) {
             try {
-                ClusterServicePdu pdu = popOutgoingClusterPdu(1000);
-                if(pdu == null)
-                	continue;
-                	
-                ClusterService peerService =  null;
-                for(int i = 0; i < 2; i++) {
-                    try {
-                        peerService = getPeerService(pdu.getDestPeer());
-                    } catch (RemoteException e) {
-                        s_logger.error("Unable to get cluster service on peer : " + pdu.getDestPeer());
-                    }
+                ClusterServicePduQueue queue = popReadyPduQueue(1000);
+                if(queue == null)
+                    continue;
 
-                    if(peerService != null) {
-                        try {
-                            if(s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + ". agent: " + pdu.getAgentId()
-                                    + ", pdu seq: " + pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
+                try {
+                    List<ClusterServicePdu> pdus = queue.drain(ClusterPduBatchSize.value());
+                    if(!pdus.isEmpty())
+                        sendClusterPdus(queue, pdus);
+                } finally {
+                    // hand the queue back, re-schedule it if PDUs arrived while we were sending
+                    queue.unschedule();
+                    if(!queue.isEmpty() && queue.trySchedule())
+                        _clusterPduReadyQueues.offer(queue);
+                }
+            } catch(Throwable e) {
+                s_logger.error("Unexcpeted exception: ", e);
+            }
+        }
+    }
 
-                            long startTick = System.currentTimeMillis();
-                            String strResult = peerService.execute(pdu);
-                            if(s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + " completed. time: " +
-                                    (System.currentTimeMillis() - startTick) + "ms. agent: " + pdu.getAgentId()
-                                     + ", pdu seq: " + pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
-                            
-                            if("true".equals(strResult))
-                                break;
-                            
-                        } catch (RemoteException e) {
-                            invalidatePeerService(pdu.getDestPeer());
-                            if(s_logger.isInfoEnabled()) {
-                                s_logger.info("Exception on remote execution, peer: " + pdu.getDestPeer() + ", iteration: "
-                                        + i + ", exception message :" + e.getMessage());
-                            }
+    void sendClusterPdus(ClusterServicePduQueue queue, List<ClusterServicePdu> pdus) {
+        String strPeer = queue.getPeer();
+
+        // delivered PDUs are taken off the pending list, so a retry only re-sends the undelivered tail
+        List<ClusterServicePdu> pending = new ArrayList<ClusterServicePdu>(pdus);
+        boolean individually = false;
+        for(int i = 0; i < 2; i++) {
+            ClusterService peerService =  null;
+            try {
+                peerService = getPeerService(strPeer);
+            } catch (RemoteException e) {
+                s_logger.error("Unable to get cluster service on peer : " + strPeer);
+            }
+
+            if(peerService != null) {
+                try {
+                    if(s_logger.isDebugEnabled()) {
+                        for(ClusterServicePdu pdu : pending) {
+                            s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + strPeer + ". agent: " + pdu.getAgentId()
+                                + ", pdu seq: " + pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
                         }
                     }
+
+                    if(individually || pending.size() == 1) {
+                        if(sendClusterPdusIndividually(queue, peerService, pending))
+                            return;
+                        continue;
+                    }
+
+                    long startTick = System.currentTimeMillis();
+                    int delivered;
+                    try {
+                        delivered = Math.min(peerService.execute(pending), pending.size());
+                    } catch (UnknownClusterMethodException e) {
+                        // peer is running a version without batch support, fall back to one PDU per request
+                        individually = true;
+                        if(sendClusterPdusIndividually(queue, peerService, pending))
+                            return;
+                        continue;
+                    }
+                    long elapsed = System.currentTimeMillis() - startTick;
+                    if(s_logger.isDebugEnabled()) {
+                        s_logger.debug("Cluster PDU batch " + getSelfPeerName() + " -> " + strPeer + " completed. time: " +
+                            elapsed + "ms. pdus: " + delivered + " of " + pending.size() + ", first pdu seq: " + pending.get(0).getSequenceId());
+                    }
+
+                    if(delivered > 0) {
+                        queue.recordBatch(delivered, elapsed, true);
+                        pending.subList(0, delivered).clear();
+                    }
+                    if(pending.isEmpty())
+                        return;
+                } catch (RemoteException e) {
+                    invalidatePeerService(strPeer);
+                    if(s_logger.isInfoEnabled()) {
+                        s_logger.info("Exception on remote execution, peer: " + strPeer + ", iteration: "
+                                + i + ", exception message :" + e.getMessage() + ", undelivered pdus: " + pending.size());
+                    }
                 }
-            } catch(Throwable e) {
-                s_logger.error("Unexcpeted exception: ", e);
             }
         }
+        queue.recordBatch(pending.size(), 0, false);
     }
-    
+
+    /**
+     * Sends the PDUs one per request, removing each one from the list once the peer has taken it.
+     * Stops at the first PDU the peer does not take so that PDUs are never delivered out of order.
+     *
+     * @return true if all PDUs were delivered
+     */
+    private boolean sendClusterPdusIndividually(ClusterServicePduQueue queue, ClusterService peerService, List<ClusterServicePdu> pending) throws RemoteException {
+        Iterator<ClusterServicePdu> it = pending.iterator();
+        while(it.hasNext()) {
+            ClusterServicePdu pdu = it.next();
+            long startTick = System.currentTimeMillis();
+            if(!"true".equals(peerService.execute(pdu)))
+                return false;
+            it.remove();
+            queue.recordBatch(1, System.currentTimeMillis() - startTick, true);
+        }
+        return true;
+    }
+
     private void onNotifyingClusterPdu() {
         while(true) {
             try {
@@ -474,6 +546,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
             if(s_logger.isDebugEnabled())
                 s_logger.debug("Leaving node, IP: " + mshost.getServiceIP() + ", msid: " + mshost.getMsid());
             cancelClusterRequestToPeer(String.valueOf(mshost.getMsid()));
+            removeOutgoingPduQueue(String.valueOf(mshost.getMsid()));
         }
 
         synchronized(_listeners) {
@@ -1108,7 +1181,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {HeartbeatInterval, HeartbeatThreshold, ManagementHostIPAdr};
+        return new ConfigKey<?>[] {HeartbeatInterval, HeartbeatThreshold, ManagementHostIPAdr, ClusterPduBatchSize, ClusterServiceAdapter.ClusterMaxConnectionsPerPeer};
     }
 
     private boolean pingManagementNode(ManagementServerHostVO mshost) {
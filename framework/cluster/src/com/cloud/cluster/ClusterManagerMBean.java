@@ -23,4 +23,11 @@ public interface ClusterManagerMBean {
 	public String getVersion();
 	public int getHeartbeatInterval();
 	public int getHeartbeatThreshold();
+	public int getPduQueueDepth();
+	public int getPduMaxQueueDepth();
+	public long getPduSentCount();
+	public long getPduBatchCount();
+	public long getPduFailedCount();
+	public long getPduLastLatencyMs();
+	public long getPduAverageLatencyMs();
 }
@@ -64,4 +64,50 @@ public class ClusterManagerMBeanImpl extends StandardMBean implements ClusterMan
     public int getHeartbeatThreshold() {
         return ClusterManager.HeartbeatThreshold.value();
     }
+
+    @Override
+    public int getPduQueueDepth() {
+        ClusterServicePduQueue queue = getPduQueue();
+        return queue != null ? queue.getDepth() : 0;
+    }
+
+    @Override
+    public int getPduMaxQueueDepth() {
+        ClusterServicePduQueue queue = getPduQueue();
+        return queue != null ? queue.getMaxDepth() : 0;
+    }
+
+    @Override
+    public long getPduSentCount() {
+        ClusterServicePduQueue queue = getPduQueue();
+        return queue != null ? queue.getSentPdus() : 0;
+    }
+
+    @Override
+    public long getPduBatchCount() {
+        ClusterServicePduQueue queue = getPduQueue();
+        return queue != null ? queue.getSentBatches() : 0;
+    }
+
+    @Override
+    public long getPduFailedCount() {
+        ClusterServicePduQueue queue = getPduQueue();
+        return queue != null ? queue.getFailedPdus() : 0;
+    }
+
+    @Override
+    public long getPduLastLatencyMs() {
+        ClusterServicePduQueue queue = getPduQueue();
+        return queue != null ? queue.getLastLatencyMs() : 0;
+    }
+
+    @Override
+    public long getPduAverageLatencyMs() {
+        ClusterServicePduQueue queue = getPduQueue();
+        return queue != null ? queue.getAverageLatencyMs() : 0;
+    }
+
+    private ClusterServicePduQueue getPduQueue() {
+        return _clusterMgr.getPeerPduQueue(Long.toString(_mshostVo.getMsid()));
+    }
 }
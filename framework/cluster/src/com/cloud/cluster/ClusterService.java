@@ -18,8 +18,19 @@ package com.cloud.cluster;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface ClusterService extends Remote {
     String execute(ClusterServicePdu pdu) throws RemoteException;
+
+    /**
+     * Delivers the PDUs in order and stops at the first one the peer cannot take.
+     *
+     * @return the number of PDUs, from the head of the list, that the peer has taken
+     * @throws UnknownClusterMethodException if the peer does not support batched delivery
+     * @throws RemoteException if the request or its response was lost in transport
+     */
+    int execute(List<ClusterServicePdu> pdus) throws RemoteException;
+
     boolean ping(String callingPeer) throws RemoteException;
 }
@@ -25,6 +25,8 @@ import com.cloud.utils.component.Adapter;
 public interface ClusterServiceAdapter extends Adapter {
     final ConfigKey<Integer> ClusterMessageTimeOut = new ConfigKey<Integer>(Integer.class, "cluster.message.timeout.seconds", "Advance", "300",
         "Time (in seconds) to wait before a inter-management server message post times out.", true);
+    final ConfigKey<Integer> ClusterMaxConnectionsPerPeer = new ConfigKey<Integer>(Integer.class, "cluster.message.max.connections.per.peer", "Advance", "8",
+        "Maximum number of persistent HTTP connections kept open to each peer management server.", false);
 
 	public ClusterService getPeerService(String strPeer) throws RemoteException;
 	public String getServiceEndpointName(String strPeer);
@@ -0,0 +1,131 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outgoing PDU queue of a single peer management server.
+ *
+ * The queue itself is lock-free, a queue is claimed by at most one sending worker at
+ * a time so that PDUs to the same peer are delivered in order and can be drained as a batch.
+ */
+public class ClusterServicePduQueue {
+    private final String _peer;
+    private final ConcurrentLinkedQueue<ClusterServicePdu> _pdus = new ConcurrentLinkedQueue<ClusterServicePdu>();
+    private final AtomicInteger _depth = new AtomicInteger();
+    private final AtomicBoolean _scheduled = new AtomicBoolean();
+
+    private final AtomicLong _sentPdus = new AtomicLong();
+    private final AtomicLong _sentBatches = new AtomicLong();
+    private final AtomicLong _failedPdus = new AtomicLong();
+    private final AtomicLong _totalLatencyMs = new AtomicLong();
+    private volatile long _lastLatencyMs;
+    private volatile int _maxDepth;
+
+    public ClusterServicePduQueue(String peer) {
+        _peer = peer;
+    }
+
+    public String getPeer() {
+        return _peer;
+    }
+
+    public void add(ClusterServicePdu pdu) {
+        _pdus.offer(pdu);
+        int depth = _depth.incrementAndGet();
+        if (depth > _maxDepth) {
+            _maxDepth = depth;
+        }
+    }
+
+    public List<ClusterServicePdu> drain(int maxPdus) {
+        List<ClusterServicePdu> batch = new ArrayList<ClusterServicePdu>();
+        while (batch.size() < maxPdus) {
+            ClusterServicePdu pdu = _pdus.poll();
+            if (pdu == null) {
+                break;
+            }
+            _depth.decrementAndGet();
+            batch.add(pdu);
+        }
+        return batch;
+    }
+
+    public boolean isEmpty() {
+        return _pdus.isEmpty();
+    }
+
+    /**
+     * @return true if the caller has claimed the queue and is responsible for scheduling it
+     */
+    public boolean trySchedule() {
+        return _scheduled.compareAndSet(false, true);
+    }
+
+    public void unschedule() {
+        _scheduled.set(false);
+    }
+
+    public void recordBatch(int pduCount, long latencyMs, boolean success) {
+        if (success) {
+            _sentPdus.addAndGet(pduCount);
+            _sentBatches.incrementAndGet();
+            _totalLatencyMs.addAndGet(latencyMs);
+            _lastLatencyMs = latencyMs;
+        } else {
+            _failedPdus.addAndGet(pduCount);
+        }
+    }
+
+    public int getDepth() {
+        return _depth.get();
+    }
+
+    public int getMaxDepth() {
+        return _maxDepth;
+    }
+
+    public long getSentPdus() {
+        return _sentPdus.get();
+    }
+
+    public long getSentBatches() {
+        return _sentBatches.get();
+    }
+
+    public long getFailedPdus() {
+        return _failedPdus.get();
+    }
+
+    public long getLastLatencyMs() {
+        return _lastLatencyMs;
+    }
+
+    public long getAverageLatencyMs() {
+        long batches = _sentBatches.get();
+        if (batches == 0) {
+            return 0;
+        }
+        return _totalLatencyMs.get() / batches;
+    }
+}
@@ -118,6 +118,7 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
 
         int nMethod = RemoteMethodConstants.METHOD_UNKNOWN;
         String responseContent = null;
+        boolean unknownMethod = false;
         try {
             if(method != null) {
                 nMethod = Integer.parseInt(method);
@@ -128,14 +129,18 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
                 responseContent = handleDeliverPduMethodCall(req);
                 break;
 
+            case RemoteMethodConstants.METHOD_DELIVER_PDU_BATCH :
+                responseContent = handleDeliverPduBatchMethodCall(req);
+                break;
+
             case RemoteMethodConstants.METHOD_PING :
                 responseContent = handlePingMethodCall(req);
                 break;
 
             case RemoteMethodConstants.METHOD_UNKNOWN :
             default :
-                assert(false);
                 s_logger.error("unrecognized method " + nMethod);
+                unknownMethod = true;
                 break;
             }
         } catch(Throwable e) {
@@ -147,6 +152,8 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         		s_logger.trace("Write reponse with HTTP OK " + responseContent);
         	
             writeResponse(response, HttpStatus.SC_OK, responseContent);
+        } else if(unknownMethod) {
+            writeResponse(response, HttpStatus.SC_NOT_IMPLEMENTED, null);
         } else {
         	if(s_logger.isTraceEnabled())
         		s_logger.trace("Write reponse with HTTP Bad request");
@@ -180,6 +187,35 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         return "true";
     }
 
+    /**
+     * Hands the PDUs to the manager in order and answers with the number it has taken, so that the
+     * sender re-sends only the rest if one of them cannot be parsed or delivered.
+     */
+    private String handleDeliverPduBatchMethodCall(HttpRequest req) {
+        int pduCount = Integer.parseInt((String)req.getParams().getParameter("pduCount"));
+
+        int delivered = 0;
+        try {
+            for (int i = 0; i < pduCount; i++) {
+                ClusterServicePdu pdu = new ClusterServicePdu();
+                pdu.setSourcePeer((String)req.getParams().getParameter("sourcePeer." + i));
+                pdu.setDestPeer((String)req.getParams().getParameter("destPeer." + i));
+                pdu.setAgentId(Long.parseLong((String)req.getParams().getParameter("agentId." + i)));
+                pdu.setSequenceId(Long.parseLong((String)req.getParams().getParameter("pduSeq." + i)));
+                pdu.setAckSequenceId(Long.parseLong((String)req.getParams().getParameter("pduAckSeq." + i)));
+                pdu.setJsonPackage((String)req.getParams().getParameter("gsonPackage." + i));
+                pdu.setStopOnError("1".equals(req.getParams().getParameter("stopOnError." + i)));
+                pdu.setPduType(Integer.parseInt((String)req.getParams().getParameter("pduType." + i)));
+
+                manager.OnReceiveClusterServicePdu(pdu);
+                delivered++;
+            }
+        } catch (RuntimeException e) {
+            s_logger.error("Unable to deliver PDU " + delivered + " of " + pduCount + " in batch : ", e);
+        }
+        return Integer.toString(delivered);
+    }
+
     private String handlePingMethodCall(HttpRequest req) {
         String callingPeer = (String)req.getParams().getParameter("callingPeer");
 
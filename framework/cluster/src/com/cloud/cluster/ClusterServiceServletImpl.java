@@ -18,6 +18,7 @@ package com.cloud.cluster;
 
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.List;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
@@ -63,6 +64,38 @@ public class ClusterServiceServletImpl implements ClusterService {
         return executePostMethod(client, method);
     }
 
+    @Override
+    public int execute(List<ClusterServicePdu> pdus) throws RemoteException {
+
+        HttpClient client = getHttpClient();
+        PostMethod method = new PostMethod(_serviceUrl);
+
+        method.addParameter("method", Integer.toString(RemoteMethodConstants.METHOD_DELIVER_PDU_BATCH));
+        method.addParameter("pduCount", Integer.toString(pdus.size()));
+        for (int i = 0; i < pdus.size(); i++) {
+            ClusterServicePdu pdu = pdus.get(i);
+            method.addParameter("sourcePeer." + i, pdu.getSourcePeer());
+            method.addParameter("destPeer." + i, pdu.getDestPeer());
+            method.addParameter("pduSeq." + i, Long.toString(pdu.getSequenceId()));
+            method.addParameter("pduAckSeq." + i, Long.toString(pdu.getAckSequenceId()));
+            method.addParameter("agentId." + i, Long.toString(pdu.getAgentId()));
+            method.addParameter("gsonPackage." + i, pdu.getJsonPackage());
+            method.addParameter("stopOnError." + i, pdu.isStopOnError() ? "1" : "0");
+            method.addParameter("pduType." + i, Integer.toString(pdu.getPduType()));
+        }
+
+        String result = executePostMethod(client, method);
+        if (result == null) {
+            throw new UnknownClusterMethodException("Batched PDU delivery is not supported by " + _serviceUrl);
+        }
+
+        try {
+            return Integer.parseInt(result.trim());
+        } catch (NumberFormatException e) {
+            throw new RemoteException("Unexpected batch response : " + result + ", from : " + _serviceUrl);
+        }
+    }
+
     @Override
     public boolean ping(String callingPeer) throws RemoteException {
         if (s_logger.isDebugEnabled()) {
@@ -82,7 +115,11 @@ public class ClusterServiceServletImpl implements ClusterService {
         return false;
     }
 
-    private String executePostMethod(HttpClient client, PostMethod method) {
+    /**
+     * @return the response body, or null if the peer rejected the method
+     * @throws RemoteException if the request could not be sent or no valid response came back
+     */
+    private String executePostMethod(HttpClient client, PostMethod method) throws RemoteException {
         int response = 0;
         String result = null;
         try {
@@ -93,28 +130,40 @@ public class ClusterServiceServletImpl implements ClusterService {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("POST " + _serviceUrl + " response :" + result + ", responding time: " + (System.currentTimeMillis() - startTick) + " ms");
                 }
+            } else if (response == HttpStatus.SC_BAD_REQUEST || response == HttpStatus.SC_NOT_IMPLEMENTED) {
+                s_logger.error("Request rejected with response code : " + response + ", from : " + _serviceUrl + ", method : " + method.getParameter("method") +
+                               " responding time: " + (System.currentTimeMillis() - startTick));
             } else {
                 s_logger.error("Invalid response code : " + response + ", from : " + _serviceUrl + ", method : " + method.getParameter("method") + " responding time: " +
                                (System.currentTimeMillis() - startTick));
             }
         } catch (HttpException e) {
             s_logger.error("HttpException from : " + _serviceUrl + ", method : " + method.getParameter("method"));
+            throw new RemoteException("HttpException from : " + _serviceUrl, e);
         } catch (IOException e) {
             s_logger.error("IOException from : " + _serviceUrl + ", method : " + method.getParameter("method"));
-        } catch (Throwable e) {
+            throw new RemoteException("IOException from : " + _serviceUrl, e);
+        } catch (RuntimeException e) {
             s_logger.error("Exception from : " + _serviceUrl + ", method : " + method.getParameter("method") + ", exception :", e);
+            throw new RemoteException("Exception from : " + _serviceUrl, e);
         } finally {
             method.releaseConnection();
         }
 
+        if (response != HttpStatus.SC_OK && response != HttpStatus.SC_BAD_REQUEST && response != HttpStatus.SC_NOT_IMPLEMENTED) {
+            throw new RemoteException("Invalid response code : " + response + ", from : " + _serviceUrl);
+        }
         return result;
     }
 
-    private HttpClient getHttpClient() {
+    private static synchronized HttpClient getHttpClient() {
 
         if (s_client == null) {
+            // connections are kept alive and reused across PDU batches to the same peer
             MultiThreadedHttpConnectionManager mgr = new MultiThreadedHttpConnectionManager();
-            mgr.getParams().setDefaultMaxConnectionsPerHost(4);
+            mgr.getParams().setDefaultMaxConnectionsPerHost(ClusterServiceAdapter.ClusterMaxConnectionsPerPeer.value());
+            mgr.getParams().setStaleCheckingEnabled(true);
+            mgr.getParams().setTcpNoDelay(true);
 
             // TODO make it configurable
             mgr.getParams().setMaxTotalConnections(1000);
@@ -20,4 +20,5 @@ public interface RemoteMethodConstants {
     public static final int METHOD_UNKNOWN = 0;
     public static final int METHOD_PING = 4;
     public static final int METHOD_DELIVER_PDU = 5;
+    public static final int METHOD_DELIVER_PDU_BATCH = 6;
 }
@@ -0,0 +1,314 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Runs a peer cluster service end point on a local port and forwards PDUs to it the way
+ * ClusteredAgentManagerImpl does, comparing one request per PDU against batched delivery.
+ */
+public class ClusterServicePduTransportTest {
+    private static final Logger s_logger = Logger.getLogger(ClusterServicePduTransportTest.class);
+
+    private ClusterServiceServletContainer _container;
+    private ClusterManager _peerManager;
+    private int _port;
+    private ClusterService _peerService;
+    private final List<ClusterServicePdu> _received = new ArrayList<ClusterServicePdu>();
+    private final AtomicInteger _receivedCount = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        _peerManager = mock(ClusterManager.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ClusterServicePdu pdu = (ClusterServicePdu)invocation.getArguments()[0];
+                synchronized (_received) {
+                    if (_received.size() < 100) {
+                        _received.add(pdu);
+                    }
+                }
+                _receivedCount.incrementAndGet();
+                return null;
+            }
+        }).when(_peerManager).OnReceiveClusterServicePdu(any(ClusterServicePdu.class));
+
+        _port = findFreePort();
+        _container = new ClusterServiceServletContainer();
+        _container.start(new ClusterServiceServletHttpHandler(_peerManager), _port);
+        _peerService = new ClusterServiceServletImpl("http://127.0.0.1:" + _port + "/clusterservice");
+    }
+
+    @After
+    public void tearDown() {
+        _container.stop();
+    }
+
+    @Test
+    public void testBatchDelivery() throws Exception {
+        List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>();
+        for (int i = 0; i < 3; i++) {
+            pdus.add(createPdu(i));
+        }
+        pdus.get(1).setPduType(ClusterServicePdu.PDU_TYPE_REQUEST);
+
+        assertEquals(3, _peerService.execute(pdus));
+        assertEquals(3, _receivedCount.get());
+        for (int i = 0; i < 3; i++) {
+            ClusterServicePdu sent = pdus.get(i);
+            ClusterServicePdu received = _received.get(i);
+            assertEquals(sent.getSequenceId(), received.getSequenceId());
+            assertEquals(sent.getAgentId(), received.getAgentId());
+            assertEquals(sent.getJsonPackage(), received.getJsonPackage());
+            assertEquals(sent.getPduType(), received.getPduType());
+            assertEquals(sent.isStopOnError(), received.isStopOnError());
+        }
+    }
+
+    @Test
+    public void testForwardingThroughput() throws Exception {
+        final int pduCount = 1000;
+        final int batchSize = 50;
+
+        long startTick = System.currentTimeMillis();
+        for (int i = 0; i < pduCount; i++) {
+            assertEquals("true", _peerService.execute(createPdu(i)));
+        }
+        long singleMs = Math.max(1, System.currentTimeMillis() - startTick);
+
+        startTick = System.currentTimeMillis();
+        for (int i = 0; i < pduCount; i += batchSize) {
+            List<ClusterServicePdu> batch = new ArrayList<ClusterServicePdu>();
+            for (int j = 0; j < batchSize; j++) {
+                batch.add(createPdu(i + j));
+            }
+            assertEquals(batchSize, _peerService.execute(batch));
+        }
+        long batchMs = Math.max(1, System.currentTimeMillis() - startTick);
+
+        assertEquals(pduCount * 2, _receivedCount.get());
+        s_logger.info("Forwarded " + pduCount + " PDUs, one per request: " + singleMs + " ms (" + (pduCount * 1000L / singleMs) + " pdu/s), batches of "
+                + batchSize + ": " + batchMs + " ms (" + (pduCount * 1000L / batchMs) + " pdu/s)");
+    }
+
+    @Test
+    public void testPeerQueueScheduling() {
+        ClusterServicePduQueue queue = new ClusterServicePduQueue("2");
+        for (int i = 0; i < 5; i++) {
+            queue.add(createPdu(i));
+        }
+        assertEquals(5, queue.getDepth());
+
+        assertTrue(queue.trySchedule());
+        assertFalse(queue.trySchedule());
+
+        List<ClusterServicePdu> batch = queue.drain(3);
+        assertEquals(3, batch.size());
+        assertEquals(2, queue.getDepth());
+        assertEquals(5, queue.getMaxDepth());
+        queue.recordBatch(batch.size(), 10, true);
+
+        queue.unschedule();
+        assertTrue(queue.trySchedule());
+        assertEquals(2, queue.drain(3).size());
+        assertTrue(queue.isEmpty());
+        assertEquals(3, queue.getSentPdus());
+        assertEquals(1, queue.getSentBatches());
+        assertEquals(10, queue.getAverageLatencyMs());
+    }
+
+    @Test
+    public void testRetryResendsOnlyUndeliveredPdus() throws Exception {
+        List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>();
+        for (int i = 0; i < 3; i++) {
+            pdus.add(createPdu(i));
+        }
+
+        // peer without batch support whose connection drops after the first PDU
+        final ClusterService peerService = mock(ClusterService.class);
+        when(peerService.execute(anyListOf(ClusterServicePdu.class))).thenThrow(new UnknownClusterMethodException("Unknown method"));
+        when(peerService.execute(pdus.get(0))).thenReturn("true");
+        when(peerService.execute(pdus.get(1))).thenThrow(new RemoteException("Connection reset")).thenReturn("true");
+        when(peerService.execute(pdus.get(2))).thenReturn("true");
+
+        ClusterServicePduQueue queue = new ClusterServicePduQueue("2");
+        createClusterManager(peerService).sendClusterPdus(queue, pdus);
+
+        verify(peerService, times(1)).execute(anyListOf(ClusterServicePdu.class));
+        verify(peerService, times(1)).execute(pdus.get(0));
+        verify(peerService, times(2)).execute(pdus.get(1));
+        verify(peerService, times(1)).execute(pdus.get(2));
+        assertEquals(3, queue.getSentPdus());
+        assertEquals(0, queue.getFailedPdus());
+    }
+
+    @Test
+    public void testBatchReportsDeliveredPdus() throws Exception {
+        List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>();
+        for (int i = 0; i < 3; i++) {
+            pdus.add(createPdu(i));
+        }
+        pdus.get(2).setAgentId(-1);
+        doThrow(new IllegalStateException("Agent is gone")).when(_peerManager).OnReceiveClusterServicePdu(argThat(new ArgumentMatcher<ClusterServicePdu>() {
+            @Override
+            public boolean matches(Object argument) {
+                return ((ClusterServicePdu)argument).getAgentId() == -1;
+            }
+        }));
+
+        assertEquals(2, _peerService.execute(pdus));
+        assertEquals(2, _receivedCount.get());
+    }
+
+    @Test(expected = UnknownClusterMethodException.class)
+    public void testUnknownMethodIsReported() throws Exception {
+        // a peer without batch support does not recognize the batch method
+        _container.stop();
+        _container = new ClusterServiceServletContainer();
+        _container.start(new ClusterServiceServletHttpHandler(_peerManager) {
+            @Override
+            protected void handleRequest(HttpRequest request, HttpResponse response) {
+                request.getParams().setParameter("method", "99");
+                super.handleRequest(request, response);
+            }
+        }, _port);
+
+        List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>();
+        pdus.add(createPdu(0));
+        _peerService.execute(pdus);
+    }
+
+    @Test
+    public void testTransportFailureResendsOnlyUndeliveredTail() throws Exception {
+        List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>();
+        for (int i = 0; i < 4; i++) {
+            pdus.add(createPdu(i));
+        }
+
+        // the peer takes the first two PDUs, then the connection drops
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        final ClusterService peerService = mock(ClusterService.class);
+        when(peerService.execute(anyListOf(ClusterServicePdu.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                List<?> batch = (List<?>)invocation.getArguments()[0];
+                batchSizes.add(batch.size());
+                if (batchSizes.size() == 1) {
+                    return 2;
+                }
+                if (batchSizes.size() == 2) {
+                    throw new RemoteException("Connection reset");
+                }
+                return batch.size();
+            }
+        });
+
+        ClusterServicePduQueue queue = new ClusterServicePduQueue("2");
+        createClusterManager(peerService).sendClusterPdus(queue, pdus);
+
+        // the first attempt delivers 2 of 4, the retry of the tail hits a transport failure and is not re-sent singly
+        assertEquals(2, batchSizes.size());
+        assertEquals(4, batchSizes.get(0).intValue());
+        assertEquals(2, batchSizes.get(1).intValue());
+        verify(peerService, never()).execute(any(ClusterServicePdu.class));
+        assertEquals(2, queue.getSentPdus());
+        assertEquals(2, queue.getFailedPdus());
+    }
+
+    @Test
+    public void testIndividualSendsStopAtUndeliveredPdu() throws Exception {
+        List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>();
+        for (int i = 0; i < 3; i++) {
+            pdus.add(createPdu(i));
+        }
+
+        // peer without batch support that keeps rejecting the second PDU
+        final ClusterService peerService = mock(ClusterService.class);
+        when(peerService.execute(anyListOf(ClusterServicePdu.class))).thenThrow(new UnknownClusterMethodException("Unknown method"));
+        when(peerService.execute(pdus.get(0))).thenReturn("true");
+        when(peerService.execute(pdus.get(1))).thenReturn(null);
+        when(peerService.execute(pdus.get(2))).thenReturn("true");
+
+        ClusterServicePduQueue queue = new ClusterServicePduQueue("2");
+        createClusterManager(peerService).sendClusterPdus(queue, pdus);
+
+        verify(peerService, times(1)).execute(pdus.get(0));
+        verify(peerService, times(2)).execute(pdus.get(1));
+        verify(peerService, never()).execute(pdus.get(2));
+        assertEquals(1, queue.getSentPdus());
+        assertEquals(2, queue.getFailedPdus());
+    }
+
+    private ClusterManagerImpl createClusterManager(final ClusterService peerService) {
+        return new ClusterManagerImpl() {
+            @Override
+            public ClusterService getPeerService(String strPeer) {
+                return peerService;
+            }
+        };
+    }
+
+    private ClusterServicePdu createPdu(int index) {
+        ClusterServicePdu pdu = new ClusterServicePdu();
+        pdu.setSourcePeer("1");
+        pdu.setDestPeer("2");
+        pdu.setAgentId(index);
+        pdu.setStopOnError(index % 2 == 0);
+        pdu.setJsonPackage("[{\"com.cloud.agent.api.CheckHealthCommand\":{\"wait\":" + index + "}}]");
+        return pdu;
+    }
+
+    private static int findFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
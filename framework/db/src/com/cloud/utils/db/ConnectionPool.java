@@ -0,0 +1,699 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Connection pool used by Transaction instead of commons-dbcp.
+ *
+ * Borrowing takes a permit from a fair semaphore, so waiting threads are served in order and
+ * never spin on the pool lock, and then the most recently returned connection, which is the
+ * most likely to still be alive. Idle connections are only validated on borrow when they sat
+ * in the pool for a while. The time spent waiting for and holding connections is recorded in
+ * histograms that are exposed over JMX together with the owners of the active connections,
+ * and a connection held longer than the leak detection threshold is reported once with the
+ * transaction that holds it and the stack that borrowed it.
+ */
+public class ConnectionPool implements DataSource, ConnectionPoolMBean {
+    private static final Logger s_logger = Logger.getLogger(ConnectionPool.class);
+
+    // idle connections returned more recently than this are not validated again
+    private static final long VALIDATION_SKIP_MILLIS = 500;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final long[] HISTOGRAM_BOUNDS_MILLIS = {1, 5, 10, 50, 100, 500, 1000, 5000, 10000, 60000};
+
+    private final String _name;
+    private final String _url;
+    private final Properties _connectionProps = new Properties();
+    private final int _maxActive;
+    private int _maxIdle;
+    private long _maxWait = -1;
+    private String _validationQuery;
+    private boolean _testOnBorrow = true;
+    private int _isolationLevel = -1;
+    private boolean _defaultAutoCommit;
+    private long _minEvictableIdleMillis = 30 * 60 * 1000L;
+    private long _leakDetectionThreshold;
+
+    private final Semaphore _permits;
+    private final LinkedBlockingDeque<PooledConnection> _idle = new LinkedBlockingDeque<PooledConnection>();
+    private final Set<PooledConnection> _active = Collections.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+    private final AtomicInteger _waiting = new AtomicInteger();
+    private final AtomicLong _created = new AtomicLong();
+    private final AtomicLong _destroyed = new AtomicLong();
+    private final AtomicLong _timeouts = new AtomicLong();
+    private final AtomicLong _leaks = new AtomicLong();
+    private final Histogram _waitTimes = new Histogram();
+    private final Histogram _usageTimes = new Histogram();
+    private volatile boolean _closed;
+    private PrintWriter _logWriter;
+    private ScheduledExecutorService _housekeeper;
+
+    public ConnectionPool(String name, String url, String username, String password, int maxActive) {
+        _name = name;
+        _url = url;
+        if (username != null) {
+            _connectionProps.setProperty("user", username);
+        }
+        if (password != null) {
+            _connectionProps.setProperty("password", password);
+        }
+        _maxActive = maxActive;
+        _maxIdle = maxActive;
+        _permits = new Semaphore(maxActive, true);
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        _maxIdle = maxIdle;
+    }
+
+    /**
+     * @param maxWait milliseconds to wait for a connection, 0 or less to wait forever
+     */
+    public void setMaxWait(long maxWait) {
+        _maxWait = maxWait;
+    }
+
+    public void setValidationQuery(String validationQuery) {
+        _validationQuery = validationQuery;
+    }
+
+    public void setTestOnBorrow(boolean testOnBorrow) {
+        _testOnBorrow = testOnBorrow;
+    }
+
+    public void setIsolationLevel(int isolationLevel) {
+        _isolationLevel = isolationLevel;
+    }
+
+    public void setDefaultAutoCommit(boolean defaultAutoCommit) {
+        _defaultAutoCommit = defaultAutoCommit;
+    }
+
+    public void setMinEvictableIdleMillis(long minEvictableIdleMillis) {
+        _minEvictableIdleMillis = minEvictableIdleMillis;
+    }
+
+    /**
+     * @param leakDetectionThreshold milliseconds a connection may be held before it is reported, 0 disables it
+     */
+    public void setLeakDetectionThreshold(long leakDetectionThreshold) {
+        _leakDetectionThreshold = leakDetectionThreshold;
+    }
+
+    /**
+     * Starts evicting idle connections and looking for leaks every period milliseconds. The
+     * housekeeping runs in a daemon thread, so it does not keep tools using the pool alive.
+     */
+    public synchronized void startHousekeeping(long period) {
+        if (period > 0 && _housekeeper == null && !_closed) {
+            _housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ConnectionPoolHousekeeper-" + _name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            _housekeeper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        housekeep();
+                    } catch (Throwable th) {
+                        s_logger.warn("Unable to clean up connection pool " + _name, th);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (_closed) {
+            throw new SQLException("Connection pool " + _name + " is closed");
+        }
+
+        long start = System.nanoTime();
+        _waiting.incrementAndGet();
+        try {
+            if (_maxWait > 0) {
+                if (!_permits.tryAcquire(_maxWait, TimeUnit.MILLISECONDS)) {
+                    _timeouts.incrementAndGet();
+                    _waitTimes.record(System.nanoTime() - start);
+                    throw new SQLException("Timed out after " + _maxWait + " ms waiting for a connection of pool " + _name + ": " + getActiveConnections()
+                            + " active, " + getWaitingThreads() + " waiting");
+                }
+            } else {
+                _permits.acquire();
+            }
+        } catch (InterruptedException e) {
+            throw new SQLException("Interrupted while waiting for a connection of pool " + _name);
+        } finally {
+            _waiting.decrementAndGet();
+        }
+
+        boolean borrowed = false;
+        PooledConnection pc = null;
+        try {
+            while ((pc = _idle.pollFirst()) != null) {
+                if (isUsable(pc)) {
+                    break;
+                }
+                destroy(pc);
+            }
+            if (pc == null) {
+                pc = create();
+            }
+            if (pc._conn.getAutoCommit() != _defaultAutoCommit) {
+                pc._conn.setAutoCommit(_defaultAutoCommit);
+            }
+            pc.borrow(_leakDetectionThreshold > 0);
+            _active.add(pc);
+            _waitTimes.record(System.nanoTime() - start);
+            borrowed = true;
+            return pc._proxy;
+        } finally {
+            if (!borrowed) {
+                if (pc != null) {
+                    destroy(pc);
+                }
+                _permits.release();
+            }
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Connection pool " + _name + " only hands out connections of its own user");
+    }
+
+    private PooledConnection create() throws SQLException {
+        Connection conn = DriverManager.getConnection(_url, _connectionProps);
+        try {
+            if (_isolationLevel >= 0) {
+                conn.setTransactionIsolation(_isolationLevel);
+            }
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        _created.incrementAndGet();
+        return new PooledConnection(conn);
+    }
+
+    private boolean isUsable(PooledConnection pc) {
+        if (!_testOnBorrow || System.currentTimeMillis() - pc._returnedAt < VALIDATION_SKIP_MILLIS) {
+            return true;
+        }
+        return validate(pc._conn);
+    }
+
+    private boolean validate(Connection conn) {
+        try {
+            if (_validationQuery == null) {
+                return conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+            }
+            Statement stmt = conn.createStatement();
+            try {
+                stmt.setQueryTimeout(VALIDATION_TIMEOUT_SECONDS);
+                stmt.execute(_validationQuery);
+            } finally {
+                stmt.close();
+            }
+            return true;
+        } catch (SQLException e) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Dropping a broken connection of pool " + _name + ": " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pc) {
+        _usageTimes.record(System.nanoTime() - pc._borrowedNanos);
+        _active.remove(pc);
+        try {
+            boolean reuse = !pc._broken && !_closed;
+            if (reuse) {
+                try {
+                    pc.closeStatements();
+                    if (!pc._conn.getAutoCommit()) {
+                        pc._conn.rollback();
+                    }
+                    pc._conn.clearWarnings();
+                    if (_isolationLevel >= 0 && pc._conn.getTransactionIsolation() != _isolationLevel) {
+                        pc._conn.setTransactionIsolation(_isolationLevel);
+                    }
+                    reuse = !pc._conn.isClosed();
+                } catch (SQLException e) {
+                    reuse = false;
+                }
+            }
+            if (reuse && _idle.size() < _maxIdle) {
+                pc._returnedAt = System.currentTimeMillis();
+                _idle.offerFirst(pc);
+            } else {
+                destroy(pc);
+            }
+        } finally {
+            _permits.release();
+        }
+    }
+
+    private void destroy(PooledConnection pc) {
+        _destroyed.incrementAndGet();
+        try {
+            pc._conn.close();
+        } catch (SQLException e) {
+            s_logger.debug("Unable to close a connection of pool " + _name + ": " + e.getMessage());
+        }
+    }
+
+    protected void housekeep() {
+        long now = System.currentTimeMillis();
+        // the least recently used connections are at the end of the deque
+        for (Iterator<PooledConnection> it = _idle.descendingIterator(); it.hasNext();) {
+            PooledConnection pc = it.next();
+            if (_minEvictableIdleMillis > 0 && now - pc._returnedAt > _minEvictableIdleMillis && _idle.removeLastOccurrence(pc)) {
+                destroy(pc);
+            }
+        }
+
+        if (_leakDetectionThreshold > 0) {
+            for (PooledConnection pc : _active) {
+                if (!pc._leakReported && now - pc._borrowedAt > _leakDetectionThreshold) {
+                    pc._leakReported = true;
+                    _leaks.incrementAndGet();
+                    s_logger.warn("Connection of pool " + _name + " held for " + (now - pc._borrowedAt) + " ms, possible leak by " + pc.getOwner(), pc._borrowStack);
+                }
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            _closed = true;
+            if (_housekeeper != null) {
+                _housekeeper.shutdownNow();
+                _housekeeper = null;
+            }
+        }
+        PooledConnection pc;
+        while ((pc = _idle.pollFirst()) != null) {
+            destroy(pc);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public int getMaxActive() {
+        return _maxActive;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return _active.size();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return _idle.size();
+    }
+
+    @Override
+    public int getWaitingThreads() {
+        return _waiting.get();
+    }
+
+    @Override
+    public long getCreatedConnections() {
+        return _created.get();
+    }
+
+    @Override
+    public long getDestroyedConnections() {
+        return _destroyed.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return _timeouts.get();
+    }
+
+    @Override
+    public long getLeaks() {
+        return _leaks.get();
+    }
+
+    @Override
+    public long getLeakDetectionThreshold() {
+        return _leakDetectionThreshold;
+    }
+
+    @Override
+    public String[] getWaitTimeHistogram() {
+        return _waitTimes.toStrings();
+    }
+
+    @Override
+    public String[] getUsageTimeHistogram() {
+        return _usageTimes.toStrings();
+    }
+
+    @Override
+    public List<String> getActiveConnectionOwners() {
+        long now = System.currentTimeMillis();
+        List<String> owners = new ArrayList<String>();
+        for (PooledConnection pc : _active) {
+            owners.add((now - pc._borrowedAt) + " ms: " + pc.getOwner());
+        }
+        return owners;
+    }
+
+    @Override
+    public void resetStatistics() {
+        _timeouts.set(0);
+        _leaks.set(0);
+        _waitTimes.reset();
+        _usageTimes.reset();
+    }
+
+    long[] getWaitTimeCounts() {
+        return _waitTimes.getCounts();
+    }
+
+    long[] getUsageTimeCounts() {
+        return _usageTimes.getCounts();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return _logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        _logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        DriverManager.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return DriverManager.getLoginTimeout();
+    }
+
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException(getClass().getName() + " does not wrap " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * A physical connection and the proxy handed out for it, closing the proxy returns the
+     * connection to the pool.
+     */
+    private class PooledConnection implements InvocationHandler {
+        final Connection _conn;
+        final Connection _proxy;
+        final List<Statement> _statements = new ArrayList<Statement>();
+        volatile long _borrowedAt;
+        long _borrowedNanos;
+        volatile long _returnedAt;
+        volatile Thread _ownerThread;
+        volatile Transaction _ownerTxn;
+        volatile Throwable _borrowStack;
+        volatile boolean _leakReported;
+        boolean _returned;
+        boolean _broken;
+
+        PooledConnection(Connection conn) {
+            _conn = conn;
+            _proxy = (Connection)Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[] {Connection.class}, this);
+        }
+
+        void borrow(boolean trackOwner) {
+            _returned = false;
+            _leakReported = false;
+            _borrowedAt = System.currentTimeMillis();
+            _borrowedNanos = System.nanoTime();
+            _ownerThread = Thread.currentThread();
+            _ownerTxn = null;
+            _borrowStack = null;
+            if (trackOwner) {
+                _borrowStack = new Exception("Connection borrowed here");
+                try {
+                    _ownerTxn = Transaction.peekTxn();
+                } catch (LinkageError e) {
+                    // pools created without the rest of the db layer, e.g. by tools
+                }
+            }
+        }
+
+        String getOwner() {
+            Thread thread = _ownerThread;
+            Transaction txn = _ownerTxn;
+            String owner = thread != null ? thread.getName() : "unknown thread";
+            if (txn != null) {
+                try {
+                    // the transaction belongs to another thread, its stack may change while we look at it
+                    owner += " in transaction " + txn.toString();
+                } catch (RuntimeException e) {
+                    owner += " in transaction " + txn.getName();
+                }
+            }
+            return owner;
+        }
+
+        void closeStatements() {
+            List<Statement> statements;
+            synchronized (_statements) {
+                statements = new ArrayList<Statement>(_statements);
+                _statements.clear();
+            }
+            for (Statement stmt : statements) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+
+        /**
+         * Marks the connection as broken on connection exceptions, which may be raised by the
+         * statements and result sets of the connection as well.
+         */
+        void checkBroken(Throwable cause) {
+            if (cause instanceof SQLException) {
+                String state = ((SQLException)cause).getSQLState();
+                if (state != null && state.startsWith("08")) {
+                    _broken = true;
+                }
+            }
+        }
+
+        Statement wrap(Class<?> type, Statement stmt) {
+            Class<?> iface = CallableStatement.class.isAssignableFrom(type) ? CallableStatement.class
+                    : PreparedStatement.class.isAssignableFrom(type) ? PreparedStatement.class : Statement.class;
+            Statement proxy = (Statement)Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[] {iface}, new PooledStatement(this, stmt));
+            synchronized (_statements) {
+                _statements.add(stmt);
+            }
+            return proxy;
+        }
+
+        void forget(Statement stmt) {
+            synchronized (_statements) {
+                // statements are mostly closed in the reverse order of their creation
+                int index = _statements.lastIndexOf(stmt);
+                if (index >= 0) {
+                    _statements.remove(index);
+                }
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                synchronized (this) {
+                    if (_returned) {
+                        return null;
+                    }
+                    _returned = true;
+                }
+                _ownerTxn = null;
+                _ownerThread = null;
+                _borrowStack = null;
+                release(this);
+                return null;
+            } else if (name.equals("isClosed")) {
+                return _returned || _conn.isClosed();
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "pooled " + _conn.toString();
+            } else if (_returned) {
+                throw new SQLException("Connection has been returned to pool " + _name);
+            }
+
+            try {
+                Object result = method.invoke(_conn, args);
+                if (result instanceof Statement) {
+                    return wrap(method.getReturnType(), (Statement)result);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                // connection exceptions, the connection can not be reused
+                checkBroken(e.getCause());
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * A statement of a pooled connection, forgotten by the connection once it is closed.
+     */
+    private static class PooledStatement implements InvocationHandler {
+        final PooledConnection _pc;
+        final Statement _stmt;
+        boolean _closed;
+
+        PooledStatement(PooledConnection pc, Statement stmt) {
+            _pc = pc;
+            _stmt = stmt;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getConnection")) {
+                return _pc._proxy;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "pooled " + _stmt.toString();
+            }
+
+            try {
+                Object result = method.invoke(_stmt, args);
+                if (name.equals("close") && !_closed) {
+                    _closed = true;
+                    _pc.forget(_stmt);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                _pc.checkBroken(e.getCause());
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Counts durations into buckets bounded by HISTOGRAM_BOUNDS_MILLIS.
+     */
+    static class Histogram {
+        private final AtomicLongArray _counts = new AtomicLongArray(HISTOGRAM_BOUNDS_MILLIS.length + 1);
+
+        void record(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int i = 0;
+            while (i < HISTOGRAM_BOUNDS_MILLIS.length && millis >= HISTOGRAM_BOUNDS_MILLIS[i]) {
+                i++;
+            }
+            _counts.incrementAndGet(i);
+        }
+
+        long[] getCounts() {
+            long[] counts = new long[_counts.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = _counts.get(i);
+            }
+            return counts;
+        }
+
+        void reset() {
+            for (int i = 0; i < _counts.length(); i++) {
+                _counts.set(i, 0);
+            }
+        }
+
+        String[] toStrings() {
+            String[] buckets = new String[_counts.length()];
+            for (int i = 0; i < buckets.length; i++) {
+                String bound = i < HISTOGRAM_BOUNDS_MILLIS.length ? "< " + HISTOGRAM_BOUNDS_MILLIS[i] + " ms" : ">= " + HISTOGRAM_BOUNDS_MILLIS[i - 1] + " ms";
+                buckets[i] = bound + ": " + _counts.get(i);
+            }
+            return buckets;
+        }
+    }
+}
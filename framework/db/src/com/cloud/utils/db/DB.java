@@ -56,4 +56,12 @@ public @interface DB {
      * the method is not surrounded with transaction code.
      */
     boolean txn() default true;
+
+    /**
+     * (Optional) Specifies that the method only reads,
+     * so the searches made within it may be served by
+     * the read replica of the database, if one is
+     * configured and keeps up with the primary.
+     */
+    boolean readOnly() default false;
 }
@@ -385,7 +385,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt = txn.prepareReadAutoCloseStatement(sql);
             int i = 0;
             if (clause != null) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
@@ -449,7 +449,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         final Transaction txn = Transaction.currentTxn();
         PreparedStatement pstmt = null;
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt = txn.prepareReadAutoCloseStatement(sql);
             int i = 0;
             if (clause != null) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
@@ -1846,7 +1846,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
         PreparedStatement pstmt = null;
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt = txn.prepareReadAutoCloseStatement(sql);
             int i = 0;
             if (clause != null) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
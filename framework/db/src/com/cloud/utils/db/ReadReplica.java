@@ -0,0 +1,246 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A read replica of the cloud database.
+ *
+ * Transaction sends the searches of read only scopes, see DB.readOnly(), here as long as the
+ * replica keeps up with the primary. The replication lag is checked at most every check interval,
+ * in the background so the thread that asks for a connection never waits for it and goes by the
+ * outcome of the last check; a replica that lags more than the allowed maximum, does not replicate
+ * or cannot be reached is skipped and the reads go to the primary until a later check finds it
+ * healthy again.
+ *
+ * The lag comes from SHOW SLAVE STATUS, which needs the REPLICATION CLIENT privilege for the
+ * database user of the replica.
+ */
+public class ReadReplica implements ReadReplicaMBean {
+    private static final Logger s_logger = Logger.getLogger(ReadReplica.class);
+
+    private static final String LAG_QUERY = "SHOW SLAVE STATUS";
+    private static final String LAG_COLUMN = "Seconds_Behind_Master";
+    private static final int LAG_QUERY_TIMEOUT_SECONDS = 10;
+
+    private final String _name;
+    private final DataSource _ds;
+    private final long _maxLagSeconds;
+    private final long _checkIntervalMillis;
+    private final Executor _checker;
+
+    private final AtomicBoolean _checking = new AtomicBoolean();
+    private volatile long _checkedAt;
+    private volatile boolean _checked;
+    private volatile boolean _checkFailureLogged;
+    private volatile boolean _stopped;
+    private volatile boolean _usable;
+    private volatile long _lagSeconds = -1;
+
+    private final AtomicLong _replicaReads = new AtomicLong();
+    private final AtomicLong _lagFallbacks = new AtomicLong();
+    private final AtomicLong _errorFallbacks = new AtomicLong();
+
+    public ReadReplica(final String name, DataSource ds, long maxLagSeconds, long checkIntervalMillis) {
+        this(name, ds, maxLagSeconds, checkIntervalMillis, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ReadReplicaChecker-" + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    ReadReplica(String name, DataSource ds, long maxLagSeconds, long checkIntervalMillis, Executor checker) {
+        _name = name;
+        _ds = ds;
+        _maxLagSeconds = maxLagSeconds;
+        _checkIntervalMillis = checkIntervalMillis;
+        _checker = checker;
+    }
+
+    /**
+     * @return a connection to the replica in auto commit mode, null if the read has to go to the primary.
+     */
+    public Connection getConnection() {
+        if (_stopped) {
+            return null;
+        }
+        checkIfDue();
+        if (!_usable) {
+            _lagFallbacks.incrementAndGet();
+            return null;
+        }
+
+        try {
+            Connection conn = _ds.getConnection();
+            conn.setAutoCommit(true);
+            _replicaReads.incrementAndGet();
+            return conn;
+        } catch (SQLException e) {
+            s_logger.warn("Unable to get a connection to read replica " + _name + ", reading from the primary: " + e.getMessage());
+            _usable = false;
+            _errorFallbacks.incrementAndGet();
+            return null;
+        }
+    }
+
+    private void checkIfDue() {
+        if (System.currentTimeMillis() - _checkedAt < _checkIntervalMillis || !_checking.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            _checker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    check();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            _checking.set(false);
+        }
+    }
+
+    void check() {
+        try {
+            boolean wasUsable = _usable;
+            boolean first = !_checked;
+            _usable = checkLag();
+            _checked = true;
+            if (_usable && !wasUsable) {
+                s_logger.info("Read replica " + _name + " is " + (first ? "in use" : "back in use") + ", lag " + _lagSeconds + "s");
+            } else if (!_usable && (wasUsable || first)) {
+                s_logger.warn("Not reading from read replica " + _name + ", lag " + (_lagSeconds < 0 ? "unknown" : _lagSeconds + "s"));
+            }
+        } catch (RuntimeException e) {
+            s_logger.warn("Unable to check the lag of read replica " + _name, e);
+            _usable = false;
+        } finally {
+            _checkedAt = System.currentTimeMillis();
+            _checking.set(false);
+        }
+    }
+
+    /**
+     * Stops the background lag checks, the replica is not used afterwards.
+     */
+    public void stop() {
+        _stopped = true;
+        _usable = false;
+        if (_checker instanceof ExecutorService) {
+            ((ExecutorService)_checker).shutdownNow();
+        }
+    }
+
+    protected boolean checkLag() {
+        try {
+            Connection conn = _ds.getConnection();
+            try {
+                Statement stmt = conn.createStatement();
+                try {
+                    stmt.setQueryTimeout(LAG_QUERY_TIMEOUT_SECONDS);
+                    ResultSet rs = stmt.executeQuery(LAG_QUERY);
+                    if (!rs.next()) {
+                        // not replicating from anywhere
+                        _lagSeconds = -1;
+                        return false;
+                    }
+                    long lag = rs.getLong(LAG_COLUMN);
+                    if (rs.wasNull()) {
+                        // replication is stopped or broken
+                        _lagSeconds = -1;
+                        return false;
+                    }
+                    _lagSeconds = lag;
+                    _checkFailureLogged = false;
+                    return lag <= _maxLagSeconds;
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            if (!_checkFailureLogged) {
+                s_logger.warn("Unable to check the lag of read replica " + _name + ", its database user needs the REPLICATION CLIENT privilege: " + e.getMessage());
+                _checkFailureLogged = true;
+            } else {
+                s_logger.debug("Unable to check the lag of read replica " + _name + ": " + e.getMessage());
+            }
+            _lagSeconds = -1;
+            return false;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public boolean isUsable() {
+        return _usable;
+    }
+
+    @Override
+    public long getMaxLagSeconds() {
+        return _maxLagSeconds;
+    }
+
+    @Override
+    public long getLagSeconds() {
+        return _lagSeconds;
+    }
+
+    @Override
+    public long getReplicaReads() {
+        return _replicaReads.get();
+    }
+
+    @Override
+    public long getLagFallbacks() {
+        return _lagFallbacks.get();
+    }
+
+    @Override
+    public long getErrorFallbacks() {
+        return _errorFallbacks.get();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _replicaReads.set(0);
+        _lagFallbacks.set(0);
+        _errorFallbacks.set(0);
+    }
+}
@@ -0,0 +1,73 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The read replica connection of a transaction. It is taken on the first search of a read only
+ * scope and kept by the nested scopes until Transaction closes it when the outermost one ends.
+ */
+class ReadReplicaConnection {
+    private static final Logger s_logger = Logger.getLogger(ReadReplicaConnection.class);
+    private static final Logger s_connLogger = Logger.getLogger(Transaction.class.getName() + "." + "Connection");
+
+    private Connection _conn;
+
+    /**
+     * @param replica the read replica, null if there is none
+     * @param readOnly whether the search runs in a read only scope
+     * @param primaryInUse whether the search runs in a DB transaction or while the primary connection is held
+     * @return the connection to read from, or null if the search has to go to the primary
+     */
+    Connection getConnection(ReadReplica replica, boolean readOnly, boolean primaryInUse) {
+        if (primaryInUse) {
+            // the replica may not have seen the changes made on the primary yet
+            return null;
+        }
+        if (_conn == null && replica != null && readOnly) {
+            _conn = replica.getConnection();
+            if (_conn != null && s_connLogger.isTraceEnabled()) {
+                s_connLogger.trace("Creating a read replica connection: dbconn" + System.identityHashCode(_conn));
+            }
+        }
+        return _conn;
+    }
+
+    boolean isOpen() {
+        return _conn != null;
+    }
+
+    void close() {
+        if (_conn == null) {
+            return;
+        }
+        try {
+            if (s_connLogger.isTraceEnabled()) {
+                s_connLogger.trace("Closing read replica connection: dbconn" + System.identityHashCode(_conn));
+            }
+            _conn.close();
+        } catch (final SQLException e) {
+            s_logger.warn("Unable to close read replica connection", e);
+        } finally {
+            _conn = null;
+        }
+    }
+}
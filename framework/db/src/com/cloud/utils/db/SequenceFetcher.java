@@ -19,8 +19,12 @@ package com.cloud.utils.db;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -40,11 +44,84 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
  * 
  * allocation size.
  *
+ * Locking the sequence row for every single value makes it one of the most
+ * contended rows under bursty deploys, so a sequence can be given a block
+ * size: the row is then advanced by a whole block at a time and the values of
+ * the block are handed out from memory (hi/lo). Values stay unique and
+ * increase within one management server, but servers interleave and the
+ * rest of a block is lost on restart. A block size of 1, the default, keeps
+ * a sequence strictly contiguous. Keyed sequences have a block per key; only
+ * the most recently used blocks are kept, the rest of an evicted block is
+ * lost as well.
+ *
  */
 public class SequenceFetcher {
     private final static Logger s_logger = Logger.getLogger(SequenceFetcher.class);
+    public final static String BlockSizeProperty = "db.cloud.sequence.blockSize";
+
     ExecutorService _executors;
     private final static Random random = new Random();
+
+    private volatile int _defaultBlockSize = 1;
+    private final Map<String, Integer> _blockSizes = new ConcurrentHashMap<String, Integer>();
+    static final int MAX_BLOCKS = 1024;
+    // blocks by sequence row, least recently used first
+    private final Map<String, Block> _blocks = new LinkedHashMap<String, Block>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Block> eldest) {
+            return size() > MAX_BLOCKS;
+        }
+    };
+
+    /**
+     * Values of a sequence reserved in the database but not handed out yet.
+     */
+    protected static class Block {
+        long next;
+        long end;
+    }
+
+    /**
+     * Reads the block sizes from the db properties: db.cloud.sequence.blockSize
+     * for all sequences and db.cloud.sequence.blockSize.<generator name> for a
+     * single one.
+     */
+    public void configure(Properties dbProps) {
+        for (String name : dbProps.stringPropertyNames()) {
+            if (name.equals(BlockSizeProperty)) {
+                _defaultBlockSize = parseBlockSize(name, dbProps.getProperty(name));
+            } else if (name.startsWith(BlockSizeProperty + ".")) {
+                setBlockSize(name.substring(BlockSizeProperty.length() + 1), parseBlockSize(name, dbProps.getProperty(name)));
+            }
+        }
+    }
+
+    public void setDefaultBlockSize(int blockSize) {
+        _defaultBlockSize = blockSize;
+    }
+
+    public void setBlockSize(String generatorName, int blockSize) {
+        _blockSizes.put(generatorName, blockSize);
+    }
+
+    public int getBlockSize(TableGenerator tg) {
+        Integer blockSize = _blockSizes.get(tg.name());
+        return blockSize != null ? blockSize : _defaultBlockSize;
+    }
+
+    private static int parseBlockSize(String name, String value) {
+        try {
+            int blockSize = Integer.parseInt(value.trim());
+            if (blockSize >= 1) {
+                return blockSize;
+            }
+        } catch (NumberFormatException e) {
+        }
+        s_logger.warn("Ignoring invalid sequence block size " + name + "=" + value);
+        return 1;
+    }
     
     public <T> T getNextSequence(Class<T> clazz, TableGenerator tg) {
         return getNextSequence(clazz, tg, null, false);
@@ -59,7 +136,61 @@ public class SequenceFetcher {
     }
     
     public <T> T getNextSequence(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom) {
-        Future<T> future = _executors.submit(new Fetcher<T>(clazz, tg, key, isRandom));
+        // randomly increasing sequences must not be predictable, they always go to the database
+        if (!isRandom && (clazz == Long.class || clazz == Integer.class)) {
+            int blockSize = getBlockSize(tg);
+            if (blockSize > 1) {
+                return getNextFromBlock(clazz, tg, key, blockSize);
+            }
+        }
+        return fetch(clazz, tg, key, isRandom, 1);
+    }
+
+    private <T> T getNextFromBlock(Class<T> clazz, TableGenerator tg, Object key, int blockSize) {
+        String name = tg.table() + "." + tg.valueColumnName() + ":" + (key == null ? tg.pkColumnValue() : key);
+        Block block;
+        synchronized (_blocks) {
+            block = _blocks.get(name);
+            if (block == null) {
+                block = new Block();
+                _blocks.put(name, block);
+            }
+        }
+
+        synchronized (block) {
+            if (block.next >= block.end) {
+                Long start = fetch(Long.class, tg, key, false, blockSize);
+                if (start == null) {
+                    return null;
+                }
+                block.next = start;
+                block.end = start + (long)blockSize * tg.allocationSize();
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Reserved " + name + " values " + block.next + " to " + block.end);
+                }
+            }
+            long value = block.next;
+            block.next += tg.allocationSize();
+            if (clazz == Integer.class) {
+                return clazz.cast(Integer.valueOf((int)value));
+            }
+            return clazz.cast(Long.valueOf(value));
+        }
+    }
+
+    int getBlockCount() {
+        synchronized (_blocks) {
+            return _blocks.size();
+        }
+    }
+
+    /**
+     * Advances the sequence in the database by blockSize values.
+     *
+     * @return the first value of the block, null if the sequence could not be read.
+     */
+    protected <T> T fetch(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom, int blockSize) {
+        Future<T> future = _executors.submit(new Fetcher<T>(clazz, tg, key, isRandom, blockSize));
         try {
             return future.get();
         } catch (Exception e) {
@@ -82,12 +213,14 @@ public class SequenceFetcher {
         Class<T> _clazz;
         Object _key;
         boolean isRandom = false;
+        int _blockSize;
         
-        protected Fetcher(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom) {
+        protected Fetcher(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom, int blockSize) {
             _tg = tg;
             _clazz = clazz;
             _key = key;
             this.isRandom = isRandom;
+            _blockSize = blockSize;
         }
         
         @Override @SuppressWarnings("unchecked")
@@ -115,7 +248,7 @@ public class SequenceFetcher {
                 if(isRandom){
                 	updateStmt.setInt(2, random.nextInt(10) + 1);
                 } else {
-                	updateStmt.setInt(2, _tg.allocationSize());
+                	updateStmt.setInt(2, _tg.allocationSize() * _blockSize);
                 }
                 if (_key == null) {
                     updateStmt.setString(3, _tg.pkColumnValue());
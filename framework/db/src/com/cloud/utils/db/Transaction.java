@@ -77,6 +77,7 @@ public class Transaction {
     private static final String CREATE_CONN = "create_conn";
     private static final String STATEMENT = "statement";
     private static final String ATTACHMENT = "attachment";
+    private static final String READ_ONLY = "read_only";
 
     public static final short CLOUD_DB = 0;
     public static final short USAGE_DB = 1;
@@ -108,6 +109,7 @@ public class Transaction {
 
     private String _name;
     private Connection _conn;
+    private final ReadReplicaConnection _replicaConn = new ReadReplicaConnection();
     private boolean _txn;
     private short _dbId;
     private long _txnTime;
@@ -124,6 +126,13 @@ public class Transaction {
         return txn;
     }
 
+    /**
+     * @return the transaction of the current thread, null if there is none.
+     */
+    static Transaction peekTxn() {
+        return tls.get();
+    }
+
     public static Transaction open(final short databaseId) {
         String name = buildName();
         if (name == null) {
@@ -381,6 +390,19 @@ public class Transaction {
         _stack.push(new StackElement(CURRENT_TXN, name));
     }
 
+    /**
+     * Lets the searches up to the next close() read from the read replica, if there is one.
+     * Searches still go to the primary within a DB transaction or while the primary connection
+     * is held, the replica may not have seen the changes made there yet.
+     */
+    public void markReadOnly() {
+        _stack.push(new StackElement(READ_ONLY, null));
+    }
+
+    public boolean isReadOnly() {
+        return peekInStack(READ_ONLY) != null;
+    }
+
     public boolean lock(final String name, final int timeoutSeconds) {
         Merovingian2 lockMaster = Merovingian2.getLockMaster();
         if (lockMaster == null) {
@@ -463,6 +485,27 @@ public class Transaction {
         return stmt;
     }
 
+    /**
+     * Prepares an auto close statement for a query, on the read replica when the query
+     * runs in a read only scope.
+     *
+     * @param sql sql String
+     * @return PreparedStatement
+     * @throws SQLException if problem with JDBC layer.
+     *
+     * @see #markReadOnly()
+     */
+    public PreparedStatement prepareReadAutoCloseStatement(final String sql) throws SQLException {
+        final Connection conn = getReadConnection();
+        final PreparedStatement pstmt = conn.prepareStatement(sql);
+        if (s_stmtLogger.isTraceEnabled()) {
+            s_stmtLogger.trace("Preparing: " + sql);
+        }
+        closePreviousStatement();
+        _stmt = pstmt;
+        return pstmt;
+    }
+
     public PreparedStatement prepareStatement(final String sql) throws SQLException {
         final Connection conn = getConnection();
         final PreparedStatement pstmt = conn.prepareStatement(sql);
@@ -606,6 +649,24 @@ public class Transaction {
         return _conn;
     }
 
+    protected Connection getReadConnection() throws SQLException {
+        if (_dbId == CLOUD_DB) {
+            final Connection conn = _replicaConn.getConnection(s_replica, isReadOnly(), _txn || _conn != null);
+            if (conn != null) {
+                return conn;
+            }
+        }
+        return getConnection();
+    }
+
+    protected void closeReplicaConnection() {
+        if (!_replicaConn.isOpen()) {
+            return;
+        }
+        closePreviousStatement();
+        _replicaConn.close();
+    }
+
     protected boolean takeOver(final String name, final boolean create) {
         if (_stack.size() != 0) {
             if (!create) {
@@ -651,6 +712,7 @@ public class Transaction {
         _name = null;
 
         closeConnection();
+        closeReplicaConnection();
 
         _stack.clear();
         Merovingian2 lockMaster = Merovingian2.getLockMaster();
@@ -823,6 +885,10 @@ public class Transaction {
                     } catch (final SQLException e) {
                         s_stmtLogger.trace("Unable to close statement: " + item);
                     }
+                } else if (item.type == READ_ONLY) {
+                    if (peekInStack(READ_ONLY) == null) {
+                        closeReplicaConnection();
+                    }
                 } else if (item.type == ATTACHMENT) {
                     TransactionAttachment att = (TransactionAttachment)item.ref;
                     if (s_logger.isTraceEnabled()) {
@@ -1006,10 +1072,14 @@ public class Transaction {
         }
     }
 
+    private static final long DEFAULT_MIN_EVICTABLE_IDLE_MILLIS = 30 * 60 * 1000L;
+    private static final long DEFAULT_HOUSEKEEPING_MILLIS = 30 * 1000L;
+
     private static DataSource s_ds;
     private static DataSource s_usageDS;
     private static DataSource s_awsapiDS;
     private static DataSource s_simulatorDS;
+    private static ReadReplica s_replica;
 
     static {
         // Initialize with assumed db.properties file
@@ -1085,19 +1155,42 @@ public class Transaction {
             } else {
             	s_region_id = Integer.parseInt(regionId);
             }
-            final GenericObjectPool cloudConnectionPool = new GenericObjectPool(null, cloudMaxActive, GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION,
-                    cloudMaxWait, cloudMaxIdle, cloudTestOnBorrow, false, cloudTimeBtwEvictionRunsMillis, 1, cloudMinEvcitableIdleTimeMillis, cloudTestWhileIdle);
-
-            final ConnectionFactory cloudConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://" + cloudHost + ":" + cloudPort + "/" + cloudDbName +
-                    "?autoReconnect=" + cloudAutoReconnect + (url != null ? "&" + url : "") + (useSSL ? "&useSSL=true" : ""), cloudUsername, cloudPassword);
-
-            final KeyedObjectPoolFactory poolableObjFactory = (cloudPoolPreparedStatements ? new StackKeyedObjectPoolFactory() : null);
-
-            final PoolableConnectionFactory cloudPoolableConnectionFactory = new PoolableConnectionFactory(cloudConnectionFactory, cloudConnectionPool, poolableObjFactory,
-                    cloudValidationQuery, false, false, isolationLevel);
+            SequenceFetcher.getInstance().configure(dbProps);
 
             // Default Data Source for CloudStack
-            s_ds = new PoolingDataSource(cloudPoolableConnectionFactory.getPool());
+            s_ds = createDataSource("cloud", dbProps, "jdbc:mysql://" + cloudHost + ":" + cloudPort + "/" + cloudDbName + "?autoReconnect=" + cloudAutoReconnect +
+                    (url != null ? "&" + url : "") + (useSSL ? "&useSSL=true" : ""), cloudUsername, cloudPassword, cloudMaxActive, cloudMaxIdle, cloudMaxWait,
+                    cloudValidationQuery, cloudTestOnBorrow, cloudTestWhileIdle, cloudTimeBtwEvictionRunsMillis, cloudMinEvcitableIdleTimeMillis,
+                    cloudPoolPreparedStatements, isolationLevel);
+
+            // Optional read replica of the cloud db for read only scopes, the pool settings default to the ones of the cloud db
+            final String replicaHost = dbProps.getProperty("db.cloud.replica.host");
+            if (replicaHost != null && !replicaHost.trim().isEmpty()) {
+                final int replicaPort = Integer.parseInt(dbProps.getProperty("db.cloud.replica.port", Integer.toString(cloudPort)));
+                final int replicaMaxActive = Integer.parseInt(dbProps.getProperty("db.cloud.replica.maxActive", Integer.toString(cloudMaxActive)));
+                final int replicaMaxIdle = Integer.parseInt(dbProps.getProperty("db.cloud.replica.maxIdle", Integer.toString(cloudMaxIdle)));
+                final long replicaMaxLag = Long.parseLong(dbProps.getProperty("db.cloud.replica.maxLagSeconds", "5"));
+                final long replicaCheckInterval = Long.parseLong(dbProps.getProperty("db.cloud.replica.lagCheckIntervalMillis", "5000"));
+                final DataSource replicaDS = createDataSource("cloud_replica", dbProps, "jdbc:mysql://" + replicaHost.trim() + ":" + replicaPort + "/" + cloudDbName +
+                        "?autoReconnect=" + cloudAutoReconnect + (url != null ? "&" + url : "") + (useSSL ? "&useSSL=true" : ""),
+                        dbProps.getProperty("db.cloud.replica.username", cloudUsername), dbProps.getProperty("db.cloud.replica.password", cloudPassword),
+                        replicaMaxActive, replicaMaxIdle, cloudMaxWait, cloudValidationQuery, cloudTestOnBorrow, cloudTestWhileIdle, cloudTimeBtwEvictionRunsMillis,
+                        cloudMinEvcitableIdleTimeMillis, cloudPoolPreparedStatements, isolationLevel);
+                final ReadReplica replica = new ReadReplica("cloud_replica", replicaDS, replicaMaxLag, replicaCheckInterval);
+                try {
+                    JmxUtil.registerMBean("ReadReplica", "cloud_replica", replica);
+                } catch (Exception e) {
+                    s_logger.warn("Unable to register mbean for read replica", e);
+                }
+                if (s_replica != null) {
+                    s_replica.stop();
+                }
+                s_replica = replica;
+                s_logger.info("Read only scopes use the read replica at " + replicaHost.trim() + ":" + replicaPort + ", maximum lag " + replicaMaxLag + "s");
+            } else if (s_replica != null) {
+                s_replica.stop();
+                s_replica = null;
+            }
 
             // Configure the usage db
             final int usageMaxActive = Integer.parseInt(dbProps.getProperty("db.usage.maxActive"));
@@ -1111,29 +1204,17 @@ public class Transaction {
             final boolean usageAutoReconnect = Boolean.parseBoolean(dbProps.getProperty("db.usage.autoReconnect"));
             final String usageUrl = dbProps.getProperty("db.usage.url.params");
 
-            final GenericObjectPool usageConnectionPool = new GenericObjectPool(null, usageMaxActive, GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION,
-                    usageMaxWait, usageMaxIdle);
-
-            final ConnectionFactory usageConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://" + usageHost + ":" + usagePort + "/" + usageDbName +
-                    "?autoReconnect=" + usageAutoReconnect + (usageUrl != null ? "&" + usageUrl : ""), usageUsername, usagePassword);
-
-            final PoolableConnectionFactory usagePoolableConnectionFactory = new PoolableConnectionFactory(usageConnectionFactory, usageConnectionPool,
-                    new StackKeyedObjectPoolFactory(), null, false, false);
-
             // Data Source for usage server
-            s_usageDS = new PoolingDataSource(usagePoolableConnectionFactory.getPool());
+            s_usageDS = createDataSource("usage", dbProps, "jdbc:mysql://" + usageHost + ":" + usagePort + "/" + usageDbName + "?autoReconnect=" + usageAutoReconnect +
+                    (usageUrl != null ? "&" + usageUrl : ""), usageUsername, usagePassword, usageMaxActive, usageMaxIdle, usageMaxWait, null, false, false, -1,
+                    DEFAULT_MIN_EVICTABLE_IDLE_MILLIS, true, null);
 
             // Configure awsapi db
             final String awsapiDbName = dbProps.getProperty("db.awsapi.name");
-            final GenericObjectPool awsapiConnectionPool = new GenericObjectPool(null, usageMaxActive, GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION,
-                    usageMaxWait, usageMaxIdle);
-            final ConnectionFactory awsapiConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://" + cloudHost + ":" + cloudPort + "/" + awsapiDbName +
-                    "?autoReconnect=" + usageAutoReconnect, cloudUsername, cloudPassword);
-            final PoolableConnectionFactory awsapiPoolableConnectionFactory = new PoolableConnectionFactory(awsapiConnectionFactory, awsapiConnectionPool,
-                    new StackKeyedObjectPoolFactory(), null, false, false);
 
             // Data Source for awsapi
-            s_awsapiDS = new PoolingDataSource(awsapiPoolableConnectionFactory.getPool());
+            s_awsapiDS = createDataSource("awsapi", dbProps, "jdbc:mysql://" + cloudHost + ":" + cloudPort + "/" + awsapiDbName + "?autoReconnect=" + usageAutoReconnect,
+                    cloudUsername, cloudPassword, usageMaxActive, usageMaxIdle, usageMaxWait, null, false, false, -1, DEFAULT_MIN_EVICTABLE_IDLE_MILLIS, true, null);
 
             try {
                 // Configure the simulator db
@@ -1147,15 +1228,9 @@ public class Transaction {
                 final String simulatorDbName = dbProps.getProperty("db.simulator.name");
                 final boolean simulatorAutoReconnect = Boolean.parseBoolean(dbProps.getProperty("db.simulator.autoReconnect"));
 
-                final GenericObjectPool simulatorConnectionPool = new GenericObjectPool(null, simulatorMaxActive, GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION,
-                        simulatorMaxWait, simulatorMaxIdle);
-
-                final ConnectionFactory simulatorConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://" + simulatorHost + ":" + simulatorPort + "/" + simulatorDbName +
-                        "?autoReconnect=" + simulatorAutoReconnect, simulatorUsername, simulatorPassword);
-
-                final PoolableConnectionFactory simulatorPoolableConnectionFactory = new PoolableConnectionFactory(simulatorConnectionFactory, simulatorConnectionPool,
-                        new StackKeyedObjectPoolFactory(), null, false, false);
-                s_simulatorDS = new PoolingDataSource(simulatorPoolableConnectionFactory.getPool());
+                s_simulatorDS = createDataSource("simulator", dbProps, "jdbc:mysql://" + simulatorHost + ":" + simulatorPort + "/" + simulatorDbName + "?autoReconnect=" +
+                        simulatorAutoReconnect, simulatorUsername, simulatorPassword, simulatorMaxActive, simulatorMaxIdle, simulatorMaxWait, null, false, false, -1,
+                        DEFAULT_MIN_EVICTABLE_IDLE_MILLIS, true, null);
             } catch (Exception e) {
                 s_logger.debug("Simulator DB properties are not available. Not initializing simulator DS");
             }
@@ -1167,6 +1242,72 @@ public class Transaction {
         }
     }
 
+    /**
+     * Creates the pool of connections to a database. db.<name>.pool.type selects the pool, builtin
+     * (the default) for ConnectionPool or dbcp for commons-dbcp.
+     */
+    private static DataSource createDataSource(final String name, final Properties dbProps, String url, final String username, final String password,
+            final int maxActive, final int maxIdle, final long maxWait, final String validationQuery, final boolean testOnBorrow, final boolean testWhileIdle,
+            final long timeBtwEvictionRunsMillis, final long minEvictableIdleTimeMillis, final boolean poolPreparedStatements, final Integer isolationLevel) {
+        final String type = dbProps.getProperty("db." + name + ".pool.type", "builtin");
+        if (type.equalsIgnoreCase("dbcp")) {
+            final GenericObjectPool connectionPool = new GenericObjectPool(null, maxActive, GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION, maxWait, maxIdle,
+                    testOnBorrow, false, timeBtwEvictionRunsMillis, 1, minEvictableIdleTimeMillis, testWhileIdle);
+            final ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(url, username, password);
+            final KeyedObjectPoolFactory poolableObjFactory = (poolPreparedStatements ? new StackKeyedObjectPoolFactory() : null);
+            final PoolableConnectionFactory poolableConnectionFactory;
+            if (isolationLevel != null) {
+                poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory, connectionPool, poolableObjFactory, validationQuery, false, false,
+                        isolationLevel);
+            } else {
+                poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory, connectionPool, poolableObjFactory, validationQuery, false, false);
+            }
+            return new PoolingDataSource(poolableConnectionFactory.getPool());
+        } else if (!type.equalsIgnoreCase("builtin")) {
+            s_logger.warn("Unknown connection pool type " + type + " for database " + name + ", using the builtin pool");
+        }
+
+        // pooled statements are cached by the driver, they stay client side prepared statements as with dbcp
+        if (poolPreparedStatements && !url.contains("cachePrepStmts=")) {
+            url += (url.contains("?") ? "&" : "?") + "cachePrepStmts=true";
+        }
+        final ConnectionPool pool = new ConnectionPool(name, url, username, password, maxActive);
+        pool.setMaxIdle(maxIdle);
+        pool.setMaxWait(maxWait);
+        pool.setValidationQuery(validationQuery);
+        pool.setTestOnBorrow(testOnBorrow);
+        if (isolationLevel != null) {
+            pool.setIsolationLevel(isolationLevel);
+        }
+        pool.setMinEvictableIdleMillis(minEvictableIdleTimeMillis);
+        long leakDetectionThreshold = Long.parseLong(dbProps.getProperty("db." + name + ".leakDetectionThreshold", "0"));
+        pool.setLeakDetectionThreshold(leakDetectionThreshold);
+        // like dbcp, idle connections are only evicted with an eviction period, leaks need the housekeeping as well
+        if (timeBtwEvictionRunsMillis > 0) {
+            pool.startHousekeeping(timeBtwEvictionRunsMillis);
+        } else if (leakDetectionThreshold > 0) {
+            pool.setMinEvictableIdleMillis(0);
+            pool.startHousekeeping(DEFAULT_HOUSEKEEPING_MILLIS);
+        }
+        try {
+            JmxUtil.registerMBean("ConnectionPool", name, pool);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register mbean for connection pool " + name, e);
+        }
+        return pool;
+    }
+
+    /**
+     * Replaces the read replica, e.g. by tests.
+     *
+     * @return the previous read replica
+     */
+    static ReadReplica setReadReplica(ReadReplica replica) {
+        ReadReplica previous = s_replica;
+        s_replica = replica;
+        return previous;
+    }
+
     private static DataSource getDefaultDataSource(final String database) {
         final GenericObjectPool connectionPool = new GenericObjectPool(null, 5);
         final ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(
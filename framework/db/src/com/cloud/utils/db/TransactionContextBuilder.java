@@ -46,7 +46,12 @@ public class TransactionContextBuilder implements ComponentMethodInterceptor {
 
 	@Override
     public Object interceptStart(Method method, Object target) {
-    	return Transaction.open(method.getName());
+    	Transaction txn = Transaction.open(method.getName());
+    	DB db = method.getAnnotation(DB.class);
+    	if (db != null && db.readOnly()) {
+    		txn.markReadOnly();
+    	}
+    	return txn;
     }
     
 	@Override
@@ -0,0 +1,408 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+    private static final String URL = "jdbc:poolfake:test";
+
+    /**
+     * Hands out mocked connections and counts them.
+     */
+    static class FakeDriver implements Driver {
+        static final AtomicInteger s_connects = new AtomicInteger();
+        static final List<Connection> s_connections = new ArrayList<Connection>();
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            s_connects.incrementAndGet();
+            Connection conn = mock(Connection.class);
+            Statement stmt = mock(Statement.class);
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.next()).thenReturn(true);
+            when(stmt.executeQuery(anyString())).thenReturn(rs);
+            when(conn.createStatement()).thenReturn(stmt);
+            when(conn.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+            synchronized (s_connections) {
+                s_connections.add(conn);
+            }
+            return conn;
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:poolfake:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        public Logger getParentLogger() {
+            return Logger.getLogger(FakeDriver.class.getName());
+        }
+    }
+
+    private ConnectionPool _pool;
+
+    @BeforeClass
+    public static void registerDriver() throws SQLException {
+        DriverManager.registerDriver(new FakeDriver());
+    }
+
+    @After
+    public void tearDown() {
+        if (_pool != null) {
+            _pool.close();
+        }
+    }
+
+    private ConnectionPool createPool(int maxActive) {
+        FakeDriver.s_connects.set(0);
+        FakeDriver.s_connections.clear();
+        _pool = new ConnectionPool("test", URL, "cloud", "cloud", maxActive);
+        _pool.setValidationQuery("SELECT 1");
+        return _pool;
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        createPool(5);
+        Connection first = _pool.getConnection();
+        first.close();
+        Connection second = _pool.getConnection();
+        second.close();
+
+        assertEquals(1, FakeDriver.s_connects.get());
+        assertEquals(1, _pool.getIdleConnections());
+        assertEquals(0, _pool.getActiveConnections());
+        // a connection that had been given back must not be usable any more
+        assertTrue(first.isClosed());
+        try {
+            first.createStatement();
+            fail("returned connection is still usable");
+        } catch (SQLException e) {
+            // expected
+        }
+        // closing twice does not return it twice
+        first.close();
+        assertEquals(1, _pool.getIdleConnections());
+    }
+
+    @Test
+    public void testStatementsAndTransactionsAreCleanedUp() throws Exception {
+        createPool(5);
+        Connection conn = _pool.getConnection();
+        conn.createStatement();
+        Connection physical = FakeDriver.s_connections.get(0);
+        Statement stmt = physical.createStatement();
+        when(physical.getAutoCommit()).thenReturn(false);
+        conn.close();
+
+        verify(stmt).close();
+        verify(physical).rollback();
+    }
+
+    @Test
+    public void testClosedStatementsAreForgotten() throws Exception {
+        createPool(5);
+        Connection conn = _pool.getConnection();
+        Connection physical = FakeDriver.s_connections.get(0);
+        PreparedStatement physicalStmt = mock(PreparedStatement.class);
+        when(physical.prepareStatement("SELECT 3")).thenReturn(physicalStmt);
+
+        PreparedStatement stmt = conn.prepareStatement("SELECT 3");
+        assertSame(conn, stmt.getConnection());
+        stmt.close();
+        conn.close();
+
+        // not closed again when the connection is returned
+        verify(physicalStmt, times(1)).close();
+    }
+
+    @Test
+    public void testBrokenStatementDropsConnection() throws Exception {
+        createPool(5);
+        Connection conn = _pool.getConnection();
+        Connection physical = FakeDriver.s_connections.get(0);
+        PreparedStatement physicalStmt = mock(PreparedStatement.class);
+        when(physicalStmt.executeQuery()).thenThrow(new SQLException("Communications link failure", "08S01"));
+        when(physical.prepareStatement("SELECT 4")).thenReturn(physicalStmt);
+
+        PreparedStatement stmt = conn.prepareStatement("SELECT 4");
+        try {
+            stmt.executeQuery();
+            fail("exception was not passed on");
+        } catch (SQLException e) {
+            assertEquals("08S01", e.getSQLState());
+        }
+        conn.close();
+
+        assertEquals(0, _pool.getIdleConnections());
+        assertEquals(1, _pool.getDestroyedConnections());
+    }
+
+    @Test
+    public void testHousekeeperDoesNotKeepTheJvmAlive() throws Exception {
+        createPool(5);
+        _pool.startHousekeeping(60000);
+        Thread housekeeper = findThread("ConnectionPoolHousekeeper-test");
+        assertNotNull(housekeeper);
+        assertTrue(housekeeper.isDaemon());
+
+        _pool.close();
+        housekeeper.join(5000);
+        assertFalse(housekeeper.isAlive());
+    }
+
+    @Test
+    public void testBrokenConnectionIsDropped() throws Exception {
+        createPool(5);
+        Connection conn = _pool.getConnection();
+        Connection physical = FakeDriver.s_connections.get(0);
+        when(physical.prepareStatement("SELECT 2")).thenThrow(new SQLException("Communications link failure", "08S01"));
+        try {
+            conn.prepareStatement("SELECT 2");
+            fail("exception was not passed on");
+        } catch (SQLException e) {
+            assertEquals("08S01", e.getSQLState());
+        }
+        conn.close();
+
+        assertEquals(0, _pool.getIdleConnections());
+        verify(physical).close();
+        Connection next = _pool.getConnection();
+        assertEquals(2, FakeDriver.s_connects.get());
+        next.close();
+    }
+
+    @Test
+    public void testConnectionFailingOnBorrowIsClosed() throws Exception {
+        createPool(1);
+        _pool.getConnection().close();
+        Connection physical = FakeDriver.s_connections.get(0);
+        when(physical.getAutoCommit()).thenThrow(new SQLException("Communications link failure", "08S01"));
+        try {
+            _pool.getConnection();
+            fail("exception was not passed on");
+        } catch (SQLException e) {
+            assertEquals("08S01", e.getSQLState());
+        }
+
+        verify(physical).close();
+        assertEquals(0, _pool.getIdleConnections());
+        assertEquals(0, _pool.getActiveConnections());
+        // the permit is given back as well
+        _pool.getConnection().close();
+        assertEquals(2, FakeDriver.s_connects.get());
+    }
+
+    @Test
+    public void testIdleConnectionIsValidated() throws Exception {
+        createPool(5);
+        _pool.getConnection().close();
+        Connection physical = FakeDriver.s_connections.get(0);
+        Statement validation = physical.createStatement();
+        when(validation.execute("SELECT 1")).thenThrow(new SQLException("gone away", "08S01"));
+
+        // recently returned connections are trusted
+        _pool.getConnection().close();
+        verify(validation, times(0)).execute("SELECT 1");
+
+        Thread.sleep(600);
+        Connection conn = _pool.getConnection();
+        verify(validation, times(1)).execute("SELECT 1");
+        assertEquals(2, FakeDriver.s_connects.get());
+        conn.close();
+    }
+
+    @Test
+    public void testExhaustedPoolTimesOut() throws Exception {
+        createPool(2);
+        _pool.setMaxWait(100);
+        Connection first = _pool.getConnection();
+        Connection second = _pool.getConnection();
+        assertNotSame(first, second);
+        try {
+            _pool.getConnection();
+            fail("pool handed out more than maxActive connections");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().contains("2 active"));
+        }
+        assertEquals(1, _pool.getTimeouts());
+
+        first.close();
+        Connection third = _pool.getConnection();
+        third.close();
+        second.close();
+        assertEquals(2, FakeDriver.s_connects.get());
+
+        long borrows = 0;
+        for (long count : _pool.getWaitTimeCounts()) {
+            borrows += count;
+        }
+        assertEquals(4, borrows);
+    }
+
+    @Test
+    public void testIdleConnectionsAreEvicted() throws Exception {
+        createPool(5);
+        _pool.setMaxIdle(1);
+        Connection first = _pool.getConnection();
+        Connection second = _pool.getConnection();
+        first.close();
+        second.close();
+        // only maxIdle connections are kept
+        assertEquals(1, _pool.getIdleConnections());
+
+        _pool.setMinEvictableIdleMillis(10);
+        Thread.sleep(50);
+        _pool.housekeep();
+        assertEquals(0, _pool.getIdleConnections());
+        assertEquals(2, _pool.getDestroyedConnections());
+    }
+
+    @Test
+    public void testLeakIsReported() throws Exception {
+        createPool(5);
+        _pool.setLeakDetectionThreshold(20);
+        Connection conn = _pool.getConnection();
+        Thread.sleep(50);
+        _pool.housekeep();
+        _pool.housekeep();
+        assertEquals(1, _pool.getLeaks());
+        String owner = _pool.getActiveConnectionOwners().get(0);
+        assertTrue(owner, owner.contains(Thread.currentThread().getName()));
+        conn.close();
+        assertTrue(_pool.getActiveConnectionOwners().isEmpty());
+    }
+
+    /**
+     * Many threads competing for few connections.
+     */
+    @Test
+    public void testConcurrentBorrowing() throws Exception {
+        createPool(8);
+        _pool.setMaxWait(10000);
+        borrowConcurrently(_pool, 32, 300);
+
+        assertEquals(0, _pool.getActiveConnections());
+        assertTrue(FakeDriver.s_connects.get() <= 8);
+        assertEquals(0, _pool.getTimeouts());
+        long borrows = 0;
+        for (long count : _pool.getWaitTimeCounts()) {
+            borrows += count;
+        }
+        assertEquals(32 * 300, borrows);
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    private static void borrowConcurrently(final DataSource ds, int threads, final int borrows) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < borrows; j++) {
+                        try {
+                            Connection conn = ds.getConnection();
+                            try {
+                                conn.prepareStatement("SELECT 1");
+                                long until = System.nanoTime() + 50000;
+                                while (System.nanoTime() < until) {
+                                }
+                            } finally {
+                                conn.close();
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(String.valueOf(failure.get()), failure.get());
+    }
+}
@@ -0,0 +1,242 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Stands in for the replica with mocked connections.
+ */
+public class ReadReplicaTest {
+    private DataSource _ds;
+    private Connection _conn;
+    private ResultSet _status;
+
+    @Before
+    public void setUp() throws SQLException {
+        _ds = mock(DataSource.class);
+        _conn = mock(Connection.class);
+        Statement stmt = mock(Statement.class);
+        _status = mock(ResultSet.class);
+        when(_ds.getConnection()).thenReturn(_conn);
+        when(_conn.createStatement()).thenReturn(stmt);
+        when(_conn.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+        when(stmt.executeQuery("SHOW SLAVE STATUS")).thenReturn(_status);
+        setLag(0);
+    }
+
+    /**
+     * A replica that checks the lag in the thread asking for a connection, so the outcome of a
+     * check is known when getConnection returns.
+     */
+    private ReadReplica newReplica(long maxLagSeconds, long checkIntervalMillis) {
+        return new ReadReplica("test", _ds, maxLagSeconds, checkIntervalMillis, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    private void setLag(long lag) throws SQLException {
+        when(_status.next()).thenReturn(true);
+        when(_status.getLong("Seconds_Behind_Master")).thenReturn(lag);
+        when(_status.wasNull()).thenReturn(false);
+    }
+
+    @Test
+    public void testReplicaInSyncIsUsed() throws Exception {
+        setLag(2);
+        ReadReplica replica = newReplica(5, 60000);
+        assertSame(_conn, replica.getConnection());
+        assertSame(_conn, replica.getConnection());
+        verify(_conn, times(2)).setAutoCommit(true);
+        assertTrue(replica.isUsable());
+        assertEquals(2, replica.getLagSeconds());
+        assertEquals(2, replica.getReplicaReads());
+        assertEquals(0, replica.getLagFallbacks());
+    }
+
+    @Test
+    public void testLaggingReplicaIsSkippedUntilItCatchesUp() throws Exception {
+        setLag(30);
+        ReadReplica replica = newReplica(5, 50);
+        assertNull(replica.getConnection());
+        assertEquals(30, replica.getLagSeconds());
+
+        // not checked again before the interval passed
+        setLag(0);
+        assertNull(replica.getConnection());
+        assertEquals(2, replica.getLagFallbacks());
+
+        Thread.sleep(100);
+        assertSame(_conn, replica.getConnection());
+        assertEquals(0, replica.getLagSeconds());
+        assertEquals(1, replica.getReplicaReads());
+    }
+
+    @Test
+    public void testStoppedReplicationIsSkipped() throws Exception {
+        when(_status.wasNull()).thenReturn(true);
+        ReadReplica replica = newReplica(5, 60000);
+        assertNull(replica.getConnection());
+        assertFalse(replica.isUsable());
+        assertEquals(-1, replica.getLagSeconds());
+
+        when(_status.next()).thenReturn(false);
+        replica = newReplica(5, 60000);
+        assertNull(replica.getConnection());
+    }
+
+    @Test
+    public void testUnreachableReplicaIsSkipped() throws Exception {
+        ReadReplica replica = newReplica(5, 60000);
+        assertSame(_conn, replica.getConnection());
+
+        when(_ds.getConnection()).thenThrow(new SQLException("Communications link failure", "08S01"));
+        assertNull(replica.getConnection());
+        assertNull(replica.getConnection());
+        assertEquals(1, replica.getErrorFallbacks());
+        assertEquals(1, replica.getLagFallbacks());
+        assertFalse(replica.isUsable());
+    }
+
+    @Test
+    public void testMissingPrivilegeLeavesReplicaUnused() throws Exception {
+        Statement denied = mock(Statement.class);
+        when(denied.executeQuery("SHOW SLAVE STATUS")).thenThrow(
+                new SQLException("Access denied; you need (at least one of) the SUPER,REPLICATION CLIENT privilege(s) for this operation", "42000", 1227));
+        when(_conn.createStatement()).thenReturn(denied);
+        ReadReplica replica = newReplica(5, 60000);
+        assertNull(replica.getConnection());
+        assertFalse(replica.isUsable());
+        assertEquals(-1, replica.getLagSeconds());
+        verify(denied).setQueryTimeout(10);
+    }
+
+    @Test
+    public void testSlowLagCheckDoesNotBlockReads() throws Exception {
+        final CountDownLatch checking = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(_status.next()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                checking.countDown();
+                release.await();
+                return true;
+            }
+        });
+        ReadReplica replica = new ReadReplica("test", _ds, 5, 60000);
+        try {
+            long start = System.currentTimeMillis();
+            assertNull(replica.getConnection());
+            assertTrue(checking.await(10, TimeUnit.SECONDS));
+            // the check in progress is not waited for
+            assertNull(replica.getConnection());
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertEquals(2, replica.getLagFallbacks());
+
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!replica.isUsable() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(replica.isUsable());
+        } finally {
+            release.countDown();
+            replica.stop();
+        }
+        assertNull(replica.getConnection());
+    }
+
+    @Test
+    public void testReadOnlyScopeReadsFromReplica() throws Exception {
+        ReadReplica replica = newReplica(5, 60000);
+        ReadReplicaConnection replicaConn = new ReadReplicaConnection();
+        assertNull(replicaConn.getConnection(replica, false, false));
+        verify(_ds, never()).getConnection();
+
+        assertSame(_conn, replicaConn.getConnection(replica, true, false));
+        // nested scopes keep the replica connection
+        assertSame(_conn, replicaConn.getConnection(replica, true, false));
+        assertTrue(replicaConn.isOpen());
+        // one for the lag check, one for the reads
+        verify(_ds, times(2)).getConnection();
+        verify(_conn, times(1)).close();
+    }
+
+    @Test
+    public void testReadOnlyScopeEndsWithClose() throws Exception {
+        ReadReplica replica = newReplica(5, 60000);
+        ReadReplicaConnection replicaConn = new ReadReplicaConnection();
+        assertSame(_conn, replicaConn.getConnection(replica, true, false));
+        replicaConn.close();
+        assertFalse(replicaConn.isOpen());
+        verify(_conn, times(2)).close();
+
+        assertNull(replicaConn.getConnection(replica, false, false));
+        replicaConn.close();
+        verify(_conn, times(2)).close();
+    }
+
+    @Test
+    public void testPrimaryConnectionInUseIsNotBypassed() throws Exception {
+        ReadReplica replica = newReplica(5, 60000);
+        ReadReplicaConnection replicaConn = new ReadReplicaConnection();
+        assertNull(replicaConn.getConnection(replica, true, true));
+        verify(_ds, never()).getConnection();
+
+        // a replica connection taken before the primary is in use is not used either
+        assertSame(_conn, replicaConn.getConnection(replica, true, false));
+        assertNull(replicaConn.getConnection(replica, true, true));
+    }
+
+    @Test
+    public void testLaggingReplicaLeavesReadsOnPrimary() throws Exception {
+        setLag(30);
+        ReadReplicaConnection replicaConn = new ReadReplicaConnection();
+        assertNull(replicaConn.getConnection(newReplica(5, 60000), true, false));
+        assertNull(replicaConn.getConnection(null, true, false));
+        assertFalse(replicaConn.isOpen());
+    }
+}
@@ -0,0 +1,129 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executor;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs read only scopes of Transaction against a mocked replica. Needs a db.properties on the
+ * classpath for Transaction to initialize but does not connect to the primary.
+ */
+public class ReadReplicaTransactionTest {
+    private DataSource _ds;
+    private Connection _conn;
+    private ReadReplica _previous;
+
+    @Before
+    public void setUp() throws SQLException {
+        _ds = mock(DataSource.class);
+        _conn = mock(Connection.class);
+        Statement stmt = mock(Statement.class);
+        ResultSet status = mock(ResultSet.class);
+        when(_ds.getConnection()).thenReturn(_conn);
+        when(_conn.createStatement()).thenReturn(stmt);
+        when(_conn.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+        when(stmt.executeQuery("SHOW SLAVE STATUS")).thenReturn(status);
+        when(status.next()).thenReturn(true);
+        when(status.getLong("Seconds_Behind_Master")).thenReturn(0L);
+
+        _previous = Transaction.setReadReplica(new ReadReplica("test", _ds, 5, 60000, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }));
+    }
+
+    @After
+    public void tearDown() {
+        Transaction.setReadReplica(_previous);
+    }
+
+    @Test
+    public void testReadOnlyScopeReadsFromReplica() throws Exception {
+        Transaction txn = Transaction.open("ReadReplicaTest");
+        try {
+            txn.markReadOnly();
+            assertTrue(txn.isReadOnly());
+            txn.prepareReadAutoCloseStatement("SELECT * FROM host");
+
+            // nested scopes keep the replica connection
+            Transaction nested = Transaction.open("nested");
+            nested.prepareReadAutoCloseStatement("SELECT COUNT(*) FROM host");
+            nested.close();
+            verify(_ds, times(2)).getConnection();
+            verify(_conn, times(2)).prepareStatement(anyString());
+            // closed once by the lag check
+            verify(_conn, times(1)).close();
+        } finally {
+            txn.close();
+        }
+        verify(_conn, times(2)).close();
+    }
+
+    @Test
+    public void testReadOnlyScopeEndsWithClose() throws Exception {
+        Transaction txn = Transaction.open("ReadReplicaTest");
+        try {
+            Transaction nested = Transaction.open("nested");
+            nested.markReadOnly();
+            nested.prepareReadAutoCloseStatement("SELECT * FROM host");
+            nested.close();
+            verify(_conn, times(2)).close();
+            assertFalse(txn.isReadOnly());
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testPrimaryConnectionInUseIsNotBypassed() throws Exception {
+        Connection primary = mock(Connection.class);
+        when(primary.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+        Transaction txn = Transaction.open("ReadReplicaTest");
+        try {
+            txn.markReadOnly();
+            txn.transitToUserManagedConnection(primary);
+            txn.prepareReadAutoCloseStatement("SELECT * FROM host");
+            verify(primary).prepareStatement("SELECT * FROM host");
+            verify(_ds, never()).getConnection();
+        } finally {
+            txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+            txn.close();
+        }
+    }
+}
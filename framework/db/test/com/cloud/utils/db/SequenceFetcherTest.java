@@ -0,0 +1,187 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.TableGenerator;
+
+import org.junit.Test;
+
+public class SequenceFetcherTest {
+    @TableGenerator(name = "test_sq", table = "sequence", pkColumnName = "name", valueColumnName = "value", pkColumnValue = "test_seq", allocationSize = 1)
+    long _id;
+
+    @TableGenerator(name = "mac_address_seq", table = "op_networks", pkColumnName = "id", valueColumnName = "mac_address_seq", allocationSize = 2)
+    long _mac;
+
+    /**
+     * Stands in for the sequence rows: every fetch holds the row lock for a while, like SELECT ... FOR UPDATE
+     * and the UPDATE in their own transaction would.
+     */
+    static class FakeSequenceFetcher extends SequenceFetcher {
+        final Map<String, Long> _values = new HashMap<String, Long>();
+        final AtomicInteger _roundTrips = new AtomicInteger();
+        final long _lockMicros;
+
+        FakeSequenceFetcher(long lockMicros) {
+            _lockMicros = lockMicros;
+        }
+
+        @Override
+        protected <T> T fetch(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom, int blockSize) {
+            _roundTrips.incrementAndGet();
+            String row = tg.table() + ":" + (key == null ? tg.pkColumnValue() : key);
+            synchronized (_values) {
+                Long value = _values.get(row);
+                if (value == null) {
+                    value = 1L;
+                }
+                _values.put(row, value + (long)tg.allocationSize() * blockSize);
+                long until = System.nanoTime() + _lockMicros * 1000;
+                while (System.nanoTime() < until) {
+                }
+                if (clazz == Integer.class) {
+                    return clazz.cast(value.intValue());
+                }
+                return clazz.cast(value);
+            }
+        }
+    }
+
+    private static TableGenerator generator(String field) throws Exception {
+        return SequenceFetcherTest.class.getDeclaredField(field).getAnnotation(TableGenerator.class);
+    }
+
+    @Test
+    public void testContiguousByDefault() throws Exception {
+        FakeSequenceFetcher fetcher = new FakeSequenceFetcher(0);
+        TableGenerator tg = generator("_id");
+        for (long i = 1; i <= 10; i++) {
+            assertEquals(Long.valueOf(i), fetcher.getNextSequence(Long.class, tg));
+        }
+        assertEquals(10, fetcher._roundTrips.get());
+    }
+
+    @Test
+    public void testBlockAllocation() throws Exception {
+        FakeSequenceFetcher fetcher = new FakeSequenceFetcher(0);
+        Properties props = new Properties();
+        props.setProperty(SequenceFetcher.BlockSizeProperty + ".mac_address_seq", "5");
+        fetcher.configure(props);
+
+        TableGenerator tg = generator("_mac");
+        assertEquals(1, fetcher.getBlockSize(generator("_id")));
+        assertEquals(5, fetcher.getBlockSize(tg));
+
+        // allocation size 2: the block of network 7 covers 1, 3, ..., 9
+        for (long i = 0; i < 6; i++) {
+            assertEquals(Long.valueOf(1 + 2 * i), fetcher.getNextSequence(Long.class, tg, 7L));
+        }
+        assertEquals(Integer.valueOf(1), fetcher.getNextSequence(Integer.class, tg, 8L));
+        assertEquals(3, fetcher._roundTrips.get());
+        // the next block starts where the first one ended
+        assertEquals(Long.valueOf(21), fetcher._values.get("op_networks:7"));
+    }
+
+    @Test
+    public void testRandomSequencesAreNotBlocked() throws Exception {
+        FakeSequenceFetcher fetcher = new FakeSequenceFetcher(0);
+        fetcher.setDefaultBlockSize(50);
+        TableGenerator tg = generator("_id");
+        fetcher.getRandomNextSequence(Long.class, tg);
+        fetcher.getRandomNextSequence(Long.class, tg);
+        assertEquals(2, fetcher._roundTrips.get());
+    }
+
+    @Test
+    public void testConcurrentAllocation() throws Exception {
+        TableGenerator tg = generator("_id");
+        for (int blockSize : new int[] {1, 20, 100}) {
+            FakeSequenceFetcher fetcher = new FakeSequenceFetcher(200);
+            fetcher.setDefaultBlockSize(blockSize);
+
+            List<List<Long>> values = allocate(fetcher, tg, 16, 250);
+
+            Set<Long> unique = new HashSet<Long>();
+            for (List<Long> thread : values) {
+                // every thread sees its values increase
+                List<Long> sorted = new ArrayList<Long>(thread);
+                Collections.sort(sorted);
+                assertEquals(sorted, thread);
+                unique.addAll(thread);
+            }
+            assertEquals(16 * 250, unique.size());
+            assertTrue(fetcher._roundTrips.get() <= (16 * 250 + blockSize - 1) / blockSize);
+        }
+    }
+
+    @Test
+    public void testBlocksOfKeysAreBounded() throws Exception {
+        FakeSequenceFetcher fetcher = new FakeSequenceFetcher(0);
+        fetcher.setDefaultBlockSize(10);
+        TableGenerator tg = generator("_mac");
+        for (long network = 0; network < 3 * SequenceFetcher.MAX_BLOCKS; network++) {
+            fetcher.getNextSequence(Long.class, tg, network);
+            // a busy network keeps its block
+            fetcher.getNextSequence(Long.class, tg, -1L);
+        }
+        assertEquals(SequenceFetcher.MAX_BLOCKS, fetcher.getBlockCount());
+        // one block per network, the busy one refills every 10 values
+        assertEquals(3 * SequenceFetcher.MAX_BLOCKS + (3 * SequenceFetcher.MAX_BLOCKS + 9) / 10, fetcher._roundTrips.get());
+
+        // an evicted key starts a new block after the one it lost
+        int roundTrips = fetcher._roundTrips.get();
+        assertEquals(Long.valueOf(21), fetcher.getNextSequence(Long.class, tg, 0L));
+        assertEquals(roundTrips + 1, fetcher._roundTrips.get());
+    }
+
+    private static List<List<Long>> allocate(final SequenceFetcher fetcher, final TableGenerator tg, int threads, final int count) throws InterruptedException {
+        final List<List<Long>> values = new ArrayList<List<Long>>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final List<Long> thread = new ArrayList<Long>();
+            values.add(thread);
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < count; j++) {
+                        thread.add(fetcher.getNextSequence(Long.class, tg));
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return values;
+    }
+}
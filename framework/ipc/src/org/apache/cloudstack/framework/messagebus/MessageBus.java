@@ -19,6 +19,8 @@
 
 package org.apache.cloudstack.framework.messagebus;
 
+import java.util.concurrent.Executor;
+
 import org.apache.cloudstack.framework.serializer.MessageSerializer;
 
 public interface MessageBus {
@@ -26,6 +28,13 @@ public interface MessageBus {
 	MessageSerializer getMessageSerializer();
 	
 	void subscribe(String subject, MessageSubscriber subscriber);
+	
+	/**
+	 * Subscribes with asynchronous delivery, messages to the subscriber are handed over to
+	 * the executor instead of being delivered on the publisher's thread.
+	 */
+	void subscribe(String subject, MessageSubscriber subscriber, Executor executor);
+	
 	void unsubscribe(String subject, MessageSubscriber subscriber);
 	void clearAll();
 	void prune();
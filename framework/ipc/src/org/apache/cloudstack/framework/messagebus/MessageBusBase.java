@@ -20,27 +20,37 @@
 package org.apache.cloudstack.framework.messagebus;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
 
 import org.apache.cloudstack.framework.serializer.MessageSerializer;
 
+/**
+ * Subscriptions are kept in an immutable trie that is replaced as a whole on every
+ * subscribe/unsubscribe (copy-on-write), so publishers only read a volatile reference
+ * and never block on each other or on subscription changes.
+ */
 public class MessageBusBase implements MessageBus {
+	private static final Logger s_logger = Logger.getLogger(MessageBusBase.class);
+
+	private static final int MAX_CACHED_SUBJECTS = 4096;
+	private static final String[] ROOT_SUBJECT_TOKENS = new String[0];
+
+	private final Object _updateLock = new Object();
+	private volatile SubscriptionNode _subscriberRoot;
+	private final Map<String, String[]> _subjectTokenCache = new ConcurrentHashMap<String, String[]>();
 
-	private final Gate _gate;
-	private final List<ActionRecord> _pendingActions;
-	
-	private final SubscriptionNode _subscriberRoot;
 	private MessageSerializer _messageSerializer; 
 	
 	public MessageBusBase() {
-		_gate = new Gate();
-		_pendingActions = new ArrayList<ActionRecord>();
-		
-		_subscriberRoot = new SubscriptionNode(null, "/", null);
+		_subscriberRoot = SubscriptionNode.EMPTY;
 	}
 	
 	@Override
@@ -55,76 +65,42 @@ public class MessageBusBase implements MessageBus {
 	
 	@Override
 	public void subscribe(String subject, MessageSubscriber subscriber) {
+		subscribe(subject, subscriber, null);
+	}
+
+	@Override
+	public void subscribe(String subject, MessageSubscriber subscriber, Executor executor) {
 		assert(subject != null);
 		assert(subscriber != null);
-		if(_gate.enter()) {
-			SubscriptionNode current = locate(subject, null, true);
-			assert(current != null);
-			current.addSubscriber(subscriber);
-			_gate.leave();
-		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.Subscribe, subject, subscriber));
-			}
+
+		String[] tokens = tokenize(subject);
+		synchronized(_updateLock) {
+			_subscriberRoot = _subscriberRoot.addSubscription(tokens, 0, new Subscription(subscriber, executor));
 		}
 	}
 
 	@Override
 	public void unsubscribe(String subject, MessageSubscriber subscriber) {
-		if(_gate.enter()) {
+		synchronized(_updateLock) {
 			if(subject != null) {
-				SubscriptionNode current = locate(subject, null, false);
-				if(current != null)
-					current.removeSubscriber(subscriber, false);
+				_subscriberRoot = _subscriberRoot.removeSubscription(tokenize(subject), 0, subscriber);
 			} else {
-				_subscriberRoot.removeSubscriber(subscriber, true);
-			}
-			_gate.leave();
-		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.Unsubscribe, subject, subscriber));
+				_subscriberRoot = _subscriberRoot.removeSubscriptionRecursively(subscriber);
 			}
 		}
 	}
 	
 	@Override
 	public void clearAll() {
-		if(_gate.enter()) {
-			_subscriberRoot.clearAll();
-			doPrune();
-			_gate.leave();
-		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.ClearAll, null, null));
-			}
+		synchronized(_updateLock) {
+			_subscriberRoot = SubscriptionNode.EMPTY;
 		}
 	}
 		
 	@Override
 	public void prune() {
-		if(_gate.enter()) {
-			doPrune();
-			_gate.leave();
-		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.Prune, null, null));
-			}
-		}
-	}
-	
-	private void doPrune() {
-		List<SubscriptionNode> trimNodes = new ArrayList<SubscriptionNode>();
-		_subscriberRoot.prune(trimNodes);
-		
-		while(trimNodes.size() > 0) {
-			SubscriptionNode node = trimNodes.remove(0);
-			SubscriptionNode parent = node.getParent();
-			if(parent != null) {
-				parent.removeChild(node.getNodeKey());
-				if(parent.isTrimmable()) {
-					trimNodes.add(parent);
-				}
-			}
+		synchronized(_updateLock) {
+			_subscriberRoot = _subscriberRoot.prune();
 		}
 	}
 	
@@ -132,275 +108,195 @@ public class MessageBusBase implements MessageBus {
 	public void publish(String senderAddress, String subject, PublishScope scope, 
 		Object args) {
 		
-		if(_gate.enter(true)) {
+		notifySubscribers(_subscriberRoot, tokenize(subject), 0, senderAddress, subject, args);
+	}
 
-			List<SubscriptionNode> chainFromTop = new ArrayList<SubscriptionNode>();
-			SubscriptionNode current = locate(subject, chainFromTop, false);
-			
-			if(current != null)
-				current.notifySubscribers(senderAddress, subject, args);
-			
-			Collections.reverse(chainFromTop);
-			for(SubscriptionNode node : chainFromTop)
-				node.notifySubscribers(senderAddress, subject, args);
-			
-			_gate.leave();
+	//
+	// deepest matching node is notified first, then its ancestors up to the root
+	//
+	private static void notifySubscribers(SubscriptionNode node, String[] tokens, int depth,
+		String senderAddress, String subject, Object args) {
+		
+		if(depth < tokens.length) {
+			SubscriptionNode next = node.getChild(tokens[depth]);
+			if(next != null)
+				notifySubscribers(next, tokens, depth + 1, senderAddress, subject, args);
 		}
+		node.notifySubscribers(senderAddress, subject, args);
 	}
 	
-	private void onGateOpen() {
-		synchronized(_pendingActions) {
-			ActionRecord record = null;
-            while (_pendingActions.size() > 0) {
-                record = _pendingActions.remove(0);
-					switch(record.getType()) {
-                case Subscribe: {
-							SubscriptionNode current = locate(record.getSubject(), null, true);
-							assert(current != null);
-							current.addSubscriber(record.getSubscriber());
-						}
-						break;
-						
-					case Unsubscribe :
-						if(record.getSubject() != null) {
-							SubscriptionNode current = locate(record.getSubject(), null, false);
-							if(current != null)
-								current.removeSubscriber(record.getSubscriber(), false);
-						} else {
-                        _subscriberRoot.removeSubscriber(record.getSubscriber(), true);
-						}
-						break;
-					
-					case ClearAll :
-						_subscriberRoot.clearAll();
-						break;
-						
-					case Prune :
-						doPrune();
-						break;
-						
-					default :
-						assert(false);
-						break;
-					
-					}
-				}
-			}
-		}
-	
-	private SubscriptionNode locate(String subject, List<SubscriptionNode> chainFromTop,
-		boolean createPath) {
-		
+	private String[] tokenize(String subject) {
 		assert(subject != null);
 		// "/" is special name for root node
 		if(subject.equals("/"))
-			return _subscriberRoot;
+			return ROOT_SUBJECT_TOKENS;
 		
-		String[] subjectPathTokens = subject.split("\\.");
-		return locate(subjectPathTokens, _subscriberRoot, chainFromTop, createPath);
+		String[] tokens = _subjectTokenCache.get(subject);
+		if(tokens == null) {
+			tokens = splitSubject(subject);
+			
+			// subjects may carry object ids, keep the cache bounded
+			if(_subjectTokenCache.size() >= MAX_CACHED_SUBJECTS)
+				_subjectTokenCache.clear();
+			_subjectTokenCache.put(subject, tokens);
+		}
+		return tokens;
 	}
 	
-	private static SubscriptionNode locate(String[] subjectPathTokens, 
-		SubscriptionNode current, List<SubscriptionNode> chainFromTop, boolean createPath) {
-		
-		assert(current != null);
-		assert(subjectPathTokens != null);
-		assert(subjectPathTokens.length > 0);
-
-		if(chainFromTop != null)
-			chainFromTop.add(current);
-		
-		SubscriptionNode next = current.getChild(subjectPathTokens[0]);
-		if(next == null) {
-			if(createPath) {
-				next = new SubscriptionNode(current, subjectPathTokens[0], null);
-				current.addChild(subjectPathTokens[0], next);
-			} else {
-				return null;
-			}
-		}
-		
-		if(subjectPathTokens.length > 1) {
-			return locate(Arrays.copyOfRange(subjectPathTokens, 1, subjectPathTokens.length),
-				next, chainFromTop, createPath);
-		} else {
-			return next;
+	private static String[] splitSubject(String subject) {
+		List<String> tokens = new ArrayList<String>();
+		int start = 0;
+		int pos;
+		while((pos = subject.indexOf('.', start)) >= 0) {
+			tokens.add(subject.substring(start, pos));
+			start = pos + 1;
 		}
+		tokens.add(subject.substring(start));
+		return tokens.toArray(new String[tokens.size()]);
 	}
 	
-	
 	//
 	// Support inner classes
 	//
-	private static enum ActionType {
-		Subscribe,
-		Unsubscribe,
-		ClearAll,
-		Prune
-	}
-	
-	private static class ActionRecord {
-		private final ActionType _type;
-		private final String _subject;
+	private static class Subscription {
 		private final MessageSubscriber _subscriber;
+		private final Executor _executor;
 		
-		public ActionRecord(ActionType type, String subject, MessageSubscriber subscriber) {
-			_type = type;
-			_subject = subject;
+		public Subscription(MessageSubscriber subscriber, Executor executor) {
 			_subscriber = subscriber;
-		}
-		
-		public ActionType getType() { 
-			return _type; 
-		}
-		
-		public String getSubject() {
-			return _subject;
+			_executor = executor;
 		}
 		
 		public MessageSubscriber getSubscriber() {
 			return _subscriber;
 		}
-	}
-	
-	private class Gate {
-		private int _reentranceCount;
-		private Thread _gateOwner;
 		
-		public Gate() {
-			_reentranceCount = 0;
-			_gateOwner = null;
-		}
-		
-		public boolean enter() {
-			return enter(false);
-		}
-		
-		public boolean enter(boolean wait) {
-			while(true) {
-				synchronized(this) {
-					if(_reentranceCount == 0) {
-						assert(_gateOwner == null);
-						
-						_reentranceCount++;
-						_gateOwner = Thread.currentThread();
-						return true;
-					} else {
-						if(wait) {
-							try {
-								wait();
-							} catch (InterruptedException e) {
-							}
-						} else {
-							break;
-						}
-					}
-				}
+		public void deliver(final String senderAddress, final String subject, final Object args) {
+			if(_executor == null) {
+				_subscriber.onPublishMessage(senderAddress, subject, args);
+				return;
 			}
 			
-			return false;
-		}
-		
-		public void leave() {
-			synchronized(this) {
-				if(_reentranceCount > 0) {
-					assert(_gateOwner == Thread.currentThread());
-					
-					onGateOpen();
-					_reentranceCount--;
-					assert(_reentranceCount == 0);
-					_gateOwner = null;
-					
-					notifyAll();
-				}
+			try {
+				_executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						_subscriber.onPublishMessage(senderAddress, subject, args);
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				s_logger.warn("Delivery executor rejected message " + subject + " for subscriber " + _subscriber);
 			}
 		}
 	}
 	
+	/**
+	 * Immutable trie node, every update returns a new node and shares untouched sub-trees
+	 */
 	private static class SubscriptionNode {
-		private final String _nodeKey;
-		private final List<MessageSubscriber> _subscribers;
-		private final Map<String, SubscriptionNode> _children;
-		private final SubscriptionNode _parent;
-		
-		public SubscriptionNode(SubscriptionNode parent, String nodeKey, MessageSubscriber subscriber) {
-			assert(nodeKey != null);
-			_parent = parent;
-			_nodeKey = nodeKey;
-			_subscribers = new ArrayList<MessageSubscriber>();
-			
-			if(subscriber != null)
-				_subscribers.add(subscriber);
-			
-			_children = new HashMap<String, SubscriptionNode>();
-		}
-		
-		public SubscriptionNode getParent() {
-			return _parent;			
-		}
+		static final SubscriptionNode EMPTY = new SubscriptionNode(new Subscription[0],
+			Collections.<String, SubscriptionNode>emptyMap());
 		
-		public String getNodeKey() {
-			return _nodeKey;
-		}
-		
-		@SuppressWarnings("unused")
-		public List<MessageSubscriber> getSubscriber() {
-			return _subscribers;
-		}
+		private final Subscription[] _subscriptions;
+		private final Map<String, SubscriptionNode> _children;
 		
-		public void addSubscriber(MessageSubscriber subscriber) {
-			if(!_subscribers.contains(subscriber))
-				_subscribers.add(subscriber);
-		}
-		
-		public void removeSubscriber(MessageSubscriber subscriber, boolean recursively) {
-			if(recursively) {
-				for(Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-					entry.getValue().removeSubscriber(subscriber, true);
-				}
-			}
-			_subscribers.remove(subscriber);
+		private SubscriptionNode(Subscription[] subscriptions, Map<String, SubscriptionNode> children) {
+			_subscriptions = subscriptions;
+			_children = children;
 		}
 		
 		public SubscriptionNode getChild(String key) {
 			return _children.get(key);
 		}
 		
-		public void addChild(String key, SubscriptionNode childNode) {
-			_children.put(key, childNode);
+		public SubscriptionNode addSubscription(String[] tokens, int depth, Subscription subscription) {
+			if(depth == tokens.length) {
+				if(indexOf(subscription.getSubscriber()) >= 0)
+					return this;
+				
+				Subscription[] subscriptions = new Subscription[_subscriptions.length + 1];
+				System.arraycopy(_subscriptions, 0, subscriptions, 0, _subscriptions.length);
+				subscriptions[_subscriptions.length] = subscription;
+				return new SubscriptionNode(subscriptions, _children);
+			}
+			
+			SubscriptionNode child = _children.get(tokens[depth]);
+			if(child == null)
+				child = EMPTY;
+			return withChild(tokens[depth], child.addSubscription(tokens, depth + 1, subscription));
 		}
 		
-		public void removeChild(String key) {
-			_children.remove(key);
+		public SubscriptionNode removeSubscription(String[] tokens, int depth, MessageSubscriber subscriber) {
+			if(depth == tokens.length)
+				return withoutSubscriber(subscriber);
+			
+			SubscriptionNode child = _children.get(tokens[depth]);
+			if(child == null)
+				return this;
+			
+			SubscriptionNode newChild = child.removeSubscription(tokens, depth + 1, subscriber);
+			if(newChild == child)
+				return this;
+			return withChild(tokens[depth], newChild);
 		}
 		
-		public void clearAll() {
-			// depth-first
+		public SubscriptionNode removeSubscriptionRecursively(MessageSubscriber subscriber) {
+			SubscriptionNode node = withoutSubscriber(subscriber);
 			for(Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-				entry.getValue().clearAll();
+				SubscriptionNode newChild = entry.getValue().removeSubscriptionRecursively(subscriber);
+				if(newChild != entry.getValue())
+					node = node.withChild(entry.getKey(), newChild);
 			}
-			_subscribers.clear();
+			return node;
 		}
 		
-		public void prune(List<SubscriptionNode> trimNodes) {
-			assert(trimNodes != null);
-			
+		public SubscriptionNode prune() {
+			SubscriptionNode node = this;
 			for(Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-				entry.getValue().prune(trimNodes);
+				SubscriptionNode newChild = entry.getValue().prune();
+				if(newChild != entry.getValue())
+					node = node.withChild(entry.getKey(), newChild);
 			}
-			
-			if(isTrimmable())
-				trimNodes.add(this);
+			return node;
 		}
 		
 		public void notifySubscribers(String senderAddress, String subject,  Object args) {
-			for(MessageSubscriber subscriber : _subscribers) {
-				subscriber.onPublishMessage(senderAddress, subject, args);
+			for(Subscription subscription : _subscriptions) {
+				subscription.deliver(senderAddress, subject, args);
 			}
 		}
 		
 		public boolean isTrimmable() {
-			return _children.size() == 0 && _subscribers.size() == 0;
+			return _children.size() == 0 && _subscriptions.length == 0;
+		}
+		
+		private int indexOf(MessageSubscriber subscriber) {
+			for(int i = 0; i < _subscriptions.length; i++) {
+				if(_subscriptions[i].getSubscriber().equals(subscriber))
+					return i;
+			}
+			return -1;
+		}
+		
+		private SubscriptionNode withoutSubscriber(MessageSubscriber subscriber) {
+			int index = indexOf(subscriber);
+			if(index < 0)
+				return this;
+			
+			Subscription[] subscriptions = new Subscription[_subscriptions.length - 1];
+			System.arraycopy(_subscriptions, 0, subscriptions, 0, index);
+			System.arraycopy(_subscriptions, index + 1, subscriptions, index, subscriptions.length - index);
+			return new SubscriptionNode(subscriptions, _children);
+		}
+		
+		// empty child nodes are trimmed as part of the copy
+		private SubscriptionNode withChild(String key, SubscriptionNode child) {
+			Map<String, SubscriptionNode> children = new HashMap<String, SubscriptionNode>(_children);
+			if(child.isTrimmable())
+				children.remove(key);
+			else
+				children.put(key, child);
+			return new SubscriptionNode(_subscriptions, children);
 		}
 	}
 }
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.messagebus;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.framework.messagebus.MessageBusBase;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMessageBusPublish {
+
+	private static class CountingSubscriber implements MessageSubscriber {
+		private final AtomicLong _count = new AtomicLong();
+
+		@Override
+		public void onPublishMessage(String senderAddress, String subject, Object args) {
+			_count.incrementAndGet();
+		}
+
+		public long getCount() {
+			return _count.get();
+		}
+	}
+
+	@Test
+	public void testAsyncDelivery() throws InterruptedException {
+		MessageBusBase bus = new MessageBusBase();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Thread publisher = Thread.currentThread();
+		try {
+			bus.subscribe("VM.Start", new MessageSubscriber() {
+				@Override
+				public void onPublishMessage(String senderAddress, String subject, Object args) {
+					Assert.assertNotSame(publisher, Thread.currentThread());
+					latch.countDown();
+				}
+			}, executor);
+
+			bus.publish(null, "VM.Start", PublishScope.LOCAL, null);
+			Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSubscribeWhilePublishing() {
+		final MessageBusBase bus = new MessageBusBase();
+		final CountingSubscriber late = new CountingSubscriber();
+		bus.subscribe("Host", new MessageSubscriber() {
+			@Override
+			public void onPublishMessage(String senderAddress, String subject, Object args) {
+				bus.subscribe("VM", late);
+				bus.publish(null, "VM.1", PublishScope.LOCAL, null);
+			}
+		});
+
+		bus.publish(null, "Host.2", PublishScope.LOCAL, null);
+		Assert.assertEquals(1, late.getCount());
+
+		bus.unsubscribe("VM", late);
+		bus.prune();
+		bus.publish(null, "Host.3", PublishScope.LOCAL, null);
+		Assert.assertEquals(2, late.getCount());
+	}
+
+	@Test
+	public void testConcurrentPublish() throws InterruptedException {
+		final int subjects = 200;
+		final int subscribersPerSubject = 10;
+		final int publisherThreads = 4;
+		final int messagesPerThread = 50000;
+
+		final MessageBusBase bus = new MessageBusBase();
+		CountingSubscriber rootSubscriber = new CountingSubscriber();
+		bus.subscribe("/", rootSubscriber);
+		CountingSubscriber[] subscribers = new CountingSubscriber[subjects * subscribersPerSubject];
+		for (int i = 0; i < subjects; i++) {
+			for (int j = 0; j < subscribersPerSubject; j++) {
+				subscribers[i * subscribersPerSubject + j] = new CountingSubscriber();
+				bus.subscribe("VM." + i + ".State", subscribers[i * subscribersPerSubject + j]);
+			}
+		}
+
+		Thread[] threads = new Thread[publisherThreads];
+		for (int t = 0; t < publisherThreads; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < messagesPerThread; i++) {
+						bus.publish(null, "VM." + (i % subjects) + ".State", PublishScope.LOCAL, null);
+					}
+				}
+			});
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		long total = (long)publisherThreads * messagesPerThread;
+		Assert.assertEquals(total, rootSubscriber.getCount());
+		// every subscriber got each message of its subject exactly once
+		for (CountingSubscriber subscriber : subscribers) {
+			Assert.assertEquals(total / subjects, subscriber.getCount());
+		}
+	}
+}
@@ -0,0 +1,107 @@
+#!/usr/bin/env bash
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+#
+#   http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+
+# Applies a configuration file pushed by the management server in one go.
+# The file starts with a header
+#   #vr_cfg <format> <id> <line count> <md5 of the lines>
+# followed by one script command line per line. The whole file is checked
+# before anything runs, so a truncated or corrupted file changes nothing;
+# the lines then run in order and the first failing one stops the run.
+# A file whose id was applied already is not run again.
+
+usage() {
+  printf "Usage: %s: -c <config file>\n" $(basename $0) >&2
+}
+
+#set -x
+
+__APPLIED=/var/cache/cloud/vr_cfg.applied
+
+cfg=
+while getopts 'c:' OPTION
+do
+  case $OPTION in
+  c)  cfg="$OPTARG"
+      ;;
+  ?)  usage
+      exit 2
+      ;;
+  esac
+done
+
+if [ -z "$cfg" ] || [ ! -f "$cfg" ]
+then
+  usage
+  exit 2
+fi
+
+read magic format id count md5 < $cfg
+if [ "$magic" != "#vr_cfg" ] || [ "$format" != "1" ]
+then
+  echo "$cfg is not a router configuration file of a known format"
+  exit 1
+fi
+
+if [ -f $__APPLIED ] && [ "$(cat $__APPLIED)" == "$id" ]
+then
+  logger -t cloud "$(basename $0): configuration $id was applied already"
+  rm -f $cfg
+  exit 0
+fi
+
+lines=$(tail -n +2 $cfg | wc -l)
+if [ "$lines" != "$count" ]
+then
+  echo "$cfg has $lines lines instead of $count"
+  exit 1
+fi
+
+if [ "$(tail -n +2 $cfg | md5sum | cut -d ' ' -f 1)" != "$md5" ]
+then
+  echo "$cfg does not match its checksum"
+  exit 1
+fi
+
+n=0
+while read -r script args
+do
+  n=$((n + 1))
+  if [ ! -x "$script" ]
+  then
+    echo "line $n: $script is not a router script"
+    exit 1
+  fi
+done < <(tail -n +2 $cfg)
+
+logger -t cloud "$(basename $0): applying $count lines of configuration $id"
+n=0
+while read -r line
+do
+  n=$((n + 1))
+  bash -c "$line" < /dev/null
+  ret=$?
+  if [ $ret -ne 0 ]
+  then
+    echo "line $n of configuration $id failed with $ret: ${line:0:200}"
+    exit 1
+  fi
+done < <(tail -n +2 $cfg)
+
+echo $id > $__APPLIED
+rm -f $cfg
+exit 0
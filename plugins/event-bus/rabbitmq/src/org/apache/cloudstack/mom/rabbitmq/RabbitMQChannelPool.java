@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of publishing channels on the broker connection. Channels are created on demand with the
+ * exchange declared and publisher confirms enabled once, and are reused by subsequent publishes
+ * instead of opening and closing a channel per event.
+ */
+public class RabbitMQChannelPool {
+    private static final Logger s_logger = Logger.getLogger(RabbitMQChannelPool.class);
+
+    private final BlockingQueue<Channel> _idleChannels;
+    private final String _exchangeName;
+    private final boolean _publisherConfirms;
+
+    private final AtomicLong _createdChannels = new AtomicLong();
+
+    public RabbitMQChannelPool(int maxIdleChannels, String exchangeName, boolean publisherConfirms) {
+        _idleChannels = new ArrayBlockingQueue<Channel>(maxIdleChannels);
+        _exchangeName = exchangeName;
+        _publisherConfirms = publisherConfirms;
+    }
+
+    public Channel borrowChannel(Connection connection) throws IOException {
+        Channel channel;
+        while ((channel = _idleChannels.poll()) != null) {
+            if (channel.isOpen() && channel.getConnection() == connection) {
+                return channel;
+            }
+            closeChannel(channel);
+        }
+
+        channel = connection.createChannel();
+        try {
+            channel.exchangeDeclare(_exchangeName, "topic", true);
+            if (_publisherConfirms) {
+                channel.confirmSelect();
+            }
+        } catch (IOException e) {
+            closeChannel(channel);
+            throw e;
+        }
+        _createdChannels.incrementAndGet();
+        return channel;
+    }
+
+    public void returnChannel(Channel channel) {
+        if (!channel.isOpen() || !_idleChannels.offer(channel)) {
+            closeChannel(channel);
+        }
+    }
+
+    public void invalidateChannel(Channel channel) {
+        closeChannel(channel);
+    }
+
+    public void clear() {
+        Channel channel;
+        while ((channel = _idleChannels.poll()) != null) {
+            closeChannel(channel);
+        }
+    }
+
+    public boolean isPublisherConfirms() {
+        return _publisherConfirms;
+    }
+
+    public int getIdleChannelCount() {
+        return _idleChannels.size();
+    }
+
+    public long getCreatedChannelCount() {
+        return _createdChannels.get();
+    }
+
+    private void closeChannel(Channel channel) {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        } catch (Exception e) {
+            s_logger.debug("Failed to close channel due to " + e.getMessage());
+        }
+    }
+}
@@ -25,16 +25,26 @@ import org.apache.log4j.Logger;
 
 import com.cloud.utils.Ternary;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Local(value=EventBus.class)
 public class RabbitMQEventBus extends ManagerBase implements EventBus {
@@ -61,7 +71,35 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     // AMQP server should consider messages acknowledged once delivered if _autoAck is true
     private static boolean _autoAck = true;
 
+    // overflow policies of the asynchronous publish queue
+    public static final String OVERFLOW_DROP_NEWEST = "dropNewest";
+    public static final String OVERFLOW_DROP_OLDEST = "dropOldest";
+    public static final String OVERFLOW_BLOCK = "block";
+
+    private static final long PUBLISH_FLUSH_TIMEOUT = 5000;
+    // a batch the broker did not take is tried that many times before its events are given up
+    private static final int MAX_PUBLISH_ATTEMPTS = 3;
+
+    // events are handed over to a background publisher unless _asyncPublish is false
+    private static boolean _asyncPublish = true;
+    private static Integer publishQueueSize;
+    private static Integer publishBatchSize;
+    private static Integer channelPoolSize;
+    private static String overflowPolicy;
+    private static Integer overflowBlockTimeout;
+    private static Integer publishConfirmTimeout;
+
+    private BlockingQueue<Event> _publishQueue;
+    private RabbitMQChannelPool _channelPool;
+    private volatile boolean _publisherRunning = false;
+    private final AtomicLong _publishedEvents = new AtomicLong();
+    private final AtomicLong _droppedEvents = new AtomicLong();
+    private final AtomicLong _failedEvents = new AtomicLong();
+    private final AtomicLong _publishedBatches = new AtomicLong();
+
     private ExecutorService executorService;
+    // the publisher has an executor of its own, stopping it must not wait for or cancel reconnects
+    private ExecutorService _publishExecutor;
     private static DisconnectHandler disconnectHandler;
     private static final Logger s_logger = Logger.getLogger(RabbitMQEventBus.class);
 
@@ -93,13 +131,44 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
                 retryInterval = 10000;// default to 10s to try out reconnect
             }
 
+            if (publishQueueSize == null) {
+                publishQueueSize = 10000;
+            }
+
+            if (publishBatchSize == null) {
+                publishBatchSize = 100;
+            }
+
+            if (channelPoolSize == null) {
+                channelPoolSize = 4;
+            }
+
+            if (overflowBlockTimeout == null) {
+                overflowBlockTimeout = 100;
+            }
+
+            if (publishConfirmTimeout == null) {
+                publishConfirmTimeout = 10000;
+            }
+
+            if (overflowPolicy == null) {
+                overflowPolicy = OVERFLOW_DROP_NEWEST;
+            } else if (!OVERFLOW_DROP_NEWEST.equals(overflowPolicy) && !OVERFLOW_DROP_OLDEST.equals(overflowPolicy)
+                    && !OVERFLOW_BLOCK.equals(overflowPolicy)) {
+                throw new ConfigurationException("Invalid overflow policy " + overflowPolicy + ", should be one of "
+                        + OVERFLOW_DROP_NEWEST + ", " + OVERFLOW_DROP_OLDEST + ", " + OVERFLOW_BLOCK);
+            }
+
         } catch (NumberFormatException e) {
             throw new ConfigurationException("Invalid port number/retry interval");
         }
 
         _subscribers = new ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>>();
         executorService = Executors.newCachedThreadPool();
+        _publishExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("RabbitMQ-Publisher"));
         disconnectHandler = new DisconnectHandler();
+        _publishQueue = new ArrayBlockingQueue<Event>(publishQueueSize);
+        _channelPool = new RabbitMQChannelPool(channelPoolSize, amqpExchangeName, true);
 
         return true;
     }
@@ -132,6 +201,54 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         this.retryInterval = retryInterval;
     }
 
+    public void setAsyncPublish(boolean asyncPublish) {
+        this._asyncPublish = asyncPublish;
+    }
+
+    public void setPublishQueueSize(Integer publishQueueSize) {
+        this.publishQueueSize = publishQueueSize;
+    }
+
+    public void setPublishBatchSize(Integer publishBatchSize) {
+        this.publishBatchSize = publishBatchSize;
+    }
+
+    public void setChannelPoolSize(Integer channelPoolSize) {
+        this.channelPoolSize = channelPoolSize;
+    }
+
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setOverflowBlockTimeout(Integer overflowBlockTimeout) {
+        this.overflowBlockTimeout = overflowBlockTimeout;
+    }
+
+    public void setPublishConfirmTimeout(Integer publishConfirmTimeout) {
+        this.publishConfirmTimeout = publishConfirmTimeout;
+    }
+
+    public long getPublishedEventCount() {
+        return _publishedEvents.get();
+    }
+
+    public long getPublishedBatchCount() {
+        return _publishedBatches.get();
+    }
+
+    public long getDroppedEventCount() {
+        return _droppedEvents.get();
+    }
+
+    public long getFailedEventCount() {
+        return _failedEvents.get();
+    }
+
+    public int getPendingEventCount() {
+        return _publishQueue.size();
+    }
+
     /** Call to subscribe to interested set of events
      *
      * @param topic defines category and type of the events being subscribed to
@@ -231,20 +348,80 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     @Override
     public void publish(Event event) throws EventBusException {
 
-        String routingKey = createRoutingKey(event);
-        String eventDescription = event.getDescription();
+        if (!_asyncPublish) {
+            try {
+                publishEvents(Collections.singletonList(event));
+            } catch (AlreadyClosedException e) {
+                _failedEvents.incrementAndGet();
+                closeConnection();
+                throw new EventBusException("Failed to publish event to message broker as connection to AMQP broker in lost");
+            } catch (Exception e) {
+                _failedEvents.incrementAndGet();
+                throw new EventBusException("Failed to publish event to message broker due to " + e.getMessage());
+            }
+            return;
+        }
+
+        // never hold up the caller on the broker, the publisher thread drains the queue
+        boolean queued = _publishQueue.offer(event);
+        if (!queued) {
+            if (OVERFLOW_DROP_OLDEST.equals(overflowPolicy)) {
+                while (!queued) {
+                    if (_publishQueue.poll() != null) {
+                        onEventDropped();
+                    }
+                    queued = _publishQueue.offer(event);
+                }
+            } else if (OVERFLOW_BLOCK.equals(overflowPolicy)) {
+                try {
+                    queued = _publishQueue.offer(event, overflowBlockTimeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // treat as overflow
+                }
+            }
+        }
+
+        if (!queued) {
+            onEventDropped();
+        }
+    }
+
+    private void onEventDropped() {
+        long dropped = _droppedEvents.incrementAndGet();
+        if (dropped % 1000 == 1) {
+            s_logger.warn("Event publish queue is full, " + dropped + " events have been dropped so far");
+        }
+    }
 
+    /** publishes the events on a pooled channel, with publisher confirms the whole batch
+     *  is confirmed by the broker in a single round trip
+     */
+    private void publishEvents(List<Event> events) throws Exception {
+        Connection connection = getConnection();
+        Channel channel = _channelPool.borrowChannel(connection);
         try {
-            Connection connection = getConnection();
-            Channel channel = createChannel(connection);
-            createExchange(channel, amqpExchangeName);
-            publishEventToExchange(channel, amqpExchangeName, routingKey, eventDescription);
-            channel.close();
-        } catch (AlreadyClosedException e) {
-            closeConnection();
-            throw new EventBusException("Failed to publish event to message broker as connection to AMQP broker in lost");
+            for (Event event : events) {
+                publishEventToExchange(channel, amqpExchangeName, createRoutingKey(event), event.getDescription());
+            }
+            if (_channelPool.isPublisherConfirms()) {
+                try {
+                    if (!channel.waitForConfirms(publishConfirmTimeout)) {
+                        throw new IOException("AMQP broker did not confirm a batch of " + events.size() + " events");
+                    }
+                } catch (TimeoutException e) {
+                    throw new IOException("AMQP broker did not confirm a batch of " + events.size() + " events within " + publishConfirmTimeout + " ms");
+                }
+            }
+            _publishedEvents.addAndGet(events.size());
+            _publishedBatches.incrementAndGet();
         } catch (Exception e) {
-            throw new EventBusException("Failed to publish event to message broker due to " + e.getMessage());
+            _channelPool.invalidateChannel(channel);
+            channel = null;
+            throw e;
+        } finally {
+            if (channel != null) {
+                _channelPool.returnChannel(channel);
+            }
         }
     }
 
@@ -333,9 +510,13 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
+    protected ConnectionFactory createConnectionFactory() {
+        return new ConnectionFactory();
+    }
+
     private synchronized Connection createConnection() throws Exception {
         try {
-            ConnectionFactory factory = new ConnectionFactory();
+            ConnectionFactory factory = createConnectionFactory();
             factory.setUsername(username);
             factory.setPassword(password);
             factory.setVirtualHost("/");
@@ -343,6 +524,9 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
             factory.setPort(port);
             Connection connection = factory.newConnection();
             connection.addShutdownListener(disconnectHandler);
+            if (_channelPool != null) {
+                _channelPool.clear();
+            }
             _connection = connection;
             return _connection;
         } catch (Exception e) {
@@ -445,13 +629,34 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     public boolean start() {
         ReconnectionTask reconnect = new ReconnectionTask(); // initiate connection to AMQP server
         executorService.submit(reconnect);
+
+        if (_asyncPublish) {
+            _publisherRunning = true;
+            _publishExecutor.submit(new PublishTask());
+        }
         return true;
     }
 
     @Override
     public boolean stop() {
 
-        if (_connection.isOpen()) {
+        _publisherRunning = false;
+        _publishExecutor.shutdown();
+        try {
+            // give the publisher a chance to flush what is queued
+            _publishExecutor.awaitTermination(PUBLISH_FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+        }
+        _publishExecutor.shutdownNow();
+        executorService.shutdownNow();
+        try {
+            // a reconnect in progress must not leave a connection behind
+            executorService.awaitTermination(PUBLISH_FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+        }
+        _channelPool.clear();
+
+        if (_connection != null && _connection.isOpen()) {
             for (String subscriberId : _subscribers.keySet()) {
                 Ternary<String, Channel, EventSubscriber> subscriberDetails = _subscribers.get(subscriberId);
                 Channel channel =  subscriberDetails.second();
@@ -483,11 +688,16 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
                 }
 
                 abortConnection(); // disconnected to AMQP server, so abort the connection and channels
+                _channelPool.clear();
                 s_logger.warn("Connection has been shutdown by AMQP server. Attempting to reconnect.");
 
                 // initiate re-connect process
                 ReconnectionTask reconnect = new ReconnectionTask();
-                executorService.submit(reconnect);
+                try {
+                    executorService.submit(reconnect);
+                } catch (RejectedExecutionException e) {
+                    s_logger.info("Event bus is stopping, not reconnecting to AMQP server");
+                }
             }
         }
     }
@@ -506,6 +716,10 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
                 } catch (InterruptedException ie) {
                     // ignore timer interrupts
                 }
+                if (executorService.isShutdown()) {
+                    // the event bus is stopping
+                    return;
+                }
 
                 try {
                     try {
@@ -574,4 +788,69 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
             return;
         }
     }
-}
\ No newline at end of file
+
+    // drains the publish queue and publishes the events in batches
+    private class PublishTask implements Runnable {
+
+        @Override
+        public void run() {
+            // a batch stays pending until the broker has taken it or it is given up
+            List<Event> batch = new ArrayList<Event>(publishBatchSize);
+            int attempts = 0;
+            while (_publisherRunning || !_publishQueue.isEmpty() || !batch.isEmpty()) {
+                try {
+                    if (batch.isEmpty()) {
+                        Event event = _publishQueue.poll(1, TimeUnit.SECONDS);
+                        if (event == null) {
+                            continue;
+                        }
+                        batch.add(event);
+                        _publishQueue.drainTo(batch, publishBatchSize - 1);
+                        attempts = 0;
+                    }
+
+                    attempts++;
+                    publishEvents(batch);
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    // only stop() interrupts, once the flush timeout is over
+                    if (!_publisherRunning) {
+                        break;
+                    }
+                } catch (Exception e) {
+                    if (e instanceof AlreadyClosedException) {
+                        closeConnection();
+                    }
+                    if (attempts >= MAX_PUBLISH_ATTEMPTS) {
+                        _failedEvents.addAndGet(batch.size());
+                        s_logger.warn("Gave up publishing " + batch.size() + " events to message broker after " + attempts + " attempts, last error: "
+                                + e.getMessage());
+                        batch.clear();
+                    } else {
+                        s_logger.warn("Failed to publish " + batch.size() + " events to message broker due to " + e.getMessage() + ", will retry");
+                    }
+
+                    // back off to avoid spinning while the broker is unreachable, stop() interrupts once the flush timeout is over
+                    try {
+                        Thread.sleep(retryInterval);
+                    } catch (InterruptedException ie) {
+                        if (!_publisherRunning) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            // whatever is left could not be published before the event bus stopped
+            int lost = batch.size();
+            _failedEvents.addAndGet(batch.size());
+            while (_publishQueue.poll() != null) {
+                _droppedEvents.incrementAndGet();
+                lost++;
+            }
+            if (lost > 0) {
+                s_logger.warn("Event bus stopped with " + lost + " events not published to message broker");
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.apache.cloudstack.framework.events.Event;
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+public class RabbitMQEventBusTest extends TestCase {
+
+    private Connection _connection;
+    private Channel _channel;
+
+    private class StubbedRabbitMQEventBus extends RabbitMQEventBus {
+        @Override
+        protected ConnectionFactory createConnectionFactory() {
+            ConnectionFactory factory = mock(ConnectionFactory.class);
+            try {
+                when(factory.newConnection()).thenReturn(_connection);
+            } catch (Exception e) {
+                fail(e.getMessage());
+            }
+            return factory;
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        _channel = mock(Channel.class);
+        _connection = mock(Connection.class);
+        when(_connection.createChannel()).thenReturn(_channel);
+        when(_connection.isOpen()).thenReturn(true);
+        when(_channel.isOpen()).thenReturn(true);
+        when(_channel.getConnection()).thenReturn(_connection);
+        when(_channel.waitForConfirms(anyLong())).thenReturn(true);
+    }
+
+    private RabbitMQEventBus createEventBus(boolean async, int queueSize, String overflowPolicy) throws Exception {
+        RabbitMQEventBus bus = new StubbedRabbitMQEventBus();
+        bus.setServer("127.0.0.1");
+        bus.setPort(5672);
+        bus.setUsername("guest");
+        bus.setPassword("guest");
+        bus.setExchange("cloudstack-events");
+        bus.setRetryInterval(100);
+        bus.setAsyncPublish(async);
+        bus.setPublishQueueSize(queueSize);
+        bus.setPublishBatchSize(50);
+        bus.setChannelPoolSize(2);
+        bus.setOverflowPolicy(overflowPolicy);
+        bus.setPublishConfirmTimeout(1000);
+        bus.configure("eventNotificationBus", new HashMap<String, Object>());
+        return bus;
+    }
+
+    private Event createEvent(int index) {
+        Event event = new Event("management-server", "ActionEvent", "VM.CREATE", "VirtualMachine", "uuid-" + index);
+        event.setDescription("{\"id\":" + index + "}");
+        return event;
+    }
+
+    @Test
+    public void testSyncPublishReusesChannel() throws Exception {
+        RabbitMQEventBus bus = createEventBus(false, 10, RabbitMQEventBus.OVERFLOW_DROP_NEWEST);
+        for (int i = 0; i < 100; i++) {
+            bus.publish(createEvent(i));
+        }
+
+        verify(_connection, times(1)).createChannel();
+        verify(_channel, times(1)).exchangeDeclare("cloudstack-events", "topic", true);
+        verify(_channel, times(1)).confirmSelect();
+        verify(_channel, times(100)).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+        assertEquals(100, bus.getPublishedEventCount());
+        bus.stop();
+    }
+
+    @Test
+    public void testAsyncPublishBatchesConfirms() throws Exception {
+        RabbitMQEventBus bus = createEventBus(true, 1000, RabbitMQEventBus.OVERFLOW_DROP_NEWEST);
+        for (int i = 0; i < 500; i++) {
+            bus.publish(createEvent(i));
+        }
+        bus.start();
+        bus.stop();
+
+        assertEquals(500, bus.getPublishedEventCount());
+        assertEquals(0, bus.getDroppedEventCount());
+        verify(_channel, times(500)).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+        // 50 events per batch, one confirm round trip per batch
+        verify(_channel, atMost(10)).waitForConfirms(anyLong());
+    }
+
+    @Test
+    public void testUnconfirmedBatchIsRetried() throws Exception {
+        // the broker nacks the first batch
+        when(_channel.waitForConfirms(anyLong())).thenReturn(false).thenReturn(true);
+        RabbitMQEventBus bus = createEventBus(true, 1000, RabbitMQEventBus.OVERFLOW_DROP_NEWEST);
+        for (int i = 0; i < 100; i++) {
+            bus.publish(createEvent(i));
+        }
+        bus.start();
+        bus.stop();
+
+        assertEquals(100, bus.getPublishedEventCount());
+        assertEquals(0, bus.getFailedEventCount());
+        verify(_channel, times(150)).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+    }
+
+    @Test
+    public void testTimedOutConfirmIsRetried() throws Exception {
+        // the broker does not confirm the first batch in time
+        when(_channel.waitForConfirms(anyLong())).thenThrow(new TimeoutException()).thenReturn(true);
+        RabbitMQEventBus bus = createEventBus(true, 1000, RabbitMQEventBus.OVERFLOW_DROP_NEWEST);
+        for (int i = 0; i < 50; i++) {
+            bus.publish(createEvent(i));
+        }
+        bus.start();
+        bus.stop();
+
+        assertEquals(50, bus.getPublishedEventCount());
+        assertEquals(0, bus.getFailedEventCount());
+        verify(_channel, times(2)).waitForConfirms(1000);
+        verify(_channel, times(100)).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+    }
+
+    @Test
+    public void testEventsLeftAtStopAreCounted() throws Exception {
+        when(_channel.waitForConfirms(anyLong())).thenReturn(false);
+        RabbitMQEventBus bus = createEventBus(true, 1000, RabbitMQEventBus.OVERFLOW_DROP_NEWEST);
+        for (int i = 0; i < 200; i++) {
+            bus.publish(createEvent(i));
+        }
+        bus.start();
+        bus.stop();
+
+        assertEquals(0, bus.getPublishedEventCount());
+        assertEquals(0, bus.getPendingEventCount());
+        assertEquals(200, bus.getFailedEventCount() + bus.getDroppedEventCount());
+    }
+
+    @Test
+    public void testOverflowPolicies() throws Exception {
+        RabbitMQEventBus bus = createEventBus(true, 10, RabbitMQEventBus.OVERFLOW_DROP_NEWEST);
+        for (int i = 0; i < 25; i++) {
+            bus.publish(createEvent(i));
+        }
+        assertEquals(10, bus.getPendingEventCount());
+        assertEquals(15, bus.getDroppedEventCount());
+
+        bus = createEventBus(true, 10, RabbitMQEventBus.OVERFLOW_DROP_OLDEST);
+        for (int i = 0; i < 25; i++) {
+            bus.publish(createEvent(i));
+        }
+        assertEquals(10, bus.getPendingEventCount());
+        assertEquals(15, bus.getDroppedEventCount());
+
+        bus = createEventBus(true, 10, RabbitMQEventBus.OVERFLOW_BLOCK);
+        bus.setOverflowBlockTimeout(1);
+        for (int i = 0; i < 11; i++) {
+            bus.publish(createEvent(i));
+        }
+        assertEquals(1, bus.getDroppedEventCount());
+        bus.stop();
+    }
+
+    @Test
+    public void testInvalidOverflowPolicy() throws Exception {
+        try {
+            createEventBus(true, 10, "discard");
+            fail("configure should reject an unknown overflow policy");
+        } catch (javax.naming.ConfigurationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,342 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.utils.script.Script;
+
+/**
+ * Programs the security group chains of the VMs on the host with one iptables-restore and one
+ * ipset restore, instead of security_group.py adding the rules one iptables call at a time.
+ *
+ * The host keeps the desired rules of every VM. For each rule the allowed CIDRs (peer groups
+ * arrive resolved to addresses) go into an ipset, so a rule is a single iptables rule however
+ * many CIDRs it has; sets are refilled through a temporary set and swapped in. The iptables file
+ * only declares the VM chains ("vm" for ingress, "vm-eg" for egress) and is restored with
+ * --noflush, the rest of the filter table, including the default chains security_group.py sets up
+ * when the VM starts, is left alone. In dry run mode the files are only written, so they can be
+ * compared with what the script programs.
+ */
+public class BulkSecurityGroupRules {
+    private static final Logger s_logger = Logger.getLogger(BulkSecurityGroupRules.class);
+
+    public static final String IpsetFilename = "ipset.rules";
+    public static final String IptablesFilename = "iptables.rules";
+    public static final String IpsetCleanupFilename = "ipset-cleanup.rules";
+
+    // ipset names are limited to 31 characters, the temporary set adds 2
+    private static final int MAX_SET_PREFIX = 24;
+
+    private static class Rule {
+        boolean egress;
+        String proto;
+        int startPort;
+        int endPort;
+        boolean allowAny;
+        List<String> cidrs = new ArrayList<String>();
+        String set;
+    }
+
+    private static class VmRules {
+        List<Rule> rules = new ArrayList<Rule>();
+        // sets referenced by the rules that were last restored
+        Set<String> programmedSets = new TreeSet<String>();
+    }
+
+    private final Map<String, VmRules> _vms = new TreeMap<String, VmRules>();
+    private final File _dir;
+    private final boolean _dryRun;
+    private final int _timeout;
+
+    public BulkSecurityGroupRules(File dir, boolean dryRun, int timeout) {
+        _dir = dir;
+        _dryRun = dryRun;
+        _timeout = timeout;
+    }
+
+    public boolean isDryRun() {
+        return _dryRun;
+    }
+
+    public File getDirectory() {
+        return _dir;
+    }
+
+    /**
+     * Replaces the desired rules of a VM, nothing is programmed until {@link #apply(Collection)}.
+     */
+    public synchronized void setRules(String vmName, IpPortAndProto[] ingress, IpPortAndProto[] egress) {
+        VmRules vm = _vms.get(vmName);
+        if (vm == null) {
+            vm = new VmRules();
+            _vms.put(vmName, vm);
+        }
+        vm.rules.clear();
+        String prefix = getSetPrefix(vmName);
+        addRules(vm, prefix, false, ingress);
+        addRules(vm, prefix, true, egress);
+    }
+
+    /**
+     * Forgets a VM whose chains are gone, and destroys its sets.
+     */
+    public synchronized void removeVm(String vmName) {
+        VmRules vm = _vms.remove(vmName);
+        if (vm == null || vm.programmedSets.isEmpty()) {
+            return;
+        }
+        StringBuilder cleanup = new StringBuilder();
+        for (String set : vm.programmedSets) {
+            cleanup.append("destroy ").append(set).append('\n');
+        }
+        try {
+            restore(IpsetCleanupFilename, cleanup.toString(), "ipset -! restore");
+        } catch (IOException e) {
+            s_logger.warn("Unable to destroy the ipsets of " + vmName + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized Set<String> getVmNames() {
+        return new TreeSet<String>(_vms.keySet());
+    }
+
+    /**
+     * Programs the chains and sets of the VMs in one go.
+     *
+     * @return false if the rules could not be restored, the chains are then left as they were
+     */
+    public synchronized boolean apply(Collection<String> vmNames) {
+        Collection<String> names = new TreeSet<String>(vmNames);
+        names.retainAll(_vms.keySet());
+        if (names.isEmpty()) {
+            return true;
+        }
+        try {
+            restore(IpsetFilename, getIpsetRules(names), "ipset -! restore");
+            restore(IptablesFilename, getIptablesRules(names), "iptables-restore --noflush");
+        } catch (IOException e) {
+            s_logger.warn("Failed to program the security group rules of " + names + ": " + e.getMessage());
+            return false;
+        }
+
+        // sets of rules that went away are no longer referenced by the chains
+        StringBuilder cleanup = new StringBuilder();
+        for (String name : names) {
+            VmRules vm = _vms.get(name);
+            Set<String> sets = getSets(vm);
+            for (String set : vm.programmedSets) {
+                if (!sets.contains(set)) {
+                    cleanup.append("destroy ").append(set).append('\n');
+                }
+            }
+            vm.programmedSets = sets;
+        }
+        if (cleanup.length() > 0) {
+            try {
+                restore(IpsetCleanupFilename, cleanup.toString(), "ipset -! restore");
+            } catch (IOException e) {
+                s_logger.debug("Unable to destroy unused ipsets: " + e.getMessage());
+            }
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Programmed the security group rules of " + names.size() + " vms" + (_dryRun ? " (dry run) in " + _dir.getAbsolutePath() : ""));
+        }
+        return true;
+    }
+
+    /**
+     * @return the input of ipset restore that fills the sets of the VMs
+     */
+    public synchronized String getIpsetRules(Collection<String> vmNames) {
+        StringBuilder sb = new StringBuilder();
+        for (String vmName : new TreeSet<String>(vmNames)) {
+            VmRules vm = _vms.get(vmName);
+            if (vm == null) {
+                continue;
+            }
+            for (Rule rule : vm.rules) {
+                if (rule.set == null) {
+                    continue;
+                }
+                String tmp = rule.set + "-t";
+                sb.append("create ").append(rule.set).append(" hash:net family inet -exist\n");
+                sb.append("create ").append(tmp).append(" hash:net family inet -exist\n");
+                sb.append("flush ").append(tmp).append('\n');
+                for (String cidr : rule.cidrs) {
+                    sb.append("add ").append(tmp).append(' ').append(cidr).append('\n');
+                }
+                sb.append("swap ").append(tmp).append(' ').append(rule.set).append('\n');
+                sb.append("destroy ").append(tmp).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the input of iptables-restore --noflush that rebuilds the chains of the VMs
+     */
+    public synchronized String getIptablesRules(Collection<String> vmNames) {
+        Set<String> names = new TreeSet<String>(vmNames);
+        StringBuilder sb = new StringBuilder("*filter\n");
+        for (String vmName : names) {
+            if (_vms.containsKey(vmName)) {
+                sb.append(':').append(vmName).append(" - [0:0]\n");
+                sb.append(':').append(egressChain(vmName)).append(" - [0:0]\n");
+            }
+        }
+        for (String vmName : names) {
+            VmRules vm = _vms.get(vmName);
+            if (vm == null) {
+                continue;
+            }
+            boolean hasEgress = false;
+            for (Rule rule : vm.rules) {
+                hasEgress |= rule.egress;
+                if (rule.set != null) {
+                    appendRule(sb, vmName, rule, "-m set --match-set " + rule.set + (rule.egress ? " dst" : " src"));
+                }
+                if (rule.allowAny) {
+                    appendRule(sb, vmName, rule, null);
+                }
+            }
+            sb.append("-A ").append(egressChain(vmName)).append(hasEgress ? " -j DROP\n" : " -j RETURN\n");
+            sb.append("-A ").append(vmName).append(" -j DROP\n");
+        }
+        sb.append("COMMIT\n");
+        return sb.toString();
+    }
+
+    static String egressChain(String vmName) {
+        return vmName + "-eg";
+    }
+
+    private static void appendRule(StringBuilder sb, String vmName, Rule rule, String match) {
+        sb.append("-A ").append(rule.egress ? egressChain(vmName) : vmName);
+        if ("icmp".equals(rule.proto)) {
+            sb.append(" -p icmp --icmp-type ");
+            if (rule.startPort == -1) {
+                sb.append("any");
+            } else if (rule.endPort == -1) {
+                sb.append(rule.startPort);
+            } else {
+                sb.append(rule.startPort).append('/').append(rule.endPort);
+            }
+        } else {
+            if (!"all".equals(rule.proto)) {
+                sb.append(" -p ").append(rule.proto).append(" -m ").append(rule.proto).append(" --dport ").append(rule.startPort).append(':').append(rule.endPort);
+            }
+            sb.append(" -m state --state NEW");
+        }
+        if (match != null) {
+            sb.append(' ').append(match);
+        }
+        sb.append(rule.egress ? " -j RETURN\n" : " -j ACCEPT\n");
+    }
+
+    private static void addRules(VmRules vm, String prefix, boolean egress, IpPortAndProto[] rules) {
+        if (rules == null) {
+            return;
+        }
+        int index = 0;
+        for (IpPortAndProto ipp : rules) {
+            Rule rule = new Rule();
+            rule.egress = egress;
+            rule.proto = ipp.getProto();
+            rule.startPort = ipp.getStartPort();
+            rule.endPort = ipp.getEndPort();
+            Set<String> seen = new HashSet<String>();
+            if (ipp.getAllowedCidrs() != null) {
+                for (String cidr : ipp.getAllowedCidrs()) {
+                    if ("0.0.0.0/0".equals(cidr)) {
+                        rule.allowAny = true;
+                    } else if (seen.add(cidr)) {
+                        rule.cidrs.add(cidr);
+                    }
+                }
+            }
+            if (!rule.cidrs.isEmpty()) {
+                rule.set = prefix + (egress ? "e" : "i") + index++;
+            }
+            vm.rules.add(rule);
+        }
+    }
+
+    private static Set<String> getSets(VmRules vm) {
+        Set<String> sets = new TreeSet<String>();
+        for (Rule rule : vm.rules) {
+            if (rule.set != null) {
+                sets.add(rule.set);
+            }
+        }
+        return sets;
+    }
+
+    private static String getSetPrefix(String vmName) {
+        String prefix = vmName + "-";
+        if (prefix.length() > MAX_SET_PREFIX - 4) {
+            prefix = "sg-" + Integer.toHexString(vmName.hashCode()) + "-";
+        }
+        return prefix;
+    }
+
+    private void restore(String filename, String content, String command) throws IOException {
+        File file = new File(_dir, filename);
+        if (!_dir.exists() && !_dir.mkdirs()) {
+            throw new IOException("Unable to create " + _dir.getAbsolutePath());
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "US-ASCII");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        if (_dryRun) {
+            return;
+        }
+        String result = execute(command + " < " + file.getAbsolutePath());
+        if (result != null) {
+            throw new IOException(command + " failed: " + result);
+        }
+    }
+
+    /**
+     * @return null on success, the error otherwise
+     */
+    protected String execute(String command) {
+        Script script = new Script("/bin/bash", _timeout, s_logger);
+        script.add("-c");
+        script.add(command);
+        return script.execute();
+    }
+}
@@ -287,6 +287,9 @@ ServerResource {
     private String _createTmplPath;
     private String _heartBeatPath;
     private String _securityGroupPath;
+    // null unless the security group rules are programmed in bulk
+    private BulkSecurityGroupRules _bulkSecurityGroupRules;
+    private static final String s_ruleLogPath = "/var/run/cloud/";
     private String _ovsPvlanDhcpHostPath;
     private String _ovsPvlanVmPath;
     private String _routerProxyPath;
@@ -373,6 +376,7 @@ ServerResource {
     protected String _guestCpuModel;
     private final Map <String, String> _pifs = new HashMap<String, String>();
     private final Map<String, vmStats> _vmStats = new ConcurrentHashMap<String, vmStats>();
+    protected final LibvirtDomainDeviceCache _domainDevices = new LibvirtDomainDeviceCache();
 
     protected boolean _disconnected = true;
     protected int _timeout;
@@ -823,6 +827,15 @@ ServerResource {
 
         _can_bridge_firewall = can_bridge_firewall(_pifs.get("public"));
 
+        value = (String) params.get("network.securitygroup.bulk");
+        if (Boolean.parseBoolean(value)) {
+            value = (String) params.get("network.securitygroup.bulk.dir");
+            File dir = new File(value != null ? value : s_ruleLogPath + "sg");
+            boolean dryRun = Boolean.parseBoolean((String) params.get("network.securitygroup.bulk.dryrun"));
+            _bulkSecurityGroupRules = new BulkSecurityGroupRules(dir, dryRun, _timeout);
+            s_logger.info("Security group rules are programmed with iptables-restore and ipsets" + (dryRun ? ", dry run into " + dir.getAbsolutePath() : ""));
+        }
+
         _localGateway = Script
                 .runSimpleBashScript("ip route |grep default|awk '{print $3}'");
         if (_localGateway == null) {
@@ -1151,6 +1164,7 @@ ServerResource {
                 }
             }
 
+            _domainDevices.invalidate(vmName);
             conn.domainCreateXML(domainXML, 0);
         } catch (final LibvirtException e) {
             throw e;
@@ -1735,6 +1749,7 @@ ServerResource {
 
         Domain vm = getDomain(conn, vmName);
         vm.attachDevice(getVifDriver(nicTO.getType()).plug(nicTO, "Other PV (32-bit)").toString());
+        _domainDevices.invalidate(vmName);
     }
 
     private PlugNicAnswer execute(PlugNicCommand cmd) {
@@ -1754,6 +1769,7 @@ ServerResource {
                 nicnum++;
             }
             vm.attachDevice(getVifDriver(nic.getType()).plug(nic, "Other PV (32-bit)").toString());
+            _domainDevices.invalidate(vmName);
             return new PlugNicAnswer(cmd, true, "success");
         } catch (LibvirtException e) {
             String msg = " Plug Nic failed due to " + e.toString();
@@ -1786,6 +1802,7 @@ ServerResource {
             for (InterfaceDef pluggedNic : pluggedNics) {
                 if (pluggedNic.getMacAddress().equalsIgnoreCase(nic.getMac())) {
                     vm.detachDevice(pluggedNic.toString());
+                    _domainDevices.invalidate(vmName);
                     // We don't know which "traffic type" is associated with
                     // each interface at this point, so inform all vif drivers
                     for(VifDriver vifDriver : getAllVifDrivers()){
@@ -2646,10 +2663,20 @@ ServerResource {
             return new SecurityGroupRuleAnswer(cmd, false, e.toString());
         }
 
-        boolean result = add_network_rules(cmd.getVmName(),
-                Long.toString(cmd.getVmId()), cmd.getGuestIp(),
-                cmd.getSignature(), Long.toString(cmd.getSeqNum()),
-                cmd.getGuestMac(), cmd.stringifyRules(), vif, brname, cmd.getSecIpsString());
+        boolean result;
+        if (_bulkSecurityGroupRules != null && !_bulkSecurityGroupRules.isDryRun()) {
+            result = program_network_rules(cmd, vif, brname);
+        } else {
+            if (_bulkSecurityGroupRules != null) {
+                // only write the files, to compare them with what the script programs
+                _bulkSecurityGroupRules.setRules(cmd.getVmName(), cmd.getIngressRuleSet(), cmd.getEgressRuleSet());
+                _bulkSecurityGroupRules.apply(Collections.singletonList(cmd.getVmName()));
+            }
+            result = add_network_rules(cmd.getVmName(),
+                    Long.toString(cmd.getVmId()), cmd.getGuestIp(),
+                    cmd.getSignature(), Long.toString(cmd.getSeqNum()),
+                    cmd.getGuestMac(), cmd.stringifyRules(), vif, brname, cmd.getSecIpsString());
+        }
 
         if (!result) {
             s_logger.warn("Failed to program network rules for vm "
@@ -2667,6 +2694,9 @@ ServerResource {
 
     private Answer execute(CleanupNetworkRulesCmd cmd) {
         boolean result = cleanup_rules();
+        if (_bulkSecurityGroupRules != null) {
+            result = reconcile_network_rules() && result;
+        }
         return new Answer(cmd, result, "");
     }
 
@@ -2917,6 +2947,7 @@ ServerResource {
                 _vms.put(vmName, state);
             }
         } else {
+            _domainDevices.invalidate(vmName);
             destroy_network_rules_for_vm(conn, vmName);
             for (InterfaceDef iface : ifaces) {
                 // We don't know which "traffic type" is associated with
@@ -3191,16 +3222,28 @@ ServerResource {
     protected GetVmStatsAnswer execute(GetVmStatsCommand cmd) {
         List<String> vmNames = cmd.getVmNames();
         try {
+            long start = System.currentTimeMillis();
             HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>();
+            // the cpu count of the host is the same for all VMs, ask once per connection
+            Map<Connect, Integer> hostCpus = new HashMap<Connect, Integer>();
             for (String vmName : vmNames) {
                 Connect conn = LibvirtConnection.getConnectionByVmName(vmName);
-                VmStatsEntry statEntry = getVmStat(conn, vmName);
+                Integer cpus = hostCpus.get(conn);
+                if (cpus == null) {
+                    cpus = conn.nodeInfo().cpus;
+                    hostCpus.put(conn, cpus);
+                }
+                VmStatsEntry statEntry = getVmStat(conn, vmName, cpus);
                 if (statEntry == null) {
                     continue;
                 }
 
                 vmStatsNameMap.put(vmName, statEntry);
             }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Collected stats of " + vmNames.size() + " vms in " + (System.currentTimeMillis() - start) + " ms, device definitions cached for "
+                        + _domainDevices.size() + " domains");
+            }
             return new GetVmStatsAnswer(cmd, vmStatsNameMap);
         } catch (LibvirtException e) {
             s_logger.debug("Can't get vm stats: " + e.toString());
@@ -3225,6 +3268,7 @@ ServerResource {
             destroy_network_rules_for_vm(conn, vmName);
             String result = stopVM(conn, vmName);
             if (result == null) {
+                _domainDevices.invalidate(vmName);
                 for (DiskDef disk : disks) {
                     if (disk.getDeviceType() == DiskDef.deviceType.CDROM
                             && disk.getDiskPath() != null) {
@@ -3876,6 +3920,7 @@ ServerResource {
             }
             throw e;
         } finally {
+            _domainDevices.invalidate(vmName);
             if (dm != null) {
                 try {
                     dm.free();
@@ -4656,7 +4701,7 @@ ServerResource {
 
             List<VmDiskStatsEntry> stats = new ArrayList<VmDiskStatsEntry>();
 
-            List<DiskDef> disks = getDisks(conn, vmName);
+            List<DiskDef> disks = _domainDevices.getDevices(dm, vmName).getDisks();
 
             for (DiskDef disk : disks) {
                 DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
@@ -4691,12 +4736,13 @@ ServerResource {
         Calendar _timestamp;
     }
 
-    private VmStatsEntry getVmStat(Connect conn, String vmName)
+    protected VmStatsEntry getVmStat(Connect conn, String vmName, int hostCpus)
             throws LibvirtException {
         Domain dm = null;
         try {
             dm = getDomain(conn, vmName);
             DomainInfo info = dm.getInfo();
+            LibvirtDomainDeviceCache.Devices devices = _domainDevices.getDevices(dm, vmName);
 
             VmStatsEntry stats = new VmStatsEntry();
             stats.setNumCPUs(info.nrVirtCpu);
@@ -4716,8 +4762,7 @@ ServerResource {
                 double utilization = (info.cpuTime - oldStats._usedTime)
                         / ((double) elapsedTime * 1000000);
 
-                NodeInfo node = conn.nodeInfo();
-                utilization = utilization / node.cpus;
+                utilization = utilization / hostCpus;
                 if(utilization > 0){
                     stats.setCPUUtilization(utilization * 100);
                 }
@@ -4725,7 +4770,7 @@ ServerResource {
 
             /* get network stats */
 
-            List<InterfaceDef> vifs = getInterfaces(conn, vmName);
+            List<InterfaceDef> vifs = devices.getInterfaces();
             long rx = 0;
             long tx = 0;
             for (InterfaceDef vif : vifs) {
@@ -4745,7 +4790,7 @@ ServerResource {
             }
 
             /* get disk stats */
-            List<DiskDef> disks = getDisks(conn, vmName);
+            List<DiskDef> disks = devices.getDisks();
             long io_rd = 0;
             long io_wr = 0;
             long bytes_rd = 0;
@@ -4820,6 +4865,10 @@ ServerResource {
             cmd.add("--vif", vif);
         }
         String result = cmd.execute();
+        if (_bulkSecurityGroupRules != null) {
+            // the chains referencing the sets are gone now
+            _bulkSecurityGroupRules.removeVm(vmName);
+        }
         if (result != null) {
             return false;
         }
@@ -4941,6 +4990,124 @@ ServerResource {
         return true;
     }
 
+    /**
+     * Bulk counterpart of add_network_rules: the chains of the VM are restored in one go, the
+     * default rules and the rule log are handled like security_group.py does.
+     */
+    private boolean program_network_rules(SecurityGroupRulesCmd cmd, String vif, String brname) {
+        if (!_can_bridge_firewall) {
+            return false;
+        }
+
+        String vmName = cmd.getVmName();
+        String vmId = Long.toString(cmd.getVmId());
+        String seq = Long.toString(cmd.getSeqNum());
+        String domId;
+        Domain dm = null;
+        try {
+            Connect conn = LibvirtConnection.getConnectionByVmName(vmName);
+            dm = getDomain(conn, vmName);
+            domId = Integer.toString(dm.getID());
+        } catch (LibvirtException e) {
+            s_logger.debug("Failed to look up " + vmName + ": " + e.toString());
+            return false;
+        } finally {
+            try {
+                if (dm != null) {
+                    dm.free();
+                }
+            } catch (LibvirtException e) {
+                s_logger.trace("Ignoring libvirt error.", e);
+            }
+        }
+
+        _bulkSecurityGroupRules.setRules(vmName, cmd.getIngressRuleSet(), cmd.getEgressRuleSet());
+
+        String[] log = get_rule_log_for_vm(vmName);
+        boolean restarted = log == null || !log[0].equals(vmName) || !log[1].equals(vmId) || !log[2].equals(cmd.getGuestIp()) || !log[3].equals(domId);
+        if (!restarted && log[4].equals(cmd.getSignature()) && log[5].equals(seq)) {
+            s_logger.debug("Rules already programmed for vm " + vmName);
+            return true;
+        }
+
+        if (restarted) {
+            Script script = new Script(_securityGroupPath, _timeout, s_logger);
+            script.add("default_network_rules");
+            script.add("--vmname", vmName);
+            script.add("--vmid", vmId);
+            script.add("--vmip", cmd.getGuestIp());
+            script.add("--vmmac", cmd.getGuestMac());
+            script.add("--vif", vif);
+            script.add("--brname", brname);
+            script.add("--nicsecips", cmd.getSecIpsString());
+            if (script.execute() != null) {
+                return false;
+            }
+        }
+
+        if (!_bulkSecurityGroupRules.apply(Collections.singletonList(vmName))) {
+            return false;
+        }
+        return write_rule_log_for_vm(vmName, vmId, cmd.getGuestIp(), domId, cmd.getSignature(), seq);
+    }
+
+    /**
+     * Forgets the rules of VMs that are no longer running and restores the chains of all others in
+     * one go.
+     */
+    private boolean reconcile_network_rules() {
+        Set<String> running = new HashSet<String>();
+        try {
+            Connect conn = LibvirtConnection.getConnection();
+            for (int id : conn.listDomains()) {
+                Domain dm = conn.domainLookupByID(id);
+                try {
+                    running.add(dm.getName());
+                } finally {
+                    dm.free();
+                }
+            }
+        } catch (LibvirtException e) {
+            s_logger.debug("Unable to list the running vms: " + e.toString());
+            return false;
+        }
+
+        Set<String> vmNames = _bulkSecurityGroupRules.getVmNames();
+        for (String vmName : vmNames) {
+            if (!running.contains(vmName)) {
+                _bulkSecurityGroupRules.removeVm(vmName);
+            }
+        }
+        vmNames.retainAll(running);
+        return _bulkSecurityGroupRules.apply(vmNames);
+    }
+
+    // same format as the rule logs security_group.py keeps, they are reported by get_rule_logs_for_vms
+    private String[] get_rule_log_for_vm(String vmName) {
+        File log = new File(s_ruleLogPath + vmName + ".log");
+        if (!log.exists()) {
+            return null;
+        }
+        try {
+            String[] fields = FileUtils.readFileToString(log).trim().split(",");
+            return fields.length == 6 ? fields : null;
+        } catch (IOException e) {
+            s_logger.debug("Failed to read rule log " + log.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean write_rule_log_for_vm(String vmName, String vmId, String vmIp, String domId, String signature, String seq) {
+        File log = new File(s_ruleLogPath + vmName + ".log");
+        try {
+            FileUtils.writeStringToFile(log, vmName + "," + vmId + "," + vmIp + "," + domId + "," + signature + "," + seq + "\n");
+            return true;
+        } catch (IOException e) {
+            s_logger.debug("Failed to write rule log " + log.getAbsolutePath() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
     private boolean network_rules_vmSecondaryIp (Connect conn, String vmName, String secIp, String action) {
 
         if (!_can_bridge_firewall) {
@@ -0,0 +1,109 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+
+/**
+ * Parsed disk and interface definitions of the running domains, so collecting statistics does not
+ * dump and parse the domain XML of every VM on every request.
+ *
+ * An entry is tied to the id libvirt gave the domain when it was started, a domain that was
+ * restarted behind our back is parsed again. Attaching or detaching devices keeps the id, the
+ * resource invalidates the entry of the VM whenever it changes the devices or the life cycle of
+ * the domain.
+ */
+public class LibvirtDomainDeviceCache {
+    private static final Logger s_logger = Logger.getLogger(LibvirtDomainDeviceCache.class);
+
+    public static class Devices {
+        private final int _domainId;
+        private final List<InterfaceDef> _interfaces;
+        private final List<DiskDef> _disks;
+
+        Devices(int domainId, List<InterfaceDef> interfaces, List<DiskDef> disks) {
+            _domainId = domainId;
+            _interfaces = interfaces;
+            _disks = disks;
+        }
+
+        public List<InterfaceDef> getInterfaces() {
+            return _interfaces;
+        }
+
+        public List<DiskDef> getDisks() {
+            return _disks;
+        }
+    }
+
+    private final Map<String, Devices> _devices = new ConcurrentHashMap<String, Devices>();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+
+    /**
+     * @return the devices of the domain, parsed from its XML description if they are not cached
+     */
+    public Devices getDevices(Domain dm, String vmName) throws LibvirtException {
+        int domainId = dm.getID();
+        Devices devices = _devices.get(vmName);
+        if (devices != null && devices._domainId == domainId) {
+            _hits.incrementAndGet();
+            return devices;
+        }
+        _misses.incrementAndGet();
+
+        LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+        if (!parser.parseDomainXML(dm.getXMLDesc(0))) {
+            // do not remember a definition that could not be parsed
+            s_logger.debug("Unable to parse the definition of " + vmName);
+            _devices.remove(vmName);
+            return new Devices(domainId, parser.getInterfaces(), parser.getDisks());
+        }
+        devices = new Devices(domainId, parser.getInterfaces(), parser.getDisks());
+        // inactive domains have id -1, their definition may still change
+        if (domainId >= 0) {
+            _devices.put(vmName, devices);
+        }
+        return devices;
+    }
+
+    public void invalidate(String vmName) {
+        _devices.remove(vmName);
+    }
+
+    public int size() {
+        return _devices.size();
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+}
@@ -0,0 +1,176 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+
+public class BulkSecurityGroupRulesTest {
+    private File _dir;
+
+    @Before
+    public void setUp() throws IOException {
+        _dir = File.createTempFile("bulk", "sg");
+        _dir.delete();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(_dir);
+    }
+
+    @Test
+    public void testDryRunFiles() throws Exception {
+        BulkSecurityGroupRules rules = new BulkSecurityGroupRules(_dir, true, 1000);
+        rules.setRules("i-2-5-VM", new IpPortAndProto[] {
+                rule("tcp", 22, 22, "10.1.0.0/16", "192.168.1.5/32", "10.1.0.0/16"),
+                rule("tcp", 80, 443, "0.0.0.0/0"),
+                rule("icmp", -1, -1, "10.1.0.0/16"),
+                rule("udp", 53, 53, "0.0.0.0/0", "172.16.0.1/32")
+        }, new IpPortAndProto[0]);
+        rules.setRules("i-3-7-VM", new IpPortAndProto[] {
+                rule("icmp", 8, 0, "0.0.0.0/0")
+        }, new IpPortAndProto[] {
+                rule("all", 0, 0, "10.0.0.0/8")
+        });
+
+        assertTrue(rules.apply(Arrays.asList("i-3-7-VM", "i-2-5-VM")));
+
+        assertEquals("create i-2-5-VM-i0 hash:net family inet -exist\n"
+                + "create i-2-5-VM-i0-t hash:net family inet -exist\n"
+                + "flush i-2-5-VM-i0-t\n"
+                + "add i-2-5-VM-i0-t 10.1.0.0/16\n"
+                + "add i-2-5-VM-i0-t 192.168.1.5/32\n"
+                + "swap i-2-5-VM-i0-t i-2-5-VM-i0\n"
+                + "destroy i-2-5-VM-i0-t\n"
+                + "create i-2-5-VM-i1 hash:net family inet -exist\n"
+                + "create i-2-5-VM-i1-t hash:net family inet -exist\n"
+                + "flush i-2-5-VM-i1-t\n"
+                + "add i-2-5-VM-i1-t 10.1.0.0/16\n"
+                + "swap i-2-5-VM-i1-t i-2-5-VM-i1\n"
+                + "destroy i-2-5-VM-i1-t\n"
+                + "create i-2-5-VM-i2 hash:net family inet -exist\n"
+                + "create i-2-5-VM-i2-t hash:net family inet -exist\n"
+                + "flush i-2-5-VM-i2-t\n"
+                + "add i-2-5-VM-i2-t 172.16.0.1/32\n"
+                + "swap i-2-5-VM-i2-t i-2-5-VM-i2\n"
+                + "destroy i-2-5-VM-i2-t\n"
+                + "create i-3-7-VM-e0 hash:net family inet -exist\n"
+                + "create i-3-7-VM-e0-t hash:net family inet -exist\n"
+                + "flush i-3-7-VM-e0-t\n"
+                + "add i-3-7-VM-e0-t 10.0.0.0/8\n"
+                + "swap i-3-7-VM-e0-t i-3-7-VM-e0\n"
+                + "destroy i-3-7-VM-e0-t\n", read(BulkSecurityGroupRules.IpsetFilename));
+
+        assertEquals("*filter\n"
+                + ":i-2-5-VM - [0:0]\n"
+                + ":i-2-5-VM-eg - [0:0]\n"
+                + ":i-3-7-VM - [0:0]\n"
+                + ":i-3-7-VM-eg - [0:0]\n"
+                + "-A i-2-5-VM -p tcp -m tcp --dport 22:22 -m state --state NEW -m set --match-set i-2-5-VM-i0 src -j ACCEPT\n"
+                + "-A i-2-5-VM -p tcp -m tcp --dport 80:443 -m state --state NEW -j ACCEPT\n"
+                + "-A i-2-5-VM -p icmp --icmp-type any -m set --match-set i-2-5-VM-i1 src -j ACCEPT\n"
+                + "-A i-2-5-VM -p udp -m udp --dport 53:53 -m state --state NEW -m set --match-set i-2-5-VM-i2 src -j ACCEPT\n"
+                + "-A i-2-5-VM -p udp -m udp --dport 53:53 -m state --state NEW -j ACCEPT\n"
+                + "-A i-2-5-VM-eg -j RETURN\n"
+                + "-A i-2-5-VM -j DROP\n"
+                + "-A i-3-7-VM -p icmp --icmp-type 8/0 -j ACCEPT\n"
+                + "-A i-3-7-VM-eg -m state --state NEW -m set --match-set i-3-7-VM-e0 dst -j RETURN\n"
+                + "-A i-3-7-VM-eg -j DROP\n"
+                + "-A i-3-7-VM -j DROP\n"
+                + "COMMIT\n", read(BulkSecurityGroupRules.IptablesFilename));
+    }
+
+    @Test
+    public void testRestoreAndStaleSets() throws Exception {
+        final List<String> commands = new ArrayList<String>();
+        BulkSecurityGroupRules rules = new BulkSecurityGroupRules(_dir, false, 1000) {
+            @Override
+            protected String execute(String command) {
+                commands.add(command);
+                return null;
+            }
+        };
+        rules.setRules("i-2-5-VM", new IpPortAndProto[] {
+                rule("tcp", 22, 22, "10.1.0.0/16"),
+                rule("tcp", 80, 80, "10.2.0.0/16")
+        }, null);
+        assertTrue(rules.apply(Collections.singletonList("i-2-5-VM")));
+        assertEquals(Arrays.asList("ipset -! restore < " + new File(_dir, BulkSecurityGroupRules.IpsetFilename).getAbsolutePath(),
+                "iptables-restore --noflush < " + new File(_dir, BulkSecurityGroupRules.IptablesFilename).getAbsolutePath()), commands);
+
+        // one rule less, its set is destroyed once the chain no longer uses it
+        commands.clear();
+        rules.setRules("i-2-5-VM", new IpPortAndProto[] {
+                rule("tcp", 22, 22, "10.1.0.0/16")
+        }, null);
+        assertTrue(rules.apply(Collections.singletonList("i-2-5-VM")));
+        assertEquals(3, commands.size());
+        assertEquals("destroy i-2-5-VM-i1\n", read(BulkSecurityGroupRules.IpsetCleanupFilename));
+
+        commands.clear();
+        rules.removeVm("i-2-5-VM");
+        assertEquals(1, commands.size());
+        assertEquals("destroy i-2-5-VM-i0\n", read(BulkSecurityGroupRules.IpsetCleanupFilename));
+        assertTrue(rules.getVmNames().isEmpty());
+    }
+
+    @Test
+    public void testFailedRestore() throws Exception {
+        BulkSecurityGroupRules rules = new BulkSecurityGroupRules(_dir, false, 1000) {
+            @Override
+            protected String execute(String command) {
+                return command.startsWith("iptables-restore") ? "iptables-restore: line 3 failed" : null;
+            }
+        };
+        rules.setRules("i-2-5-VM", new IpPortAndProto[] {rule("tcp", 22, 22, "10.1.0.0/16")}, null);
+        assertFalse(rules.apply(Collections.singletonList("i-2-5-VM")));
+    }
+
+    @Test
+    public void testLongVmNames() throws Exception {
+        BulkSecurityGroupRules rules = new BulkSecurityGroupRules(_dir, true, 1000);
+        String vmName = "i-123456-1234567-my-very-long-instance-name";
+        rules.setRules(vmName, new IpPortAndProto[] {rule("tcp", 22, 22, "10.1.0.0/16")}, null);
+        for (String line : rules.getIpsetRules(Collections.singletonList(vmName)).split("\n")) {
+            assertTrue(line, line.split(" ")[1].length() <= 31);
+        }
+    }
+
+    private static IpPortAndProto rule(String proto, int startPort, int endPort, String... cidrs) {
+        return new IpPortAndProto(proto, startPort, endPort, cidrs);
+    }
+
+    private String read(String filename) throws IOException {
+        return FileUtils.readFileToString(new File(_dir, filename));
+    }
+}
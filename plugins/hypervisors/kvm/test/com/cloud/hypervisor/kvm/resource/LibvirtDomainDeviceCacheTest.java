@@ -0,0 +1,157 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainBlockStats;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInterfaceStats;
+
+import com.cloud.agent.api.VmStatsEntry;
+
+public class LibvirtDomainDeviceCacheTest {
+
+    @Test
+    public void testCachedUntilDomainRestarted() throws Exception {
+        LibvirtDomainDeviceCache cache = new LibvirtDomainDeviceCache();
+        Domain dm = mock(Domain.class);
+        when(dm.getID()).thenReturn(5);
+        when(dm.getXMLDesc(0)).thenReturn(domainXML("i-2-5-VM", 2, 3));
+
+        LibvirtDomainDeviceCache.Devices devices = cache.getDevices(dm, "i-2-5-VM");
+        assertEquals(3, devices.getInterfaces().size());
+        assertEquals(2, devices.getDisks().size());
+        assertEquals("vda", devices.getDisks().get(0).getDiskLabel());
+
+        cache.getDevices(dm, "i-2-5-VM");
+        verify(dm, times(1)).getXMLDesc(0);
+        assertEquals(1, cache.getHits());
+
+        // started again, maybe by someone else
+        when(dm.getID()).thenReturn(6);
+        cache.getDevices(dm, "i-2-5-VM");
+        verify(dm, times(2)).getXMLDesc(0);
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        LibvirtDomainDeviceCache cache = new LibvirtDomainDeviceCache();
+        Domain dm = mock(Domain.class);
+        when(dm.getID()).thenReturn(5);
+        when(dm.getXMLDesc(0)).thenReturn(domainXML("i-2-5-VM", 1, 1));
+        cache.getDevices(dm, "i-2-5-VM");
+
+        // a disk was attached
+        when(dm.getXMLDesc(0)).thenReturn(domainXML("i-2-5-VM", 2, 1));
+        cache.invalidate("i-2-5-VM");
+        assertEquals(2, cache.getDevices(dm, "i-2-5-VM").getDisks().size());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testInactiveDomainIsNotCached() throws Exception {
+        LibvirtDomainDeviceCache cache = new LibvirtDomainDeviceCache();
+        Domain dm = mock(Domain.class);
+        when(dm.getID()).thenReturn(-1);
+        when(dm.getXMLDesc(0)).thenReturn(domainXML("i-2-5-VM", 1, 1));
+
+        cache.getDevices(dm, "i-2-5-VM");
+        cache.getDevices(dm, "i-2-5-VM");
+        verify(dm, times(2)).getXMLDesc(0);
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Collects the stats of every VM of a host against a mocked libvirt: the device definitions are
+     * parsed once per domain and every round still asks for the stats of all disks and nics.
+     */
+    @Test
+    public void testVmStatsUseCachedDevices() throws Exception {
+        int vms = 20;
+        int rounds = 3;
+
+        Connect conn = mock(Connect.class);
+        List<String> names = new ArrayList<String>();
+        List<Domain> domains = new ArrayList<Domain>();
+        for (int i = 0; i < vms; i++) {
+            String name = "i-2-" + i + "-VM";
+            Domain dm = mock(Domain.class);
+            DomainInfo info = new DomainInfo();
+            info.nrVirtCpu = 2;
+            info.cpuTime = 1000000000L * i;
+            when(dm.getID()).thenReturn(i + 1);
+            when(dm.getInfo()).thenReturn(info);
+            when(dm.getXMLDesc(anyInt())).thenReturn(domainXML(name, 3, 2));
+            when(dm.interfaceStats(anyString())).thenReturn(new DomainInterfaceStats());
+            when(dm.blockStats(anyString())).thenReturn(new DomainBlockStats());
+            when(conn.domainLookupByName(name)).thenReturn(dm);
+            names.add(name);
+            domains.add(dm);
+        }
+
+        LibvirtComputingResource resource = new LibvirtComputingResource();
+        for (int round = 0; round < rounds; round++) {
+            for (String name : names) {
+                VmStatsEntry stats = resource.getVmStat(conn, name, 8);
+                assertNotNull(stats);
+            }
+        }
+
+        for (Domain dm : domains) {
+            verify(dm, times(1)).getXMLDesc(0);
+            verify(dm, times(2 * rounds)).interfaceStats(anyString());
+            verify(dm, times(3 * rounds)).blockStats(anyString());
+        }
+        assertEquals(vms, resource._domainDevices.getMisses());
+        assertEquals(vms * (rounds - 1), resource._domainDevices.getHits());
+    }
+
+    private static String domainXML(String name, int disks, int nics) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<domain type='kvm' id='1'><name>").append(name).append("</name>");
+        xml.append("<uuid>b0f0a72d-7efb-3cad-a8ff-70ebf30b3af9</uuid><description>CentOS 5.5 (64-bit)</description>");
+        xml.append("<memory>524288</memory><currentMemory>524288</currentMemory><vcpu>2</vcpu>");
+        xml.append("<os><type arch='x86_64' machine='pc'>hvm</type><boot dev='hd'/></os>");
+        xml.append("<devices><emulator>/usr/bin/qemu-kvm</emulator>");
+        for (int i = 0; i < disks; i++) {
+            xml.append("<disk type='file' device='disk'><driver name='qemu' type='qcow2' cache='none'/>");
+            xml.append("<source file='/mnt/5b4dbe1d-1c4e-3a7b-93b2-8b3e1a0a1b0f/").append(name).append("-").append(i).append("'/>");
+            xml.append("<target dev='vd").append((char)('a' + i)).append("' bus='virtio'/></disk>");
+        }
+        for (int i = 0; i < nics; i++) {
+            xml.append("<interface type='bridge'><mac address='02:00:4c:5f:00:0").append(i).append("'/>");
+            xml.append("<source bridge='cloudbr0'/><target dev='vnet").append(i).append("'/><model type='virtio'/></interface>");
+        }
+        xml.append("<graphics type='vnc' port='5900' autoport='yes' listen='0.0.0.0'/>");
+        xml.append("</devices></domain>");
+        return xml.toString();
+    }
+}
@@ -73,10 +73,13 @@ public class VmwareContextFactory {
 		return context;
 	}
 	
-	public static VmwareContext getContext(String vCenterAddress, String vCenterUserName, String vCenterPassword) throws Exception {
-		VmwareContext context = s_pool.getContext(vCenterAddress, vCenterUserName);
-		if(context == null)
-			context = create(vCenterAddress, vCenterUserName, vCenterPassword);
+	public static VmwareContext getContext(final String vCenterAddress, final String vCenterUserName, final String vCenterPassword) throws Exception {
+		VmwareContext context = s_pool.getContext(vCenterAddress, vCenterUserName, new VmwareContextPool.ContextCreator() {
+			@Override
+			public VmwareContext create() throws Exception {
+				return VmwareContextFactory.create(vCenterAddress, vCenterUserName, vCenterPassword);
+			}
+		});
 		
 		if(context != null) {
 			context.registerStockObject(VmwareManager.CONTEXT_STOCK_NAME, s_vmwareMgr);
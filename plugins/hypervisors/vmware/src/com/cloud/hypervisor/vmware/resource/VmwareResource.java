@@ -215,6 +215,7 @@ import com.cloud.agent.api.ValidateSnapshotCommand;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.api.check.CheckSshAnswer;
 import com.cloud.agent.api.check.CheckSshCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand;
 import com.cloud.agent.api.routing.CreateIpAliasCommand;
 import com.cloud.agent.api.routing.DeleteIpAliasCommand;
 import com.cloud.agent.api.routing.DhcpEntryCommand;
@@ -289,6 +290,7 @@ import com.cloud.hypervisor.vmware.mo.HostMO;
 import com.cloud.hypervisor.vmware.mo.HostStorageSystemMO;
 import com.cloud.hypervisor.vmware.mo.HypervisorHostHelper;
 import com.cloud.hypervisor.vmware.mo.NetworkDetails;
+import com.cloud.hypervisor.vmware.mo.PerfManagerMO;
 import com.cloud.hypervisor.vmware.mo.VirtualEthernetCardType;
 import com.cloud.hypervisor.vmware.mo.VirtualMachineDiskInfo;
 import com.cloud.hypervisor.vmware.mo.VirtualMachineDiskInfoBuilder;
@@ -445,6 +447,9 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                 return execute((DeleteIpAliasCommand) cmd);
             } else if (clz == VmDataCommand.class) {
                 answer = execute((VmDataCommand) cmd);
+            } else if (clz == AggregationControlCommand.class) {
+                // rules are applied one by one, there is nothing to aggregate
+                answer = new Answer(cmd);
             } else if (clz == ReadyCommand.class) {
                 answer = execute((ReadyCommand) cmd);
             } else if (clz == GetHostStatsCommand.class) {
@@ -6303,33 +6308,26 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
         return newStates;
     }
 
-    private HashMap<String, VmStatsEntry> getVmStats(List<String> vmNames) throws Exception {
-        VmwareHypervisorHost hyperHost = getHyperHost(getServiceContext());
+    protected HashMap<String, VmStatsEntry> getVmStats(List<String> vmNames) throws Exception {
+        VmwareContext context = getServiceContext();
+        VmwareHypervisorHost hyperHost = getHyperHost(context);
         HashMap<String, VmStatsEntry> vmResponseMap = new HashMap<String, VmStatsEntry>();
-        ManagedObjectReference perfMgr = getServiceContext().getServiceContent().getPerfManager();
-        VimPortType service = getServiceContext().getService();
-        PerfCounterInfo rxPerfCounterInfo = null;
-        PerfCounterInfo txPerfCounterInfo = null;
-
-        List<PerfCounterInfo> cInfo = (List<PerfCounterInfo>) getServiceContext().getVimClient().getDynamicProperty(perfMgr, "perfCounter");
-        for(PerfCounterInfo info : cInfo) {
-            if ("net".equalsIgnoreCase(info.getGroupInfo().getKey())) {
-                if ("transmitted".equalsIgnoreCase(info.getNameInfo().getKey())) {
-                    txPerfCounterInfo = info;
-                }
-                if ("received".equalsIgnoreCase(info.getNameInfo().getKey())) {
-                    rxPerfCounterInfo = info;
-                }
-            }
-        }
-        
+        PerfManagerMO perfMgr = new PerfManagerMO(context, context.getServiceContent().getPerfManager());
+        PerfCounterInfo rxPerfCounterInfo = perfMgr.getCounterInfo("net", "received");
+        PerfCounterInfo txPerfCounterInfo = perfMgr.getCounterInfo("net", "transmitted");
+
 		int key = ((HostMO)hyperHost).getCustomFieldKey("VirtualMachine", CustomFieldConstants.CLOUD_VM_INTERNAL_NAME);
 		if(key == 0) {
 			s_logger.warn("Custom field " + CustomFieldConstants.CLOUD_VM_INTERNAL_NAME + " is not registered ?!");
 		}
 		String instanceNameCustomField = "value[" + key + "]";
 
-        ObjectContent[] ocs = hyperHost.getVmPropertiesOnHyperHost(new String[] {"name", "summary.config.numCpu", "summary.quickStats.overallCpuUsage", instanceNameCustomField});
+        // the network counters of all the VMs on the host are fetched in one query instead of two round trips per VM
+        Map<String, String> vmNameByMor = new HashMap<String, String>();
+        Map<String, String[]> cpuStatsByName = new HashMap<String, String[]>();
+        List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>();
+
+        ObjectContent[] ocs = hyperHost.getVmPropertiesOnHyperHost(new String[] {"name", "summary.config.numCpu", "summary.quickStats.overallCpuUsage", "runtime.powerState", instanceNameCustomField});
         if (ocs != null && ocs.length > 0) {
             for (ObjectContent oc : ocs) {
                 List<DynamicProperty> objProps = oc.getPropSet();
@@ -6339,6 +6337,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                     String maxCpuUsage = null;
                     String vmNameOnVcenter = null;
                     String vmInternalCSName = null;
+                    VirtualMachinePowerState powerState = null;
                     for (DynamicProperty objProp : objProps) {
                         if (objProp.getName().equals("name")) {
                             vmNameOnVcenter = objProp.getVal().toString();
@@ -6350,9 +6349,10 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                             numberCPUs = objProp.getVal().toString();
                         } else if (objProp.getName().equals("summary.quickStats.overallCpuUsage")) {
                             maxCpuUsage =  objProp.getVal().toString();
+                        } else if (objProp.getName().equals("runtime.powerState")) {
+                            powerState = (VirtualMachinePowerState)objProp.getVal();
                         }
                     }
-                    VirtualMachineMO vmMo = new VirtualMachineMO(hyperHost.getContext(), oc.getObj());
                     if (vmInternalCSName != null) {
                         name = vmInternalCSName;
                     } else {
@@ -6363,61 +6363,89 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                         continue;
                     }
 
-                    ManagedObjectReference vmMor = hyperHost.findVmOnHyperHost(name).getMor();
-                    assert(vmMor!=null);
-
-                    ArrayList vmNetworkMetrics = new ArrayList();
-                    // get all the metrics from the available sample period
-                    List<PerfMetricId> perfMetrics = service.queryAvailablePerfMetric(perfMgr, vmMor, null, null, null);
-                    if(perfMetrics != null) {
-                        for(int index=0; index < perfMetrics.size(); ++index) {
-                            if ( ((rxPerfCounterInfo != null) && (perfMetrics.get(index).getCounterId() == rxPerfCounterInfo.getKey())) ||
-                                    ((txPerfCounterInfo != null) && (perfMetrics.get(index).getCounterId() == txPerfCounterInfo.getKey())) ) {
-                                vmNetworkMetrics.add(perfMetrics.get(index));
-                            }
+                    cpuStatsByName.put(name, new String[] {maxCpuUsage, numberCPUs});
+                    if (powerState == VirtualMachinePowerState.POWERED_ON && (rxPerfCounterInfo != null || txPerfCounterInfo != null)) {
+                        PerfQuerySpec qSpec = new PerfQuerySpec();
+                        qSpec.setEntity(oc.getObj());
+                        if (rxPerfCounterInfo != null) {
+                            qSpec.getMetricId().add(getAggregatePerfMetricId(rxPerfCounterInfo));
+                        }
+                        if (txPerfCounterInfo != null) {
+                            qSpec.getMetricId().add(getAggregatePerfMetricId(txPerfCounterInfo));
                         }
+                        qSpecs.add(qSpec);
+                        vmNameByMor.put(oc.getObj().getValue(), name);
                     }
+                }
+            }
+        }
 
-                    double networkReadKBs=0;
-                    double networkWriteKBs=0;
-                    long sampleDuration=0;
-
-                    if (vmNetworkMetrics.size() != 0) {
-                        PerfQuerySpec qSpec = new PerfQuerySpec();
-                        qSpec.setEntity(vmMor);
-                        PerfMetricId[] availableMetricIds = (PerfMetricId[]) vmNetworkMetrics.toArray(new PerfMetricId[0]);
-                        qSpec.getMetricId().addAll(Arrays.asList(availableMetricIds));
-                        List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>();
-                        qSpecs.add(qSpec);
-                        List<PerfEntityMetricBase> values = service.queryPerf(perfMgr, qSpecs);
-
-                        for(int i=0; i<values.size(); ++i) {
-                            List<PerfSampleInfo>  infos = ((PerfEntityMetric)values.get(i)).getSampleInfo();
-                            int endMs = infos.get(infos.size()-1).getTimestamp().getSecond() * 1000 + infos.get(infos.size()-1).getTimestamp().getMillisecond();
-                            int beginMs = infos.get(0).getTimestamp().getSecond() * 1000 + infos.get(0).getTimestamp().getMillisecond();
-                            sampleDuration = (endMs - beginMs) /1000;
-                            List<PerfMetricSeries> vals = ((PerfEntityMetric)values.get(i)).getValue();
-                            for(int vi = 0; ((vals!= null) && (vi < vals.size())); ++vi){
-                                if(vals.get(vi) instanceof PerfMetricIntSeries) {
-                                    PerfMetricIntSeries val = (PerfMetricIntSeries)vals.get(vi);
-                                    List<Long> perfValues = val.getValue();
-                                    if (vals.get(vi).getId().getCounterId() == rxPerfCounterInfo.getKey()) {
-                                        networkReadKBs = sampleDuration * perfValues.get(3); //get the average RX rate multiplied by sampled duration
-                                    }
-                                    if (vals.get(vi).getId().getCounterId() == txPerfCounterInfo.getKey()) {
-                                        networkWriteKBs = sampleDuration * perfValues.get(3);//get the average TX rate multiplied by sampled duration
-                                    }
-                                }
-                            }
+        Map<String, double[]> networkStatsByName = new HashMap<String, double[]>();
+        if (!qSpecs.isEmpty()) {
+            try {
+                List<PerfEntityMetricBase> values = perfMgr.queryPerf(qSpecs.toArray(new PerfQuerySpec[0]));
+                if (values != null) {
+                    for (PerfEntityMetricBase value : values) {
+                        String name = vmNameByMor.get(value.getEntity().getValue());
+                        if (name != null && value instanceof PerfEntityMetric) {
+                            networkStatsByName.put(name, getNetworkStats((PerfEntityMetric)value, rxPerfCounterInfo, txPerfCounterInfo));
                         }
                     }
-                    vmResponseMap.put(name, new VmStatsEntry(Integer.parseInt(maxCpuUsage), networkReadKBs, networkWriteKBs, Integer.parseInt(numberCPUs), "vm"));
                 }
+            } catch (Exception e) {
+                // CPU statistics are still worth reporting
+                s_logger.warn("Unable to query network statistics of " + qSpecs.size() + " VMs on host " + hyperHost.getHyperHostName(), e);
             }
         }
+
+        for (Map.Entry<String, String[]> entry : cpuStatsByName.entrySet()) {
+            double[] networkStats = networkStatsByName.get(entry.getKey());
+            double networkReadKBs = networkStats != null ? networkStats[0] : 0;
+            double networkWriteKBs = networkStats != null ? networkStats[1] : 0;
+            vmResponseMap.put(entry.getKey(), new VmStatsEntry(Integer.parseInt(entry.getValue()[0]), networkReadKBs, networkWriteKBs, Integer.parseInt(entry.getValue()[1]), "vm"));
+        }
         return vmResponseMap;
     }
 
+    private static PerfMetricId getAggregatePerfMetricId(PerfCounterInfo counterInfo) {
+        PerfMetricId metricId = new PerfMetricId();
+        metricId.setCounterId(counterInfo.getKey());
+        // the aggregate over all the NICs of the VM
+        metricId.setInstance("");
+        return metricId;
+    }
+
+    /**
+     * @return the received and transmitted KBs over the sampled period
+     */
+    private static double[] getNetworkStats(PerfEntityMetric metric, PerfCounterInfo rxPerfCounterInfo, PerfCounterInfo txPerfCounterInfo) {
+        double[] stats = new double[2];
+        List<PerfSampleInfo> infos = metric.getSampleInfo();
+        if (infos == null || infos.isEmpty()) {
+            return stats;
+        }
+        long endMs = infos.get(infos.size() - 1).getTimestamp().toGregorianCalendar().getTimeInMillis();
+        long beginMs = infos.get(0).getTimestamp().toGregorianCalendar().getTimeInMillis();
+        long sampleDuration = (endMs - beginMs) / 1000;
+        List<PerfMetricSeries> vals = metric.getValue();
+        for (int vi = 0; ((vals != null) && (vi < vals.size())); ++vi) {
+            if (vals.get(vi) instanceof PerfMetricIntSeries) {
+                PerfMetricIntSeries val = (PerfMetricIntSeries)vals.get(vi);
+                List<Long> perfValues = val.getValue();
+                if (perfValues == null || perfValues.size() < 4) {
+                    continue;
+                }
+                if (rxPerfCounterInfo != null && vals.get(vi).getId().getCounterId() == rxPerfCounterInfo.getKey()) {
+                    stats[0] = sampleDuration * perfValues.get(3); //get the average RX rate multiplied by sampled duration
+                }
+                if (txPerfCounterInfo != null && vals.get(vi).getId().getCounterId() == txPerfCounterInfo.getKey()) {
+                    stats[1] = sampleDuration * perfValues.get(3); //get the average TX rate multiplied by sampled duration
+                }
+            }
+        }
+        return stats;
+    }
+
     protected String networkUsage(final String privateIpAddress, final String option, final String ethName) {
         String args = null;
         if (option.equals("get")) {
@@ -6577,6 +6605,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
     	try {
 	        _name = name;
+	        SshHelper.configure(params);
 	
 	        _url = (String) params.get("url");
 	        _username = (String) params.get("username");
@@ -6712,7 +6741,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
     }
 
     public void invalidateServiceContext() {
-        invalidateServiceContext(null);
+        invalidateServiceContext(s_serviceContext.get());
     }
 
     public VmwareHypervisorHost getHyperHost(VmwareContext context) {
@@ -6737,9 +6766,13 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
 
     @Override
     public void invalidateServiceContext(VmwareContext context) {
+    	// callers pass null for the context of the current command
+    	if(context == null)
+    		context = s_serviceContext.get();
     	assert(s_serviceContext.get() == context);
     	
     	s_serviceContext.set(null);
+    	// closing gives the borrowed context back to the pool
     	if(context != null)
     		context.close();
     }
@@ -47,11 +47,13 @@ public class VmwareSecondaryStorageContextFactory {
 		return context;
 	}
 	
-	public static VmwareContext getContext(String vCenterAddress, String vCenterUserName, String vCenterPassword) throws Exception {
-		VmwareContext context = s_pool.getContext(vCenterAddress, vCenterUserName);
-		if(context == null) {
-			context = create(vCenterAddress, vCenterUserName, vCenterPassword);
-		}
+	public static VmwareContext getContext(final String vCenterAddress, final String vCenterUserName, final String vCenterPassword) throws Exception {
+		VmwareContext context = s_pool.getContext(vCenterAddress, vCenterUserName, new VmwareContextPool.ContextCreator() {
+			@Override
+			public VmwareContext create() throws Exception {
+				return VmwareSecondaryStorageContextFactory.create(vCenterAddress, vCenterUserName, vCenterPassword);
+			}
+		});
 		
 		if(context != null) {
 			context.registerStockObject("username", vCenterUserName);
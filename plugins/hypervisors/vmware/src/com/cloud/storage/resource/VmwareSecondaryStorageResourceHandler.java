@@ -238,8 +238,12 @@ public class VmwareSecondaryStorageResourceHandler implements SecondaryStorageRe
 
     @Override
     public void invalidateServiceContext(VmwareContext context) {
+    	// callers pass null for the context of the current command
+    	if(context == null)
+    		context = currentContext.get();
     	currentContext.set(null);
-        VmwareSecondaryStorageContextFactory.invalidate(context);
+    	if(context != null)
+    		VmwareSecondaryStorageContextFactory.invalidate(context);
     }
 
     @Override
@@ -0,0 +1,110 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.resource;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.rmi.RemoteException;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.api.CheckHealthAnswer;
+import com.cloud.agent.api.CheckHealthCommand;
+import com.cloud.agent.api.Command;
+import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHost;
+import com.cloud.hypervisor.vmware.util.VmwareClient;
+import com.cloud.hypervisor.vmware.util.VmwareContext;
+import com.cloud.hypervisor.vmware.util.VmwareContextPool;
+
+public class VmwareResourceServiceContextTest {
+    private static final String ADDRESS = "vcenter";
+    private static final String USER = "admin";
+    private static final int POOL_SIZE = 2;
+
+    private VmwareContextPool _pool;
+    private VmwareResource _resource;
+
+    @Before
+    public void setUp() throws Exception {
+        _pool = new VmwareContextPool(10, 60000, POOL_SIZE, 100, 60000, 60000);
+        final VmwareContextPool.ContextCreator creator = new VmwareContextPool.ContextCreator() {
+            @Override
+            public VmwareContext create() throws Exception {
+                VmwareContext context = new VmwareContext(mock(VmwareClient.class), ADDRESS);
+                context.setPoolInfo(_pool, VmwareContextPool.composePoolKey(ADDRESS, USER));
+                _pool.registerOutstandingContext(context);
+                return context;
+            }
+        };
+
+        final VmwareHypervisorHost hyperHost = mock(VmwareHypervisorHost.class);
+        when(hyperHost.isHyperHostConnected()).thenThrow(new RemoteException("session is gone"));
+
+        _resource = new VmwareResource() {
+            @Override
+            public VmwareContext getServiceContext(Command cmd) {
+                if (s_serviceContext.get() == null) {
+                    try {
+                        s_serviceContext.set(_pool.getContext(ADDRESS, USER, creator));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return s_serviceContext.get();
+            }
+
+            @Override
+            public VmwareHypervisorHost getHyperHost(VmwareContext context, Command cmd) {
+                return hyperHost;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        VmwareResource.s_serviceContext.set(null);
+        _pool.shutdown();
+    }
+
+    @Test
+    public void testRemoteExceptionsDoNotExhaustThePool() {
+        for (int i = 0; i < 3 * POOL_SIZE; i++) {
+            CheckHealthAnswer answer = (CheckHealthAnswer)_resource.execute(new CheckHealthCommand());
+            Assert.assertFalse(answer.getResult());
+            Assert.assertNull(VmwareResource.s_serviceContext.get());
+        }
+
+        Assert.assertEquals(0, _pool.getBorrowTimeouts());
+        Assert.assertEquals(0, _pool.getBorrowedCount(VmwareContextPool.composePoolKey(ADDRESS, USER)));
+        Assert.assertEquals(3 * POOL_SIZE, _pool.getClosed());
+    }
+
+    @Test
+    public void testInvalidateNullClosesTheCurrentContext() {
+        VmwareContext context = _resource.getServiceContext();
+        _resource.invalidateServiceContext(null);
+
+        Assert.assertTrue(context.isClosed());
+        Assert.assertNull(VmwareResource.s_serviceContext.get());
+        Assert.assertEquals(0, _pool.getBorrowedCount(VmwareContextPool.composePoolKey(ADDRESS, USER)));
+    }
+}
@@ -0,0 +1,240 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.resource;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.xml.datatype.DatatypeFactory;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.hypervisor.vmware.mo.CustomFieldConstants;
+import com.cloud.hypervisor.vmware.mo.HostMO;
+import com.cloud.hypervisor.vmware.mo.PerfManagerMO;
+import com.cloud.hypervisor.vmware.util.VmwareClient;
+import com.cloud.hypervisor.vmware.util.VmwareContext;
+import com.vmware.vim25.CustomFieldStringValue;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ElementDescription;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PerfSampleInfo;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.VirtualMachinePowerState;
+
+public class VmwareResourceVmStatsTest {
+    private static final int RX_COUNTER = 100;
+    private static final int TX_COUNTER = 101;
+    private static final int VM_COUNT = 120;
+
+    private VmwareResource _resource;
+    private VmwareContext _context;
+    private VimPortType _service;
+    private VmwareClient _vimClient;
+    private HostMO _hostMo;
+    private ManagedObjectReference _perfMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        PerfManagerMO.clearCounterInfoCache();
+
+        _perfMgr = new ManagedObjectReference();
+        _perfMgr.setType("PerformanceManager");
+        _perfMgr.setValue("PerfMgr");
+        ServiceContent serviceContent = new ServiceContent();
+        serviceContent.setPerfManager(_perfMgr);
+
+        _service = mock(VimPortType.class);
+        _vimClient = mock(VmwareClient.class);
+        _context = mock(VmwareContext.class);
+        when(_context.getServiceContent()).thenReturn(serviceContent);
+        when(_context.getService()).thenReturn(_service);
+        when(_context.getVimClient()).thenReturn(_vimClient);
+        when(_context.getServerAddress()).thenReturn("vcenter");
+        when(_vimClient.getDynamicProperty(_perfMgr, "perfCounter")).thenReturn(
+                Arrays.asList(counter(1, "cpu", "usage"), counter(RX_COUNTER, "net", "received"), counter(TX_COUNTER, "net", "transmitted")));
+
+        _hostMo = mock(HostMO.class);
+        when(_hostMo.getCustomFieldKey("VirtualMachine", CustomFieldConstants.CLOUD_VM_INTERNAL_NAME)).thenReturn(7);
+        List<ObjectContent> ocs = new ArrayList<ObjectContent>();
+        for (int i = 0; i < VM_COUNT; i++) {
+            ocs.add(vm(i, i % 10 == 9 ? VirtualMachinePowerState.POWERED_OFF : VirtualMachinePowerState.POWERED_ON));
+        }
+        when(_hostMo.getVmPropertiesOnHyperHost(any(String[].class))).thenReturn(ocs.toArray(new ObjectContent[0]));
+
+        _resource = spy(new VmwareResource());
+        doReturn(_context).when(_resource).getServiceContext();
+        doReturn(_hostMo).when(_resource).getHyperHost(_context);
+    }
+
+    @Test
+    public void testOneQueryPerHost() throws Exception {
+        when(_service.queryPerf(eq(_perfMgr), anyListOf(PerfQuerySpec.class))).thenReturn(metrics(VM_COUNT));
+
+        HashMap<String, VmStatsEntry> stats = _resource.getVmStats(names(VM_COUNT));
+        stats = _resource.getVmStats(names(VM_COUNT));
+
+        Assert.assertEquals(VM_COUNT, stats.size());
+        // one query per stats cycle, the counters are only looked up once
+        verify(_service, times(2)).queryPerf(eq(_perfMgr), anyListOf(PerfQuerySpec.class));
+        verify(_service, never()).queryAvailablePerfMetric(any(ManagedObjectReference.class), any(ManagedObjectReference.class),
+                any(javax.xml.datatype.XMLGregorianCalendar.class), any(javax.xml.datatype.XMLGregorianCalendar.class), any(Integer.class));
+        verify(_vimClient, times(1)).getDynamicProperty(_perfMgr, "perfCounter");
+
+        VmStatsEntry entry = stats.get("i-2-5-VM");
+        Assert.assertEquals(50.0, entry.getCPUUtilization());
+        Assert.assertEquals(2, entry.getNumCPUs());
+        // 60 second samples, average of 5 and 6 KBps
+        Assert.assertEquals(60.0 * 5, entry.getNetworkReadKBs());
+        Assert.assertEquals(60.0 * 6, entry.getNetworkWriteKBs());
+
+        // powered off VMs are not queried and report no traffic
+        entry = stats.get("i-2-9-VM");
+        Assert.assertEquals(0.0, entry.getNetworkReadKBs());
+    }
+
+    @Test
+    public void testOnlyRequestedVms() throws Exception {
+        when(_service.queryPerf(eq(_perfMgr), anyListOf(PerfQuerySpec.class))).thenReturn(metrics(VM_COUNT));
+
+        HashMap<String, VmStatsEntry> stats = _resource.getVmStats(Arrays.asList("i-2-1-VM", "i-2-3-VM"));
+
+        Assert.assertEquals(2, stats.size());
+        Assert.assertTrue(stats.containsKey("i-2-1-VM"));
+        Assert.assertTrue(stats.containsKey("i-2-3-VM"));
+    }
+
+    @Test
+    public void testFailedQueryStillReportsCpu() throws Exception {
+        when(_service.queryPerf(eq(_perfMgr), anyListOf(PerfQuerySpec.class))).thenThrow(new RuntimeException("vCenter is busy"));
+
+        HashMap<String, VmStatsEntry> stats = _resource.getVmStats(names(VM_COUNT));
+
+        Assert.assertEquals(VM_COUNT, stats.size());
+        Assert.assertEquals(0.0, stats.get("i-2-5-VM").getNetworkReadKBs());
+        Assert.assertEquals(50.0, stats.get("i-2-5-VM").getCPUUtilization());
+    }
+
+    private static List<String> names(int count) {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            names.add("i-2-" + i + "-VM");
+        }
+        return names;
+    }
+
+    private static PerfCounterInfo counter(int key, String group, String name) {
+        PerfCounterInfo info = new PerfCounterInfo();
+        info.setKey(key);
+        ElementDescription groupInfo = new ElementDescription();
+        groupInfo.setKey(group);
+        info.setGroupInfo(groupInfo);
+        ElementDescription nameInfo = new ElementDescription();
+        nameInfo.setKey(name);
+        info.setNameInfo(nameInfo);
+        return info;
+    }
+
+    private static ManagedObjectReference vmMor(int i) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType("VirtualMachine");
+        mor.setValue("vm-" + i);
+        return mor;
+    }
+
+    private static ObjectContent vm(int i, VirtualMachinePowerState powerState) {
+        ObjectContent oc = new ObjectContent();
+        oc.setObj(vmMor(i));
+        oc.getPropSet().add(property("name", "vcenter-name-" + i));
+        CustomFieldStringValue internalName = new CustomFieldStringValue();
+        internalName.setValue("i-2-" + i + "-VM");
+        oc.getPropSet().add(property("value[7]", internalName));
+        oc.getPropSet().add(property("summary.config.numCpu", 2));
+        oc.getPropSet().add(property("summary.quickStats.overallCpuUsage", 50));
+        oc.getPropSet().add(property("runtime.powerState", powerState));
+        return oc;
+    }
+
+    private static DynamicProperty property(String name, Object value) {
+        DynamicProperty property = new DynamicProperty();
+        property.setName(name);
+        property.setVal(value);
+        return property;
+    }
+
+    private static List<PerfEntityMetricBase> metrics(int count) throws Exception {
+        DatatypeFactory factory = DatatypeFactory.newInstance();
+        List<PerfEntityMetricBase> metrics = new ArrayList<PerfEntityMetricBase>();
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 9) {
+                continue;
+            }
+            PerfEntityMetric metric = new PerfEntityMetric();
+            metric.setEntity(vmMor(i));
+            for (int sample = 0; sample < 4; sample++) {
+                GregorianCalendar timestamp = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+                // crosses a minute boundary
+                timestamp.setTimeInMillis(1000000020000L + sample * 20000L);
+                PerfSampleInfo info = new PerfSampleInfo();
+                info.setTimestamp(factory.newXMLGregorianCalendar(timestamp));
+                info.setInterval(20);
+                metric.getSampleInfo().add(info);
+            }
+            metric.getValue().add(series(RX_COUNTER, 5));
+            metric.getValue().add(series(TX_COUNTER, 6));
+            metrics.add(metric);
+        }
+        return metrics;
+    }
+
+    private static PerfMetricIntSeries series(int counterId, long average) {
+        PerfMetricIntSeries series = new PerfMetricIntSeries();
+        PerfMetricId id = new PerfMetricId();
+        id.setCounterId(counterId);
+        id.setInstance("");
+        series.setId(id);
+        series.getValue().addAll(Arrays.asList(1L, 2L, 3L, average));
+        return series;
+    }
+}
@@ -118,6 +118,7 @@ import com.cloud.agent.api.check.CheckSshCommand;
 import com.cloud.agent.api.proxy.CheckConsoleProxyLoadCommand;
 import com.cloud.agent.api.proxy.ConsoleProxyLoadAnswer;
 import com.cloud.agent.api.proxy.WatchConsoleProxyLoadCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand;
 import com.cloud.agent.api.routing.CreateIpAliasCommand;
 import com.cloud.agent.api.routing.DeleteIpAliasCommand;
 import com.cloud.agent.api.routing.DhcpEntryCommand;
@@ -257,21 +258,15 @@ import org.apache.cloudstack.storage.to.VolumeObjectTO;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -319,6 +314,7 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     protected String _pod;
     protected String _cluster;
     protected static final XenServerPoolVms s_vms = new XenServerPoolVms();
+    protected static final Map<String /* pool uuid */, XenServerVmStateWatcher> s_vmStateWatchers = new HashMap<String, XenServerVmStateWatcher>();
     protected String _privateNetworkName;
     protected String _linkLocalPrivateNetworkName;
     protected String _publicNetworkName;
@@ -334,6 +330,8 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
 
     final int _maxWeight = 256;
     protected int _heartbeatInterval = 60;
+    protected boolean _vmStateEvents = true;
+    protected int _vmStateFullSyncInterval = 600;
     protected final XsHost _host = new XsHost();
 
     // Guest and Host Performance Statistics
@@ -485,6 +483,9 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             return execute((DeleteIpAliasCommand) cmd);
         } else if (clazz == VmDataCommand.class) {
             return execute((VmDataCommand) cmd);
+        } else if (clazz == AggregationControlCommand.class) {
+            // rules are applied one by one, there is nothing to aggregate
+            return new Answer(cmd);
         } else if (clazz == ReadyCommand.class) {
             return execute((ReadyCommand) cmd);
         } else if (clazz == GetHostStatsCommand.class) {
@@ -2539,67 +2540,46 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     protected HostStatsEntry getHostStats(Connection conn, GetHostStatsCommand cmd, String hostGuid, long hostId) {
 
         HostStatsEntry hostStats = new HostStatsEntry(hostId, 0, 0, 0, "host", 0, 0, 0, 0);
-        Object[] rrdData = getRRDData(conn, 1); // call rrd method with 1 for host
+        XenServerRrdUpdates rrdData = getRRDData(conn, 1, new XenServerRrdUpdates.ColumnFilter() {
+            @Override
+            public boolean accept(String type, String uuid, String param) {
+                return type.equalsIgnoreCase("host") && (param.contains("pif_eth0_rx") || param.contains("pif_eth0_tx") || param.contains("memory_total_kib")
+                        || param.contains("memory_free_kib") || param.contains("cpu"));
+            }
+        }); // call rrd method with 1 for host
 
         if (rrdData == null) {
             return null;
         }
 
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
-
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
+        for (int col = 0; col < rrdData.getColumns(); col++) {
 
-            if (legendChildren == null || legendChildren.item(col) == null) {
+            if (!rrdData.isSelected(col)) {
                 continue;
             }
 
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
+            String param = rrdData.getLegend(col)[2];
+            double average = rrdData.getAverage(col);
 
-            if (columnMetadata == null) {
-                continue;
+            if (param.contains("pif_eth0_rx")) {
+                hostStats.setNetworkReadKBs(average);
             }
 
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
+            if (param.contains("pif_eth0_tx")) {
+                hostStats.setNetworkWriteKBs(average);
             }
 
-            String type = columnMetadataList[1];
-            String param = columnMetadataList[3];
-
-            if (type.equalsIgnoreCase("host")) {
-
-                if (param.contains("pif_eth0_rx")) {
-                    hostStats.setNetworkReadKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("pif_eth0_tx")) {
-                    hostStats.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_total_kib")) {
-                    hostStats.setTotalMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_free_kib")) {
-                    hostStats.setFreeMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
+            if (param.contains("memory_total_kib")) {
+                hostStats.setTotalMemoryKBs(average);
+            }
 
-                if (param.contains("cpu")) {
-                    // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
-                    hostStats.setCpuUtilization(hostStats.getCpuUtilization() + getDataAverage(dataNode, col, numRows));
-                }
+            if (param.contains("memory_free_kib")) {
+                hostStats.setFreeMemoryKBs(average);
+            }
 
-                /*
-                if (param.contains("loadavg")) {
-                    hostStats.setAverageLoad((hostStats.getAverageLoad() + getDataAverage(dataNode, col, numRows)));
-                }
-                 */
+            if (param.contains("cpu")) {
+                // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
+                hostStats.setCpuUtilization(hostStats.getCpuUtilization() + average);
             }
         }
 
@@ -2659,55 +2639,40 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             vmResponseMap.put(vmUUID, new VmStatsEntry(0, 0, 0, 0, "vm"));
         }
 
-        Object[] rrdData = getRRDData(conn, 2); // call rrddata with 2 for vm
+        final Set<String> uuids = vmResponseMap.keySet();
+        XenServerRrdUpdates rrdData = getRRDData(conn, 2, new XenServerRrdUpdates.ColumnFilter() {
+            @Override
+            public boolean accept(String type, String uuid, String param) {
+                return type.equals("vm") && uuids.contains(uuid) && (param.contains("cpu") || param.matches("vif_\\d_rx") || param.matches("vif_\\d_tx"));
+            }
+        }); // call rrddata with 2 for vm
 
         if (rrdData == null) {
             return null;
         }
 
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
-
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
-            }
-
-            String[] columnMetadataList = columnMetadata.split(":");
+        for (int col = 0; col < rrdData.getColumns(); col++) {
 
-            if (columnMetadataList.length != 4) {
+            if (!rrdData.isSelected(col)) {
                 continue;
             }
 
-            String type = columnMetadataList[1];
-            String uuid = columnMetadataList[2];
-            String param = columnMetadataList[3];
+            String[] legend = rrdData.getLegend(col);
+            String uuid = legend[1];
+            String param = legend[2];
 
-            if (type.equals("vm") && vmResponseMap.keySet().contains(uuid)) {
-                VmStatsEntry vmStatsAnswer = vmResponseMap.get(uuid);
+            VmStatsEntry vmStatsAnswer = vmResponseMap.get(uuid);
 
-                vmStatsAnswer.setEntityType("vm");
+            vmStatsAnswer.setEntityType("vm");
 
-                if (param.contains("cpu")) {
-                    vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
-                    vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + getDataAverage(dataNode, col, numRows))));
-                } else if (param.matches("vif_\\d_rx")) {
-                    vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + (getDataAverage(dataNode, col, numRows)/(8*2)));
-                } else if (param.matches("vif_\\d_tx")) {
-                    vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + (getDataAverage(dataNode, col, numRows)/(8*2)));
-                }
+            if (param.contains("cpu")) {
+                vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
+                vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + rrdData.getAverage(col))));
+            } else if (param.matches("vif_\\d_rx")) {
+                vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + (rrdData.getAverage(col)/(8*2)));
+            } else if (param.matches("vif_\\d_tx")) {
+                vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + (rrdData.getAverage(col)/(8*2)));
             }
-
         }
 
         for (String vmUUID : vmResponseMap.keySet()) {
@@ -2753,7 +2718,11 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return new GetVmDiskStatsAnswer(cmd, null, null, null);
     }
 
-    protected Object[] getRRDData(Connection conn, int flag) {
+    /**
+     * Fetches the rrd updates of the host and averages the columns the filter selects; the export is
+     * streamed, the values of the other columns are never parsed.
+     */
+    protected XenServerRrdUpdates getRRDData(Connection conn, int flag, XenServerRrdUpdates.ColumnFilter filter) {
 
         /*
          * Note: 1 => called from host, hence host stats 2 => called from vm, hence vm stats
@@ -2772,95 +2741,17 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             return null;
         }
 
-        // s_logger.debug("The raw xml stream is:"+stats);
-        // s_logger.debug("Length of raw xml is:"+stats.length());
-
         //stats are null when the host plugin call fails (host down state)
         if(stats == null) {
             return null;
         }
 
-        StringReader statsReader = new StringReader(stats);
-        InputSource statsSource = new InputSource(statsReader);
-
-        Document doc = null;
         try {
-            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(statsSource);
+            return XenServerRrdUpdates.parse(stats, filter);
         } catch (Exception e) {
-            s_logger.warn("Exception caught whilst processing the document via document factory:", e);
-            return null;
-        }
-
-        if(doc==null){
-            s_logger.warn("Null document found after tryinh to parse the stats source");
+            s_logger.warn("Exception caught whilst parsing the rrd updates:", e);
             return null;
         }
-
-        NodeList firstLevelChildren = doc.getChildNodes();
-        NodeList secondLevelChildren = (firstLevelChildren.item(0)).getChildNodes();
-        Node metaNode = secondLevelChildren.item(0);
-        Node dataNode = secondLevelChildren.item(1);
-
-        Integer numRows = 0;
-        Integer numColumns = 0;
-        Node legend = null;
-        NodeList metaNodeChildren = metaNode.getChildNodes();
-        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
-            Node n = metaNodeChildren.item(i);
-            if (n.getNodeName().equals("rows")) {
-                numRows = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("columns")) {
-                numColumns = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("legend")) {
-                legend = n;
-            }
-        }
-
-        return new Object[] { numRows, numColumns, legend, dataNode };
-    }
-
-    protected String getXMLNodeValue(Node n) {
-        return n.getChildNodes().item(0).getNodeValue();
-    }
-
-    protected double getDataAverage(Node dataNode, int col, int numRows) {
-        double value = 0;
-        double dummy = 0;
-        int numRowsUsed = 0;
-        for (int row = 0; row < numRows; row++) {
-            Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
-            Double currentDataAsDouble = Double.valueOf(getXMLNodeValue(data));
-            if (!currentDataAsDouble.equals(Double.NaN)) {
-                numRowsUsed += 1;
-                value += currentDataAsDouble;
-            }
-        }
-
-        if(numRowsUsed == 0)
-        {
-            if((!Double.isInfinite(value))&&(!Double.isNaN(value)))
-            {
-                return value;
-            }
-            else
-            {
-                s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows=0");
-                return dummy;
-            }
-        }
-        else
-        {
-            if((!Double.isInfinite(value/numRowsUsed))&&(!Double.isNaN(value/numRowsUsed)))
-            {
-                return (value/numRowsUsed);
-            }
-            else
-            {
-                s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows>0");
-                return dummy;
-            }
-        }
-
     }
 
     protected String getHostStatsRawXML(Connection conn) {
@@ -2885,6 +2776,17 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     }
 
     protected HashMap<String, Pair<String, State>> getAllVms(Connection conn) {
+        XenServerVmStateWatcher watcher;
+        synchronized (s_vmStateWatchers) {
+            watcher = s_vmStateWatchers.get(_host.pool);
+        }
+        if (watcher != null) {
+            HashMap<String, Pair<String, State>> vmStates = watcher.getVmStates(conn);
+            if (vmStates != null) {
+                return vmStates;
+            }
+        }
+
         final HashMap<String, Pair<String, State>> vmStates = new HashMap<String, Pair<String, State>>();
         Map<VM, VM.Record>  vm_map = null;
         for (int i = 0; i < 2; i++) {
@@ -5942,6 +5844,9 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
 
         _maxNics = NumbersUtil.parseInt((String) params.get("xen.nics.max"), 7);
 
+        _vmStateEvents = Boolean.parseBoolean(params.containsKey("xen.vmstate.events") ? (String) params.get("xen.vmstate.events") : "true");
+        _vmStateFullSyncInterval = NumbersUtil.parseInt((String) params.get("xen.vmstate.fullsync.interval"), 600);
+
         if (_pod == null) {
             throw new ConfigurationException("Unable to get the pod");
         }
@@ -7999,10 +7904,36 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             s_logger.warn("Check for master failed, failing the Cluster sync command");
             return  new Answer(cmd);
         }
+        startVmStateWatcher();
         HashMap<String, Pair<String, State>> newStates = deltaClusterSync(conn);
         return new ClusterSyncAnswer(cmd.getClusterId(), newStates);
     }
 
+    /**
+     * Makes the pool master follow VM power states through XAPI events, so cluster sync does not
+     * have to fetch every VM record of the pool each time.
+     */
+    protected void startVmStateWatcher() {
+        if (!_vmStateEvents) {
+            return;
+        }
+        synchronized (s_vmStateWatchers) {
+            XenServerVmStateWatcher watcher = s_vmStateWatchers.get(_host.pool);
+            if (watcher != null && watcher.isRunning()) {
+                return;
+            }
+            long fullSyncInterval = _vmStateFullSyncInterval * 1000L;
+            watcher = new XenServerVmStateWatcher(_host.pool, new XenServerVmStateWatcher.ConnectionSource() {
+                @Override
+                public Connection getConnection() {
+                    return CitrixResourceBase.this.getConnection();
+                }
+            }, 30, fullSyncInterval, Math.max(fullSyncInterval, 600 * 1000L));
+            s_vmStateWatchers.put(_host.pool, watcher);
+            watcher.start();
+        }
+    }
+
 
     protected HashMap<String, Pair<String, State>> fullClusterSync(Connection conn) {
         synchronized (_cluster.intern()) {
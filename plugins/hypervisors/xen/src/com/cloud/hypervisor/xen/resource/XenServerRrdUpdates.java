@@ -0,0 +1,179 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Averages of the columns of an rrd_updates export, as returned by the gethostvmstats host plugin.
+ *
+ * The export is read as a stream and only the columns the caller asks for are kept, as a running
+ * sum and sample count per column; neither the document nor the values of the other columns are
+ * ever held in memory. Legend entries look like AVERAGE:vm:uuid:cpu0, entries that do not have
+ * these four parts are ignored.
+ */
+public class XenServerRrdUpdates {
+    private static final Logger s_logger = Logger.getLogger(XenServerRrdUpdates.class);
+
+    private static final XMLInputFactory s_factory;
+    static {
+        s_factory = XMLInputFactory.newInstance();
+        s_factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        s_factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        s_factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * Decides which columns are kept.
+     */
+    public interface ColumnFilter {
+        boolean accept(String type, String uuid, String param);
+    }
+
+    private int _rows;
+    private int _columns;
+    private final List<String[]> _legend = new ArrayList<String[]>();
+    // indexed by column, -1 for the columns that are skipped
+    private int[] _slots;
+    private double[] _sums;
+    private int[] _counts;
+
+    private XenServerRrdUpdates() {
+    }
+
+    public static XenServerRrdUpdates parse(String xml, ColumnFilter filter) throws XMLStreamException {
+        return parse(new StringReader(xml), filter);
+    }
+
+    public static XenServerRrdUpdates parse(Reader xml, ColumnFilter filter) throws XMLStreamException {
+        XenServerRrdUpdates updates = new XenServerRrdUpdates();
+        XMLStreamReader reader = s_factory.createXMLStreamReader(xml);
+        try {
+            updates.read(reader, filter);
+        } finally {
+            reader.close();
+        }
+        return updates;
+    }
+
+    public int getRows() {
+        return _rows;
+    }
+
+    public int getColumns() {
+        return _columns;
+    }
+
+    /**
+     * @return the number of columns that were kept
+     */
+    public int getSelectedColumns() {
+        return _sums == null ? 0 : _sums.length;
+    }
+
+    /**
+     * @return type, uuid and param of the column, null if its legend entry is malformed
+     */
+    public String[] getLegend(int col) {
+        String[] entry = _legend.get(col);
+        return entry == null ? null : new String[] {entry[1], entry[2], entry[3]};
+    }
+
+    public boolean isSelected(int col) {
+        return _slots != null && col < _slots.length && _slots[col] >= 0;
+    }
+
+    /**
+     * @return the average of the values of a selected column that are numbers, 0 when that is not a finite number
+     */
+    public double getAverage(int col) {
+        if (!isSelected(col)) {
+            throw new IllegalArgumentException("Column " + col + " was not selected");
+        }
+        int slot = _slots[col];
+        double value = _counts[slot] == 0 ? _sums[slot] : _sums[slot] / _counts[slot];
+        if (Double.isInfinite(value) || Double.isNaN(value)) {
+            s_logger.warn("Found an invalid value (infinity/NaN) in column " + col + " of the rrd updates");
+            return 0;
+        }
+        return value;
+    }
+
+    private void read(XMLStreamReader reader, ColumnFilter filter) throws XMLStreamException {
+        int row = -1;
+        int col = -1;
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String name = reader.getLocalName();
+            if (name.equals("v")) {
+                col++;
+                // only the first rows announced in the meta data count
+                if (row < _rows && col < _columns && _slots[col] >= 0) {
+                    String text = reader.getElementText();
+                    double value = Double.parseDouble(text.trim());
+                    if (!Double.isNaN(value)) {
+                        _sums[_slots[col]] += value;
+                        _counts[_slots[col]]++;
+                    }
+                }
+            } else if (name.equals("row")) {
+                row++;
+                col = -1;
+                if (row == 0) {
+                    selectColumns(filter);
+                }
+            } else if (name.equals("entry")) {
+                String[] entry = reader.getElementText().split(":");
+                _legend.add(entry.length == 4 ? entry : null);
+            } else if (name.equals("rows")) {
+                _rows = Integer.parseInt(reader.getElementText().trim());
+            } else if (name.equals("columns")) {
+                _columns = Integer.parseInt(reader.getElementText().trim());
+            }
+        }
+        if (_slots == null) {
+            selectColumns(filter);
+        }
+    }
+
+    private void selectColumns(ColumnFilter filter) {
+        _slots = new int[_columns];
+        int selected = 0;
+        for (int col = 0; col < _columns; col++) {
+            String[] entry = col < _legend.size() ? _legend.get(col) : null;
+            if (entry != null && filter.accept(entry[1], entry[2], entry[3])) {
+                _slots[col] = selected++;
+            } else {
+                _slots[col] = -1;
+            }
+        }
+        _sums = new double[selected];
+        _counts = new int[selected];
+    }
+}
@@ -0,0 +1,287 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+import com.xensource.xenapi.Connection;
+import com.xensource.xenapi.Host;
+import com.xensource.xenapi.Types;
+import com.xensource.xenapi.Types.VmPowerState;
+
+/**
+ * Keeps the power state of the VMs of a pool up to date from XAPI events.
+ *
+ * Cluster sync used to fetch VM.get_all_records every cycle, the full record of every VM in the
+ * pool. The watcher long-polls event.from for VM changes instead and applies them to an in memory
+ * map, so a cycle only costs the events that happened since the previous one. Every full resync
+ * interval, and whenever events were lost or the connection failed, the watcher starts over from
+ * an empty token, which makes XAPI send the current state of every VM once.
+ */
+public class XenServerVmStateWatcher implements Runnable {
+    private static final Logger s_logger = Logger.getLogger(XenServerVmStateWatcher.class);
+
+    private static final String NULL_REF = "OpaqueRef:NULL";
+
+    public interface ConnectionSource {
+        Connection getConnection();
+    }
+
+    private static class VmEntry {
+        final String _name;
+        final String _hostRef;
+        final State _state;
+
+        VmEntry(String name, String hostRef, State state) {
+            _name = name;
+            _hostRef = hostRef;
+            _state = state;
+        }
+    }
+
+    private final String _poolUuid;
+    private final ConnectionSource _connectionSource;
+    private final double _pollTimeout;
+    private final long _fullResyncInterval;
+    private final long _idleTimeout;
+
+    private Map<String /* vm ref */, VmEntry> _vms = new HashMap<String, VmEntry>();
+    private final Map<String, String> _hostUuids = new ConcurrentHashMap<String, String>();
+    private String _token = "";
+    private long _lastFullResync;
+    private volatile boolean _ready;
+    private volatile boolean _running;
+    private volatile long _lastUsed = System.currentTimeMillis();
+    private Thread _thread;
+
+    private long _polls;
+    private long _events;
+    private long _fullResyncs;
+
+    /**
+     * @param pollTimeout how long event.from waits for events, in seconds
+     * @param fullResyncInterval how often all VMs are fetched again, in milliseconds
+     * @param idleTimeout the watcher stops once nobody asked for the VM states for this long, in milliseconds
+     */
+    public XenServerVmStateWatcher(String poolUuid, ConnectionSource connectionSource, double pollTimeout, long fullResyncInterval, long idleTimeout) {
+        _poolUuid = poolUuid;
+        _connectionSource = connectionSource;
+        _pollTimeout = pollTimeout;
+        _fullResyncInterval = fullResyncInterval;
+        _idleTimeout = idleTimeout;
+    }
+
+    public synchronized void start() {
+        if (_running) {
+            return;
+        }
+        _running = true;
+        _lastUsed = System.currentTimeMillis();
+        _thread = new Thread(this, "XenServerVmStateWatcher-" + _poolUuid);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public void stop() {
+        _running = false;
+        _ready = false;
+        Thread thread = _thread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return _running;
+    }
+
+    /**
+     * @return the state and resident host of every VM that runs somewhere in the pool, keyed by VM
+     *         name like {@link CitrixResourceBase#getAllVms(Connection)}, or null while the watcher
+     *         has no complete picture of the pool
+     */
+    public HashMap<String, Pair<String, State>> getVmStates(Connection conn) {
+        _lastUsed = System.currentTimeMillis();
+        if (!_ready) {
+            return null;
+        }
+
+        Map<String, VmEntry> vms;
+        synchronized (this) {
+            vms = new HashMap<String, VmEntry>(_vms);
+        }
+        HashMap<String, Pair<String, State>> states = new HashMap<String, Pair<String, State>>();
+        for (VmEntry vm : vms.values()) {
+            if (vm._hostRef == null) {
+                continue;
+            }
+            String hostUuid = getHostUuid(conn, vm._hostRef);
+            states.put(vm._name, new Pair<String, State>(hostUuid, vm._state));
+        }
+        return states;
+    }
+
+    @Override
+    public void run() {
+        s_logger.info("Start watching VM power states of pool " + _poolUuid);
+        try {
+            while (_running) {
+                if (System.currentTimeMillis() - _lastUsed > _idleTimeout) {
+                    s_logger.info("VM states of pool " + _poolUuid + " were not asked for in " + _idleTimeout + " ms, stop watching");
+                    break;
+                }
+                try {
+                    poll(_connectionSource.getConnection());
+                } catch (Throwable e) {
+                    _ready = false;
+                    synchronized (this) {
+                        _token = "";
+                    }
+                    if (!_running) {
+                        break;
+                    }
+                    s_logger.warn("Unable to get VM events of pool " + _poolUuid + ", starting over with a full resync: " + e.toString());
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            _running = false;
+            _ready = false;
+            s_logger.info("Stopped watching VM power states of pool " + _poolUuid);
+        }
+    }
+
+    /**
+     * Waits for the next batch of VM events, or fetches all VMs when a full resync is due, and applies it.
+     */
+    void poll(Connection conn) throws XmlRpcException, Types.XenAPIException {
+        String token;
+        synchronized (this) {
+            if (System.currentTimeMillis() - _lastFullResync >= _fullResyncInterval) {
+                _token = "";
+            }
+            token = _token;
+        }
+        boolean full = token.isEmpty();
+
+        Map<String, Object> result = eventFrom(conn, token, full ? 0 : _pollTimeout);
+        Object[] events = (Object[])result.get("events");
+
+        synchronized (this) {
+            _polls++;
+            Map<String, VmEntry> vms = full ? new HashMap<String, VmEntry>() : _vms;
+            if (events != null) {
+                for (Object event : events) {
+                    apply(vms, (Map<String, Object>)event);
+                }
+                _events += events.length;
+            }
+            if (full) {
+                _vms = vms;
+                _lastFullResync = System.currentTimeMillis();
+                _fullResyncs++;
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Full resync of pool " + _poolUuid + " found " + vms.size() + " VMs");
+                }
+            }
+            _token = (String)result.get("token");
+        }
+        _ready = true;
+    }
+
+    private void apply(Map<String, VmEntry> vms, Map<String, Object> event) {
+        String ref = (String)event.get("ref");
+        String operation = (String)event.get("operation");
+        if ("del".equals(operation)) {
+            vms.remove(ref);
+            return;
+        }
+
+        Map<String, Object> snapshot = (Map<String, Object>)event.get("snapshot");
+        if (snapshot == null) {
+            return;
+        }
+        if (isTrue(snapshot.get("is_control_domain")) || isTrue(snapshot.get("is_a_template")) || isTrue(snapshot.get("is_a_snapshot"))) {
+            vms.remove(ref);
+            return;
+        }
+
+        VmPowerState powerState = Types.toVmPowerState(snapshot.get("power_state"));
+        String hostRef = (String)snapshot.get("resident_on");
+        if (hostRef == null || NULL_REF.equals(hostRef)) {
+            hostRef = null;
+        }
+        State state = CitrixResourceBase.s_statesTable.get(powerState);
+        vms.put(ref, new VmEntry((String)snapshot.get("name_label"), hostRef, state == null ? State.Unknown : state));
+    }
+
+    private String getHostUuid(Connection conn, String hostRef) {
+        String uuid = _hostUuids.get(hostRef);
+        if (uuid == null) {
+            try {
+                uuid = Types.toHost(hostRef).getUuid(conn);
+                _hostUuids.put(hostRef, uuid);
+            } catch (Exception e) {
+                s_logger.error("Failed to get host uuid for host " + hostRef, e);
+            }
+        }
+        return uuid;
+    }
+
+    private static boolean isTrue(Object value) {
+        return Boolean.TRUE.equals(value);
+    }
+
+    /**
+     * The event.from of the bindings predates the XAPI versions that answer with a token, so the
+     * call is made directly over the connection's XML-RPC configuration.
+     */
+    private Map<String, Object> eventFrom(Connection conn, String token, double timeout) throws XmlRpcException, Types.XenAPIException {
+        XmlRpcClient client = new XmlRpcClient();
+        client.setConfig(conn.getConfig());
+        Object[] params = new Object[] {conn.getSessionReference(), new Object[] {"vm"}, token, timeout};
+        Map<String, Object> response = (Map<String, Object>)client.execute("event.from", params);
+        if (!"Success".equals(response.get("Status"))) {
+            throw new Types.BadServerResponse(response);
+        }
+        return (Map<String, Object>)response.get("Value");
+    }
+
+    public synchronized long getPolls() {
+        return _polls;
+    }
+
+    public synchronized long getEvents() {
+        return _events;
+    }
+
+    public synchronized long getFullResyncs() {
+        return _fullResyncs;
+    }
+}
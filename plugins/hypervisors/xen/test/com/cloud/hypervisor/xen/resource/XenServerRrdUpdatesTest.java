@@ -0,0 +1,209 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+public class XenServerRrdUpdatesTest {
+    private static final XenServerRrdUpdates.ColumnFilter VM_CPU = new XenServerRrdUpdates.ColumnFilter() {
+        @Override
+        public boolean accept(String type, String uuid, String param) {
+            return type.equals("vm") && param.contains("cpu");
+        }
+    };
+
+    @Test
+    public void testAveragesMatchDomParser() throws Exception {
+        String xml = generate(40, 6, 8, 1);
+        XenServerRrdUpdates updates = XenServerRrdUpdates.parse(xml, VM_CPU);
+        Object[] dom = parseDom(xml);
+
+        Assert.assertEquals(40, updates.getColumns());
+        Assert.assertEquals(6, updates.getRows());
+        int selected = 0;
+        NodeList legend = ((Node)dom[2]).getChildNodes();
+        for (int col = 0; col < updates.getColumns(); col++) {
+            String[] entry = legend.item(col).getTextContent().split(":");
+            Assert.assertEquals(entry[1] + ":" + entry[2] + ":" + entry[3], join(updates.getLegend(col)));
+            if (entry[1].equals("vm") && entry[3].contains("cpu")) {
+                selected++;
+                Assert.assertTrue(updates.isSelected(col));
+                Assert.assertEquals(domAverage((Node)dom[3], col, 6), updates.getAverage(col), 1e-9);
+            } else {
+                Assert.assertFalse(updates.isSelected(col));
+            }
+        }
+        Assert.assertEquals(selected, updates.getSelectedColumns());
+    }
+
+    @Test
+    public void testNaNAndExtraRows() throws Exception {
+        String xml = "<xport><meta><start>0</start><step>5</step><end>10</end><rows>2</rows><columns>3</columns><legend>"
+                + "<entry>AVERAGE:host:h1:cpu0</entry><entry>AVERAGE:host:h1:cpu1</entry><entry>bogus</entry></legend></meta><data>"
+                + "<row><t>10</t><v>0.5</v><v>NaN</v><v>1</v></row>"
+                + "<row><t>5</t><v>0.25</v><v>NaN</v><v>1</v></row>"
+                // not announced in the meta data, ignored like before
+                + "<row><t>0</t><v>100</v><v>100</v><v>1</v></row>"
+                + "</data></xport>";
+        XenServerRrdUpdates updates = XenServerRrdUpdates.parse(xml, new XenServerRrdUpdates.ColumnFilter() {
+            @Override
+            public boolean accept(String type, String uuid, String param) {
+                return true;
+            }
+        });
+
+        Assert.assertEquals(0.375, updates.getAverage(0), 1e-9);
+        Assert.assertEquals(0.0, updates.getAverage(1), 1e-9);
+        Assert.assertNull(updates.getLegend(2));
+        Assert.assertFalse(updates.isSelected(2));
+    }
+
+    /**
+     * Runs both parsers over an export shaped like the rrd_updates of a host running 100 VMs: the
+     * results have to match and the streaming parser must allocate less heap than the DOM one.
+     */
+    @Test
+    public void testHostSizedExport() throws Exception {
+        String xml = generate(100 * 12, 60, 10, 2);
+
+        long allocated = allocatedBytes();
+        double domSum = domCpuAverages(xml);
+        long domAllocated = allocatedBytes() - allocated;
+
+        allocated = allocatedBytes();
+        XenServerRrdUpdates updates = XenServerRrdUpdates.parse(xml, VM_CPU);
+        double staxSum = 0;
+        for (int col = 0; col < updates.getColumns(); col++) {
+            if (updates.isSelected(col)) {
+                staxSum += updates.getAverage(col);
+            }
+        }
+        long staxAllocated = allocatedBytes() - allocated;
+
+        Assert.assertEquals(domSum, staxSum, 1e-6);
+        if (allocated >= 0) {
+            Assert.assertTrue("StAX allocated " + staxAllocated + " bytes, DOM " + domAllocated, staxAllocated < domAllocated);
+        }
+    }
+
+    private static String generate(int columns, int rows, int paramsPerVm, long seed) {
+        Random random = new Random(seed);
+        String[] params = {"cpu0", "cpu1", "vif_0_rx", "vif_0_tx", "vbd_xvda_read", "vbd_xvda_write", "memory", "memory_internal_free", "cpu2", "cpu3"};
+        StringBuilder sb = new StringBuilder();
+        sb.append("<xport><meta><start>1000</start><step>60</step><end>").append(1000 + 60 * rows).append("</end>");
+        sb.append("<rows>").append(rows).append("</rows><columns>").append(columns).append("</columns><legend>");
+        List<String> entries = new ArrayList<String>();
+        for (int col = 0; col < columns; col++) {
+            int vm = col / paramsPerVm;
+            String type = vm == 0 ? "host" : "vm";
+            String uuid = String.format("%08x-0000-0000-0000-%012x", vm, col);
+            entries.add("AVERAGE:" + type + ":" + uuid + ":" + params[col % paramsPerVm % params.length]);
+        }
+        for (String entry : entries) {
+            sb.append("<entry>").append(entry).append("</entry>");
+        }
+        sb.append("</legend></meta><data>");
+        for (int row = 0; row < rows; row++) {
+            sb.append("<row><t>").append(1000 + 60 * (rows - row)).append("</t>");
+            for (int col = 0; col < columns; col++) {
+                sb.append("<v>");
+                if (random.nextInt(20) == 0) {
+                    sb.append("NaN");
+                } else {
+                    sb.append(random.nextDouble() * 1000);
+                }
+                sb.append("</v>");
+            }
+            sb.append("</row>");
+        }
+        sb.append("</data></xport>");
+        return sb.toString();
+    }
+
+    private static double domCpuAverages(String xml) throws Exception {
+        Object[] dom = parseDom(xml);
+        NodeList legend = ((Node)dom[2]).getChildNodes();
+        double sum = 0;
+        for (int col = 0; col < (Integer)dom[1]; col++) {
+            String[] entry = legend.item(col).getTextContent().split(":");
+            if (entry[1].equals("vm") && entry[3].contains("cpu")) {
+                sum += domAverage((Node)dom[3], col, (Integer)dom[0]);
+            }
+        }
+        return sum;
+    }
+
+    // the DOM parsing the resource used to do
+    private static Object[] parseDom(String xml) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        NodeList children = doc.getChildNodes().item(0).getChildNodes();
+        Node meta = children.item(0);
+        int rows = 0;
+        int columns = 0;
+        Node legend = null;
+        for (int i = 0; i < meta.getChildNodes().getLength(); i++) {
+            Node n = meta.getChildNodes().item(i);
+            if (n.getNodeName().equals("rows")) {
+                rows = Integer.valueOf(n.getTextContent());
+            } else if (n.getNodeName().equals("columns")) {
+                columns = Integer.valueOf(n.getTextContent());
+            } else if (n.getNodeName().equals("legend")) {
+                legend = n;
+            }
+        }
+        return new Object[] {rows, columns, legend, children.item(1)};
+    }
+
+    private static double domAverage(Node dataNode, int col, int numRows) {
+        double value = 0;
+        int used = 0;
+        for (int row = 0; row < numRows; row++) {
+            Double current = Double.valueOf(dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1).getTextContent());
+            if (!current.equals(Double.NaN)) {
+                used++;
+                value += current;
+            }
+        }
+        return used == 0 ? value : value / used;
+    }
+
+    private static String join(String[] parts) {
+        return parts[0] + ":" + parts[1] + ":" + parts[2];
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,280 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.xensource.xenapi.Connection;
+import com.xensource.xenapi.Types;
+
+public class XenServerVmStateWatcherTest {
+    private static final Pattern METHOD = Pattern.compile("<methodName>(.*?)</methodName>");
+    private static final Pattern STRING_PARAM = Pattern.compile("<param><value>(?:<string>)?([^<]*)(?:</string>)?</value></param>");
+
+    private HttpServer _server;
+    private Connection _conn;
+    private XenServerVmStateWatcher _watcher;
+
+    // canned event.from answers, served in order
+    private final LinkedList<String> _eventResponses = new LinkedList<String>();
+    private final List<String> _calls = new ArrayList<String>();
+    private final List<String> _tokens = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/", new XapiHandler());
+        _server.start();
+        _conn = new Connection(new URL("http://127.0.0.1:" + _server.getAddress().getPort() + "/"), "OpaqueRef:session");
+
+        _watcher = new XenServerVmStateWatcher("pool", new XenServerVmStateWatcher.ConnectionSource() {
+            @Override
+            public Connection getConnection() {
+                return _conn;
+            }
+        }, 1, 60 * 60 * 1000L, 60 * 60 * 1000L);
+    }
+
+    @After
+    public void tearDown() {
+        _watcher.stop();
+        _server.stop(0);
+    }
+
+    @Test
+    public void testFullResyncThenDeltas() throws Exception {
+        Assert.assertNull("no states before the first sync", _watcher.getVmStates(_conn));
+
+        _eventResponses.add(events("token-1",
+                event("add", "OpaqueRef:vm1", vm("i-2-3-VM", "Running", "OpaqueRef:host1", false)),
+                event("add", "OpaqueRef:vm2", vm("i-2-4-VM", "Halted", "OpaqueRef:NULL", false)),
+                event("add", "OpaqueRef:tmpl", vm("template", "Halted", "OpaqueRef:NULL", true)),
+                event("add", "OpaqueRef:vm3", vm("r-5-VM", "Running", "OpaqueRef:host2", false))));
+        _watcher.poll(_conn);
+
+        HashMap<String, Pair<String, State>> states = _watcher.getVmStates(_conn);
+        Assert.assertEquals(2, states.size());
+        Assert.assertEquals(new Pair<String, State>("uuid-OpaqueRef:host1", State.Running), states.get("i-2-3-VM"));
+        Assert.assertEquals(new Pair<String, State>("uuid-OpaqueRef:host2", State.Running), states.get("r-5-VM"));
+
+        // i-2-3-VM stopped, i-2-4-VM started, the router was destroyed
+        _eventResponses.add(events("token-2",
+                event("mod", "OpaqueRef:vm1", vm("i-2-3-VM", "Halted", "OpaqueRef:NULL", false)),
+                event("mod", "OpaqueRef:vm2", vm("i-2-4-VM", "Running", "OpaqueRef:host1", false)),
+                event("del", "OpaqueRef:vm3", null)));
+        _watcher.poll(_conn);
+
+        states = _watcher.getVmStates(_conn);
+        Assert.assertEquals(1, states.size());
+        Assert.assertEquals(new Pair<String, State>("uuid-OpaqueRef:host1", State.Running), states.get("i-2-4-VM"));
+
+        Assert.assertEquals("", _tokens.get(0));
+        Assert.assertEquals("token-1", _tokens.get(1));
+        Assert.assertEquals(2, _watcher.getPolls());
+        Assert.assertEquals(7, _watcher.getEvents());
+        Assert.assertEquals(1, _watcher.getFullResyncs());
+        Assert.assertFalse(_calls.contains("VM.get_all_records"));
+        // host uuids are looked up once
+        Assert.assertEquals(2, count("host.get_uuid"));
+    }
+
+    @Test
+    public void testEventsLostRestartsFromScratch() throws Exception {
+        _eventResponses.add(events("token-1", event("add", "OpaqueRef:vm1", vm("i-2-3-VM", "Running", "OpaqueRef:host1", false))));
+        _eventResponses.add(failure("EVENTS_LOST"));
+        _eventResponses.add(events("token-2", event("add", "OpaqueRef:vm2", vm("i-2-4-VM", "Running", "OpaqueRef:host1", false))));
+
+        _watcher.start();
+        long deadline = System.currentTimeMillis() + 20000;
+        while (_watcher.getFullResyncs() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        Assert.assertEquals(2, _watcher.getFullResyncs());
+        Assert.assertEquals("", _tokens.get(2));
+        // the full resync replaced everything that was known before the events got lost
+        HashMap<String, Pair<String, State>> states = _watcher.getVmStates(_conn);
+        Assert.assertEquals(1, states.size());
+        Assert.assertTrue(states.containsKey("i-2-4-VM"));
+    }
+
+    @Test(expected = Types.XenAPIException.class)
+    public void testFailureIsReported() throws Exception {
+        _eventResponses.add(failure("SESSION_INVALID"));
+        _watcher.poll(_conn);
+    }
+
+    private int count(String method) {
+        int count = 0;
+        synchronized (_calls) {
+            for (String call : _calls) {
+                if (call.equals(method)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static Map<String, Object> vm(String name, String powerState, String residentOn, boolean template) {
+        Map<String, Object> vm = new HashMap<String, Object>();
+        vm.put("name_label", name);
+        vm.put("power_state", powerState);
+        vm.put("resident_on", residentOn);
+        vm.put("is_a_template", template);
+        vm.put("is_a_snapshot", false);
+        vm.put("is_control_domain", false);
+        return vm;
+    }
+
+    private static Map<String, Object> event(String operation, String ref, Map<String, Object> snapshot) {
+        Map<String, Object> event = new HashMap<String, Object>();
+        event.put("class", "vm");
+        event.put("operation", operation);
+        event.put("ref", ref);
+        if (snapshot != null) {
+            event.put("snapshot", snapshot);
+        }
+        return event;
+    }
+
+    private static String events(String token, Map<String, Object>... events) {
+        Map<String, Object> value = new HashMap<String, Object>();
+        value.put("events", events);
+        value.put("valid_ref_counts", new HashMap<String, Object>());
+        value.put("token", token);
+        return success(value);
+    }
+
+    private static String success(Object value) {
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("Status", "Success");
+        response.put("Value", value);
+        return methodResponse(response);
+    }
+
+    private static String failure(String error) {
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("Status", "Failure");
+        response.put("ErrorDescription", new Object[] {error});
+        return methodResponse(response);
+    }
+
+    private static String methodResponse(Object value) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?><methodResponse><params><param>");
+        encode(sb, value);
+        return sb.append("</param></params></methodResponse>").toString();
+    }
+
+    private static void encode(StringBuilder sb, Object value) {
+        sb.append("<value>");
+        if (value instanceof Map) {
+            sb.append("<struct>");
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                sb.append("<member><name>").append(entry.getKey()).append("</name>");
+                encode(sb, entry.getValue());
+                sb.append("</member>");
+            }
+            sb.append("</struct>");
+        } else if (value instanceof Object[]) {
+            sb.append("<array><data>");
+            for (Object item : (Object[])value) {
+                encode(sb, item);
+            }
+            sb.append("</data></array>");
+        } else if (value instanceof Boolean) {
+            sb.append("<boolean>").append((Boolean)value ? 1 : 0).append("</boolean>");
+        } else {
+            sb.append(value);
+        }
+        sb.append("</value>");
+    }
+
+    private class XapiHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String request = read(exchange.getRequestBody());
+            Matcher method = METHOD.matcher(request);
+            method.find();
+            String name = method.group(1);
+            synchronized (_calls) {
+                _calls.add(name);
+            }
+
+            String response;
+            if (name.equals("event.from")) {
+                List<String> params = new ArrayList<String>();
+                Matcher param = STRING_PARAM.matcher(request);
+                while (param.find()) {
+                    params.add(param.group(1));
+                }
+                // session and token, the classes are an array
+                _tokens.add(params.get(1));
+                synchronized (_eventResponses) {
+                    response = _eventResponses.isEmpty() ? events(params.get(1)) : _eventResponses.removeFirst();
+                }
+            } else if (name.equals("host.get_uuid")) {
+                Matcher param = STRING_PARAM.matcher(request);
+                param.find();
+                param.find();
+                response = success("uuid-" + param.group(1));
+            } else {
+                response = failure("MESSAGE_METHOD_UNKNOWN");
+            }
+
+            byte[] body = response.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/xml");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+
+        private String read(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+            return out.toString("UTF-8");
+        }
+    }
+}
@@ -172,21 +172,9 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
             else if (account.getType() == Account.ACCOUNT_TYPE_NORMAL || account.getType() == Account.ACCOUNT_TYPE_RESOURCE_DOMAIN_ADMIN || account.getType() == Account.ACCOUNT_TYPE_DOMAIN_ADMIN) {
                 if (account.getDomainId() == dof.getDomainId()) {
 					return true; //disk offering and account at exact node
-                } else {
-                    Domain domainRecord = _domainDao.findById(account.getDomainId());
-                    if (domainRecord != null) {
-                        while (true) {
-                            if (domainRecord.getId() == dof.getDomainId()) {
-		    					//found as a child
-		    					return true;
-		    				}
-                            if (domainRecord.getParent() != null) {
-                                domainRecord = _domainDao.findById(domainRecord.getParent());
-                            } else {
-                                break;
-                            }
-		    			}
-		    		}
+                } else if (_domainDao.isChildDomain(dof.getDomainId(), account.getDomainId())) {
+                    //found as a child
+                    return true;
 				}
 			}
 		}
@@ -208,21 +196,9 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
             else if (account.getType() == Account.ACCOUNT_TYPE_NORMAL || account.getType() == Account.ACCOUNT_TYPE_RESOURCE_DOMAIN_ADMIN || account.getType() == Account.ACCOUNT_TYPE_DOMAIN_ADMIN) {
                 if (account.getDomainId() == so.getDomainId()) {
 					return true; //service offering and account at exact node
-                } else {
-                    Domain domainRecord = _domainDao.findById(account.getDomainId());
-                    if (domainRecord != null) {
-                        while (true) {
-                            if (domainRecord.getId() == so.getDomainId()) {
-		    					//found as a child
-		    					return true;
-		    				}
-                            if (domainRecord.getParent() != null) {
-                                domainRecord = _domainDao.findById(domainRecord.getParent());
-                            } else {
-                                break;
-                            }
-		    			}
-		    		}
+                } else if (_domainDao.isChildDomain(so.getDomainId(), account.getDomainId())) {
+                    //found as a child
+                    return true;
 				}
 			}
 		}
@@ -256,21 +232,9 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                 }
                 if (account.getDomainId() == zone.getDomainId()) {
 					return true; //zone and account at exact node
-                } else {
-                    Domain domainRecord = _domainDao.findById(account.getDomainId());
-                    if (domainRecord != null) {
-                        while (true) {
-                            if (domainRecord.getId() == zone.getDomainId()) {
-		    					//found as a child
-		    					return true;
-		    				}
-                            if (domainRecord.getParent() != null) {
-                                domainRecord = _domainDao.findById(domainRecord.getParent());
-                            } else {
-                                break;
-                            }
-		    			}
-		    		}
+                } else if (_domainDao.isChildDomain(zone.getDomainId(), account.getDomainId())) {
+                    //found as a child
+                    return true;
 				}
 				//not found
 				return false;
@@ -280,27 +244,12 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
             else if (account.getType() == Account.ACCOUNT_TYPE_DOMAIN_ADMIN) {
                 if (account.getDomainId() == zone.getDomainId()) {
 					return true; //zone and account at exact node
-                } else {
-                    Domain zoneDomainRecord = _domainDao.findById(zone.getDomainId());
-                    Domain accountDomainRecord = _domainDao.findById(account.getDomainId());
-                    if (accountDomainRecord != null) {
-                        Domain localRecord = accountDomainRecord;
-                        while (true) {
-                            if (localRecord.getId() == zone.getDomainId()) {
-		    					//found as a child
-		    					return true;
-		    				}
-                            if (localRecord.getParent() != null) {
-                                localRecord = _domainDao.findById(localRecord.getParent());
-                            } else {
-                                break;
-                            }
-		    			}
-		    		}
-		    		//didn't find in upper tree
-                    if (zoneDomainRecord.getPath().contains(accountDomainRecord.getPath())) {
-		    			return true;
-		    		}
+                } else if (_domainDao.isChildDomain(zone.getDomainId(), account.getDomainId())) {
+                    //found as a child
+                    return true;
+                } else if (_domainDao.isChildDomain(account.getDomainId(), zone.getDomainId())) {
+                    //zone is in a sub domain of the account
+                    return true;
 				}
 				//not found
 				return false;
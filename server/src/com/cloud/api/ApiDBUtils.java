@@ -18,6 +18,7 @@ package com.cloud.api;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -248,6 +249,7 @@ import com.cloud.storage.dao.VMTemplateDao;
 import com.cloud.storage.dao.VMTemplateDetailsDao;
 import com.cloud.storage.dao.VolumeDao;
 import com.cloud.storage.snapshot.SnapshotPolicy;
+import com.cloud.tags.dao.ResourceTagDao;
 import com.cloud.template.TemplateManager;
 import com.cloud.template.VirtualMachineTemplate;
 import com.cloud.user.Account;
@@ -400,7 +402,13 @@ public class ApiDBUtils {
     static NetworkACLDao _networkACLDao;
     static ServiceOfferingDetailsDao _serviceOfferingDetailsDao;
     static AccountService _accountService;
+    static ResourceTagDao _resourceTagDao;
 
+    // tags loaded ahead for the responses built on this thread, see prefetchResourceTagViews
+    private static final ThreadLocal<Map<Long, ResourceTagJoinVO>> s_prefetchedTags = new ThreadLocal<Map<Long, ResourceTagJoinVO>>();
+    // tags of resources without a view loaded ahead, by resource type and id, see prefetchResourceTags
+    private static final ThreadLocal<Map<TaggedResourceType, Map<Long, List<ResourceTag>>>> s_prefetchedResourceTags =
+            new ThreadLocal<Map<TaggedResourceType, Map<Long, List<ResourceTag>>>>();
 
     @Inject
     private ManagementServer ms;
@@ -513,6 +521,7 @@ public class ApiDBUtils {
     @Inject private NetworkACLDao networkACLDao;
     @Inject private ServiceOfferingDetailsDao serviceOfferingDetailsDao;
     @Inject private AccountService accountService;
+    @Inject private ResourceTagDao resourceTagDao;
     @Inject
     private ConfigurationManager configMgr;
 
@@ -626,6 +635,7 @@ public class ApiDBUtils {
         _networkACLDao = networkACLDao;
         _serviceOfferingDetailsDao = serviceOfferingDetailsDao;
         _accountService = accountService;
+        _resourceTagDao = resourceTagDao;
     }
 
     // ///////////////////////////////////////////////////////////
@@ -1159,8 +1169,56 @@ public class ApiDBUtils {
     }
 
     public static List<? extends ResourceTag> listByResourceTypeAndId(TaggedResourceType type, long resourceId) {
+        Map<TaggedResourceType, Map<Long, List<ResourceTag>>> prefetched = s_prefetchedResourceTags.get();
+        if (prefetched != null && prefetched.containsKey(type)) {
+            List<ResourceTag> tags = prefetched.get(type).get(resourceId);
+            if (tags != null) {
+                return tags;
+            }
+        }
         return _taggedResourceService.listByResourceTypeAndId(type, resourceId);
     }
+
+    /**
+     * Loads the tags of the given resources with one query and lets listByResourceTypeAndId answer
+     * from them on this thread. Must be paired with releaseResourceTags in a finally block, passing
+     * the value returned here.
+     */
+    public static Map<TaggedResourceType, Map<Long, List<ResourceTag>>> prefetchResourceTags(TaggedResourceType type, List<Long> resourceIds) {
+        Map<TaggedResourceType, Map<Long, List<ResourceTag>>> previous = s_prefetchedResourceTags.get();
+        if (resourceIds == null || resourceIds.isEmpty()) {
+            return previous;
+        }
+        Map<Long, List<ResourceTag>> tagsById = new HashMap<Long, List<ResourceTag>>();
+        for (Long resourceId : resourceIds) {
+            // resources without tags are remembered as such
+            tagsById.put(resourceId, new ArrayList<ResourceTag>());
+        }
+        List<? extends ResourceTag> tags = _resourceTagDao.listBy(resourceIds, type);
+        if (tags != null) {
+            for (ResourceTag tag : tags) {
+                List<ResourceTag> resourceTags = tagsById.get(tag.getResourceId());
+                if (resourceTags != null) {
+                    resourceTags.add(tag);
+                }
+            }
+        }
+        Map<TaggedResourceType, Map<Long, List<ResourceTag>>> prefetched = new HashMap<TaggedResourceType, Map<Long, List<ResourceTag>>>();
+        if (previous != null) {
+            prefetched.putAll(previous);
+        }
+        prefetched.put(type, tagsById);
+        s_prefetchedResourceTags.set(prefetched);
+        return previous;
+    }
+
+    public static void releaseResourceTags(Map<TaggedResourceType, Map<Long, List<ResourceTag>>> previous) {
+        if (previous == null) {
+            s_prefetchedResourceTags.remove();
+        } else {
+            s_prefetchedResourceTags.set(previous);
+        }
+    }
     public static List<ConditionVO> getAutoScalePolicyConditions(long policyId)
     {
         List<AutoScalePolicyConditionMapVO> vos = _asPolicyConditionMapDao.listByAll(policyId, null);
@@ -1444,6 +1502,10 @@ public class ApiDBUtils {
     }
 
     public static ResourceTagJoinVO findResourceTagViewById(Long tagId){
+        Map<Long, ResourceTagJoinVO> prefetched = s_prefetchedTags.get();
+        if (prefetched != null && prefetched.containsKey(tagId)) {
+            return prefetched.get(tagId);
+        }
         List<ResourceTagJoinVO> tags = _tagJoinDao.searchByIds(tagId);
         if ( tags != null && tags.size() > 0 ){
             return tags.get(0);
@@ -1453,6 +1515,48 @@ public class ApiDBUtils {
         }
     }
 
+    /**
+     * Loads the given tags with one query and lets findResourceTagViewById answer from them on this
+     * thread, so building the responses of a page does not look up every tag on its own. Must be
+     * paired with releaseResourceTagViews in a finally block, passing the value returned here.
+     */
+    public static Map<Long, ResourceTagJoinVO> prefetchResourceTagViews(List<Long> tagIds) {
+        Map<Long, ResourceTagJoinVO> previous = s_prefetchedTags.get();
+        if (tagIds == null || tagIds.isEmpty()) {
+            return previous;
+        }
+        Map<Long, ResourceTagJoinVO> prefetched = new HashMap<Long, ResourceTagJoinVO>();
+        if (previous != null) {
+            prefetched.putAll(previous);
+        }
+        List<Long> missing = new ArrayList<Long>();
+        for (Long tagId : tagIds) {
+            if (!prefetched.containsKey(tagId)) {
+                // tags that are gone by now are remembered as such
+                prefetched.put(tagId, null);
+                missing.add(tagId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<ResourceTagJoinVO> tags = _tagJoinDao.searchByIds(missing.toArray(new Long[missing.size()]));
+            if (tags != null) {
+                for (ResourceTagJoinVO tag : tags) {
+                    prefetched.put(tag.getId(), tag);
+                }
+            }
+        }
+        s_prefetchedTags.set(prefetched);
+        return previous;
+    }
+
+    public static void releaseResourceTagViews(Map<Long, ResourceTagJoinVO> previous) {
+        if (previous == null) {
+            s_prefetchedTags.remove();
+        } else {
+            s_prefetchedTags.set(previous);
+        }
+    }
+
     public static EventResponse newEventResponse(EventJoinVO ve) {
         return _eventJoinDao.newEventResponse(ve);
     }
@@ -2105,6 +2105,25 @@ public class ApiResponseHelper implements ResponseGenerator {
         return response;
     }
 
+    @Override
+    public List<NetworkResponse> createNetworkResponses(List<? extends Network> networks) {
+        // the tags of the networks of a page are loaded with one query
+        List<Long> networkIds = new ArrayList<Long>(networks.size());
+        for (Network network : networks) {
+            networkIds.add(network.getId());
+        }
+        Map<TaggedResourceType, Map<Long, List<ResourceTag>>> previousTags = ApiDBUtils.prefetchResourceTags(TaggedResourceType.Network, networkIds);
+        try {
+            List<NetworkResponse> responses = new ArrayList<NetworkResponse>(networks.size());
+            for (Network network : networks) {
+                responses.add(createNetworkResponse(network));
+            }
+            return responses;
+        } finally {
+            ApiDBUtils.releaseResourceTags(previousTags);
+        }
+    }
+
     @Override
     public NetworkResponse createNetworkResponse(Network network) {
         // need to get network profile in order to retrieve dns information from
@@ -178,6 +178,7 @@ import com.cloud.utils.DateUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.Ternary;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
@@ -335,6 +336,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
      * .api.command.admin.user.ListUsersCmd)
      */
     @Override
+    @DB(readOnly = true)
     public ListResponse<UserResponse> searchForUsers(ListUsersCmd cmd) throws PermissionDeniedException {
         Pair<List<UserAccountJoinVO>, Integer> result = searchForUsersInternal(cmd);
         ListResponse<UserResponse> response = new ListResponse<UserResponse>();
@@ -442,6 +444,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<EventResponse> searchForEvents(ListEventsCmd cmd) {
         Pair<List<EventJoinVO>, Integer> result = searchForEventsInternal(cmd);
         ListResponse<EventResponse> response = new ListResponse<EventResponse>();
@@ -557,6 +560,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<ResourceTagResponse> listTags(ListTagsCmd cmd) {
         Pair<List<ResourceTagJoinVO>, Integer> tags = listTagsInternal(cmd);
         ListResponse<ResourceTagResponse> response = new ListResponse<ResourceTagResponse>();
@@ -634,6 +638,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<InstanceGroupResponse> searchForVmGroups(ListVMGroupsCmd cmd) {
         Pair<List<InstanceGroupJoinVO>, Integer> groups = searchForVmGroupsInternal(cmd);
         ListResponse<InstanceGroupResponse> response = new ListResponse<InstanceGroupResponse>();
@@ -691,6 +696,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<UserVmResponse> searchForUserVMs(ListVMsCmd cmd) {
         Pair<List<UserVmJoinVO>, Integer> result = searchForUserVMsInternal(cmd);
         ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
@@ -949,6 +955,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<SecurityGroupResponse> searchForSecurityGroups(ListSecurityGroupsCmd cmd) {
         Pair<List<SecurityGroupJoinVO>, Integer> result = searchForSecurityGroupsInternal(cmd);
         ListResponse<SecurityGroupResponse> response = new ListResponse<SecurityGroupResponse>();
@@ -1064,6 +1071,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<DomainRouterResponse> searchForRouters(ListRoutersCmd cmd) {
         Pair<List<DomainRouterJoinVO>, Integer> result = searchForRoutersInternal(cmd, cmd.getId(), cmd.getRouterName(),
                 cmd.getState(), cmd.getZoneId(), cmd.getPodId(), cmd.getHostId(), cmd.getKeyword(), cmd.getNetworkId(),
@@ -1077,6 +1085,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<DomainRouterResponse> searchForInternalLbVms(ListInternalLBVMsCmd cmd) {
         Pair<List<DomainRouterJoinVO>, Integer> result = searchForRoutersInternal(cmd, cmd.getId(), cmd.getRouterName(),
                 cmd.getState(), cmd.getZoneId(), cmd.getPodId(), cmd.getHostId(), cmd.getKeyword(), cmd.getNetworkId(),
@@ -1204,6 +1213,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<ProjectResponse> listProjects(ListProjectsCmd cmd) {
         Pair<List<ProjectJoinVO>, Integer> projects = listProjectsInternal(cmd);
         ListResponse<ProjectResponse> response = new ListResponse<ProjectResponse>();
@@ -1347,6 +1357,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<ProjectInvitationResponse> listProjectInvitations(ListProjectInvitationsCmd cmd) {
         Pair<List<ProjectInvitationJoinVO>, Integer> invites = listProjectInvitationsInternal(cmd);
         ListResponse<ProjectInvitationResponse> response = new ListResponse<ProjectInvitationResponse>();
@@ -1418,6 +1429,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<ProjectAccountResponse> listProjectAccounts(ListProjectAccountsCmd cmd) {
         Pair<List<ProjectAccountJoinVO>, Integer> projectAccounts = listProjectAccountsInternal(cmd);
         ListResponse<ProjectAccountResponse> response = new ListResponse<ProjectAccountResponse>();
@@ -1479,6 +1491,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<HostResponse> searchForServers(ListHostsCmd cmd) {
         // FIXME: do we need to support list hosts with VmId, maybe we should
         // create another command just for this
@@ -1595,6 +1608,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<VolumeResponse> searchForVolumes(ListVolumesCmd cmd) {
         Pair<List<VolumeJoinVO>, Integer> result = searchForVolumesInternal(cmd);
         ListResponse<VolumeResponse> response = new ListResponse<VolumeResponse>();
@@ -1732,6 +1746,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<AccountResponse> searchForAccounts(ListAccountsCmd cmd) {
         Pair<List<AccountJoinVO>, Integer> result = searchForAccountsInternal(cmd);
         ListResponse<AccountResponse> response = new ListResponse<AccountResponse>();
@@ -1859,6 +1874,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<AsyncJobResponse> searchForAsyncJobs(ListAsyncJobsCmd cmd) {
         Pair<List<AsyncJobJoinVO>, Integer> result = searchForAsyncJobsInternal(cmd);
         ListResponse<AsyncJobResponse> response = new ListResponse<AsyncJobResponse>();
@@ -1938,6 +1954,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<StoragePoolResponse> searchForStoragePools(ListStoragePoolsCmd cmd) {
         Pair<List<StoragePoolJoinVO>, Integer> result = searchForStoragePoolsInternal(cmd);
         ListResponse<StoragePoolResponse> response = new ListResponse<StoragePoolResponse>();
@@ -2039,6 +2056,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<ImageStoreResponse> searchForImageStores(ListImageStoresCmd cmd) {
         Pair<List<ImageStoreJoinVO>, Integer> result = searchForImageStoresInternal(cmd);
         ListResponse<ImageStoreResponse> response = new ListResponse<ImageStoreResponse>();
@@ -2119,6 +2137,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<ImageStoreResponse> searchForSecondaryStagingStores(ListSecondaryStagingStoresCmd cmd) {
         Pair<List<ImageStoreJoinVO>, Integer> result = searchForCacheStoresInternal(cmd);
         ListResponse<ImageStoreResponse> response = new ListResponse<ImageStoreResponse>();
@@ -2199,6 +2218,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<DiskOfferingResponse> searchForDiskOfferings(ListDiskOfferingsCmd cmd) {
         Pair<List<DiskOfferingJoinVO>, Integer> result = searchForDiskOfferingsInternal(cmd);
         ListResponse<DiskOfferingResponse> response = new ListResponse<DiskOfferingResponse>();
@@ -2251,18 +2271,12 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         if ((account.getType() == Account.ACCOUNT_TYPE_NORMAL || account.getType() == Account.ACCOUNT_TYPE_DOMAIN_ADMIN)
                 || account.getType() == Account.ACCOUNT_TYPE_RESOURCE_DOMAIN_ADMIN) {
             // find all domain Id up to root domain for this account
-            domainIds = new ArrayList<Long>();
-            DomainVO domainRecord = _domainDao.findById(account.getDomainId());
-            if (domainRecord == null) {
+            domainIds = _domainDao.getDomainAncestorIds(account.getDomainId());
+            if (domainIds.isEmpty()) {
                 s_logger.error("Could not find the domainId for account:" + account.getAccountName());
                 throw new CloudAuthenticationException("Could not find the domainId for account:"
                         + account.getAccountName());
             }
-            domainIds.add(domainRecord.getId());
-            while (domainRecord.getParent() != null) {
-                domainRecord = _domainDao.findById(domainRecord.getParent());
-                domainIds.add(domainRecord.getId());
-            }
 
             SearchCriteria<DiskOfferingJoinVO> spc = _diskOfferingJoinDao.createSearchCriteria();
 
@@ -2321,6 +2335,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<ServiceOfferingResponse> searchForServiceOfferings(ListServiceOfferingsCmd cmd) {
         Pair<List<ServiceOfferingJoinVO>, Integer> result = searchForServiceOfferingsInternal(cmd);
         ListResponse<ServiceOfferingResponse> response = new ListResponse<ServiceOfferingResponse>();
@@ -2379,18 +2394,12 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
                 throw new InvalidParameterValueException("Only root admins can access system's offering");
             }
             // find all domain Id up to root domain for this account
-            List<Long> domainIds = new ArrayList<Long>();
-            DomainVO domainRecord = _domainDao.findById(caller.getDomainId());
-            if (domainRecord == null) {
+            List<Long> domainIds = _domainDao.getDomainAncestorIds(caller.getDomainId());
+            if (domainIds.isEmpty()) {
                 s_logger.error("Could not find the domainId for account:" + caller.getAccountName());
                 throw new CloudAuthenticationException("Could not find the domainId for account:"
                         + caller.getAccountName());
             }
-            domainIds.add(domainRecord.getId());
-            while (domainRecord.getParent() != null) {
-                domainRecord = _domainDao.findById(domainRecord.getParent());
-                domainIds.add(domainRecord.getId());
-            }
             SearchCriteria<ServiceOfferingJoinVO> spc = _srvOfferingJoinDao.createSearchCriteria();
 
             spc.addOr("domainId", SearchCriteria.Op.IN, domainIds.toArray());
@@ -2458,6 +2467,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<ZoneResponse> listDataCenters(ListZonesByCmd cmd) {
         Pair<List<DataCenterJoinVO>, Integer> result = listDataCentersInternal(cmd);
         ListResponse<ZoneResponse> response = new ListResponse<ZoneResponse>();
@@ -2522,18 +2532,12 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
                 // list
 
                 // find all domain Id up to root domain for this account
-                List<Long> domainIds = new ArrayList<Long>();
-                DomainVO domainRecord = _domainDao.findById(account.getDomainId());
-                if (domainRecord == null) {
+                List<Long> domainIds = _domainDao.getDomainAncestorIds(account.getDomainId());
+                if (domainIds.isEmpty()) {
                     s_logger.error("Could not find the domainId for account:" + account.getAccountName());
                     throw new CloudAuthenticationException("Could not find the domainId for account:"
                             + account.getAccountName());
                 }
-                domainIds.add(domainRecord.getId());
-                while (domainRecord.getParent() != null) {
-                    domainRecord = _domainDao.findById(domainRecord.getParent());
-                    domainIds.add(domainRecord.getId());
-                }
                 // domainId == null (public zones) or domainId IN [all domain id
                 // up to root domain]
                 SearchCriteria<DataCenterJoinVO> sdc = _dcJoinDao.createSearchCriteria();
@@ -2565,25 +2569,14 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
                 // it was decided to return all zones for the domain admin, and
                 // everything above till root, as well as zones till the domain
                 // leaf
-                List<Long> domainIds = new ArrayList<Long>();
-                DomainVO domainRecord = _domainDao.findById(account.getDomainId());
-                if (domainRecord == null) {
+                List<Long> domainIds = _domainDao.getDomainAncestorIds(account.getDomainId());
+                if (domainIds.isEmpty()) {
                     s_logger.error("Could not find the domainId for account:" + account.getAccountName());
                     throw new CloudAuthenticationException("Could not find the domainId for account:"
                             + account.getAccountName());
                 }
-                domainIds.add(domainRecord.getId());
                 // find all domain Ids till leaf
-                List<DomainVO> allChildDomains = _domainDao.findAllChildren(domainRecord.getPath(),
-                        domainRecord.getId());
-                for (DomainVO domain : allChildDomains) {
-                    domainIds.add(domain.getId());
-                }
-                // then find all domain Id up to root domain for this account
-                while (domainRecord.getParent() != null) {
-                    domainRecord = _domainDao.findById(domainRecord.getParent());
-                    domainIds.add(domainRecord.getId());
-                }
+                domainIds.addAll(_domainDao.getDomainDescendantIds(account.getDomainId()));
 
                 // domainId == null (public zones) or domainId IN [all domain id
                 // up to root domain]
@@ -2649,27 +2642,11 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
             return true; // account and service offering in same domain
         }
 
-        DomainVO domainRecord = _domainDao.findById(accountDomainId);
-
-        if (domainRecord != null) {
-            while (true) {
-                if (domainRecord.getId() == offeringDomainId) {
-                    return true;
-                }
-
-                // try and move on to the next domain
-                if (domainRecord.getParent() != null) {
-                    domainRecord = _domainDao.findById(domainRecord.getParent());
-                } else {
-                    break;
-                }
-            }
-        }
-
-        return false;
+        return _domainDao.isChildDomain(offeringDomainId, accountDomainId);
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<TemplateResponse> listTemplates(ListTemplatesCmd cmd) {
         Pair<List<TemplateJoinVO>, Integer> result = searchForTemplatesInternal(cmd);
         ListResponse<TemplateResponse> response = new ListResponse<TemplateResponse>();
@@ -2801,23 +2778,12 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
             if (!permittedAccounts.isEmpty()) {
                 for (Account account : permittedAccounts) {
                     permittedAccountIds.add(account.getId());
-                    DomainVO accountDomain = _domainDao.findById(account.getDomainId());
-
                     // get all parent domain ID's all the way till root domain
-                    DomainVO domainTreeNode = accountDomain;
-                    relatedDomainIds.add(domainTreeNode.getId());
-                    while (domainTreeNode.getParent() != null) {
-                        domainTreeNode = _domainDao.findById(domainTreeNode.getParent());
-                        relatedDomainIds.add(domainTreeNode.getId());
-                    }
+                    relatedDomainIds.addAll(_domainDao.getDomainAncestorIds(account.getDomainId()));
 
                     // get all child domain ID's
                     if (_accountMgr.isAdmin(account.getType())) {
-                        List<DomainVO> allChildDomains = _domainDao.findAllChildren(accountDomain.getPath(),
-                                accountDomain.getId());
-                        for (DomainVO childDomain : allChildDomains) {
-                            relatedDomainIds.add(childDomain.getId());
-                        }
+                        relatedDomainIds.addAll(_domainDao.getDomainDescendantIds(account.getDomainId()));
                     }
                 }
             }
@@ -2966,6 +2932,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<TemplateResponse> listIsos(ListIsosCmd cmd) {
         Pair<List<TemplateJoinVO>, Integer> result = searchForIsosInternal(cmd);
         ListResponse<TemplateResponse> response = new ListResponse<TemplateResponse>();
@@ -3010,6 +2977,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @DB(readOnly = true)
     public ListResponse<AffinityGroupResponse> listAffinityGroups(Long affinityGroupId, String affinityGroupName,
             String affinityGroupType, Long vmId, String accountName, Long domainId, boolean isRecursive,
             boolean listAll, Long startIndex, Long pageSize) {
@@ -33,6 +33,7 @@ import com.cloud.api.query.vo.ResourceTagJoinVO;
 import com.cloud.api.query.vo.SecurityGroupJoinVO;
 import com.cloud.api.query.vo.ServiceOfferingJoinVO;
 import com.cloud.api.query.vo.StoragePoolJoinVO;
+import com.cloud.api.query.vo.TaggedViewEntity;
 import com.cloud.api.query.vo.UserAccountJoinVO;
 import com.cloud.api.query.vo.UserVmJoinVO;
 import com.cloud.api.query.vo.VolumeJoinVO;
@@ -70,9 +71,11 @@ import com.cloud.api.query.vo.ImageStoreJoinVO;
 import com.cloud.api.query.vo.TemplateJoinVO;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Helper class to generate response from DB view VO objects.
@@ -126,18 +129,23 @@ public class ViewResponseHelper {
         // Initialise the vmdatalist with the input data
 
 
-        for (UserVmJoinVO userVm : userVms) {
-            UserVmResponse userVmData = vmDataList.get(userVm.getId());
-            if ( userVmData == null ){
-                // first time encountering this vm
-                userVmData = ApiDBUtils.newUserVmResponse(objectName, userVm, details, caller);
-            } else{
-                // update nics, securitygroups, tags, affinitygroups for 1 to many mapping fields
-                userVmData = ApiDBUtils.fillVmDetails(userVmData, userVm);
+        Map<Long, ResourceTagJoinVO> previousTags = ApiDBUtils.prefetchResourceTagViews(getTagIds(Arrays.asList(userVms)));
+        try {
+            for (UserVmJoinVO userVm : userVms) {
+                UserVmResponse userVmData = vmDataList.get(userVm.getId());
+                if ( userVmData == null ){
+                    // first time encountering this vm
+                    userVmData = ApiDBUtils.newUserVmResponse(objectName, userVm, details, caller);
+                } else{
+                    // update nics, securitygroups, tags, affinitygroups for 1 to many mapping fields
+                    userVmData = ApiDBUtils.fillVmDetails(userVmData, userVm);
+                }
+                vmDataList.put(userVm.getId(), userVmData);
             }
-            vmDataList.put(userVm.getId(), userVmData);
+            return new ArrayList<UserVmResponse>(vmDataList.values());
+        } finally {
+            ApiDBUtils.releaseResourceTagViews(previousTags);
         }
-        return new ArrayList<UserVmResponse>(vmDataList.values());
     }
 
     public static List<DomainRouterResponse> createDomainRouterResponse(DomainRouterJoinVO... routers) {
@@ -164,38 +172,48 @@ public class ViewResponseHelper {
         Account caller = CallContext.current().getCallingAccount();
         Hashtable<Long, SecurityGroupResponse> vrDataList = new Hashtable<Long, SecurityGroupResponse>();
         // Initialise the vrdatalist with the input data
-        for (SecurityGroupJoinVO vr : securityGroups) {
-            SecurityGroupResponse vrData = vrDataList.get(vr.getId());
-            if ( vrData == null ) {
-                // first time encountering this sg
-                vrData = ApiDBUtils.newSecurityGroupResponse(vr, caller);
-
-            } else {
-                // update rules for 1 to many mapping fields
-                vrData = ApiDBUtils.fillSecurityGroupDetails(vrData, vr);
+        Map<Long, ResourceTagJoinVO> previousTags = ApiDBUtils.prefetchResourceTagViews(getTagIds(securityGroups));
+        try {
+            for (SecurityGroupJoinVO vr : securityGroups) {
+                SecurityGroupResponse vrData = vrDataList.get(vr.getId());
+                if ( vrData == null ) {
+                    // first time encountering this sg
+                    vrData = ApiDBUtils.newSecurityGroupResponse(vr, caller);
+
+                } else {
+                    // update rules for 1 to many mapping fields
+                    vrData = ApiDBUtils.fillSecurityGroupDetails(vrData, vr);
+                }
+                vrDataList.put(vr.getId(), vrData);
             }
-            vrDataList.put(vr.getId(), vrData);
+            return new ArrayList<SecurityGroupResponse>(vrDataList.values());
+        } finally {
+            ApiDBUtils.releaseResourceTagViews(previousTags);
         }
-        return new ArrayList<SecurityGroupResponse>(vrDataList.values());
     }
 
 
     public static List<ProjectResponse> createProjectResponse(ProjectJoinVO... projects) {
         Hashtable<Long, ProjectResponse> prjDataList = new Hashtable<Long, ProjectResponse>();
         // Initialise the prjdatalist with the input data
-        for (ProjectJoinVO p : projects) {
-            ProjectResponse pData = prjDataList.get(p.getId());
-            if ( pData == null ){
-                // first time encountering this vm
-                pData = ApiDBUtils.newProjectResponse(p);
-            }
-            else{
-                // update those  1 to many mapping fields
-                pData = ApiDBUtils.fillProjectDetails(pData, p);
+        Map<Long, ResourceTagJoinVO> previousTags = ApiDBUtils.prefetchResourceTagViews(getTagIds(Arrays.asList(projects)));
+        try {
+            for (ProjectJoinVO p : projects) {
+                ProjectResponse pData = prjDataList.get(p.getId());
+                if ( pData == null ){
+                    // first time encountering this vm
+                    pData = ApiDBUtils.newProjectResponse(p);
+                }
+                else{
+                    // update those  1 to many mapping fields
+                    pData = ApiDBUtils.fillProjectDetails(pData, p);
+                }
+                prjDataList.put(p.getId(), pData);
             }
-            prjDataList.put(p.getId(), pData);
+            return new ArrayList<ProjectResponse>(prjDataList.values());
+        } finally {
+            ApiDBUtils.releaseResourceTagViews(previousTags);
         }
-        return new ArrayList<ProjectResponse>(prjDataList.values());
     }
 
 
@@ -260,19 +278,24 @@ public class ViewResponseHelper {
 
     public static List<VolumeResponse> createVolumeResponse(VolumeJoinVO... volumes) {
         Hashtable<Long, VolumeResponse> vrDataList = new Hashtable<Long, VolumeResponse>();
-        for (VolumeJoinVO vr : volumes) {
-            VolumeResponse vrData = vrDataList.get(vr.getId());
-            if ( vrData == null ){
-                // first time encountering this volume
-                vrData = ApiDBUtils.newVolumeResponse(vr);
-            }
-            else{
-                // update tags
-                vrData = ApiDBUtils.fillVolumeDetails(vrData, vr);
+        Map<Long, ResourceTagJoinVO> previousTags = ApiDBUtils.prefetchResourceTagViews(getTagIds(Arrays.asList(volumes)));
+        try {
+            for (VolumeJoinVO vr : volumes) {
+                VolumeResponse vrData = vrDataList.get(vr.getId());
+                if ( vrData == null ){
+                    // first time encountering this volume
+                    vrData = ApiDBUtils.newVolumeResponse(vr);
+                }
+                else{
+                    // update tags
+                    vrData = ApiDBUtils.fillVolumeDetails(vrData, vr);
+                }
+                vrDataList.put(vr.getId(), vrData);
             }
-            vrDataList.put(vr.getId(), vrData);
+            return new ArrayList<VolumeResponse>(vrDataList.values());
+        } finally {
+            ApiDBUtils.releaseResourceTagViews(previousTags);
         }
-        return new ArrayList<VolumeResponse>(vrDataList.values());
     }
 
     public static List<StoragePoolResponse> createStoragePoolResponse(StoragePoolJoinVO... pools) {
@@ -372,53 +395,68 @@ public class ViewResponseHelper {
 
     public static List<TemplateResponse> createTemplateResponse(TemplateJoinVO... templates) {
         Hashtable<String, TemplateResponse> vrDataList = new Hashtable<String, TemplateResponse>();
-        for (TemplateJoinVO vr : templates) {
-            TemplateResponse vrData = vrDataList.get(vr.getTempZonePair());
-            if ( vrData == null ){
-                // first time encountering this volume
-                vrData = ApiDBUtils.newTemplateResponse(vr);
-            }
-            else{
-                // update tags
-                vrData = ApiDBUtils.fillTemplateDetails(vrData, vr);
+        Map<Long, ResourceTagJoinVO> previousTags = ApiDBUtils.prefetchResourceTagViews(getTagIds(Arrays.asList(templates)));
+        try {
+            for (TemplateJoinVO vr : templates) {
+                TemplateResponse vrData = vrDataList.get(vr.getTempZonePair());
+                if ( vrData == null ){
+                    // first time encountering this volume
+                    vrData = ApiDBUtils.newTemplateResponse(vr);
+                }
+                else{
+                    // update tags
+                    vrData = ApiDBUtils.fillTemplateDetails(vrData, vr);
+                }
+                vrDataList.put(vr.getTempZonePair(), vrData);
             }
-            vrDataList.put(vr.getTempZonePair(), vrData);
+            return new ArrayList<TemplateResponse>(vrDataList.values());
+        } finally {
+            ApiDBUtils.releaseResourceTagViews(previousTags);
         }
-        return new ArrayList<TemplateResponse>(vrDataList.values());
     }
 
     public static List<TemplateResponse> createTemplateUpdateResponse(TemplateJoinVO... templates) {
         Hashtable<Long, TemplateResponse> vrDataList = new Hashtable<Long, TemplateResponse>();
-        for (TemplateJoinVO vr : templates) {
-            TemplateResponse vrData = vrDataList.get(vr.getId());
-            if ( vrData == null ){
-                // first time encountering this volume
-                vrData = ApiDBUtils.newTemplateUpdateResponse(vr);
-            }
-            else{
-                // update tags
-                vrData = ApiDBUtils.fillTemplateDetails(vrData, vr);
+        Map<Long, ResourceTagJoinVO> previousTags = ApiDBUtils.prefetchResourceTagViews(getTagIds(Arrays.asList(templates)));
+        try {
+            for (TemplateJoinVO vr : templates) {
+                TemplateResponse vrData = vrDataList.get(vr.getId());
+                if ( vrData == null ){
+                    // first time encountering this volume
+                    vrData = ApiDBUtils.newTemplateUpdateResponse(vr);
+                }
+                else{
+                    // update tags
+                    vrData = ApiDBUtils.fillTemplateDetails(vrData, vr);
+                }
+                vrDataList.put(vr.getId(), vrData);
             }
-            vrDataList.put(vr.getId(), vrData);
+            return new ArrayList<TemplateResponse>(vrDataList.values());
+        } finally {
+            ApiDBUtils.releaseResourceTagViews(previousTags);
         }
-        return new ArrayList<TemplateResponse>(vrDataList.values());
     }
 
     public static List<TemplateResponse> createIsoResponse(TemplateJoinVO... templates) {
         Hashtable<String, TemplateResponse> vrDataList = new Hashtable<String, TemplateResponse>();
-        for (TemplateJoinVO vr : templates) {
-            TemplateResponse vrData = vrDataList.get(vr.getTempZonePair());
-            if ( vrData == null ){
-                // first time encountering this volume
-                vrData = ApiDBUtils.newIsoResponse(vr);
+        Map<Long, ResourceTagJoinVO> previousTags = ApiDBUtils.prefetchResourceTagViews(getTagIds(Arrays.asList(templates)));
+        try {
+            for (TemplateJoinVO vr : templates) {
+                TemplateResponse vrData = vrDataList.get(vr.getTempZonePair());
+                if ( vrData == null ){
+                    // first time encountering this volume
+                    vrData = ApiDBUtils.newIsoResponse(vr);
+                }
+                else{
+                    // update tags
+                    vrData = ApiDBUtils.fillTemplateDetails(vrData, vr);
+                }
+                vrDataList.put(vr.getTempZonePair(), vrData);
             }
-            else{
-                // update tags
-                vrData = ApiDBUtils.fillTemplateDetails(vrData, vr);
-            }
-            vrDataList.put(vr.getTempZonePair(), vrData);
+            return new ArrayList<TemplateResponse>(vrDataList.values());
+        } finally {
+            ApiDBUtils.releaseResourceTagViews(previousTags);
         }
-        return new ArrayList<TemplateResponse>(vrDataList.values());
     }
 
     public static List<AffinityGroupResponse> createAffinityGroupResponses(List<AffinityGroupJoinVO> groups) {
@@ -436,4 +474,15 @@ public class ViewResponseHelper {
         }
         return new ArrayList<AffinityGroupResponse>(vrDataList.values());
     }
+
+    // the view rows of a page carry the ids of their tags, these are loaded with one query per page
+    private static List<Long> getTagIds(List<? extends TaggedViewEntity> rows) {
+        List<Long> tagIds = new ArrayList<Long>();
+        for (TaggedViewEntity row : rows) {
+            if (row.getTagId() > 0) {
+                tagIds.add(row.getTagId());
+            }
+        }
+        return tagIds;
+    }
 }
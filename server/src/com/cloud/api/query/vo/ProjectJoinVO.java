@@ -34,7 +34,7 @@ import org.apache.cloudstack.api.InternalIdentity;
 
 @Entity
 @Table(name="project_view")
-public class ProjectJoinVO extends BaseViewVO implements InternalIdentity, Identity {
+public class ProjectJoinVO extends BaseViewVO implements InternalIdentity, Identity, TaggedViewEntity {
 
     @Id
     @Column(name="id", updatable=false, nullable = false)
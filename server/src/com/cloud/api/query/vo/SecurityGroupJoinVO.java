@@ -28,7 +28,7 @@ import com.cloud.server.ResourceTag.TaggedResourceType;
 
 @Entity
 @Table(name="security_group_view")
-public class SecurityGroupJoinVO extends BaseViewVO implements ControlledViewEntity{
+public class SecurityGroupJoinVO extends BaseViewVO implements ControlledViewEntity, TaggedViewEntity {
 
     @Id
     @Column(name="id", updatable=false, nullable = false)
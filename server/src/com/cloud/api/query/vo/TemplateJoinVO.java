@@ -38,7 +38,7 @@ import com.cloud.utils.db.GenericDao;
 
 @Entity
 @Table(name="template_view")
-public class TemplateJoinVO extends BaseViewVO implements ControlledViewEntity {
+public class TemplateJoinVO extends BaseViewVO implements ControlledViewEntity, TaggedViewEntity {
 
     @Id
     @Column(name="id")
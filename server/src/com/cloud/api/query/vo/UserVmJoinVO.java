@@ -41,7 +41,7 @@ import com.cloud.vm.VirtualMachine.State;
 
 @Entity
 @Table(name="user_vm_view")
-public class UserVmJoinVO extends BaseViewVO implements ControlledViewEntity {
+public class UserVmJoinVO extends BaseViewVO implements ControlledViewEntity, TaggedViewEntity {
 
     @Id
     @Column(name="id", updatable=false, nullable = false)
@@ -35,7 +35,7 @@ import com.cloud.vm.VirtualMachine;
 
 @Entity
 @Table(name="volume_view")
-public class VolumeJoinVO extends BaseViewVO implements ControlledViewEntity {
+public class VolumeJoinVO extends BaseViewVO implements ControlledViewEntity, TaggedViewEntity {
 
     @Id
     @Column(name="id")
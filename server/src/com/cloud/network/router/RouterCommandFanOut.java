@@ -0,0 +1,161 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.router;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Runs the per router part of a monitoring pass (sending a command and waiting for its answer) for
+ * many routers at once, with at most a fixed number of routers in flight.
+ *
+ * A router that does not answer within the per router timeout only costs its own slot, and the
+ * whole pass is given up on once every router had its chance; results that did not make it are
+ * reported as missing. The duration and outcome of the last pass are kept for monitoring.
+ */
+public class RouterCommandFanOut {
+    private static final Logger s_logger = Logger.getLogger(RouterCommandFanOut.class);
+
+    public static class Cycle {
+        private final String _name;
+        private final long _started;
+        private final long _duration;
+        private final int _jobs;
+        private final int _failed;
+        private final int _timedOut;
+
+        Cycle(String name, long started, long duration, int jobs, int failed, int timedOut) {
+            _name = name;
+            _started = started;
+            _duration = duration;
+            _jobs = jobs;
+            _failed = failed;
+            _timedOut = timedOut;
+        }
+
+        public long getStarted() {
+            return _started;
+        }
+
+        public long getDuration() {
+            return _duration;
+        }
+
+        public int getJobs() {
+            return _jobs;
+        }
+
+        public int getFailed() {
+            return _failed;
+        }
+
+        public int getTimedOut() {
+            return _timedOut;
+        }
+
+        @Override
+        public String toString() {
+            return _name + " pass over " + _jobs + " routers took " + _duration + " ms, " + _failed + " failed, " + _timedOut + " timed out";
+        }
+    }
+
+    private final String _name;
+    private final int _concurrency;
+    private final ExecutorService _executor;
+    private volatile Cycle _lastCycle;
+
+    public RouterCommandFanOut(String name, int concurrency) {
+        _name = name;
+        _concurrency = Math.max(1, concurrency);
+        _executor = Executors.newFixedThreadPool(_concurrency, new NamedThreadFactory(name));
+    }
+
+    /**
+     * Runs the jobs and waits for them.
+     *
+     * @param timeout how long one job may take, in milliseconds
+     * @return the results in the order of the jobs, null for a job that failed or did not finish in time
+     */
+    public <T> List<T> run(List<? extends Callable<T>> jobs, long timeout) {
+        long start = System.currentTimeMillis();
+        List<Future<T>> futures = new ArrayList<Future<T>>(jobs.size());
+        for (Callable<T> job : jobs) {
+            futures.add(_executor.submit(job));
+        }
+
+        // the last jobs only start once the ones queued before them are done
+        long rounds = Math.max(1, (jobs.size() + _concurrency - 1) / _concurrency);
+        long deadline = start + timeout * rounds;
+
+        List<T> results = new ArrayList<T>(jobs.size());
+        int failed = 0;
+        int timedOut = 0;
+        boolean interrupted = false;
+        for (Future<T> future : futures) {
+            if (interrupted) {
+                future.cancel(true);
+                results.add(null);
+                continue;
+            }
+            try {
+                results.add(future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                timedOut++;
+                results.add(null);
+            } catch (ExecutionException e) {
+                s_logger.warn(_name + " failed on a router", e.getCause());
+                failed++;
+                results.add(null);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                future.cancel(true);
+                results.add(null);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        _lastCycle = new Cycle(_name, start, System.currentTimeMillis() - start, jobs.size(), failed, timedOut);
+        if (timedOut > 0) {
+            s_logger.warn(_lastCycle);
+        } else if (s_logger.isDebugEnabled()) {
+            s_logger.debug(_lastCycle);
+        }
+        return results;
+    }
+
+    public Cycle getLastCycle() {
+        return _lastCycle;
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+}
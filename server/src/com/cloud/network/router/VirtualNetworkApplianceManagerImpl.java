@@ -31,6 +31,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -72,6 +73,8 @@ import com.cloud.agent.api.PvlanSetupCommand;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.check.CheckSshAnswer;
 import com.cloud.agent.api.check.CheckSshCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand.Action;
 import com.cloud.agent.api.routing.CreateIpAliasCommand;
 import com.cloud.agent.api.routing.DeleteIpAliasCommand;
 import com.cloud.agent.api.routing.DhcpEntryCommand;
@@ -396,6 +399,11 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     ScheduledExecutorService _checkExecutor;
     ScheduledExecutorService _networkStatsUpdateExecutor;
     ExecutorService _rvrStatusUpdateExecutor;
+    // send the monitoring commands of a pass to many routers at once
+    RouterCommandFanOut _routerStatsFanOut;
+    RouterCommandFanOut _routerCheckFanOut;
+    int _routerStatsPoolSize;
+    int _routerStatsTimeout;
 
     Account _systemAcct;
 
@@ -674,6 +682,12 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
         value = configs.get("router.check.poolsize");
         _rvrStatusUpdatePoolSize = NumbersUtil.parseInt(value, 10);
 
+        _routerStatsPoolSize = NumbersUtil.parseInt(configs.get("router.stats.poolsize"), 10);
+        _routerStatsTimeout = NumbersUtil.parseInt(configs.get("router.stats.timeout"), 60);
+        _routerStatsFanOut = new RouterCommandFanOut("RouterStatsCollector", _routerStatsPoolSize);
+        // both routers of a redundant pair are checked at once
+        _routerCheckFanOut = new RouterCommandFanOut("RouterStatusChecker", Math.max(_routerStatsPoolSize, 2 * _rvrStatusUpdatePoolSize));
+
         /*
          * We assume that one thread can handle 20 requests in 1 minute in normal situation, so here we give the queue size up to 50 minutes.
          * It's mostly for buffer, since each time CheckRouterTask running, it would add all the redundant networks in the queue immediately
@@ -789,6 +803,12 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
 
     @Override
     public boolean stop() {
+        if (_routerStatsFanOut != null) {
+            _routerStatsFanOut.shutdown();
+        }
+        if (_routerCheckFanOut != null) {
+            _routerCheckFanOut.shutdown();
+        }
         return true;
     }
 
@@ -864,6 +884,7 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
                 final List<DomainRouterVO> routers = _routerDao.listByStateAndNetworkType(State.Running, GuestType.Isolated, mgmtSrvrId);
                 s_logger.debug("Found " + routers.size() + " running routers. ");
 
+                List<NetworkUsageJob> jobs = new ArrayList<NetworkUsageJob>();
                 for (DomainRouterVO router : routers) {
                     String privateIP = router.getPrivateIpAddress();
 
@@ -877,84 +898,24 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
                             if ((forVpc && network.getTrafficType() == TrafficType.Public) || (!forVpc && network.getTrafficType() == TrafficType.Guest && network.getGuestType() == Network.GuestType.Isolated)) {
                                 final NetworkUsageCommand usageCmd = new NetworkUsageCommand(privateIP, router.getHostName(),
                                         forVpc, routerNic.getIp4Address());
-                                String routerType = router.getType().toString();
+                                usageCmd.setWait(_routerStatsTimeout);
+                                String publicIp = forVpc ? routerNic.getIp4Address() : null;
                                 UserStatisticsVO previousStats = _userStatsDao.findBy(router.getAccountId(),
-                                        router.getDataCenterId(), network.getId(), (forVpc ? routerNic.getIp4Address() : null), router.getId(), routerType);
-                                NetworkUsageAnswer answer = null;
-                                try {
-                                    answer = (NetworkUsageAnswer) _agentMgr.easySend(router.getHostId(), usageCmd);
-                                } catch (Exception e) {
-                                    s_logger.warn("Error while collecting network stats from router: " + router.getInstanceName() + " from host: " + router.getHostId(), e);
-                                    continue;
-                                }
-
-                                if (answer != null) {
-                                    if (!answer.getResult()) {
-                                        s_logger.warn("Error while collecting network stats from router: " + router.getInstanceName() + " from host: " + router.getHostId() + "; details: " + answer.getDetails());
-                                        continue;
-                                    }
-                                    Transaction txn = Transaction.open(Transaction.CLOUD_DB);
-                                    try {
-                                        if ((answer.getBytesReceived() == 0) && (answer.getBytesSent() == 0)) {
-                                            s_logger.debug("Recieved and Sent bytes are both 0. Not updating user_statistics");
-                                            continue;
-                                        }
-                                        txn.start();
-                                        UserStatisticsVO stats = _userStatsDao.lock(router.getAccountId(),
-                                                router.getDataCenterId(), network.getId(), (forVpc ? routerNic.getIp4Address() : null), router.getId(), routerType);
-                                        if (stats == null) {
-                                            s_logger.warn("unable to find stats for account: " + router.getAccountId());
-                                            continue;
-                                        }
-
-                                        if (previousStats != null
-                                                && ((previousStats.getCurrentBytesReceived() != stats.getCurrentBytesReceived())
-                                                || (previousStats.getCurrentBytesSent() != stats.getCurrentBytesSent()))) {
-                                            s_logger.debug("Router stats changed from the time NetworkUsageCommand was sent. " +
-                                                    "Ignoring current answer. Router: " + answer.getRouterName() + " Rcvd: " +
-                                                    answer.getBytesReceived() + "Sent: " + answer.getBytesSent());
-                                            continue;
-                                        }
-
-                                        if (stats.getCurrentBytesReceived() > answer.getBytesReceived()) {
-                                            if (s_logger.isDebugEnabled()) {
-                                                s_logger.debug("Received # of bytes that's less than the last one.  " +
-                                                        "Assuming something went wrong and persisting it. Router: " +
-                                                        answer.getRouterName() + " Reported: " + answer.getBytesReceived()
-                                                        + " Stored: " + stats.getCurrentBytesReceived());
-                                            }
-                                            stats.setNetBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
-                                        }
-                                        stats.setCurrentBytesReceived(answer.getBytesReceived());
-                                        if (stats.getCurrentBytesSent() > answer.getBytesSent()) {
-                                            if (s_logger.isDebugEnabled()) {
-                                                s_logger.debug("Received # of bytes that's less than the last one.  " +
-                                                        "Assuming something went wrong and persisting it. Router: " +
-                                                        answer.getRouterName() + " Reported: " + answer.getBytesSent()
-                                                        + " Stored: " + stats.getCurrentBytesSent());
-                                            }
-                                            stats.setNetBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
-                                        }
-                                        stats.setCurrentBytesSent(answer.getBytesSent());
-                                        if (! _dailyOrHourly) {
-                                            //update agg bytes
-                                            stats.setAggBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
-                                            stats.setAggBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
-                                        }
-                                        _userStatsDao.update(stats.getId(), stats);
-                                        txn.commit();
-                                    } catch (Exception e) {
-                                        txn.rollback();
-                                        s_logger.warn("Unable to update user statistics for account: " + router.getAccountId()
-                                                + " Rx: " + answer.getBytesReceived() + "; Tx: " + answer.getBytesSent());
-                                    } finally {
-                                        txn.close();
-                                    }
-                                }
+                                        router.getDataCenterId(), network.getId(), publicIp, router.getId(), router.getType().toString());
+                                jobs.add(new NetworkUsageJob(router, network.getId(), publicIp, usageCmd, previousStats));
                             }
                         }
                     }
                 }
+
+                List<NetworkUsageAnswer> answers = _routerStatsFanOut.run(jobs, _routerStatsTimeout * 1000L);
+                updateUserStatistics(jobs, answers);
+
+                RouterCommandFanOut.Cycle cycle = _routerStatsFanOut.getLastCycle();
+                if (cycle.getDuration() > _routerStatsInterval * 1000L) {
+                    s_logger.warn(cycle + ", longer than router.stats.interval " + _routerStatsInterval
+                            + "s. Adjustment of router.stats.poolsize or router.stats.timeout maybe needed.");
+                }
             } catch (Exception e) {
                 s_logger.warn("Error while collecting network stats", e);
             } finally {
@@ -963,6 +924,146 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
         }
     }
 
+    protected class NetworkUsageJob implements Callable<NetworkUsageAnswer> {
+        final DomainRouterVO _router;
+        final long _networkId;
+        final String _publicIp;
+        final NetworkUsageCommand _command;
+        final UserStatisticsVO _previousStats;
+
+        NetworkUsageJob(DomainRouterVO router, long networkId, String publicIp, NetworkUsageCommand command, UserStatisticsVO previousStats) {
+            _router = router;
+            _networkId = networkId;
+            _publicIp = publicIp;
+            _command = command;
+            _previousStats = previousStats;
+        }
+
+        @Override
+        public NetworkUsageAnswer call() {
+            Answer answer = null;
+            ServerContexts.registerSystemContext();
+            try {
+                answer = _agentMgr.easySend(_router.getHostId(), _command);
+            } catch (Exception e) {
+                s_logger.warn("Error while collecting network stats from router: " + _router.getInstanceName() + " from host: " + _router.getHostId(), e);
+                return null;
+            } finally {
+                ServerContexts.unregisterSystemContext();
+            }
+
+            if (answer == null) {
+                return null;
+            }
+            if (!answer.getResult() || !(answer instanceof NetworkUsageAnswer)) {
+                s_logger.warn("Error while collecting network stats from router: " + _router.getInstanceName() + " from host: " + _router.getHostId() + "; details: " + answer.getDetails());
+                return null;
+            }
+            return (NetworkUsageAnswer)answer;
+        }
+    }
+
+    /**
+     * Stores the collected counters, one transaction per router for all of its nics. If that
+     * transaction fails the nics of the router are retried one transaction each, so a failing
+     * row does not roll back the others.
+     */
+    protected void updateUserStatistics(List<NetworkUsageJob> jobs, List<NetworkUsageAnswer> answers) {
+        Map<Long, List<Integer>> jobsByRouter = new LinkedHashMap<Long, List<Integer>>();
+        for (int i = 0; i < jobs.size(); i++) {
+            if (answers.get(i) == null) {
+                continue;
+            }
+            long routerId = jobs.get(i)._router.getId();
+            List<Integer> routerJobs = jobsByRouter.get(routerId);
+            if (routerJobs == null) {
+                routerJobs = new ArrayList<Integer>();
+                jobsByRouter.put(routerId, routerJobs);
+            }
+            routerJobs.add(i);
+        }
+
+        for (List<Integer> routerJobs : jobsByRouter.values()) {
+            if (routerJobs.size() > 1 && updateUserStatistics(jobs, answers, routerJobs)) {
+                continue;
+            }
+            for (Integer i : routerJobs) {
+                updateUserStatistics(jobs, answers, Collections.singletonList(i));
+            }
+        }
+    }
+
+    private boolean updateUserStatistics(List<NetworkUsageJob> jobs, List<NetworkUsageAnswer> answers, List<Integer> routerJobs) {
+        DomainRouterVO router = jobs.get(routerJobs.get(0))._router;
+        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            txn.start();
+            for (Integer i : routerJobs) {
+                updateUserStatistics(jobs.get(i), answers.get(i));
+            }
+            txn.commit();
+            return true;
+        } catch (Exception e) {
+            txn.rollback();
+            s_logger.warn("Unable to update user statistics for account: " + router.getAccountId()
+                    + " router: " + router.getInstanceName() + ", nics: " + routerJobs.size(), e);
+            return false;
+        } finally {
+            txn.close();
+        }
+    }
+
+    private void updateUserStatistics(NetworkUsageJob job, NetworkUsageAnswer answer) {
+        DomainRouterVO router = job._router;
+        UserStatisticsVO previousStats = job._previousStats;
+        if ((answer.getBytesReceived() == 0) && (answer.getBytesSent() == 0)) {
+            s_logger.debug("Recieved and Sent bytes are both 0. Not updating user_statistics");
+            return;
+        }
+        UserStatisticsVO stats = _userStatsDao.lock(router.getAccountId(),
+                router.getDataCenterId(), job._networkId, job._publicIp, router.getId(), router.getType().toString());
+        if (stats == null) {
+            s_logger.warn("unable to find stats for account: " + router.getAccountId());
+            return;
+        }
+
+        if (previousStats != null
+                && ((previousStats.getCurrentBytesReceived() != stats.getCurrentBytesReceived())
+                || (previousStats.getCurrentBytesSent() != stats.getCurrentBytesSent()))) {
+            s_logger.debug("Router stats changed from the time NetworkUsageCommand was sent. " +
+                    "Ignoring current answer. Router: " + answer.getRouterName() + " Rcvd: " +
+                    answer.getBytesReceived() + "Sent: " + answer.getBytesSent());
+            return;
+        }
+
+        if (stats.getCurrentBytesReceived() > answer.getBytesReceived()) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Received # of bytes that's less than the last one.  " +
+                        "Assuming something went wrong and persisting it. Router: " +
+                        answer.getRouterName() + " Reported: " + answer.getBytesReceived()
+                        + " Stored: " + stats.getCurrentBytesReceived());
+            }
+            stats.setNetBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
+        }
+        stats.setCurrentBytesReceived(answer.getBytesReceived());
+        if (stats.getCurrentBytesSent() > answer.getBytesSent()) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Received # of bytes that's less than the last one.  " +
+                        "Assuming something went wrong and persisting it. Router: " +
+                        answer.getRouterName() + " Reported: " + answer.getBytesSent()
+                        + " Stored: " + stats.getCurrentBytesSent());
+            }
+            stats.setNetBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
+        }
+        stats.setCurrentBytesSent(answer.getBytesSent());
+        if (! _dailyOrHourly) {
+            //update agg bytes
+            stats.setAggBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
+            stats.setAggBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
+        }
+        _userStatsDao.update(stats.getId(), stats);
+    }
+
     protected class NetworkStatsUpdateTask implements Runnable {
 
         public NetworkStatsUpdateTask() {
@@ -1017,6 +1118,10 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
 
     @DB
     protected void updateSite2SiteVpnConnectionState(List<DomainRouterVO> routers) {
+        // the routers are asked all at once, the answers are processed one by one afterwards
+        List<DomainRouterVO> checkedRouters = new ArrayList<DomainRouterVO>();
+        List<List<Site2SiteVpnConnectionVO>> checkedConns = new ArrayList<List<Site2SiteVpnConnectionVO>>();
+        List<SendCommandJob> jobs = new ArrayList<SendCommandJob>();
         for (DomainRouterVO router : routers) {
             List<Site2SiteVpnConnectionVO> conns = _s2sVpnMgr.getConnectionsForRouter(router);
             if (conns == null || conns.isEmpty()) {
@@ -1052,54 +1157,107 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
                 command.setAccessDetail(NetworkElementCommand.ROUTER_IP, getRouterControlIp(router.getId()));
                 command.setAccessDetail(NetworkElementCommand.ROUTER_NAME, router.getInstanceName());
                 command.setWait(30);
-                final Answer origAnswer = _agentMgr.easySend(router.getHostId(), command);
-                CheckS2SVpnConnectionsAnswer answer = null;
-                if (origAnswer instanceof CheckS2SVpnConnectionsAnswer) {
-                    answer = (CheckS2SVpnConnectionsAnswer)origAnswer;
-                } else {
-                    s_logger.warn("Unable to update router " + router.getHostName() + "'s VPN connection status");
-                    continue;
-                }
-                if (!answer.getResult()) {
-                    s_logger.warn("Unable to update router " + router.getHostName() + "'s VPN connection status");
-                    continue;
+                checkedRouters.add(router);
+                checkedConns.add(conns);
+                jobs.add(new SendCommandJob(router.getHostId(), command));
+            }
+        }
+
+        List<Answer> answers = _routerCheckFanOut.run(jobs, 30 * 1000L);
+        for (int i = 0; i < jobs.size(); i++) {
+            DomainRouterVO router = checkedRouters.get(i);
+            List<Site2SiteVpnConnectionVO> conns = checkedConns.get(i);
+            final Answer origAnswer = answers.get(i);
+            CheckS2SVpnConnectionsAnswer answer = null;
+            if (origAnswer instanceof CheckS2SVpnConnectionsAnswer) {
+                answer = (CheckS2SVpnConnectionsAnswer)origAnswer;
+            } else {
+                s_logger.warn("Unable to update router " + router.getHostName() + "'s VPN connection status");
+                continue;
+            }
+            if (!answer.getResult()) {
+                s_logger.warn("Unable to update router " + router.getHostName() + "'s VPN connection status");
+                continue;
+            }
+            for (Site2SiteVpnConnectionVO conn : conns) {
+                Site2SiteVpnConnectionVO lock = _s2sVpnConnectionDao.acquireInLockTable(conn.getId());
+                if (lock == null) {
+                    throw new CloudRuntimeException("Unable to acquire lock on " + lock);
                 }
-                for (Site2SiteVpnConnectionVO conn : conns) {
-                    Site2SiteVpnConnectionVO lock = _s2sVpnConnectionDao.acquireInLockTable(conn.getId());
-                    if (lock == null) {
-                        throw new CloudRuntimeException("Unable to acquire lock on " + lock);
+                try {
+                    if (conn.getState() != Site2SiteVpnConnection.State.Connected &&
+                            conn.getState() != Site2SiteVpnConnection.State.Disconnected) {
+                        continue;
                     }
-                    try {
-                        if (conn.getState() != Site2SiteVpnConnection.State.Connected &&
-                                conn.getState() != Site2SiteVpnConnection.State.Disconnected) {
-                            continue;
-                        }
-                        Site2SiteVpnConnection.State oldState = conn.getState();
-                        Site2SiteCustomerGateway gw = _s2sCustomerGatewayDao.findById(conn.getCustomerGatewayId());
-                        if (answer.isConnected(gw.getGatewayIp())) {
-                            conn.setState(Site2SiteVpnConnection.State.Connected);
-                        } else {
-                            conn.setState(Site2SiteVpnConnection.State.Disconnected);
-                        }
-                        _s2sVpnConnectionDao.persist(conn);
-                        if (oldState != conn.getState()) {
-                            String title = "Site-to-site Vpn Connection to " + gw.getName() +
-                                    " just switch from " + oldState + " to " + conn.getState();
-                            String context = "Site-to-site Vpn Connection to " + gw.getName() + " on router " + router.getHostName() +
-                                    "(id: " + router.getId() + ") " + " just switch from " + oldState + " to " + conn.getState();
-                            s_logger.info(context);
-                            _alertMgr.sendAlert(AlertManager.ALERT_TYPE_DOMAIN_ROUTER,
-                                    router.getDataCenterId(), router.getPodIdToDeployIn(), title, context);
-                        }
-                    } finally {
-                        _s2sVpnConnectionDao.releaseFromLockTable(lock.getId());
+                    Site2SiteVpnConnection.State oldState = conn.getState();
+                    Site2SiteCustomerGateway gw = _s2sCustomerGatewayDao.findById(conn.getCustomerGatewayId());
+                    if (answer.isConnected(gw.getGatewayIp())) {
+                        conn.setState(Site2SiteVpnConnection.State.Connected);
+                    } else {
+                        conn.setState(Site2SiteVpnConnection.State.Disconnected);
+                    }
+                    _s2sVpnConnectionDao.persist(conn);
+                    if (oldState != conn.getState()) {
+                        String title = "Site-to-site Vpn Connection to " + gw.getName() +
+                                " just switch from " + oldState + " to " + conn.getState();
+                        String context = "Site-to-site Vpn Connection to " + gw.getName() + " on router " + router.getHostName() +
+                                "(id: " + router.getId() + ") " + " just switch from " + oldState + " to " + conn.getState();
+                        s_logger.info(context);
+                        _alertMgr.sendAlert(AlertManager.ALERT_TYPE_DOMAIN_ROUTER,
+                                router.getDataCenterId(), router.getPodIdToDeployIn(), title, context);
                     }
+                } finally {
+                    _s2sVpnConnectionDao.releaseFromLockTable(lock.getId());
                 }
             }
         }
     }
-    
+
+    protected class SendCommandJob implements Callable<Answer> {
+        final long _hostId;
+        final Command _command;
+
+        SendCommandJob(long hostId, Command command) {
+            _hostId = hostId;
+            _command = command;
+        }
+
+        @Override
+        public Answer call() {
+            ServerContexts.registerSystemContext();
+            try {
+                return _agentMgr.easySend(_hostId, _command);
+            } finally {
+                ServerContexts.unregisterSystemContext();
+            }
+        }
+    }
+
     protected void updateRoutersRedundantState(List<DomainRouterVO> routers) {
+        // the routers of a network are checked at the same time, a slow one does not hold up its peer
+        List<Long> checkedRouters = new ArrayList<Long>();
+        List<SendCommandJob> jobs = new ArrayList<SendCommandJob>();
+        for (DomainRouterVO router : routers) {
+            if (!router.getIsRedundantRouter() || router.getState() != State.Running || router.getPrivateIpAddress() == null) {
+                continue;
+            }
+            HostVO host = _hostDao.findById(router.getHostId());
+            if (host == null || host.getState() != Status.Up) {
+                continue;
+            }
+            final CheckRouterCommand command = new CheckRouterCommand();
+            command.setAccessDetail(NetworkElementCommand.ROUTER_IP, getRouterControlIp(router.getId()));
+            command.setAccessDetail(NetworkElementCommand.ROUTER_NAME, router.getInstanceName());
+            command.setWait(30);
+            checkedRouters.add(router.getId());
+            jobs.add(new SendCommandJob(router.getHostId(), command));
+        }
+        List<Answer> answers = _routerCheckFanOut.run(jobs, 30 * 1000L);
+        Map<Long, Answer> checked = new HashMap<Long, Answer>();
+        for (int i = 0; i < checkedRouters.size(); i++) {
+            checked.put(checkedRouters.get(i), answers.get(i));
+        }
+
         boolean updated = false;
         for (DomainRouterVO router : routers) {
             updated = false;
@@ -1111,33 +1269,28 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
                 router.setRedundantState(RedundantState.UNKNOWN);
                 router.setIsPriorityBumpUp(false);
                 updated = true;
+            } else if (checked.containsKey(router.getId())) {
+                final Answer origAnswer = checked.get(router.getId());
+                CheckRouterAnswer answer = null;
+                if (origAnswer instanceof CheckRouterAnswer) {
+                    answer = (CheckRouterAnswer)origAnswer;
+                } else {
+                    s_logger.warn("Unable to update router " + router.getHostName() + "'s status");
+                }
+                RedundantState state = RedundantState.UNKNOWN;
+                boolean isBumped = router.getIsPriorityBumpUp();
+                if (answer != null && answer.getResult()) {
+                    state = answer.getState();
+                    isBumped = answer.isBumped();
+                }
+                router.setRedundantState(state);
+                router.setIsPriorityBumpUp(isBumped);
+                updated = true;
             } else {
-                String privateIP = router.getPrivateIpAddress();
                 HostVO host = _hostDao.findById(router.getHostId());
                 if (host == null || host.getState() != Status.Up) {
                     router.setRedundantState(RedundantState.UNKNOWN);
                     updated = true;
-                } else if (privateIP != null) {
-                    final CheckRouterCommand command = new CheckRouterCommand();
-                    command.setAccessDetail(NetworkElementCommand.ROUTER_IP, getRouterControlIp(router.getId()));
-                    command.setAccessDetail(NetworkElementCommand.ROUTER_NAME, router.getInstanceName());
-                    command.setWait(30);
-                    final Answer origAnswer = _agentMgr.easySend(router.getHostId(), command);
-                    CheckRouterAnswer answer = null;
-                    if (origAnswer instanceof CheckRouterAnswer) {
-                        answer = (CheckRouterAnswer)origAnswer;
-                    } else {
-                        s_logger.warn("Unable to update router " + router.getHostName() + "'s status");
-                    }
-                    RedundantState state = RedundantState.UNKNOWN;
-                    boolean isBumped = router.getIsPriorityBumpUp();
-                    if (answer != null && answer.getResult()) {
-                        state = answer.getState();
-                        isBumped = answer.isBumped();
-                    }
-                    router.setRedundantState(state);
-                    router.setIsPriorityBumpUp(isBumped);
-                    updated = true;
                 }
             }
             if (updated) {
@@ -1335,6 +1488,9 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
         public void run() {
             ServerContexts.registerSystemContext();
             try {
+                if (!_vrUpdateQueue.isEmpty()) {
+                    s_logger.warn(_vrUpdateQueue.size() + " networks of the previous check are still waiting for their RvR status update, adjustment of router.check.interval and router.check.poolsize maybe needed.");
+                }
                 final List<DomainRouterVO> routers = _routerDao.listIsolatedByHostId(null);
                 s_logger.debug("Found " + routers.size() + " routers to update status. ");
 
@@ -2324,6 +2480,7 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
         }
 
         List<Long> routerGuestNtwkIds = _routerDao.getRouterNetworks(router.getId());
+        startAggregationOnStart(cmds, router);
         for (Long guestNetworkId : routerGuestNtwkIds) {
             if (reprogramGuestNtwks) {
                 finalizeIpAssocForNetwork(cmds, router, provider, guestNetworkId, null);
@@ -2332,10 +2489,38 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
 
             finalizeUserDataAndDhcpOnStart(cmds, router, provider, guestNetworkId);
         }
+        finishAggregationOnStart(cmds, router);
 
         return true;
     }
 
+    /**
+     * The rules, dhcp entries and vm data replayed on start are collected by the resource and pushed to the
+     * router in one go when the aggregation finishes, instead of one ssh session per rule.
+     */
+    protected void startAggregationOnStart(Commands cmds, DomainRouterVO router) {
+        cmds.addCommand(new AggregationControlCommand(Action.Start, router.getInstanceName(), getRouterControlIp(router.getId())));
+    }
+
+    protected void finishAggregationOnStart(Commands cmds, DomainRouterVO router) {
+        cmds.addCommand("finishAggregation", new AggregationControlCommand(Action.Finish, router.getInstanceName(), getRouterControlIp(router.getId())));
+    }
+
+    /**
+     * Drops what the resource collected for the router when the start sequence stopped before the aggregation
+     * finished, or the router is stopped, so the batch can not swallow commands sent to the router later on.
+     */
+    protected void cleanupAggregation(DomainRouterVO router, Long hostId) {
+        if (router == null || hostId == null) {
+            return;
+        }
+        Answer answer = _agentMgr.easySend(hostId, new AggregationControlCommand(Action.Cleanup, router.getInstanceName(), getRouterControlIp(router.getId())));
+        if (answer == null || !answer.getResult()) {
+            s_logger.warn("Unable to clean up the configuration collected for router " + router.getInstanceName()
+                    + (answer != null ? " due to: " + answer.getDetails() : ""));
+        }
+    }
+
     protected NicProfile getControlNic(VirtualMachineProfile profile) {
         DomainRouterVO router = _routerDao.findById(profile.getId());
         DataCenterVO dcVo = _dcDao.findById(router.getDataCenterId());
@@ -2581,6 +2766,11 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
         
         boolean result = true;
 
+        Answer finishAnswer = cmds.getAnswer("finishAggregation");
+        if (finishAnswer == null || !finishAnswer.getResult()) {
+            cleanupAggregation(router, hostId);
+        }
+
         Answer answer = cmds.getAnswer("checkSsh");
         if (answer != null && answer instanceof CheckSshAnswer) {
             CheckSshAnswer sshAnswer = (CheckSshAnswer) answer;
@@ -2630,6 +2820,11 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
             result = false;
         }
 
+        if (finishAnswer != null && !finishAnswer.getResult()) {
+            s_logger.warn("Unable to apply the configuration of router " + router.getInstanceName() + " due to: " + finishAnswer.getDetails());
+            result = false;
+        }
+
         return result;
     }
 
@@ -2639,6 +2834,7 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
             VirtualMachine vm = profile.getVirtualMachine();
             DomainRouterVO domR = _routerDao.findById(vm.getId());
             processStopOrRebootAnswer(domR, answer);
+            cleanupAggregation(domR, vm.getHostId());
             List<? extends Nic> routerNics = _nicDao.listByVmId(profile.getId());
             for (Nic nic : routerNics) {
             	Network network = _networkModel.getNetwork(nic.getNetworkId());
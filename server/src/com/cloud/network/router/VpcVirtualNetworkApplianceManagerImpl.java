@@ -856,6 +856,7 @@ public class VpcVirtualNetworkApplianceManagerImpl extends VirtualNetworkApplian
             throw new CloudRuntimeException("Cannot find related provider of virtual router provider: " + vrProvider.getType().toString());
         }
 
+        startAggregationOnStart(cmds, router);
         for (Pair<Nic, Network> nicNtwk : guestNics) {
             Nic guestNic = nicNtwk.first();
             if (reprogramGuestNtwks) {
@@ -865,6 +866,7 @@ public class VpcVirtualNetworkApplianceManagerImpl extends VirtualNetworkApplian
 
             finalizeUserDataAndDhcpOnStart(cmds, router, provider, guestNic.getNetworkId());
         }
+        finishAggregationOnStart(cmds, router);
 
         //Add network usage commands
         cmds.addCommands(usageCmds);
@@ -0,0 +1,199 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cloudstack.api.response.ResourceTagResponse;
+import org.apache.cloudstack.api.response.VolumeResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.api.query.ViewResponseHelper;
+import com.cloud.api.query.dao.ResourceTagJoinDao;
+import com.cloud.api.query.dao.VolumeJoinDao;
+import com.cloud.api.query.vo.ResourceTagJoinVO;
+import com.cloud.api.query.vo.VolumeJoinVO;
+import com.cloud.server.ResourceTag;
+import com.cloud.server.ResourceTag.TaggedResourceType;
+import com.cloud.server.TaggedResourceService;
+import com.cloud.tags.ResourceTagVO;
+import com.cloud.tags.dao.ResourceTagDao;
+
+public class ResourceTagPrefetchTest {
+    private ResourceTagJoinDao _savedTagJoinDao;
+    private VolumeJoinDao _savedVolJoinDao;
+    private ResourceTagJoinDao _tagJoinDao;
+    private ResourceTagDao _savedResourceTagDao;
+    private TaggedResourceService _savedTaggedResourceService;
+
+    @Before
+    public void setUp() {
+        _savedTagJoinDao = ApiDBUtils._tagJoinDao;
+        _savedVolJoinDao = ApiDBUtils._volJoinDao;
+        _savedResourceTagDao = ApiDBUtils._resourceTagDao;
+        _savedTaggedResourceService = ApiDBUtils._taggedResourceService;
+
+        _tagJoinDao = mock(ResourceTagJoinDao.class);
+        when(_tagJoinDao.searchByIds(Matchers.<Long> anyVararg())).thenAnswer(new Answer<List<ResourceTagJoinVO>>() {
+            @Override
+            public List<ResourceTagJoinVO> answer(InvocationOnMock invocation) {
+                List<ResourceTagJoinVO> tags = new ArrayList<ResourceTagJoinVO>();
+                for (Object id : invocation.getArguments()) {
+                    // odd ids are tags that have been removed meanwhile
+                    if ((Long)id % 2 == 0) {
+                        ResourceTagJoinVO tag = new ResourceTagJoinVO();
+                        tag.setId((Long)id);
+                        tags.add(tag);
+                    }
+                }
+                return tags;
+            }
+        });
+        when(_tagJoinDao.newResourceTagResponse(any(ResourceTagJoinVO.class), any(Boolean.class))).thenReturn(new ResourceTagResponse());
+
+        // resolves the tag of a row the way VolumeJoinDaoImpl does
+        Answer<VolumeResponse> volumeResponse = new Answer<VolumeResponse>() {
+            @Override
+            public VolumeResponse answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                VolumeResponse response = args.length > 1 ? (VolumeResponse)args[0] : new VolumeResponse();
+                VolumeJoinVO volume = (VolumeJoinVO)args[args.length - 1];
+                if (volume.getTagId() > 0) {
+                    ResourceTagJoinVO tag = ApiDBUtils.findResourceTagViewById(volume.getTagId());
+                    if (tag != null) {
+                        response.addTag(ApiDBUtils.newResourceTagResponse(tag, false));
+                    }
+                }
+                return response;
+            }
+        };
+        VolumeJoinDao volJoinDao = mock(VolumeJoinDao.class);
+        when(volJoinDao.newVolumeResponse(any(VolumeJoinVO.class))).thenAnswer(volumeResponse);
+        when(volJoinDao.setVolumeResponse(any(VolumeResponse.class), any(VolumeJoinVO.class))).thenAnswer(volumeResponse);
+
+        ApiDBUtils._tagJoinDao = _tagJoinDao;
+        ApiDBUtils._volJoinDao = volJoinDao;
+    }
+
+    @After
+    public void tearDown() {
+        ApiDBUtils._tagJoinDao = _savedTagJoinDao;
+        ApiDBUtils._volJoinDao = _savedVolJoinDao;
+        ApiDBUtils._resourceTagDao = _savedResourceTagDao;
+        ApiDBUtils._taggedResourceService = _savedTaggedResourceService;
+    }
+
+    @Test
+    public void testTagQueriesDoNotDependOnPageSize() {
+        for (int pageSize : new int[] {1, 20, 500}) {
+            List<VolumeResponse> responses = ViewResponseHelper.createVolumeResponse(createPage(pageSize));
+            assertEquals(pageSize, responses.size());
+        }
+        // one query per page
+        verify(_tagJoinDao, times(3)).searchByIds(Matchers.<Long> anyVararg());
+    }
+
+    @Test
+    public void testPrefetchedTagsAreReleased() {
+        ViewResponseHelper.createVolumeResponse(createPage(10));
+        verify(_tagJoinDao, times(1)).searchByIds(Matchers.<Long> anyVararg());
+
+        // outside of building a page a tag is looked up on its own again
+        ApiDBUtils.findResourceTagViewById(2L);
+        verify(_tagJoinDao, times(2)).searchByIds(Matchers.<Long> anyVararg());
+    }
+
+    @Test
+    public void testMissingTagsAreNotQueriedAgain() {
+        Map<Long, ResourceTagJoinVO> previous = ApiDBUtils.prefetchResourceTagViews(Arrays.asList(1L, 2L));
+        assertNull(previous);
+        try {
+            assertNull(ApiDBUtils.findResourceTagViewById(1L));
+            assertEquals(2L, ApiDBUtils.findResourceTagViewById(2L).getId());
+            verify(_tagJoinDao, times(1)).searchByIds(Matchers.<Long> anyVararg());
+        } finally {
+            ApiDBUtils.releaseResourceTagViews(previous);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testResourceTagsArePrefetchedByType() {
+        ResourceTagDao resourceTagDao = mock(ResourceTagDao.class);
+        List<ResourceTagVO> tags = new ArrayList<ResourceTagVO>();
+        tags.add(new ResourceTagVO("a", "1", 2, 1, 1, TaggedResourceType.Network, null, "n1"));
+        tags.add(new ResourceTagVO("b", "2", 2, 1, 1, TaggedResourceType.Network, null, "n1"));
+        tags.add(new ResourceTagVO("a", "3", 2, 1, 2, TaggedResourceType.Network, null, "n2"));
+        when(resourceTagDao.listBy(anyListOf(Long.class), eq(TaggedResourceType.Network))).thenReturn((List)tags);
+        TaggedResourceService taggedResourceService = mock(TaggedResourceService.class);
+        ApiDBUtils._resourceTagDao = resourceTagDao;
+        ApiDBUtils._taggedResourceService = taggedResourceService;
+
+        Map<TaggedResourceType, Map<Long, List<ResourceTag>>> previous = ApiDBUtils.prefetchResourceTags(TaggedResourceType.Network, Arrays.asList(1L, 2L, 3L));
+        assertNull(previous);
+        try {
+            assertEquals(2, ApiDBUtils.listByResourceTypeAndId(TaggedResourceType.Network, 1L).size());
+            assertEquals(1, ApiDBUtils.listByResourceTypeAndId(TaggedResourceType.Network, 2L).size());
+            assertEquals(0, ApiDBUtils.listByResourceTypeAndId(TaggedResourceType.Network, 3L).size());
+            verify(resourceTagDao, times(1)).listBy(anyListOf(Long.class), eq(TaggedResourceType.Network));
+            verify(taggedResourceService, never()).listByResourceTypeAndId(any(TaggedResourceType.class), anyLong());
+
+            // resources of another type or outside of the page are looked up on their own
+            ApiDBUtils.listByResourceTypeAndId(TaggedResourceType.Network, 4L);
+            ApiDBUtils.listByResourceTypeAndId(TaggedResourceType.Volume, 1L);
+            verify(taggedResourceService, times(2)).listByResourceTypeAndId(any(TaggedResourceType.class), anyLong());
+        } finally {
+            ApiDBUtils.releaseResourceTags(previous);
+        }
+        ApiDBUtils.listByResourceTypeAndId(TaggedResourceType.Network, 1L);
+        verify(taggedResourceService, times(3)).listByResourceTypeAndId(any(TaggedResourceType.class), anyLong());
+    }
+
+    private static VolumeJoinVO[] createPage(int pageSize) {
+        List<VolumeJoinVO> rows = new ArrayList<VolumeJoinVO>();
+        for (int i = 0; i < pageSize; i++) {
+            // every volume has two tags, i.e. two rows in the view
+            for (int j = 0; j < 2; j++) {
+                VolumeJoinVO row = new VolumeJoinVO();
+                row.setId(i + 1);
+                row.setTagId(2 * i + j + 1);
+                rows.add(row);
+            }
+        }
+        return rows.toArray(new VolumeJoinVO[rows.size()]);
+    }
+}
@@ -0,0 +1,152 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.domain.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DomainTreeTest {
+    /**
+     * ROOT(1) - a(2) - aa(4) - aaa(6)
+     *         |      - ab(5)
+     *         - b(3) - ba(7)
+     */
+    private static DomainTree createTree() {
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        parents.put(1L, null);
+        parents.put(2L, 1L);
+        parents.put(3L, 1L);
+        parents.put(4L, 2L);
+        parents.put(5L, 2L);
+        parents.put(6L, 4L);
+        parents.put(7L, 3L);
+        return new DomainTree(parents);
+    }
+
+    @Test
+    public void testAncestors() {
+        DomainTree tree = createTree();
+        assertEquals(Arrays.asList(6L, 4L, 2L, 1L), tree.getAncestorIds(6));
+        assertEquals(Arrays.asList(1L), tree.getAncestorIds(1));
+        assertTrue(tree.getAncestorIds(42).isEmpty());
+        assertEquals(0, tree.getDepth(1));
+        assertEquals(3, tree.getDepth(6));
+        assertEquals(-1, tree.getDepth(42));
+    }
+
+    @Test
+    public void testDescendants() {
+        DomainTree tree = createTree();
+        assertEquals(new HashSet<Long>(Arrays.asList(4L, 5L, 6L)), new HashSet<Long>(tree.getDescendantIds(2)));
+        assertEquals(Arrays.asList(7L), tree.getDescendantIds(3));
+        assertEquals(6, tree.getDescendantIds(1).size());
+        assertTrue(tree.getDescendantIds(6).isEmpty());
+        assertTrue(tree.getDescendantIds(42).isEmpty());
+    }
+
+    @Test
+    public void testIsDescendantOrSelf() {
+        DomainTree tree = createTree();
+        assertTrue(tree.isDescendantOrSelf(1, 6));
+        assertTrue(tree.isDescendantOrSelf(2, 6));
+        assertTrue(tree.isDescendantOrSelf(6, 6));
+        assertTrue(tree.isDescendantOrSelf(3, 7));
+        assertFalse(tree.isDescendantOrSelf(6, 2));
+        assertFalse(tree.isDescendantOrSelf(3, 6));
+        assertFalse(tree.isDescendantOrSelf(5, 6));
+        assertFalse(tree.isDescendantOrSelf(2, 7));
+        assertFalse(tree.isDescendantOrSelf(2, 42));
+        assertEquals(7, tree.size());
+        assertEquals(7, tree.getMaxId());
+    }
+
+    @Test
+    public void testOrphanIsItsOwnRoot() {
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        parents.put(1L, null);
+        parents.put(2L, 1L);
+        // parent 9 was removed
+        parents.put(3L, 9L);
+        parents.put(4L, 3L);
+        DomainTree tree = new DomainTree(parents);
+        assertEquals(Arrays.asList(4L, 3L), tree.getAncestorIds(4));
+        assertFalse(tree.isDescendantOrSelf(1, 4));
+        assertEquals(Arrays.asList(2L), tree.getDescendantIds(1));
+    }
+
+    /**
+     * Random hierarchies checked against walking up the parents.
+     */
+    @Test
+    public void testRandomHierarchies() {
+        Random random = new Random(7);
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        parents.put(1L, null);
+        int count = 20000;
+        for (long id = 2; id <= count; id++) {
+            // favour deep chains every now and then
+            long parent = random.nextInt(10) == 0 ? id - 1 : 1 + random.nextInt((int)id - 1);
+            parents.put(id, parent);
+        }
+
+        DomainTree tree = new DomainTree(parents);
+        assertEquals(count, tree.size());
+
+        List<Long> ids = new ArrayList<Long>(parents.keySet());
+        Collections.shuffle(ids, random);
+        int checks = 100000;
+        for (int i = 0; i < checks; i++) {
+            long ancestor = ids.get(random.nextInt(ids.size()));
+            long id = ids.get(random.nextInt(ids.size()));
+
+            boolean expected = false;
+            for (Long current = id; current != null; current = parents.get(current)) {
+                if (current == ancestor) {
+                    expected = true;
+                    break;
+                }
+            }
+            assertEquals(ancestor + " / " + id, expected, tree.isDescendantOrSelf(ancestor, id));
+        }
+
+        for (long id = 1; id <= count; id += 997) {
+            List<Long> descendants = tree.getDescendantIds(id);
+            for (Long descendant : descendants) {
+                assertTrue(tree.getAncestorIds(descendant).contains(id));
+            }
+            int expected = 0;
+            for (Long other : parents.keySet()) {
+                if (other != id && tree.getAncestorIds(other).contains(id)) {
+                    expected++;
+                }
+            }
+            assertEquals(expected, descendants.size());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.router;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RouterCommandFanOutTest {
+    private RouterCommandFanOut _fanOut;
+    private final AtomicInteger _running = new AtomicInteger();
+    private final AtomicInteger _maxRunning = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        _fanOut = new RouterCommandFanOut("FanOutTest", 4);
+    }
+
+    @After
+    public void tearDown() {
+        _fanOut.shutdown();
+    }
+
+    private class Job implements Callable<Integer> {
+        final int _value;
+        final long _sleep;
+
+        Job(int value, long sleep) {
+            _value = value;
+            _sleep = sleep;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            int running = _running.incrementAndGet();
+            synchronized (_maxRunning) {
+                if (running > _maxRunning.get()) {
+                    _maxRunning.set(running);
+                }
+            }
+            try {
+                Thread.sleep(_sleep);
+                if (_value < 0) {
+                    throw new IllegalStateException("router failed");
+                }
+                return _value;
+            } finally {
+                _running.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testResultsInOrderWithBoundedConcurrency() {
+        List<Job> jobs = new ArrayList<Job>();
+        for (int i = 0; i < 20; i++) {
+            jobs.add(new Job(i, 50));
+        }
+
+        long start = System.currentTimeMillis();
+        List<Integer> results = _fanOut.run(jobs, 5000);
+        long duration = System.currentTimeMillis() - start;
+
+        Assert.assertEquals(20, results.size());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(Integer.valueOf(i), results.get(i));
+        }
+        Assert.assertEquals(4, _maxRunning.get());
+        // five rounds of 50 ms instead of twenty in sequence
+        Assert.assertTrue("took " + duration + " ms", duration < 20 * 50);
+
+        RouterCommandFanOut.Cycle cycle = _fanOut.getLastCycle();
+        Assert.assertEquals(20, cycle.getJobs());
+        Assert.assertEquals(0, cycle.getFailed());
+        Assert.assertEquals(0, cycle.getTimedOut());
+        Assert.assertTrue(cycle.getDuration() >= 5 * 50 - 10);
+    }
+
+    @Test
+    public void testSlowAndFailingRoutersDoNotHoldUpThePass() {
+        List<Job> jobs = new ArrayList<Job>();
+        jobs.add(new Job(0, 10));
+        jobs.add(new Job(1, 60 * 1000));
+        jobs.add(new Job(-1, 10));
+        jobs.add(new Job(3, 10));
+
+        long start = System.currentTimeMillis();
+        List<Integer> results = _fanOut.run(jobs, 200);
+        long duration = System.currentTimeMillis() - start;
+
+        Assert.assertTrue("took " + duration + " ms", duration < 2000);
+        Assert.assertEquals(Integer.valueOf(0), results.get(0));
+        Assert.assertNull(results.get(1));
+        Assert.assertNull(results.get(2));
+        Assert.assertEquals(Integer.valueOf(3), results.get(3));
+
+        RouterCommandFanOut.Cycle cycle = _fanOut.getLastCycle();
+        Assert.assertEquals(4, cycle.getJobs());
+        Assert.assertEquals(1, cycle.getFailed());
+        Assert.assertEquals(1, cycle.getTimedOut());
+    }
+
+    @Test
+    public void testEmptyPass() {
+        Assert.assertTrue(_fanOut.run(new ArrayList<Job>(), 1000).isEmpty());
+        Assert.assertEquals(0, _fanOut.getLastCycle().getJobs());
+    }
+}
@@ -351,6 +351,7 @@ function AjaxViewer(panelId, imageUrl, updateUrl, tileMap, width, height, tileWi
 	});
 	
 	this.updateUrl = updateUrl;
+	this.panelId = panelId;
 	this.tileMap = tileMap;
 	this.dirty = true;
 	this.width = width;
@@ -363,6 +364,9 @@ function AjaxViewer(panelId, imageUrl, updateUrl, tileMap, width, height, tileWi
 	this.keyboardMappers = [];
 	
 	this.timer = 0;
+	this.pushPort = 0;
+	this.pushPath = null;
+	this.pushSocket = null;
 	this.eventQueue = [];
 	this.sendingEventInProgress = false;
 	
@@ -396,6 +400,12 @@ AjaxViewer.LEFT_SHIFT_MASK = 1024;
 AjaxViewer.LEFT_CTRL_MASK = 2048;
 AjaxViewer.LEFT_ALT_MASK = 4096;
 
+// screen updates pushed over WebSocket
+AjaxViewer.PUSH_REGION = 1;
+AjaxViewer.PUSH_RESIZE = 2;
+AjaxViewer.PUSH_FORMAT_JPEG = 0;
+AjaxViewer.PUSH_FORMAT_PNG = 1;
+
 AjaxViewer.EVENT_QUEUE_MOUSE_EVENT = 1;
 AjaxViewer.EVENT_QUEUE_KEYBOARD_EVENT = 2;
 
@@ -616,9 +626,94 @@ AjaxViewer.prototype = {
 		this.panel = this.generateCanvas(panelId, width, height, tileWidth, tileHeight);
 	},
 	
+	setPushChannel: function(port, path) {
+		this.pushPort = port;
+		this.pushPath = path;
+	},
+	
+	startPush: function() {
+		if(!this.pushPort || !window.WebSocket || !window.DataView || !window.Uint8Array)
+			return;
+		
+		var ajaxViewer = this;
+		var url = (window.location.protocol == "https:" ? "wss://" : "ws://") + window.location.hostname + ":" + this.pushPort + this.pushPath;
+		var socket;
+		try {
+			socket = new WebSocket(url);
+		} catch(e) {
+			g_logger.log(Logger.LEVEL_WARN, "Unable to open push channel, stay with polling. " + e);
+			return;
+		}
+		
+		socket.binaryType = "arraybuffer";
+		socket.onopen = function() {
+			g_logger.log(Logger.LEVEL_INFO, "Push channel is open");
+			ajaxViewer.pushSocket = socket;
+		};
+		socket.onmessage = function(e) {
+			ajaxViewer.onPushMessage(e.data);
+		};
+		socket.onclose = function() {
+			// fall back to polling
+			g_logger.log(Logger.LEVEL_INFO, "Push channel is closed");
+			ajaxViewer.pushSocket = null;
+			ajaxViewer.setDirty(true);
+		};
+	},
+	
+	stopPush: function() {
+		if(this.pushSocket) {
+			var socket = this.pushSocket;
+			this.pushSocket = null;
+			socket.onclose = null;
+			socket.close();
+		}
+	},
+	
+	onPushMessage: function(data) {
+		var view = new DataView(data);
+		var type = view.getUint8(0);
+		
+		if(type == AjaxViewer.PUSH_RESIZE) {
+			var width = view.getUint16(1);
+			var height = view.getUint16(3);
+			var tileWidth = view.getUint16(5);
+			var tileHeight = view.getUint16(7);
+			if(width != this.width || height != this.height || tileWidth != this.tileWidth || tileHeight != this.tileHeight)
+				this.resize(this.panelId, width, height, tileWidth, tileHeight);
+		} else if(type == AjaxViewer.PUSH_REGION) {
+			var x = view.getUint16(1);
+			var y = view.getUint16(3);
+			var w = view.getUint16(5);
+			var h = view.getUint16(7);
+			var format = view.getUint8(9);
+			
+			var bytes = new Uint8Array(data, 10);
+			var chars = [];
+			for(var k = 0; k < bytes.length; k += 8192)
+				chars.push(String.fromCharCode.apply(null, bytes.subarray(k, Math.min(k + 8192, bytes.length))));
+			var imgUrl = "data:" + (format == AjaxViewer.PUSH_FORMAT_PNG ? "image/png" : "image/jpeg") + ";base64," + window.btoa(chars.join(""));
+			
+			var tileWidth = this.tileWidth;
+			var tileHeight = this.tileHeight;
+			var panel = this.panel;
+			for(var i = Math.floor(y / tileHeight); i <= Math.floor((y + h - 1) / tileHeight); i++) {
+				var row = $("TR:eq("+i+")", panel);
+				for(var j = Math.floor(x / tileWidth); j <= Math.floor((x + w - 1) / tileWidth); j++) {
+					var cell = $("TD:eq("+j+")", row);
+					var attr = "url(" + imgUrl + ") no-repeat -" + (j*tileWidth - x) + "px -" + (i*tileHeight - y) + "px";
+					
+					this.initCell(cell);
+					this.displayCell(cell, attr);
+				}
+			}
+		}
+	},
+	
 	start: function() {
 		var ajaxViewer = this;
 		this.timer = setInterval(function() { ajaxViewer.heartbeat(); }, 50);
+		this.startPush();
 		
 		$(document).bind("ajaxError", function(event, XMLHttpRequest, ajaxOptions, thrownError) {
 			ajaxViewer.onAjaxError(event, XMLHttpRequest, ajaxOptions, thrownError);
@@ -636,6 +731,7 @@ AjaxViewer.prototype = {
 	
 	stop: function() {
 		clearInterval(this.timer);
+		this.stopPush();
 		this.deleteCanvas();
 
 		this.uninstallMouseHook();
@@ -1092,7 +1188,10 @@ AjaxViewer.prototype = {
 	
 	heartbeat: function() {
 		this.checkEventQueue();
-		this.checkUpdate();
+		
+		// screen updates arrive through the push channel when it is open
+		if(!this.pushSocket)
+			this.checkUpdate();
 	},
 	
 	checkUpdate: function() {
@@ -23,6 +23,7 @@ import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
@@ -66,6 +67,7 @@ public class ConsoleProxy {
     static Hashtable<String, ConsoleProxyClient> connectionMap = new Hashtable<String, ConsoleProxyClient>();
     static int httpListenPort = 80;
     static int httpCmdListenPort = 8001;
+    static int webSocketListenPort = 0;
     static int reconnectMaxRetry = 5;
     static int readTimeoutSeconds = 90;
     static int keyboardType = KEYBOARD_RAW;
@@ -145,6 +147,12 @@ public class ConsoleProxy {
             s_logger.info("Setting httpCmdListenPort=" + s);
         }
         
+        s = conf.getProperty("consoleproxy.webSocketListenPort");
+        if (s!=null) {
+            webSocketListenPort = Integer.parseInt(s);
+            s_logger.info("Setting webSocketListenPort=" + s);
+        }
+        
         s = conf.getProperty("consoleproxy.reconnectMaxRetry");
         if (s!=null) {
             reconnectMaxRetry = Integer.parseInt(s);
@@ -337,6 +345,12 @@ public class ConsoleProxy {
             s_logger.info("HTTP command port is disabled");
         }
         
+        if(webSocketListenPort > 0) {
+            startupWebSocketPort();
+        } else {
+            s_logger.info("WebSocket push port is disabled, AJAX viewers will poll for screen updates");
+        }
+        
         ConsoleProxyGCThread cthread = new ConsoleProxyGCThread(connectionMap);
         cthread.setName("Console Proxy GC Thread");
         cthread.start();
@@ -363,6 +377,26 @@ public class ConsoleProxy {
         }
     }
     
+    private static void startupWebSocketPort() {
+        try {
+            ConsoleProxyServerFactory factory = getHttpServerFactory();
+            ServerSocket serverSocket = factory != null ? factory.createSSLServerSocket(webSocketListenPort) : null;
+            if(serverSocket == null)
+                serverSocket = new ServerSocket(webSocketListenPort);
+            
+            s_logger.info("Listening for WebSocket viewers on port " + webSocketListenPort);
+            new ConsoleProxyWebSocketServer(serverSocket).start();
+        } catch(Exception e) {
+            // viewers fall back to polling when push channel can not be opened
+            s_logger.error("Unable to start WebSocket push port, " + e.getMessage(), e);
+            webSocketListenPort = 0;
+        }
+    }
+    
+    public static int getWebSocketListenPort() {
+        return webSocketListenPort;
+    }
+    
     private static void startupHttpCmdPort() {
         try {
             s_logger.info("Listening for HTTP CMDs on port " + httpCmdListenPort);
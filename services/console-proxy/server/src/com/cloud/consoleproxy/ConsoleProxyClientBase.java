@@ -16,12 +16,16 @@
 // under the License.
 package com.cloud.consoleproxy;
 
+import java.awt.Dimension;
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.consoleproxy.util.ITileScanListener;
+import com.cloud.consoleproxy.util.Region;
 import com.cloud.consoleproxy.util.TileInfo;
 import com.cloud.consoleproxy.util.TileTracker;
 import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
@@ -56,6 +60,8 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     protected int resizedFramebufferWidth;
     protected int resizedFramebufferHeight;
 
+    protected ConsoleProxyWebSocketSession webSocketSession;
+
     public ConsoleProxyClientBase() {
         tracker = new TileTracker();
         tracker.initTracking(64, 64, 800, 600);
@@ -281,12 +287,18 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         }
 
         return getAjaxViewerPageContent(sbTileSequence.toString(), imgUrl, 
-            updateUrl, width, height, tileWidth, tileHeight, title, 
+            updateUrl, preparePushPath(), width, height, tileWidth, tileHeight, title, 
             ConsoleProxy.keyboardType == ConsoleProxy.KEYBOARD_RAW, 
             languages, guest);
     }
     
-    private String getAjaxViewerPageContent(String tileSequence, String imgUrl, String updateUrl, int width,
+    private String preparePushPath() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("/websocket?token=").append(clientToken).append("&sess=").append(ajaxSessionId);
+        return sb.toString();
+    }
+    
+    private String getAjaxViewerPageContent(String tileSequence, String imgUrl, String updateUrl, String pushPath, int width,
         int height, int tileWidth, int tileHeight, String title, boolean rawKeyboard, List<String> languages, String guest) {
 
         StringBuffer sbLanguages = new StringBuffer("");
@@ -344,6 +356,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
             "var tileMap = [ " + tileSequence + " ];",
             "var ajaxViewer = new AjaxViewer('main_panel', '" + imgUrl + "', '" + updateUrl + "', tileMap, ", 
                 String.valueOf(width) + ", " + String.valueOf(height) + ", " + String.valueOf(tileWidth) + ", " + String.valueOf(tileHeight) + ");",
+            ConsoleProxy.getWebSocketListenPort() > 0 ? "ajaxViewer.setPushChannel(" + ConsoleProxy.getWebSocketListenPort() + ", '" + pushPath + "');" : "",
 
             "$(function() {",
                 "ajaxViewer.start();",
@@ -380,13 +393,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
             }
         }
         
-        boolean doResize = false;
-        synchronized(this) {
-            if(framebufferResized) {
-                framebufferResized = false;
-                doResize = true;
-            }
-        }
+        boolean doResize = checkFramebufferResized() != null;
         
         List<TileInfo> tiles;
         
@@ -428,6 +435,92 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         return sb.toString();
     }
     
+    //
+    // WebSocket push
+    //
+    public ConsoleProxyWebSocketSession getWebSocketSession() {
+        return webSocketSession;
+    }
+
+    public void attachWebSocketSession(ConsoleProxyWebSocketSession session) {
+        ConsoleProxyWebSocketSession previous;
+        synchronized(this) {
+            previous = webSocketSession;
+            webSocketSession = session;
+        }
+
+        // only one front-end owns the dirty tiles at a time
+        if(previous != null && previous != session)
+            previous.close();
+    }
+
+    public synchronized void detachWebSocketSession(ConsoleProxyWebSocketSession session) {
+        if(webSocketSession == session)
+            webSocketSession = null;
+    }
+
+    /**
+     * Waits until frame buffer has changed since the last call or timeout expires.
+     * @return true if there are dirty tiles
+     */
+    public boolean waitForTileDirtyEvent(long timeoutMs) {
+        synchronized(tileDirtyEvent) {
+            if(!dirtyFlag) {
+                try {
+                    tileDirtyEvent.wait(timeoutMs);
+                } catch(InterruptedException e) {
+                }
+            }
+
+            boolean dirty = dirtyFlag;
+            dirtyFlag = false;
+            return dirty;
+        }
+    }
+
+    /**
+     * @return new frame buffer size if it has been resized since the last call, otherwise null
+     */
+    public Dimension checkFramebufferResized() {
+        synchronized(this) {
+            if(framebufferResized) {
+                framebufferResized = false;
+                return new Dimension(resizedFramebufferWidth, resizedFramebufferHeight);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects dirty tiles into merged regions and clears them in the tracker.
+     */
+    public List<Region> captureDirtyRegions(boolean fullScreen) {
+        if(fullScreen) {
+            tracker.scan(true);
+            List<Region> regions = new ArrayList<Region>();
+            regions.add(new Region(new Rectangle(0, 0, tracker.getTrackWidth(), tracker.getTrackHeight())));
+            return regions;
+        }
+
+        final List<Region> regions = new ArrayList<Region>();
+        tracker.capture(new ITileScanListener() {
+            @Override
+            public boolean onTileChange(Rectangle rowMergedRect, int row, int col) {
+                return true;
+            }
+
+            @Override
+            public void onRegionChange(List<Region> regionList) {
+                regions.addAll(regionList);
+            }
+        });
+        return regions;
+    }
+
+    public TileTracker getTileTracker() {
+        return tracker;
+    }
+
     //
     // Helpers
     //
@@ -67,6 +67,14 @@ public class ConsoleProxyClientStatsCollector {
                 conn.tag = client.getClientTag();
                 conn.createTime = client.getClientCreateTime();
                 conn.lastUsedTime = client.getClientLastFrontEndActivityTime();
+                if(client instanceof ConsoleProxyClientBase) {
+                    ConsoleProxyWebSocketSession session = ((ConsoleProxyClientBase)client).getWebSocketSession();
+                    if(session != null) {
+                        conn.pushFramesSent = session.getFramesSent();
+                        conn.pushBytesSent = session.getBytesSent();
+                        conn.pushBytesPerSecond = session.getBytesPerSecond();
+                    }
+                }
                 conns.add(conn);
             }
         }
@@ -81,6 +89,9 @@ public class ConsoleProxyClientStatsCollector {
         public String tag;
         public long createTime;
         public long lastUsedTime;
+        public long pushFramesSent;
+        public long pushBytesSent;
+        public long pushBytesPerSecond;
         
         public ConsoleProxyConnection() {
         }
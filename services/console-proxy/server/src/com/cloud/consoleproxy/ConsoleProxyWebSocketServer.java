@@ -0,0 +1,165 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.WebSocketConnection;
+
+/**
+ *
+ * ConsoleProxyWebSocketServer accepts WebSocket connections from AJAX viewers on a dedicated port,
+ * authenticates them the same way as /ajax requests and hands them over to a ConsoleProxyWebSocketSession
+ */
+public class ConsoleProxyWebSocketServer extends Thread {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyWebSocketServer.class);
+
+    private static final String PUSH_PATH = "/websocket";
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+    private final ServerSocket serverSocket;
+
+    public ConsoleProxyWebSocketServer(ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+        setName("Console Proxy WebSocket Server");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                }, "Console Proxy WebSocket " + socket.getRemoteSocketAddress());
+                worker.setDaemon(true);
+                worker.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    s_logger.warn("Unable to accept WebSocket connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+
+            WebSocketConnection connection = new WebSocketConnection(socket.getInputStream(), socket.getOutputStream());
+            if (!connection.readRequest())
+                return;
+
+            if (!PUSH_PATH.equals(connection.getRequestPath())) {
+                s_logger.info("Unknown WebSocket path: " + connection.getRequestPath());
+                connection.reject("404 Not Found");
+                return;
+            }
+
+            String origin = connection.getRequestHeader("origin");
+            if (!isAllowedOrigin(origin, connection.getRequestHeader("host"))) {
+                s_logger.warn("Rejected WebSocket request from origin " + origin + " to host " + connection.getRequestHeader("host"));
+                connection.reject("403 Forbidden");
+                return;
+            }
+            connection.completeHandshake();
+
+            ConsoleProxyClient viewer = getViewer(connection.getRequestQuery());
+            if (!(viewer instanceof ConsoleProxyClientBase)) {
+                connection.close();
+                return;
+            }
+
+            // the session sends keep-alive pings, reads block until the browser talks or the socket closes
+            socket.setSoTimeout(0);
+            new ConsoleProxyWebSocketSession((ConsoleProxyClientBase)viewer, connection).run();
+        } catch (IOException e) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("WebSocket connection failed: " + e.getMessage());
+        } catch (Throwable e) {
+            s_logger.error("Unexpected exception in WebSocket connection, ", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * The AJAX viewer opens the socket to the host it was loaded from, a page of any other origin
+     * must not ride on a console session. Clients that send no origin are not browsers, they still
+     * need a valid token.
+     */
+    static boolean isAllowedOrigin(String origin, String host) {
+        if (origin == null)
+            return true;
+        if (host == null)
+            return false;
+
+        try {
+            String originHost = new URI(origin).getHost();
+            String requestHost = new URI("http://" + host).getHost();
+            return originHost != null && originHost.equalsIgnoreCase(requestHost);
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    private ConsoleProxyClient getViewer(String query) {
+        Map<String, String> queryMap = ConsoleProxyHttpHandlerHelper.getQueryMap(query);
+
+        String host = queryMap.get("host");
+        String portStr = queryMap.get("port");
+        String sid = queryMap.get("sid");
+        String tag = queryMap.get("tag");
+        String ajaxSessionIdStr = queryMap.get("sess");
+
+        if (host == null || portStr == null || sid == null || ajaxSessionIdStr == null) {
+            s_logger.warn("WebSocket request without valid token or session");
+            return null;
+        }
+
+        ConsoleProxyClientParam param = new ConsoleProxyClientParam();
+        try {
+            param.setClientHostAddress(host);
+            param.setClientHostPort(Integer.parseInt(portStr));
+            param.setClientHostPassword(sid);
+            param.setClientTag(tag != null ? tag : "");
+            param.setTicket(queryMap.get("ticket"));
+            param.setClientTunnelUrl(queryMap.get("consoleurl"));
+            param.setClientTunnelSession(queryMap.get("sessionref"));
+
+            return ConsoleProxy.getAjaxVncViewer(param, ajaxSessionIdStr);
+        } catch (NumberFormatException e) {
+            s_logger.warn("Invalid number parameter in WebSocket request: " + portStr);
+        } catch (Exception e) {
+            s_logger.warn("Failed to attach WebSocket to viewer due to " + e.getMessage());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,284 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.Region;
+import com.cloud.consoleproxy.util.RegionImageEncoder;
+import com.cloud.consoleproxy.util.RegionImageEncoder.EncodedRegion;
+import com.cloud.consoleproxy.util.WebSocketConnection;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+
+/**
+ *
+ * ConsoleProxyWebSocketSession pushes dirty regions of a console to the AJAX viewer over a WebSocket
+ * as soon as the frame buffer changes, instead of having the viewer poll /ajax and fetch /ajaximg.
+ *
+ * Every message is a binary frame, multi-byte fields are big endian
+ *   region : byte 1, short x, short y, short width, short height, byte format (0 JPEG, 1 PNG), image bits
+ *   resize : byte 2, short width, short height, short tile width, short tile height
+ */
+public class ConsoleProxyWebSocketSession implements Runnable {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyWebSocketSession.class);
+
+    public static final int MESSAGE_REGION = 1;
+    public static final int MESSAGE_RESIZE = 2;
+
+    private static final long KEEPALIVE_INTERVAL_MS = 3000;
+
+    private final ConsoleProxyClientBase client;
+    private final WebSocketConnection connection;
+    private final RegionImageEncoder encoder = new RegionImageEncoder();
+
+    private volatile boolean running = true;
+
+    // per-session bandwidth metrics
+    private final long startTime = System.currentTimeMillis();
+    private long framesSent = 0;
+    private long regionsSent = 0;
+    private long jpegRegionsSent = 0;
+    private long pngRegionsSent = 0;
+    private long imageBytesSent = 0;
+    private long encodeTimeMs = 0;
+    private long lastFrameTime = 0;
+
+    public ConsoleProxyWebSocketSession(ConsoleProxyClientBase client, WebSocketConnection connection) {
+        this.client = client;
+        this.connection = connection;
+    }
+
+    @Override
+    public void run() {
+        client.attachWebSocketSession(this);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "Console Proxy WebSocket Reader " + client.getClientId());
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            pushLoop();
+        } catch (IOException e) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("WebSocket session of client " + client.getClientId() + " terminated: " + e.getMessage());
+        } catch (Throwable e) {
+            s_logger.error("Unexpected exception in WebSocket session of client " + client.getClientId(), e);
+        } finally {
+            running = false;
+            client.detachWebSocketSession(this);
+            connection.close();
+
+            if (s_logger.isInfoEnabled())
+                s_logger.info("WebSocket session of client " + client.getClientId() + " closed. " + getStatsReport());
+        }
+    }
+
+    public void close() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running && !connection.isClosed();
+    }
+
+    private void pushLoop() throws IOException {
+        sendResize(client.getTileTracker().getTrackWidth(), client.getTileTracker().getTrackHeight());
+        pushUpdates(true);
+
+        while (isRunning()) {
+            client.updateFrontEndActivityTime();
+
+            if (!client.waitForTileDirtyEvent(KEEPALIVE_INTERVAL_MS)) {
+                if (isRunning())
+                    connection.sendPing();
+                continue;
+            }
+
+            if (!isRunning())
+                break;
+
+            boolean fullScreen = false;
+            Dimension size = client.checkFramebufferResized();
+            if (size != null) {
+                sendResize(size.width, size.height);
+                fullScreen = true;
+            }
+            pushUpdates(fullScreen);
+        }
+    }
+
+    private void readLoop() {
+        try {
+            // input events still go through /ajax, here we only need to notice pings and close
+            while (isRunning() && connection.readFrame() != null)
+                ;
+        } catch (IOException e) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("WebSocket read failed for client " + client.getClientId() + ": " + e.getMessage());
+        } finally {
+            running = false;
+        }
+    }
+
+    /**
+     * Encodes current dirty regions and sends each of them as a WebSocket binary frame of its own.
+     * The whole update counts as one screen frame in the statistics.
+     * @return number of bytes sent
+     */
+    public long pushUpdates(boolean fullScreen) throws IOException {
+        FrameBufferCanvas canvas = client.getFrameBufferCavas();
+        if (canvas == null)
+            return 0;
+
+        List<Region> regions = client.captureDirtyRegions(fullScreen);
+        if (regions.isEmpty())
+            return 0;
+
+        long bytesBefore = connection.getBytesSent();
+        for (Region region : regions) {
+            Rectangle bound = region.getBound();
+            if (bound.isEmpty())
+                continue;
+
+            long startTick = System.currentTimeMillis();
+            BufferedImage image = canvas.getFrameBufferRegion(bound);
+            EncodedRegion encoded = encoder.encode(image);
+            long encodeTime = System.currentTimeMillis() - startTick;
+
+            sendRegion(bound, encoded);
+
+            synchronized (this) {
+                regionsSent++;
+                if (encoded.getFormat() == RegionImageEncoder.FORMAT_PNG)
+                    pngRegionsSent++;
+                else
+                    jpegRegionsSent++;
+                imageBytesSent += encoded.getData().length;
+                encodeTimeMs += encodeTime;
+            }
+        }
+
+        synchronized (this) {
+            framesSent++;
+            lastFrameTime = System.currentTimeMillis();
+        }
+
+        long bytes = connection.getBytesSent() - bytesBefore;
+        if (s_logger.isTraceEnabled())
+            s_logger.trace("Pushed " + regions.size() + " regions, " + bytes + " bytes to client " + client.getClientId());
+        return bytes;
+    }
+
+    private void sendRegion(Rectangle bound, EncodedRegion encoded) throws IOException {
+        byte[] data = encoded.getData();
+        byte[] message = new byte[10 + data.length];
+        message[0] = MESSAGE_REGION;
+        putShort(message, 1, bound.x);
+        putShort(message, 3, bound.y);
+        putShort(message, 5, bound.width);
+        putShort(message, 7, bound.height);
+        message[9] = (byte)encoded.getFormat();
+        System.arraycopy(data, 0, message, 10, data.length);
+
+        connection.sendBinary(message, 0, message.length);
+    }
+
+    private void sendResize(int width, int height) throws IOException {
+        byte[] message = new byte[9];
+        message[0] = MESSAGE_RESIZE;
+        putShort(message, 1, width);
+        putShort(message, 3, height);
+        putShort(message, 5, client.getTileTracker().getTileWidth());
+        putShort(message, 7, client.getTileTracker().getTileHeight());
+
+        connection.sendBinary(message, 0, message.length);
+    }
+
+    private static void putShort(byte[] buf, int offset, int value) {
+        buf[offset] = (byte)(value >> 8);
+        buf[offset + 1] = (byte)value;
+    }
+
+    //
+    // Stats
+    //
+    public synchronized long getFramesSent() {
+        return framesSent;
+    }
+
+    public synchronized long getRegionsSent() {
+        return regionsSent;
+    }
+
+    public synchronized long getJpegRegionsSent() {
+        return jpegRegionsSent;
+    }
+
+    public synchronized long getPngRegionsSent() {
+        return pngRegionsSent;
+    }
+
+    public synchronized long getImageBytesSent() {
+        return imageBytesSent;
+    }
+
+    public synchronized long getEncodeTimeMs() {
+        return encodeTimeMs;
+    }
+
+    public synchronized long getLastFrameTime() {
+        return lastFrameTime;
+    }
+
+    public long getBytesSent() {
+        return connection.getBytesSent();
+    }
+
+    public long getBytesReceived() {
+        return connection.getBytesReceived();
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getBytesPerSecond() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        return getBytesSent() * 1000 / elapsed;
+    }
+
+    public String getStatsReport() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("frames: ").append(getFramesSent());
+        sb.append(", regions: ").append(getRegionsSent());
+        sb.append(" (jpeg: ").append(getJpegRegionsSent()).append(", png: ").append(getPngRegionsSent()).append(")");
+        sb.append(", bytes sent: ").append(getBytesSent());
+        sb.append(", bytes/s: ").append(getBytesPerSecond());
+        sb.append(", encode time: ").append(getEncodeTimeMs()).append(" ms");
+        return sb.toString();
+    }
+}
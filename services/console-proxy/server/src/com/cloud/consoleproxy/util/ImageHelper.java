@@ -19,6 +19,13 @@ package com.cloud.consoleproxy.util;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 
 public class ImageHelper {
     public static byte[] jpegFromImage(BufferedImage image) throws IOException {
@@ -29,4 +36,35 @@ public class ImageHelper {
         bos.close();
         return jpegBits;
     }
+
+    public static byte[] jpegFromImage(BufferedImage image, float quality) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+        if(!writers.hasNext())
+            return jpegFromImage(image);
+
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32000);
+        ImageOutputStream ios = ImageIO.createImageOutputStream(bos);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            ios.close();
+        }
+        return bos.toByteArray();
+    }
+
+    public static byte[] pngFromImage(BufferedImage image) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32000);
+        ImageIO.write(image, "png", bos);
+
+        byte[] pngBits = bos.toByteArray();
+        bos.close();
+        return pngBits;
+    }
 }
@@ -0,0 +1,120 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Picks the image format for a dirty region. Regions with few colors (text, menus, terminal
+ * output) are sent as lossless PNG, which is both sharper and smaller for that content. Photo-like
+ * regions are sent as JPEG, with lower quality for large regions where bandwidth matters most.
+ */
+public class RegionImageEncoder {
+    public static final int FORMAT_JPEG = 0;
+    public static final int FORMAT_PNG = 1;
+
+    private static final int PNG_MAX_COLORS = 256;
+
+    // region area thresholds, in pixels
+    private static final int SMALL_REGION_AREA = 64 * 64 * 4;
+    private static final int LARGE_REGION_AREA = 256 * 256 * 4;
+
+    private static final float SMALL_REGION_JPEG_QUALITY = 0.85f;
+    private static final float MEDIUM_REGION_JPEG_QUALITY = 0.75f;
+    private static final float LARGE_REGION_JPEG_QUALITY = 0.6f;
+
+    public static class EncodedRegion {
+        private final int format;
+        private final byte[] data;
+
+        public EncodedRegion(int format, byte[] data) {
+            this.format = format;
+            this.data = data;
+        }
+
+        public int getFormat() {
+            return format;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    public EncodedRegion encode(BufferedImage image) throws IOException {
+        if (countColors(image, PNG_MAX_COLORS) <= PNG_MAX_COLORS)
+            return new EncodedRegion(FORMAT_PNG, ImageHelper.pngFromImage(image));
+
+        return new EncodedRegion(FORMAT_JPEG, ImageHelper.jpegFromImage(toBgr(image), getJpegQuality(image.getWidth() * image.getHeight())));
+    }
+
+    public static float getJpegQuality(int area) {
+        if (area <= SMALL_REGION_AREA)
+            return SMALL_REGION_JPEG_QUALITY;
+        if (area <= LARGE_REGION_AREA)
+            return MEDIUM_REGION_JPEG_QUALITY;
+        return LARGE_REGION_JPEG_QUALITY;
+    }
+
+    /**
+     * Counts distinct colors of the image, stops counting once more than limit colors are seen.
+     */
+    public static int countColors(BufferedImage image, int limit) {
+        // open addressing hash set, sized to stay at most half full
+        int capacity = Integer.highestOneBit(limit) << 2;
+        int[] slots = new int[capacity];
+        boolean[] used = new boolean[capacity];
+        int mask = capacity - 1;
+        int count = 0;
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int last = 0;
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x] & 0xFFFFFF;
+                if (x > 0 && rgb == last)
+                    continue;
+                last = rgb;
+
+                int pos = (rgb * 0x9E3779B1) >>> 16 & mask;
+                while (used[pos] && slots[pos] != rgb)
+                    pos = (pos + 1) & mask;
+                if (!used[pos]) {
+                    used[pos] = true;
+                    slots[pos] = rgb;
+                    if (++count > limit)
+                        return count;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static BufferedImage toBgr(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR)
+            return image;
+
+        // same pixel layout used by the AJAX viewer JPEG path
+        BufferedImage bgrImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        bgrImage.getGraphics().drawImage(image, 0, 0, null);
+        return bgrImage;
+    }
+}
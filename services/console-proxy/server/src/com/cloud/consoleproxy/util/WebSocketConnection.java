@@ -0,0 +1,376 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Server side of a RFC 6455 WebSocket connection, just enough of the protocol for the console proxy
+ * to push binary frames to a browser: opening handshake, unfragmented binary/text frames, ping/pong
+ * and close. Frames from the browser are masked, frames sent by the server are not.
+ */
+public class WebSocketConnection {
+    private static final Logger s_logger = Logger.getLogger(WebSocketConnection.class);
+
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+    public static final int OPCODE_PING = 0x9;
+    public static final int OPCODE_PONG = 0xA;
+
+    public static final int STATUS_NORMAL = 1000;
+    public static final int STATUS_PROTOCOL_ERROR = 1002;
+    public static final int STATUS_MESSAGE_TOO_BIG = 1009;
+
+    // browser to proxy traffic is only control frames and small input events
+    private static final int MAX_INCOMING_PAYLOAD = 64 * 1024;
+    private static final int MAX_REQUEST_HEADER_LINES = 100;
+
+    private final DataInputStream is;
+    private final OutputStream os;
+
+    private String requestPath;
+    private String requestQuery;
+    private final Map<String, String> requestHeaders = new HashMap<String, String>();
+
+    private volatile boolean closed = false;
+
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+
+    public WebSocketConnection(InputStream is, OutputStream os) {
+        this.is = new DataInputStream(new BufferedInputStream(is));
+        this.os = new BufferedOutputStream(os, 64 * 1024);
+    }
+
+    /**
+     * Reads the HTTP upgrade request and answers it.
+     *
+     * @return false if the request is not a valid WebSocket upgrade, a 400 response has been sent in that case
+     */
+    public boolean accept() throws IOException {
+        if (!readRequest())
+            return false;
+        completeHandshake();
+        return true;
+    }
+
+    /**
+     * Reads the HTTP upgrade request without answering it, so the caller can look at the request
+     * before it either completes the handshake or rejects the request.
+     *
+     * @return false if the request is not a valid WebSocket upgrade, a 400 response has been sent in that case
+     */
+    public boolean readRequest() throws IOException {
+        String requestLine = readLine();
+        if (requestLine == null)
+            return false;
+
+        String[] tokens = requestLine.split(" ");
+        if (tokens.length < 3 || !tokens[0].equals("GET")) {
+            sendHttpError("400 Bad Request");
+            return false;
+        }
+
+        String uri = tokens[1];
+        int pos = uri.indexOf('?');
+        if (pos >= 0) {
+            requestPath = uri.substring(0, pos);
+            requestQuery = uri.substring(pos + 1);
+        } else {
+            requestPath = uri;
+            requestQuery = "";
+        }
+
+        String line;
+        int lines = 0;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            if (++lines > MAX_REQUEST_HEADER_LINES) {
+                sendHttpError("400 Bad Request");
+                return false;
+            }
+
+            pos = line.indexOf(':');
+            if (pos > 0)
+                requestHeaders.put(line.substring(0, pos).trim().toLowerCase(), line.substring(pos + 1).trim());
+        }
+
+        String upgrade = requestHeaders.get("upgrade");
+        String key = requestHeaders.get("sec-websocket-key");
+        if (upgrade == null || !upgrade.equalsIgnoreCase("websocket") || key == null) {
+            sendHttpError("400 Bad Request");
+            return false;
+        }
+        return true;
+    }
+
+    public void completeHandshake() throws IOException {
+        String key = requestHeaders.get("sec-websocket-key");
+        StringBuffer sb = new StringBuffer();
+        sb.append("HTTP/1.1 101 Switching Protocols\r\n");
+        sb.append("Upgrade: websocket\r\n");
+        sb.append("Connection: Upgrade\r\n");
+        sb.append("Sec-WebSocket-Accept: ").append(getAcceptKey(key)).append("\r\n");
+        sb.append("\r\n");
+
+        synchronized (os) {
+            os.write(sb.toString().getBytes("US-ASCII"));
+            os.flush();
+        }
+    }
+
+    /**
+     * Answers the upgrade request with an HTTP error instead of completing the handshake.
+     */
+    public void reject(String status) throws IOException {
+        sendHttpError(status);
+    }
+
+    public static String getAcceptKey(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest((key + WEBSOCKET_GUID).getBytes("US-ASCII"));
+            return Base64.encodeBase64String(digest).trim();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("US-ASCII is not available", e);
+        }
+    }
+
+    public String getRequestPath() {
+        return requestPath;
+    }
+
+    public String getRequestQuery() {
+        return requestQuery;
+    }
+
+    public String getRequestHeader(String name) {
+        return requestHeaders.get(name.toLowerCase());
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public void sendBinary(byte[] data, int offset, int length) throws IOException {
+        sendFrame(OPCODE_BINARY, data, offset, length);
+    }
+
+    public void sendText(String text) throws IOException {
+        byte[] data = text.getBytes("UTF-8");
+        sendFrame(OPCODE_TEXT, data, 0, data.length);
+    }
+
+    public void sendPing() throws IOException {
+        sendFrame(OPCODE_PING, new byte[0], 0, 0);
+    }
+
+    public void close() {
+        close(STATUS_NORMAL);
+    }
+
+    private void close(int status) {
+        if (closed)
+            return;
+
+        try {
+            sendFrame(OPCODE_CLOSE, new byte[] {(byte)(status >> 8), (byte)status}, 0, 2);
+        } catch (IOException e) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("Unable to send close frame: " + e.getMessage());
+        }
+        closed = true;
+    }
+
+    private void sendFrame(int opcode, byte[] data, int offset, int length) throws IOException {
+        if (closed)
+            throw new IOException("WebSocket connection is closed");
+
+        byte[] header;
+        if (length < 126) {
+            header = new byte[] {(byte)(0x80 | opcode), (byte)length};
+        } else if (length < 65536) {
+            header = new byte[] {(byte)(0x80 | opcode), 126, (byte)(length >> 8), (byte)length};
+        } else {
+            header = new byte[10];
+            header[0] = (byte)(0x80 | opcode);
+            header[1] = 127;
+            for (int i = 0; i < 8; i++)
+                header[9 - i] = (byte)(((long)length >> (8 * i)) & 0xFF);
+        }
+
+        synchronized (os) {
+            os.write(header);
+            os.write(data, offset, length);
+            os.flush();
+        }
+
+        synchronized (this) {
+            bytesSent += header.length + length;
+        }
+    }
+
+    /**
+     * Reads the next data frame from the peer, answering ping and close frames on the way.
+     *
+     * @return payload of the frame, null if the peer has closed the connection
+     */
+    public WebSocketFrame readFrame() throws IOException {
+        while (!closed) {
+            int b0 = is.read();
+            if (b0 < 0) {
+                closed = true;
+                return null;
+            }
+            int b1 = is.readUnsignedByte();
+
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            int headerLength = 2;
+            if (length == 126) {
+                length = is.readUnsignedShort();
+                headerLength += 2;
+            } else if (length == 127) {
+                length = is.readLong();
+                headerLength += 8;
+            }
+
+            // a 64-bit length with the high bit set reads as negative
+            if (length < 0 || length > MAX_INCOMING_PAYLOAD) {
+                close(STATUS_MESSAGE_TOO_BIG);
+                throw new IOException("Frame exceeds limit of " + MAX_INCOMING_PAYLOAD + " bytes, length field: " + length);
+            }
+            if (!masked) {
+                close(STATUS_PROTOCOL_ERROR);
+                throw new IOException("Received unmasked frame from client");
+            }
+            if (!fin || opcode == OPCODE_CONTINUATION) {
+                close(STATUS_PROTOCOL_ERROR);
+                throw new IOException("Fragmented frames are not supported");
+            }
+
+            byte[] mask = new byte[4];
+            is.readFully(mask);
+            byte[] payload = new byte[(int)length];
+            is.readFully(payload);
+            for (int i = 0; i < payload.length; i++)
+                payload[i] ^= mask[i % 4];
+
+            synchronized (this) {
+                bytesReceived += headerLength + 4 + length;
+            }
+
+            switch (opcode) {
+            case OPCODE_PING:
+                sendFrame(OPCODE_PONG, payload, 0, payload.length);
+                break;
+
+            case OPCODE_PONG:
+                break;
+
+            case OPCODE_CLOSE:
+                close();
+                return null;
+
+            case OPCODE_TEXT:
+            case OPCODE_BINARY:
+                return new WebSocketFrame(opcode, payload);
+
+            default:
+                throw new IOException("Unknown frame opcode: " + opcode);
+            }
+        }
+        return null;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int c;
+        while ((c = is.read()) >= 0) {
+            if (c == '\n')
+                break;
+            if (c != '\r')
+                bos.write(c);
+            if (bos.size() > 8192)
+                throw new IOException("HTTP header line too long");
+        }
+        if (c < 0 && bos.size() == 0)
+            return null;
+        return bos.toString("US-ASCII");
+    }
+
+    private void sendHttpError(String status) throws IOException {
+        synchronized (os) {
+            os.write(("HTTP/1.1 " + status + "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n").getBytes("US-ASCII"));
+            os.flush();
+        }
+        closed = true;
+    }
+
+    public static class WebSocketFrame {
+        private final int opcode;
+        private final byte[] payload;
+
+        public WebSocketFrame(int opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public String getText() {
+            try {
+                return new String(payload, "UTF-8");
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+}
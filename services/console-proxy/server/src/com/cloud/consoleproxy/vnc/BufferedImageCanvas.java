@@ -147,4 +147,15 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
         }
         return imgBits;
     }
+
+    @Override
+    public BufferedImage getFrameBufferRegion(Rectangle rc) {
+        BufferedImage bufferedImage = new BufferedImage(rc.width, rc.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = bufferedImage.createGraphics();
+        synchronized (offlineImage) {
+            g.drawImage(offlineImage, 0, 0, rc.width, rc.height, rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
+        }
+        g.dispose();
+        return bufferedImage;
+    }
 }
\ No newline at end of file
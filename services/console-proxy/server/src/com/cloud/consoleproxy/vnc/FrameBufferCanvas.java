@@ -17,6 +17,8 @@
 package com.cloud.consoleproxy.vnc;
 
 import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 import java.util.List;
 
 import com.cloud.consoleproxy.util.TileInfo;
@@ -27,4 +29,6 @@ public interface FrameBufferCanvas {
     public byte[] getFrameBufferJpeg();
 
     public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight);
+
+    public BufferedImage getFrameBufferRegion(Rectangle rc);
 }
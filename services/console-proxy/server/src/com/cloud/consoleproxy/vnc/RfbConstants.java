@@ -57,9 +57,9 @@ public interface RfbConstants {
     public final static int ENCODING_CURSOR = -239 /* 0xFFFFFF11 */, ENCODING_DESKTOP_SIZE = -223 /* 0xFFFFFF21 */;
 
     /**
-     * Encodings, which we support.
+     * Encodings, which we support, in order of preference.
      */
-    public final static int[] SUPPORTED_ENCODINGS_ARRAY = { ENCODING_RAW, ENCODING_COPY_RECT, ENCODING_DESKTOP_SIZE };
+    public final static int[] SUPPORTED_ENCODINGS_ARRAY = { ENCODING_ZRLE, ENCODING_HEXTILE, ENCODING_COPY_RECT, ENCODING_RAW, ENCODING_DESKTOP_SIZE };
 
     /**
      * Frame buffer update request type: update of whole screen or partial
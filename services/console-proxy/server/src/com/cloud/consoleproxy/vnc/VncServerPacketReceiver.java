@@ -20,6 +20,7 @@ import java.awt.Toolkit;
 import java.awt.datatransfer.StringSelection;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.zip.Inflater;
 
 import com.cloud.consoleproxy.ConsoleProxyClientListener;
 import com.cloud.consoleproxy.util.Logger;
@@ -38,6 +39,9 @@ public class VncServerPacketReceiver implements Runnable {
     private final FrameBufferUpdateListener fburListener;
     private final ConsoleProxyClientListener clientListener;
 
+    // ZRLE uses one zlib stream for the whole connection
+    private final Inflater zrleInflater = new Inflater();
+
     public VncServerPacketReceiver(DataInputStream is, BufferedImageCanvas canvas, VncScreenDescription screen, VncClient vncConnection, FrameBufferUpdateListener fburListener,
             ConsoleProxyClientListener clientListener) {
         this.screen = screen;
@@ -68,7 +72,7 @@ public class VncServerPacketReceiver implements Runnable {
                     // so it can send another frame buffer update request
                     fburListener.frameBufferPacketReceived();
                     // Handle frame buffer update
-                    new FramebufferUpdatePacket(canvas, screen, is, clientListener);
+                    new FramebufferUpdatePacket(canvas, screen, is, clientListener, zrleInflater);
                     break;
                 }
 
@@ -93,6 +97,7 @@ public class VncServerPacketReceiver implements Runnable {
             }
         } finally {
         	s_logger.info("Receiving thread exit processing, shutdown connection");
+            zrleInflater.end();
             vncConnection.shutdown();
         }
     }
@@ -18,6 +18,7 @@ package com.cloud.consoleproxy.vnc.packet.server;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.zip.Inflater;
 
 import com.cloud.consoleproxy.ConsoleProxyClientListener;
 import com.cloud.consoleproxy.vnc.BufferedImageCanvas;
@@ -32,12 +33,22 @@ public class FramebufferUpdatePacket {
     private final VncScreenDescription screen;
     private final BufferedImageCanvas canvas;
     private final ConsoleProxyClientListener clientListener;
+    private final Inflater zrleInflater;
 
     public FramebufferUpdatePacket(BufferedImageCanvas canvas, VncScreenDescription screen, DataInputStream is, ConsoleProxyClientListener clientListener) throws IOException {
+        this(canvas, screen, is, clientListener, null);
+    }
+
+    /**
+     * @param zrleInflater zlib stream of the connection, required when server sends ZRLE encoded rectangles
+     */
+    public FramebufferUpdatePacket(BufferedImageCanvas canvas, VncScreenDescription screen, DataInputStream is, ConsoleProxyClientListener clientListener, Inflater zrleInflater)
+            throws IOException {
 
         this.screen = screen;
         this.canvas = canvas;
         this.clientListener = clientListener;
+        this.zrleInflater = zrleInflater;
         readPacketData(is);
     }
 
@@ -72,6 +83,18 @@ public class FramebufferUpdatePacket {
                 break;
             }
 
+            case RfbConstants.ENCODING_HEXTILE: {
+                rect = new HextileRect(screen, x, y, width, height, is);
+                break;
+            }
+
+            case RfbConstants.ENCODING_ZRLE: {
+                if (zrleInflater == null)
+                    throw new RuntimeException("ZRLE encoded rectangle received without zlib stream");
+                rect = new ZrleRect(x, y, width, height, is, zrleInflater);
+                break;
+            }
+
             case RfbConstants.ENCODING_DESKTOP_SIZE: {
                 rect = new FrameBufferSizeChangeRequest(canvas, width, height);
                 if (this.clientListener != null)
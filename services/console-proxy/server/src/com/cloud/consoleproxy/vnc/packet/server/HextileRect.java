@@ -0,0 +1,108 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import com.cloud.consoleproxy.vnc.VncScreenDescription;
+
+/**
+ * Hextile encoded rectangle. The rectangle is split into 16x16 tiles, each tile is
+ * either sent raw or as a background color with optional colored sub-rectangles.
+ */
+public class HextileRect extends RawRect {
+    private static final int TILE_SIZE = 16;
+
+    private static final int RAW = 1, BACKGROUND_SPECIFIED = 2, FOREGROUND_SPECIFIED = 4, ANY_SUBRECTS = 8, SUBRECTS_COLOURED = 16;
+
+    public HextileRect(VncScreenDescription screen, int x, int y, int width, int height, DataInputStream is) throws IOException {
+        super(x, y, width, height, decode(screen, width, height, is));
+    }
+
+    private static int[] decode(VncScreenDescription screen, int width, int height, DataInputStream is) throws IOException {
+        int bytesPerPixel = screen.getBytesPerPixel();
+        byte[] pixel = new byte[bytesPerPixel];
+        byte[] rawTile = new byte[TILE_SIZE * TILE_SIZE * bytesPerPixel];
+        int[] buf = new int[width * height];
+
+        // background and foreground colors carry over from tile to tile
+        int background = 0;
+        int foreground = 0;
+
+        for (int tileY = 0; tileY < height; tileY += TILE_SIZE) {
+            int tileHeight = Math.min(TILE_SIZE, height - tileY);
+            for (int tileX = 0; tileX < width; tileX += TILE_SIZE) {
+                int tileWidth = Math.min(TILE_SIZE, width - tileX);
+
+                int subencoding = is.readUnsignedByte();
+                if ((subencoding & RAW) != 0) {
+                    is.readFully(rawTile, 0, tileWidth * tileHeight * bytesPerPixel);
+                    for (int row = 0, j = 0; row < tileHeight; row++) {
+                        int offset = (tileY + row) * width + tileX;
+                        for (int col = 0; col < tileWidth; col++, j += bytesPerPixel) {
+                            buf[offset + col] = toRgb(rawTile, j);
+                        }
+                    }
+                    continue;
+                }
+
+                if ((subencoding & BACKGROUND_SPECIFIED) != 0)
+                    background = readPixel(is, pixel);
+                fill(buf, width, tileX, tileY, tileWidth, tileHeight, background);
+
+                if ((subencoding & FOREGROUND_SPECIFIED) != 0)
+                    foreground = readPixel(is, pixel);
+
+                if ((subencoding & ANY_SUBRECTS) != 0) {
+                    int subrects = is.readUnsignedByte();
+                    boolean coloured = (subencoding & SUBRECTS_COLOURED) != 0;
+                    for (int i = 0; i < subrects; i++) {
+                        int color = coloured ? readPixel(is, pixel) : foreground;
+                        int xy = is.readUnsignedByte();
+                        int wh = is.readUnsignedByte();
+                        int subX = xy >> 4;
+                        int subY = xy & 0x0F;
+                        int subWidth = Math.min((wh >> 4) + 1, tileWidth - subX);
+                        int subHeight = Math.min((wh & 0x0F) + 1, tileHeight - subY);
+                        fill(buf, width, tileX + subX, tileY + subY, subWidth, subHeight, color);
+                    }
+                }
+            }
+        }
+        return buf;
+    }
+
+    private static int readPixel(DataInputStream is, byte[] pixel) throws IOException {
+        is.readFully(pixel);
+        return toRgb(pixel, 0);
+    }
+
+    private static int toRgb(byte[] bytes, int offset) {
+        // RGB888 packed into 32bit little-endian int, as requested by SetPixelFormat
+        return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8) | ((bytes[offset + 2] & 0xFF) << 16);
+    }
+
+    static void fill(int[] buf, int stride, int x, int y, int width, int height, int color) {
+        for (int row = y; row < y + height; row++) {
+            int offset = row * stride + x;
+            for (int col = 0; col < width; col++) {
+                buf[offset + col] = color;
+            }
+        }
+    }
+}
@@ -29,18 +29,30 @@ public class RawRect extends AbstractRect {
     private final int[] buf;
 
     public RawRect(VncScreenDescription screen, int x, int y, int width, int height, DataInputStream is) throws IOException {
+        this(x, y, width, height, readPixels(screen, width, height, is));
+    }
+
+    /**
+     * Constructs rectangle from already decoded pixels, used by compressing
+     * encodings which decode into RGB888 pixels first.
+     */
+    protected RawRect(int x, int y, int width, int height, int[] buf) {
         super(x, y, width, height);
+        this.buf = buf;
+    }
+
+    private static int[] readPixels(VncScreenDescription screen, int width, int height, DataInputStream is) throws IOException {
 
         byte[] bbuf = new byte[width * height * screen.getBytesPerPixel()];
         is.readFully(bbuf);
 
         // Convert array of bytes to array of int
         int size = width * height;
-        buf = new int[size];
+        int[] buf = new int[size];
         for (int i = 0, j = 0; i < size; i++, j += 4) {
             buf[i] = (bbuf[j + 0] & 0xFF) | ((bbuf[j + 1] & 0xFF) << 8) | ((bbuf[j + 2] & 0xFF) << 16) | ((bbuf[j + 3] & 0xFF) << 24);
         }
-
+        return buf;
     }
 
     @Override
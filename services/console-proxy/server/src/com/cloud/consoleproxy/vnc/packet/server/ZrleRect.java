@@ -0,0 +1,191 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * ZRLE encoded rectangle. Rectangle data is zlib compressed with a single zlib stream
+ * per connection, so the caller has to pass the same {@link Inflater} for all ZRLE
+ * rectangles received from a server. Decompressed data consists of 64x64 tiles, each
+ * tile is raw, solid, palette packed or run-length encoded.
+ */
+public class ZrleRect extends RawRect {
+    private static final int TILE_SIZE = 64;
+
+    // 32bpp true color pixels with depth 24 are sent as 3 byte CPIXELs
+    private static final int CPIXEL_SIZE = 3;
+
+    public ZrleRect(int x, int y, int width, int height, DataInputStream is, Inflater inflater) throws IOException {
+        super(x, y, width, height, decode(width, height, inflate(is, inflater)));
+    }
+
+    private static byte[] inflate(DataInputStream is, Inflater inflater) throws IOException {
+        int length = is.readInt();
+        byte[] compressed = new byte[length];
+        is.readFully(compressed);
+
+        inflater.setInput(compressed);
+        byte[] data = new byte[Math.max(length * 4, 4096)];
+        int size = 0;
+        try {
+            while (true) {
+                if (size == data.length) {
+                    byte[] grown = new byte[data.length * 2];
+                    System.arraycopy(data, 0, grown, 0, size);
+                    data = grown;
+                }
+                int inflated = inflater.inflate(data, size, data.length - size);
+                size += inflated;
+                if (inflated == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()))
+                    break;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted ZRLE data: " + e.getMessage());
+        }
+
+        if (size < data.length) {
+            byte[] exact = new byte[size];
+            System.arraycopy(data, 0, exact, 0, size);
+            data = exact;
+        }
+        return data;
+    }
+
+    private static int[] decode(int width, int height, byte[] data) throws IOException {
+        int[] buf = new int[width * height];
+        int[] palette = new int[128];
+        ZrleReader reader = new ZrleReader(data);
+
+        for (int tileY = 0; tileY < height; tileY += TILE_SIZE) {
+            int tileHeight = Math.min(TILE_SIZE, height - tileY);
+            for (int tileX = 0; tileX < width; tileX += TILE_SIZE) {
+                int tileWidth = Math.min(TILE_SIZE, width - tileX);
+
+                int subencoding = reader.readByte();
+                if (subencoding == 0) {
+                    // raw
+                    for (int row = 0; row < tileHeight; row++) {
+                        int offset = (tileY + row) * width + tileX;
+                        for (int col = 0; col < tileWidth; col++)
+                            buf[offset + col] = reader.readCPixel();
+                    }
+                } else if (subencoding == 1) {
+                    // solid
+                    HextileRect.fill(buf, width, tileX, tileY, tileWidth, tileHeight, reader.readCPixel());
+                } else if (subencoding <= 16) {
+                    // packed palette
+                    int paletteSize = subencoding;
+                    for (int i = 0; i < paletteSize; i++)
+                        palette[i] = reader.readCPixel();
+
+                    int bitsPerIndex = paletteSize == 2 ? 1 : (paletteSize <= 4 ? 2 : 4);
+                    int mask = (1 << bitsPerIndex) - 1;
+                    for (int row = 0; row < tileHeight; row++) {
+                        int offset = (tileY + row) * width + tileX;
+                        int bits = 0;
+                        int value = 0;
+                        // every row starts on a byte boundary
+                        for (int col = 0; col < tileWidth; col++) {
+                            if (bits == 0) {
+                                value = reader.readByte();
+                                bits = 8;
+                            }
+                            bits -= bitsPerIndex;
+                            buf[offset + col] = palette[(value >> bits) & mask];
+                        }
+                    }
+                } else if (subencoding == 128) {
+                    // plain RLE
+                    int pos = 0;
+                    int tileSize = tileWidth * tileHeight;
+                    while (pos < tileSize) {
+                        int color = reader.readCPixel();
+                        int runLength = reader.readRunLength();
+                        pos = fillRun(buf, width, tileX, tileY, tileWidth, pos, runLength, tileSize, color);
+                    }
+                } else if (subencoding >= 130) {
+                    // palette RLE
+                    int paletteSize = subencoding - 128;
+                    for (int i = 0; i < paletteSize; i++)
+                        palette[i] = reader.readCPixel();
+
+                    int pos = 0;
+                    int tileSize = tileWidth * tileHeight;
+                    while (pos < tileSize) {
+                        int index = reader.readByte();
+                        int runLength = 1;
+                        if ((index & 0x80) != 0) {
+                            index &= 0x7F;
+                            runLength = reader.readRunLength();
+                        }
+                        pos = fillRun(buf, width, tileX, tileY, tileWidth, pos, runLength, tileSize, palette[index]);
+                    }
+                } else {
+                    throw new IOException("Unsupported ZRLE tile subencoding: " + subencoding);
+                }
+            }
+        }
+        return buf;
+    }
+
+    private static int fillRun(int[] buf, int stride, int tileX, int tileY, int tileWidth, int pos, int runLength, int tileSize, int color) throws IOException {
+        if (pos + runLength > tileSize)
+            throw new IOException("ZRLE run exceeds tile boundary");
+
+        for (int i = 0; i < runLength; i++, pos++)
+            buf[(tileY + pos / tileWidth) * stride + tileX + pos % tileWidth] = color;
+        return pos;
+    }
+
+    private static class ZrleReader {
+        private final byte[] data;
+        private int pos;
+
+        ZrleReader(byte[] data) {
+            this.data = data;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= data.length)
+                throw new IOException("Unexpected end of ZRLE data");
+            return data[pos++] & 0xFF;
+        }
+
+        int readCPixel() throws IOException {
+            if (pos + CPIXEL_SIZE > data.length)
+                throw new IOException("Unexpected end of ZRLE data");
+            // CPIXEL holds the three least significant bytes of the little-endian pixel
+            int pixel = (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8) | ((data[pos + 2] & 0xFF) << 16);
+            pos += CPIXEL_SIZE;
+            return pixel;
+        }
+
+        int readRunLength() throws IOException {
+            int runLength = 1;
+            int b;
+            do {
+                b = readByte();
+                runLength += b;
+            } while (b == 255);
+            return runLength;
+        }
+    }
+}
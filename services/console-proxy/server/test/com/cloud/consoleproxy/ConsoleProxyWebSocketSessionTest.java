@@ -0,0 +1,353 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.cloud.consoleproxy.util.RegionImageEncoder;
+import com.cloud.consoleproxy.util.TileInfo;
+import com.cloud.consoleproxy.util.WebSocketConnection;
+import com.cloud.consoleproxy.vnc.BufferedImageCanvas;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+import com.cloud.consoleproxy.vnc.PaintNotificationListener;
+import com.cloud.consoleproxy.vnc.RfbConstants;
+import com.cloud.consoleproxy.vnc.VncScreenDescription;
+import com.cloud.consoleproxy.vnc.packet.server.FramebufferUpdatePacket;
+
+/**
+ * Headless harness for the WebSocket push path: replays a recorded-like VNC session (desktop,
+ * typing in a console window and a small animated area) through the VNC decoder into a console
+ * client, pushes dirty regions after every update and checks the bytes sent against what the
+ * polling AJAX viewer would have fetched for the same session.
+ */
+public class ConsoleProxyWebSocketSessionTest extends TestCase {
+    private static final int WIDTH = 1024;
+    private static final int HEIGHT = 768;
+
+    private VncScreenDescription screen;
+    private final List<byte[]> session = new ArrayList<byte[]>();
+
+    private static class HeadlessClient extends ConsoleProxyClientBase {
+        private final BufferedImageCanvas canvas;
+
+        public HeadlessClient(int width, int height) {
+            canvas = new BufferedImageCanvas(new PaintNotificationListener() {
+                @Override
+                public void imagePaintedOnScreen() {
+                }
+            }, width, height);
+            onFramebufferSizeChange(width, height);
+            checkFramebufferResized();
+        }
+
+        public BufferedImageCanvas getCanvas() {
+            return canvas;
+        }
+
+        @Override
+        protected FrameBufferCanvas getFrameBufferCavas() {
+            return canvas;
+        }
+
+        @Override
+        public boolean isHostConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isFrontEndAlive() {
+            return true;
+        }
+
+        @Override
+        public void sendClientRawKeyboardEvent(InputEventType event, int code, int modifiers) {
+        }
+
+        @Override
+        public void sendClientMouseEvent(InputEventType event, int x, int y, int code, int modifiers) {
+        }
+
+        @Override
+        public void initClient(ConsoleProxyClientParam param) {
+        }
+
+        @Override
+        public void closeClient() {
+        }
+
+        @Override
+        public void onClientConnected() {
+        }
+
+        @Override
+        public void onClientClose() {
+        }
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        screen = new VncScreenDescription();
+        screen.setFramebufferSize(WIDTH, HEIGHT);
+        screen.setPixelFormat(32, 24, RfbConstants.LITTLE_ENDIAN, RfbConstants.TRUE_COLOR, 255, 255, 255, 16, 8, 0);
+
+        Random random = new Random(4321);
+
+        // desktop with a console window
+        int[] desktop = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (x >= 100 && x < 900 && y >= 80 && y < 700)
+                    desktop[y * WIDTH + x] = 0x000000;
+                else
+                    desktop[y * WIDTH + x] = ((x * 255 / WIDTH) << 16) | ((y * 255 / HEIGHT) << 8) | 0x60;
+            }
+        }
+        session.add(encodeRawUpdate(0, 0, WIDTH, HEIGHT, desktop, WIDTH));
+
+        for (int i = 0; i < 200; i++) {
+            // a character typed into the console window
+            int[] glyph = new int[8 * 16];
+            for (int p = 0; p < glyph.length; p++)
+                glyph[p] = (p % 8 < 6 && random.nextInt(3) == 0) ? 0xC0C0C0 : 0x000000;
+            session.add(encodeRawUpdate(100 + (i % 100) * 8, 80 + (i / 100) * 16, 8, 16, glyph, 8));
+
+            // animated photo-like area, every fifth update
+            if (i % 5 == 0) {
+                int[] video = new int[160 * 120];
+                for (int p = 0; p < video.length; p++)
+                    video[p] = random.nextInt(0x1000000);
+                session.add(encodeRawUpdate(920, 600, 100, 120, video, 160));
+            }
+        }
+    }
+
+    private byte[] encodeRawUpdate(int x, int y, int width, int height, int[] pixels, int stride) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+        os.writeByte(0);        // padding
+        os.writeShort(1);       // number of rects
+        os.writeShort(x);
+        os.writeShort(y);
+        os.writeShort(width);
+        os.writeShort(height);
+        os.writeInt(RfbConstants.ENCODING_RAW);
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                int pixel = pixels[row * stride + col];
+                // little endian 32bpp
+                os.writeByte(pixel & 0xFF);
+                os.writeByte((pixel >> 8) & 0xFF);
+                os.writeByte((pixel >> 16) & 0xFF);
+                os.writeByte(0);
+            }
+        }
+        os.flush();
+        return bos.toByteArray();
+    }
+
+    private void replay(HeadlessClient client, byte[] packet) throws IOException {
+        new FramebufferUpdatePacket(client.getCanvas(), screen, new DataInputStream(new ByteArrayInputStream(packet)), client);
+    }
+
+    @Test
+    public void testReplaySession() throws IOException {
+        HeadlessClient client = new HeadlessClient(WIDTH, HEIGHT);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        WebSocketConnection connection = new WebSocketConnection(new ByteArrayInputStream(new byte[0]), wire);
+        ConsoleProxyWebSocketSession pushSession = new ConsoleProxyWebSocketSession(client, connection);
+
+        BufferedImage rebuilt = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        int messages = 0;
+        for (int i = 0; i < session.size(); i++) {
+            replay(client, session.get(i));
+
+            int offset = wire.size();
+            pushSession.pushUpdates(i == 0);
+
+            // rebuild the screen the way the browser does
+            byte[] bytes = wire.toByteArray();
+            InputStream is = new ByteArrayInputStream(bytes, offset, bytes.length - offset);
+            byte[] message;
+            while ((message = readServerFrame(is)) != null) {
+                messages++;
+                DataInputStream ms = new DataInputStream(new ByteArrayInputStream(message));
+                assertEquals(ConsoleProxyWebSocketSession.MESSAGE_REGION, ms.readUnsignedByte());
+
+                int x = ms.readUnsignedShort();
+                int y = ms.readUnsignedShort();
+                int w = ms.readUnsignedShort();
+                int h = ms.readUnsignedShort();
+                int format = ms.readUnsignedByte();
+
+                BufferedImage image = ImageIO.read(ms);
+                assertEquals(w, image.getWidth());
+                assertEquals(h, image.getHeight());
+                if (format == RegionImageEncoder.FORMAT_PNG) {
+                    // lossless regions must match the frame buffer exactly
+                    int[] expected = client.getCanvas().getOfflineImage().getRGB(x, y, w, h, null, 0, w);
+                    int[] actual = image.getRGB(0, 0, w, h, null, 0, w);
+                    for (int p = 0; p < expected.length; p++)
+                        assertEquals("pixel " + p + " of region " + x + "," + y, expected[p] & 0xFFFFFF, actual[p] & 0xFFFFFF);
+                } else {
+                    assertEquals(RegionImageEncoder.FORMAT_JPEG, format);
+                }
+                rebuilt.getGraphics().drawImage(image, x, y, null);
+            }
+        }
+
+        assertEquals(session.size(), pushSession.getFramesSent());
+        assertEquals(pushSession.getRegionsSent(), messages);
+        assertTrue(pushSession.getPngRegionsSent() > 0);
+        assertTrue(pushSession.getJpegRegionsSent() > 0);
+        assertEquals(wire.size(), pushSession.getBytesSent());
+
+        // JPEG regions are lossy, the rebuilt screen must still be close to the frame buffer
+        int[] expected = client.getCanvas().getOfflineImage().getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        int[] actual = rebuilt.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        long error = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8)
+                error += Math.abs(((expected[i] >> shift) & 0xFF) - ((actual[i] >> shift) & 0xFF));
+        }
+        assertTrue("mean error " + error / (expected.length * 3), error / (expected.length * 3) < 8);
+
+        // what the AJAX viewer would have fetched: one merged JPEG of all dirty tiles per update
+        HeadlessClient pollingClient = new HeadlessClient(WIDTH, HEIGHT);
+        long pollingBytes = 0;
+        for (int i = 0; i < session.size(); i++) {
+            replay(pollingClient, session.get(i));
+            List<TileInfo> tiles = pollingClient.getTileTracker().scan(i == 0);
+            byte[] jpeg = i == 0 ? pollingClient.getFrameBufferJpeg() : pollingClient.getTilesMergedJpeg(tiles, 64, 64);
+            pollingBytes += jpeg.length;
+        }
+
+        // even without counting the HTTP requests of polling, pushing regions sends less
+        assertTrue("pushed " + pushSession.getBytesSent() + " bytes, polling fetched " + pollingBytes, pushSession.getBytesSent() < pollingBytes);
+    }
+
+    @Test
+    public void testHandshake() throws IOException {
+        // example from RFC 6455 section 1.3
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketConnection.getAcceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+
+        String request = "GET /websocket?token=abc&sess=2 HTTP/1.1\r\n" + "Host: localhost\r\n" + "Upgrade: websocket\r\n" + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" + "Sec-WebSocket-Version: 13\r\n\r\n";
+        // masked text frame "Hello" from RFC 6455 section 5.7
+        byte[] frame = {(byte)0x81, (byte)0x85, 0x37, (byte)0xfa, 0x21, 0x3d, 0x7f, (byte)0x9f, 0x4d, 0x51, 0x58};
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        in.write(request.getBytes("US-ASCII"));
+        in.write(frame);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WebSocketConnection connection = new WebSocketConnection(new ByteArrayInputStream(in.toByteArray()), out);
+        assertTrue(connection.accept());
+        assertEquals("/websocket", connection.getRequestPath());
+        assertEquals("token=abc&sess=2", connection.getRequestQuery());
+
+        String response = out.toString("US-ASCII");
+        assertTrue(response.startsWith("HTTP/1.1 101 "));
+        assertTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+
+        WebSocketConnection.WebSocketFrame received = connection.readFrame();
+        assertEquals(WebSocketConnection.OPCODE_TEXT, received.getOpcode());
+        assertEquals("Hello", received.getText());
+        assertNull(connection.readFrame());
+        assertTrue(connection.isClosed());
+    }
+
+    @Test
+    public void testRejectPlainRequest() throws IOException {
+        String request = "GET /websocket HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WebSocketConnection connection = new WebSocketConnection(new ByteArrayInputStream(request.getBytes("US-ASCII")), out);
+        assertFalse(connection.accept());
+        assertTrue(out.toString("US-ASCII").startsWith("HTTP/1.1 400 "));
+    }
+
+    @Test
+    public void testOversizedFrameClosesConnection() throws IOException {
+        // masked binary frame announcing a payload of 2^63 + 1 bytes
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        DataOutputStream frame = new DataOutputStream(in);
+        frame.writeByte(0x80 | WebSocketConnection.OPCODE_BINARY);
+        frame.writeByte(0x80 | 127);
+        frame.writeLong(0x8000000000000001L);
+        frame.writeInt(0x37fa213d);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WebSocketConnection connection = new WebSocketConnection(new ByteArrayInputStream(in.toByteArray()), out);
+        try {
+            connection.readFrame();
+            fail("oversized frame must be rejected");
+        } catch (IOException e) {
+        }
+        assertTrue(connection.isClosed());
+
+        // close frame with status 1009, message too big
+        byte[] close = out.toByteArray();
+        assertEquals(4, close.length);
+        assertEquals(0x80 | WebSocketConnection.OPCODE_CLOSE, close[0] & 0xFF);
+        assertEquals(WebSocketConnection.STATUS_MESSAGE_TOO_BIG, ((close[2] & 0xFF) << 8) | (close[3] & 0xFF));
+    }
+
+    @Test
+    public void testOriginCheck() {
+        assertTrue(ConsoleProxyWebSocketServer.isAllowedOrigin("https://10-1-1-5.realhostip.com", "10-1-1-5.realhostip.com:8080"));
+        assertTrue(ConsoleProxyWebSocketServer.isAllowedOrigin("http://10.1.1.5:80", "10.1.1.5:8080"));
+        assertTrue(ConsoleProxyWebSocketServer.isAllowedOrigin(null, "10.1.1.5:8080"));
+        assertFalse(ConsoleProxyWebSocketServer.isAllowedOrigin("https://evil.example.com", "10.1.1.5:8080"));
+        assertFalse(ConsoleProxyWebSocketServer.isAllowedOrigin("null", "10.1.1.5:8080"));
+        assertFalse(ConsoleProxyWebSocketServer.isAllowedOrigin("http://10.1.1.5", null));
+    }
+
+    private static byte[] readServerFrame(InputStream in) throws IOException {
+        DataInputStream is = new DataInputStream(in);
+        int b0 = is.read();
+        if (b0 < 0)
+            return null;
+        assertEquals(0x80 | WebSocketConnection.OPCODE_BINARY, b0);
+
+        int b1 = is.readUnsignedByte();
+        assertEquals("server frames must not be masked", 0, b1 & 0x80);
+        long length = b1;
+        if (length == 126)
+            length = is.readUnsignedShort();
+        else if (length == 127)
+            length = is.readLong();
+
+        byte[] payload = new byte[(int)length];
+        is.readFully(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,307 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.vnc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.cloud.consoleproxy.vnc.packet.server.FramebufferUpdatePacket;
+
+/**
+ * Replays a synthetic RFB session (full screen followed by typing-like incremental updates)
+ * encoded as RAW, Hextile and ZRLE through the console proxy decoder, verifies the decoded
+ * frame buffer and that the compact encodings put fewer bytes on the wire than RAW.
+ */
+public class RfbEncodingTest extends TestCase {
+    private static final int WIDTH = 1024;
+    private static final int HEIGHT = 768;
+
+    private int[] screenPixels;
+    private final List<int[]> updates = new ArrayList<int[]>();
+    private VncScreenDescription screen;
+
+    @Override
+    protected void setUp() {
+        System.setProperty("java.awt.headless", "true");
+
+        screen = new VncScreenDescription();
+        screen.setFramebufferSize(WIDTH, HEIGHT);
+        screen.setPixelFormat(32, 24, RfbConstants.LITTLE_ENDIAN, RfbConstants.TRUE_COLOR, 255, 255, 255, 16, 8, 0);
+
+        Random random = new Random(1234);
+        screenPixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int color = 0x204060;
+                if (x >= 100 && x < 900 && y >= 80 && y < 700) {
+                    // console window with text lines
+                    color = 0x000000;
+                    if (y % 16 < 12 && random.nextInt(3) == 0)
+                        color = 0xC0C0C0;
+                } else if (y >= HEIGHT - 40) {
+                    // gradient task bar
+                    color = ((x * 255 / WIDTH) << 16) | ((y & 0xFF) << 8) | 0x80;
+                }
+                screenPixels[y * WIDTH + x] = color;
+            }
+        }
+
+        // x, y, width, height of incremental updates
+        for (int i = 0; i < 50; i++) {
+            updates.add(new int[] {100 + (i % 10) * 80, 80 + (i / 10) * 16, 80, 16});
+        }
+    }
+
+    @Test
+    public void testEncodings() throws IOException {
+        int[] encodings = {RfbConstants.ENCODING_RAW, RfbConstants.ENCODING_HEXTILE, RfbConstants.ENCODING_ZRLE};
+        long rawBytes = 0;
+        long hextileBytes = 0;
+        for (int encoding : encodings) {
+            List<byte[]> stream = new ArrayList<byte[]>();
+            stream.add(encodeUpdate(encoding, 0, 0, WIDTH, HEIGHT));
+            for (int[] update : updates)
+                stream.add(encodeUpdate(encoding, update[0], update[1], update[2], update[3]));
+
+            long bytes = 0;
+            for (byte[] packet : stream)
+                bytes += packet.length;
+            if (encoding == RfbConstants.ENCODING_RAW)
+                rawBytes = bytes;
+            else if (encoding == RfbConstants.ENCODING_HEXTILE)
+                hextileBytes = bytes;
+
+            BufferedImageCanvas canvas = new BufferedImageCanvas(new PaintNotificationListener() {
+                @Override
+                public void imagePaintedOnScreen() {
+                }
+            }, WIDTH, HEIGHT);
+
+            for (byte[] packet : stream) {
+                DataInputStream is = new DataInputStream(new ByteArrayInputStream(packet));
+                assertEquals(RfbConstants.SERVER_FRAMEBUFFER_UPDATE, is.readUnsignedByte());
+                new FramebufferUpdatePacket(canvas, screen, is, null, new Inflater());
+            }
+
+            int[] decoded = canvas.getOfflineImage().getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+            for (int i = 0; i < decoded.length; i++)
+                assertEquals("pixel " + i + " of encoding " + encoding, screenPixels[i], decoded[i] & 0xFFFFFF);
+
+            if (encoding != RfbConstants.ENCODING_RAW)
+                assertTrue("encoding " + encoding + " is larger than raw", bytes < rawBytes);
+            // the compressed palette tiles of ZRLE beat the subrectangles of Hextile on text
+            if (encoding == RfbConstants.ENCODING_ZRLE)
+                assertTrue("ZRLE is larger than Hextile", bytes < hextileBytes);
+        }
+    }
+
+    private byte[] encodeUpdate(int encoding, int x, int y, int width, int height) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+        os.writeByte(RfbConstants.SERVER_FRAMEBUFFER_UPDATE);
+        os.writeByte(0);
+        os.writeShort(1);
+        os.writeShort(x);
+        os.writeShort(y);
+        os.writeShort(width);
+        os.writeShort(height);
+        os.writeInt(encoding);
+
+        switch (encoding) {
+        case RfbConstants.ENCODING_RAW:
+            for (int row = y; row < y + height; row++)
+                for (int col = x; col < x + width; col++)
+                    writePixel(os, screenPixels[row * WIDTH + col], 4);
+            break;
+        case RfbConstants.ENCODING_HEXTILE:
+            encodeHextile(os, x, y, width, height);
+            break;
+        case RfbConstants.ENCODING_ZRLE:
+            encodeZrle(os, x, y, width, height);
+            break;
+        default:
+            fail("Unexpected encoding " + encoding);
+        }
+        os.flush();
+        return bos.toByteArray();
+    }
+
+    private void encodeHextile(DataOutputStream os, int x, int y, int width, int height) throws IOException {
+        for (int tileY = y; tileY < y + height; tileY += 16) {
+            int tileHeight = Math.min(16, y + height - tileY);
+            for (int tileX = x; tileX < x + width; tileX += 16) {
+                int tileWidth = Math.min(16, x + width - tileX);
+                Set<Integer> colors = tileColors(tileX, tileY, tileWidth, tileHeight);
+
+                if (colors.size() == 1) {
+                    os.writeByte(2);
+                    writePixel(os, colors.iterator().next(), 4);
+                    continue;
+                }
+
+                // two colors: background plus horizontal foreground runs as sub-rectangles
+                List<int[]> subrects = new ArrayList<int[]>();
+                int background = screenPixels[tileY * WIDTH + tileX];
+                int foreground = background;
+                if (colors.size() == 2) {
+                    for (int color : colors)
+                        if (color != background)
+                            foreground = color;
+                    for (int row = 0; row < tileHeight; row++) {
+                        int runStart = -1;
+                        for (int col = 0; col <= tileWidth; col++) {
+                            boolean fg = col < tileWidth && screenPixels[(tileY + row) * WIDTH + tileX + col] == foreground;
+                            if (fg && runStart < 0) {
+                                runStart = col;
+                            } else if (!fg && runStart >= 0) {
+                                subrects.add(new int[] {runStart, row, col - runStart});
+                                runStart = -1;
+                            }
+                        }
+                    }
+                }
+
+                if (colors.size() == 2 && subrects.size() * 2 < tileWidth * tileHeight * 4 && subrects.size() < 256) {
+                    os.writeByte(2 | 4 | 8);
+                    writePixel(os, background, 4);
+                    writePixel(os, foreground, 4);
+                    os.writeByte(subrects.size());
+                    for (int[] subrect : subrects) {
+                        os.writeByte((subrect[0] << 4) | subrect[1]);
+                        os.writeByte((subrect[2] - 1) << 4);
+                    }
+                } else {
+                    os.writeByte(1);
+                    for (int row = tileY; row < tileY + tileHeight; row++)
+                        for (int col = tileX; col < tileX + tileWidth; col++)
+                            writePixel(os, screenPixels[row * WIDTH + col], 4);
+                }
+            }
+        }
+    }
+
+    private void encodeZrle(DataOutputStream os, int x, int y, int width, int height) throws IOException {
+        ByteArrayOutputStream tiles = new ByteArrayOutputStream();
+        DataOutputStream ts = new DataOutputStream(tiles);
+        for (int tileY = y; tileY < y + height; tileY += 64) {
+            int tileHeight = Math.min(64, y + height - tileY);
+            for (int tileX = x; tileX < x + width; tileX += 64) {
+                int tileWidth = Math.min(64, x + width - tileX);
+                Set<Integer> colors = tileColors(tileX, tileY, tileWidth, tileHeight);
+
+                if (colors.size() == 1) {
+                    ts.writeByte(1);
+                    writePixel(ts, colors.iterator().next(), 3);
+                } else if (colors.size() <= 16) {
+                    List<Integer> palette = new ArrayList<Integer>(colors);
+                    ts.writeByte(palette.size());
+                    for (int color : palette)
+                        writePixel(ts, color, 3);
+                    int bitsPerIndex = palette.size() == 2 ? 1 : (palette.size() <= 4 ? 2 : 4);
+                    for (int row = tileY; row < tileY + tileHeight; row++) {
+                        int value = 0;
+                        int bits = 0;
+                        for (int col = tileX; col < tileX + tileWidth; col++) {
+                            value = (value << bitsPerIndex) | palette.indexOf(screenPixels[row * WIDTH + col]);
+                            bits += bitsPerIndex;
+                            if (bits == 8) {
+                                ts.writeByte(value);
+                                value = 0;
+                                bits = 0;
+                            }
+                        }
+                        if (bits > 0)
+                            ts.writeByte(value << (8 - bits));
+                    }
+                } else {
+                    // plain RLE
+                    ts.writeByte(128);
+                    int run = 0;
+                    int current = screenPixels[tileY * WIDTH + tileX];
+                    for (int row = tileY; row < tileY + tileHeight; row++) {
+                        for (int col = tileX; col < tileX + tileWidth; col++) {
+                            int color = screenPixels[row * WIDTH + col];
+                            if (color != current) {
+                                writeRun(ts, current, run);
+                                current = color;
+                                run = 0;
+                            }
+                            run++;
+                        }
+                    }
+                    writeRun(ts, current, run);
+                }
+            }
+        }
+        ts.flush();
+
+        Deflater deflater = new Deflater();
+        deflater.setInput(tiles.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(chunk);
+            compressed.write(chunk, 0, count);
+        }
+        deflater.end();
+
+        os.writeInt(compressed.size());
+        compressed.writeTo(os);
+    }
+
+    private void writeRun(DataOutputStream os, int color, int run) throws IOException {
+        writePixel(os, color, 3);
+        run--;
+        while (run >= 255) {
+            os.writeByte(255);
+            run -= 255;
+        }
+        os.writeByte(run);
+    }
+
+    private Set<Integer> tileColors(int x, int y, int width, int height) {
+        Set<Integer> colors = new HashSet<Integer>();
+        for (int row = y; row < y + height; row++)
+            for (int col = x; col < x + width; col++)
+                colors.add(screenPixels[row * WIDTH + col]);
+        return colors;
+    }
+
+    private static void writePixel(DataOutputStream os, int color, int bytes) throws IOException {
+        // little-endian RGB888
+        os.writeByte(color & 0xFF);
+        os.writeByte((color >> 8) & 0xFF);
+        os.writeByte((color >> 16) & 0xFF);
+        if (bytes == 4)
+            os.writeByte(0);
+    }
+}
@@ -27,8 +27,6 @@ import java.io.*;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.URI;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -103,6 +101,7 @@ import com.cloud.storage.template.Processor.FormatInfo;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.S3Utils;
 import com.cloud.utils.S3Utils.FileNamingStrategy;
+import com.cloud.utils.S3Utils.TransferOptions;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
@@ -155,6 +154,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
     final private String _tmpltDir = "/var/cloudstack/template";
     final private String _tmpltpp = "template.properties";
     protected String createTemplateFromSnapshotXenScript;
+    protected final TransferOptions _s3TransferOptions = new TransferOptions();
 
     @Override
     public void disconnected() {
@@ -321,7 +321,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
                 public String determineFileName(final String key) {
                     return substringAfterLast(key, S3Utils.SEPARATOR);
                 }
-            });
+            }, _s3TransferOptions);
 
             if (destFile == null) {
                 return new CopyCmdAnswer("Can't find template");
@@ -821,7 +821,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             }
             ImageFormat format = this.getTemplateFormat(srcFile.getName());
             String key = destData.getPath() + S3Utils.SEPARATOR + srcFile.getName();
-            putFile(s3, srcFile, bucket, key);
+            putFile(s3, srcFile, bucket, key, _s3TransferOptions);
 
             DataTO retObj = null;
             if (destData.getObjectType() == DataObjectType.TEMPLATE) {
@@ -1118,46 +1118,43 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             parent += File.separator;
         }
         String absoluteTemplatePath = parent + relativeTemplatePath;
-        MessageDigest digest;
+        String algorithm = cmd.getAlgorithm() != null ? cmd.getAlgorithm() : ChecksumCalculator.MD5;
         String checksum = null;
         File f = new File(absoluteTemplatePath);
-        InputStream is = null;
-        byte[] buffer = new byte[8192];
-        int read = 0;
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("parent path " + parent + " relative template path " + relativeTemplatePath);
         }
 
-        try {
-            digest = MessageDigest.getInstance("MD5");
-            is = new FileInputStream(f);
-            while ((read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
-            }
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            checksum = bigInt.toString(16);
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Successfully calculated checksum for file " + absoluteTemplatePath + " - " + checksum);
-            }
-
-        } catch (IOException e) {
-            String logMsg = "Unable to process file for MD5 - " + absoluteTemplatePath;
-            s_logger.error(logMsg);
-            return new Answer(cmd, false, checksum);
-        } catch (NoSuchAlgorithmException e) {
-            return new Answer(cmd, false, checksum);
-        } finally {
+        // checksums recorded at download time stay valid as long as the file is unchanged
+        ChecksumIndex index = new ChecksumIndex(f.getParentFile());
+        checksum = index.getChecksum(f, algorithm);
+        if (checksum == null) {
             try {
-                if (is != null) {
-                    is.close();
+                // MD5 is what the download path records, compute it in the same pass
+                Map<String, String> checksums = ChecksumCalculator.compute(f, ChecksumCalculator.MD5, algorithm);
+                checksum = checksums.get(algorithm);
+                try {
+                    index.setChecksums(f, checksums);
+                } catch (IOException e) {
+                    s_logger.warn("Unable to record checksum of " + absoluteTemplatePath + ": " + e.getMessage());
                 }
             } catch (IOException e) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Could not close the file " + absoluteTemplatePath);
-                }
+                String logMsg = "Unable to process file for " + algorithm + " - " + absoluteTemplatePath;
+                s_logger.error(logMsg);
+                return new Answer(cmd, false, checksum);
+            } catch (CloudRuntimeException e) {
                 return new Answer(cmd, false, checksum);
             }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Successfully calculated checksum for file " + absoluteTemplatePath + " - " + checksum);
+            }
+        } else if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Found checksum of file " + absoluteTemplatePath + " in checksum index - " + checksum);
+        }
+
+        if (ChecksumCalculator.MD5.equals(algorithm)) {
+            // callers have always been given the MD5 without leading zeros
+            checksum = new BigInteger(checksum, 16).toString(16);
         }
 
         return new Answer(cmd, true, checksum);
@@ -1737,6 +1734,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
                 s_logger.debug(details);
                 return new Answer(cmd, false, details);
             }
+            _dlMgr.invalidateInventory(tmpltParent.getAbsolutePath());
             return new Answer(cmd, true, null);
         } else if (dstore instanceof S3TO) {
             final S3TO s3 = (S3TO) dstore;
@@ -1844,6 +1842,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
                 s_logger.debug(details);
                 return new Answer(cmd, false, details);
             }
+            _dlMgr.invalidateInventory(tmpltParent.getAbsolutePath());
             return new Answer(cmd, true, null);
         } else if (dstore instanceof S3TO) {
             final S3TO s3 = (S3TO) dstore;
@@ -2007,6 +2006,13 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             _storage.mkdirs(_parent);
         }
 
+        value = (String) params.get("s3.transfer.part.size");
+        _s3TransferOptions.setPartSize(NumbersUtil.parseLong(value, S3Utils.DEFAULT_PART_SIZE / (1024 * 1024)) * 1024 * 1024);
+        value = (String) params.get("s3.transfer.concurrency");
+        _s3TransferOptions.setConcurrency(NumbersUtil.parseInt(value, S3Utils.DEFAULT_CONCURRENCY));
+        value = (String) params.get("s3.transfer.part.retries");
+        _s3TransferOptions.setPartRetries(NumbersUtil.parseInt(value, S3Utils.DEFAULT_PART_RETRIES));
+
         _configSslScr = Script.findScript(getDefaultScriptsDir(), "config_ssl.sh");
         if (_configSslScr != null) {
             s_logger.info("config_ssl.sh found in " + _configSslScr);
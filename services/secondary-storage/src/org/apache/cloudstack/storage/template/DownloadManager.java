@@ -108,5 +108,11 @@ public interface DownloadManager extends Manager {
 	 */
 	public Map<Long, TemplateProp> gatherVolumeInfo(String volumeDir);
 
+	/**
+	 * Drop what the template and volume inventories know about a directory changed by this SSVM
+	 * @param path absolute path of the template or volume directory
+	 */
+	public void invalidateInventory(String path);
+
 
 }
\ No newline at end of file
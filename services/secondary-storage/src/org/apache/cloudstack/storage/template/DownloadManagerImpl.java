@@ -18,14 +18,9 @@ package org.apache.cloudstack.storage.template;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -59,6 +54,8 @@ import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.StorageLayer;
 import com.cloud.storage.VMTemplateHostVO;
 import com.cloud.storage.VMTemplateStorageResourceAssoc;
+import com.cloud.storage.template.ChecksumCalculator;
+import com.cloud.storage.template.ChecksumIndex;
 import com.cloud.storage.template.HttpTemplateDownloader;
 import com.cloud.storage.template.IsoProcessor;
 import com.cloud.storage.template.LocalTemplateDownloader;
@@ -70,6 +67,7 @@ import com.cloud.storage.template.S3TemplateDownloader;
 import com.cloud.storage.template.ScpTemplateDownloader;
 import com.cloud.storage.template.TemplateConstants;
 import com.cloud.storage.template.TemplateDownloader;
+import com.cloud.storage.template.TemplateInventory;
 import com.cloud.storage.template.TemplateDownloader.DownloadCompleteCallback;
 import com.cloud.storage.template.TemplateDownloader.Status;
 import com.cloud.storage.template.TemplateLocation;
@@ -236,10 +234,11 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
     private ExecutorService threadPool;
 
     private final Map<String, DownloadJob> jobs = new ConcurrentHashMap<String, DownloadJob>();
-    private String listTmpltScr;
-    private String listVolScr;
+    private final ConcurrentHashMap<String, TemplateInventory> _inventories = new ConcurrentHashMap<String, TemplateInventory>();
     private int installTimeoutPerGig = 180 * 60 * 1000;
     private boolean _sslCopy;
+    private String[] _checksumAlgorithms = new String[] {ChecksumCalculator.MD5};
+    private int _downloadSegments = 4;
 
     public void setThreadPool(ExecutorService threadPool) {
         this.threadPool = threadPool;
@@ -311,6 +310,9 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
                 dnld.setTemplatesize(size);
                 dnld.setTemplatePhysicalSize(size);
                 dnld.setTmpltPath(std.getDownloadLocalPath()); // update template path to include file name.
+                if (std.getChecksum(ChecksumCalculator.MD5) != null) {
+                    dnld.setCheckSum(std.getChecksum(ChecksumCalculator.MD5));
+                }
             }
             dj.cleanup();
             break;
@@ -319,34 +321,25 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         }
     }
 
-    private String computeCheckSum(File f) {
-        byte[] buffer = new byte[8192];
-        int read = 0;
-        MessageDigest digest;
-        String checksum = null;
-        InputStream is = null;
-        try {
-            digest = MessageDigest.getInstance("MD5");
-            is = new FileInputStream(f);
-            while ((read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
-            }
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            checksum = String.format("%032x", bigInt);
-            return checksum;
-        } catch (IOException e) {
-            return null;
-        } catch (NoSuchAlgorithmException e) {
-            return null;
-        } finally {
-            try {
-                if (is != null)
-                    is.close();
-            } catch (IOException e) {
-                return null;
+    /**
+     * Checksums of the downloaded file, taken from the downloader when it digested the data on the
+     * fly, otherwise computed by reading the file once for all configured algorithms.
+     */
+    private Map<String, String> getChecksums(TemplateDownloader td, File f) {
+        Map<String, String> checksums = new HashMap<String, String>();
+        for (String algorithm : _checksumAlgorithms) {
+            String checksum = td.getChecksum(algorithm);
+            if (checksum == null) {
+                try {
+                    return ChecksumCalculator.compute(f, _checksumAlgorithms);
+                } catch (IOException e) {
+                    s_logger.warn("Unable to compute checksum of " + f.getAbsolutePath(), e);
+                    return null;
+                }
             }
+            checksums.put(algorithm, checksum);
         }
+        return checksums;
     }
 
     /**
@@ -382,11 +375,15 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         */
 
         File originalTemplate = new File(td.getDownloadLocalPath());
-        String checkSum = computeCheckSum(originalTemplate);
+        Map<String, String> checksums = getChecksums(td, originalTemplate);
+        String checkSum = checksums != null ? checksums.get(ChecksumCalculator.MD5) : null;
         if (checkSum == null) {
             s_logger.warn("Something wrong happened when try to calculate the checksum of downloaded template!");
         }
         dnld.setCheckSum(checkSum);
+        // the install script moves the file in place, size and mtime tell whether it also rewrote it
+        long downloadedSize = originalTemplate.length();
+        long downloadedTime = originalTemplate.lastModified();
 
         int imgSizeGigs = (int) Math.ceil(_storage.getSize(td.getDownloadLocalPath()) * 1.0d / (1024 * 1024 * 1024));
         imgSizeGigs++; // add one just in case
@@ -421,9 +418,8 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         scr.add("-t", resourcePath);
         scr.add("-f", td.getDownloadLocalPath()); // this is the temporary
                                                   // template file downloaded
-        if (dnld.getChecksum() != null && dnld.getChecksum().length() > 1) {
-            scr.add("-c", dnld.getChecksum());
-        }
+        // no -c, the checksum was computed from this very file, having the
+        // script verify it with md5sum would only read the template once more
         scr.add("-u"); // cleanup
         String result;
         result = scr.execute();
@@ -436,6 +432,14 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         File downloadedTemplate = new File(resourcePath + "/" + templateFilename);
         _storage.setWorldReadableAndWriteable(downloadedTemplate);
 
+        if (checksums != null && downloadedTemplate.length() == downloadedSize && downloadedTemplate.lastModified() == downloadedTime) {
+            try {
+                new ChecksumIndex(downloadedTemplate.getParentFile()).setChecksums(downloadedTemplate, checksums);
+            } catch (IOException e) {
+                s_logger.warn("Unable to record checksum of " + downloadedTemplate.getAbsolutePath(), e);
+            }
+        }
+
         // Set permissions for template/volume.properties
         String propertiesFile = resourcePath;
         if (resourceType == ResourceType.TEMPLATE) {
@@ -449,6 +453,9 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         TemplateLocation loc = new TemplateLocation(_storage, resourcePath);
         try {
             loc.create(dnld.getId(), true, dnld.getTmpltName());
+            if (checkSum != null) {
+                loc.updateChecksum(checkSum);
+            }
         } catch (IOException e) {
             s_logger.warn("Something is wrong with template location " + resourcePath, e);
             loc.purge();
@@ -478,6 +485,7 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
             s_logger.warn("Cleaning up because we're unable to save the formats");
             loc.purge();
         }
+        invalidateInventory(resourcePath);
 
         return null;
     }
@@ -509,8 +517,10 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         TemplateDownloader td;
         if ((uri != null) && (uri.getScheme() != null)) {
             if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                td = new S3TemplateDownloader(s3, url, installPathPrefix, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy,
-                        resourceType);
+                S3TemplateDownloader s3Td = new S3TemplateDownloader(s3, url, installPathPrefix, new Completion(jobId), maxTemplateSizeInBytes, user,
+                        password, proxy, resourceType);
+                s3Td.setChecksumAlgorithms(_checksumAlgorithms);
+                td = s3Td;
             } else {
                 throw new CloudRuntimeException("Scheme is not supported " + url);
             }
@@ -560,8 +570,11 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
             TemplateDownloader td;
             if ((uri != null) && (uri.getScheme() != null)) {
                 if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                    td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy,
-                            resourceType);
+                    HttpTemplateDownloader httpTd = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user,
+                            password, proxy, resourceType);
+                    httpTd.setChecksumAlgorithms(_checksumAlgorithms);
+                    httpTd.setSegmentCount(_downloadSegments);
+                    td = httpTd;
                 } else if (uri.getScheme().equalsIgnoreCase("file")) {
                     td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                 } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -788,78 +801,23 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
 
     }
 
-    private List<String> listVolumes(String rootdir) {
-        List<String> result = new ArrayList<String>();
-
-        Script script = new Script(listVolScr, s_logger);
-        script.add("-r", rootdir);
-        ZfsPathParser zpp = new ZfsPathParser(rootdir);
-        script.execute(zpp);
-        result.addAll(zpp.getPaths());
-        s_logger.info("found " + zpp.getPaths().size() + " volumes" + zpp.getPaths());
-        return result;
-    }
-
-    private List<String> listTemplates(String rootdir) {
-        List<String> result = new ArrayList<String>();
-
-        Script script = new Script(listTmpltScr, s_logger);
-        script.add("-r", rootdir);
-        ZfsPathParser zpp = new ZfsPathParser(rootdir);
-        script.execute(zpp);
-        result.addAll(zpp.getPaths());
-        s_logger.info("found " + zpp.getPaths().size() + " templates" + zpp.getPaths());
-        return result;
-    }
-
     @Override
     public Map<String, TemplateProp> gatherTemplateInfo(String rootDir) {
         Map<String, TemplateProp> result = new HashMap<String, TemplateProp>();
-        String templateDir = rootDir + File.separator + _templateDir;
+        final String templateDir = rootDir + File.separator + _templateDir;
 
         if (!_storage.exists(templateDir)) {
             _storage.mkdirs(templateDir);
         }
 
-        List<String> publicTmplts = listTemplates(templateDir);
-        for (String tmplt : publicTmplts) {
-            String path = tmplt.substring(0, tmplt.lastIndexOf(File.separator));
-            TemplateLocation loc = new TemplateLocation(_storage, path);
-            try {
-                if (!loc.load()) {
-                    s_logger.warn("Post download installation was not completed for " + path);
-                    // loc.purge();
-                    _storage.cleanup(path, templateDir);
-                    continue;
-                }
-            } catch (IOException e) {
-                s_logger.warn("Unable to load template location " + path, e);
-                continue;
+        List<TemplateProp> templates = getInventory(templateDir, TemplateLocation.Filename).list(new TemplateInventory.Loader() {
+            @Override
+            public TemplateProp load(String path) {
+                return loadTemplateProp(path, templateDir, "template");
             }
-
-            TemplateProp tInfo = loc.getTemplateInfo();
-
-			if ((tInfo.getSize() == tInfo.getPhysicalSize())
-					&& (tInfo.getInstallPath().endsWith(ImageFormat.OVA.getFileExtension()))) {
-                try {
-                    Processor processor = _processors.get("VMDK Processor");
-                    VmdkProcessor vmdkProcessor = (VmdkProcessor) processor;
-                    long vSize =
-                            vmdkProcessor.getTemplateVirtualSize(
-                                    path,
-                                    tInfo.getInstallPath().substring(
-                                            tInfo.getInstallPath().lastIndexOf(File.separator) + 1));
-                    tInfo.setSize(vSize);
-                    loc.updateVirtualSize(vSize);
-                    loc.save();
-                } catch (Exception e) {
-					s_logger.error("Unable to get the virtual size of the template: " + tInfo.getInstallPath()
-							+ " due to " + e.getMessage());
-                }
-            }
-
-			result.put(tInfo.getTemplateName(), tInfo);
-			s_logger.debug("Added template name: " + tInfo.getTemplateName() + ", path: " + tmplt);
+        });
+        for (TemplateProp tInfo : templates) {
+            result.put(tInfo.getTemplateName(), tInfo);
         }
         /*
         for (String tmplt : isoTmplts) {
@@ -878,53 +836,83 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
     @Override
     public Map<Long, TemplateProp> gatherVolumeInfo(String rootDir) {
         Map<Long, TemplateProp> result = new HashMap<Long, TemplateProp>();
-        String volumeDir = rootDir + File.separator + _volumeDir;
+        final String volumeDir = rootDir + File.separator + _volumeDir;
 
         if (!_storage.exists(volumeDir)) {
             _storage.mkdirs(volumeDir);
         }
 
-        List<String> vols = listVolumes(volumeDir);
-        for (String vol : vols) {
-            String path = vol.substring(0, vol.lastIndexOf(File.separator));
-            TemplateLocation loc = new TemplateLocation(_storage, path);
-            try {
-                if (!loc.load()) {
-                    s_logger.warn("Post download installation was not completed for " + path);
-                    // loc.purge();
-                    _storage.cleanup(path, volumeDir);
-                    continue;
-                }
-            } catch (IOException e) {
-                s_logger.warn("Unable to load volume location " + path, e);
-                continue;
+        List<TemplateProp> vols = getInventory(volumeDir, "volume.properties").list(new TemplateInventory.Loader() {
+            @Override
+            public TemplateProp load(String path) {
+                return loadTemplateProp(path, volumeDir, "volume");
             }
+        });
+        for (TemplateProp vInfo : vols) {
+            result.put(vInfo.getId(), vInfo);
+        }
+        return result;
+    }
 
-            TemplateProp vInfo = loc.getTemplateInfo();
+    private TemplateInventory getInventory(String dir, String propertiesFilename) {
+        TemplateInventory inventory = _inventories.get(dir);
+        if (inventory == null) {
+            inventory = new TemplateInventory(new File(dir), propertiesFilename);
+            TemplateInventory existing = _inventories.putIfAbsent(dir, inventory);
+            if (existing != null) {
+                inventory = existing;
+            }
+        }
+        return inventory;
+    }
 
-			if ((vInfo.getSize() == vInfo.getPhysicalSize())
-					&& (vInfo.getInstallPath().endsWith(ImageFormat.OVA.getFileExtension()))) {
-                try {
-                    Processor processor = _processors.get("VMDK Processor");
-                    VmdkProcessor vmdkProcessor = (VmdkProcessor)processor;
-					long vSize =
-							vmdkProcessor.getTemplateVirtualSize(
-									path,
-									vInfo.getInstallPath().substring(
-											vInfo.getInstallPath().lastIndexOf(File.separator) + 1));
-					vInfo.setSize(vSize);
-                    loc.updateVirtualSize(vSize);
-                    loc.save();
-                } catch (Exception e) {
-					s_logger.error("Unable to get the virtual size of the volume: " + vInfo.getInstallPath()
-							+ " due to " + e.getMessage());
-                }
+    /**
+     * Tells the inventories that a template or volume directory has been changed by this SSVM
+     */
+    public void invalidateInventory(String path) {
+        for (TemplateInventory inventory : _inventories.values()) {
+            if (inventory.contains(path)) {
+                inventory.invalidate(path);
             }
+        }
+    }
 
-            result.put(vInfo.getId(), vInfo);
-			s_logger.debug("Added volume name: " + vInfo.getTemplateName() + ", path: " + vol);
+    /**
+     * Reads the properties of one template or volume directory, called by the inventory
+     * for directories it has not seen before or that have changed since.
+     */
+    private TemplateProp loadTemplateProp(String path, String rootDir, String type) {
+        TemplateLocation loc = new TemplateLocation(_storage, path);
+        try {
+            if (!loc.load()) {
+                s_logger.warn("Post download installation was not completed for " + path);
+                // loc.purge();
+                _storage.cleanup(path, rootDir);
+                return null;
+            }
+        } catch (IOException e) {
+            s_logger.warn("Unable to load " + type + " location " + path, e);
+            return null;
         }
-        return result;
+
+        TemplateProp tInfo = loc.getTemplateInfo();
+
+        if ((tInfo.getSize() == tInfo.getPhysicalSize()) && (tInfo.getInstallPath().endsWith(ImageFormat.OVA.getFileExtension()))) {
+            try {
+                Processor processor = _processors.get("VMDK Processor");
+                VmdkProcessor vmdkProcessor = (VmdkProcessor) processor;
+                long vSize = vmdkProcessor.getTemplateVirtualSize(path,
+                        tInfo.getInstallPath().substring(tInfo.getInstallPath().lastIndexOf(File.separator) + 1));
+                tInfo.setSize(vSize);
+                loc.updateVirtualSize(vSize);
+                loc.save();
+            } catch (Exception e) {
+                s_logger.error("Unable to get the virtual size of the " + type + ": " + tInfo.getInstallPath() + " due to " + e.getMessage());
+            }
+        }
+
+        s_logger.debug("Added " + type + " name: " + tInfo.getTemplateName() + ", path: " + path);
+        return tInfo;
     }
 
     private int deleteDownloadDirectories(File downloadPath, int deleted) {
@@ -1019,6 +1007,16 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         value = (String) params.get("install.timeout.pergig");
         installTimeoutPerGig = NumbersUtil.parseInt(value, 15 * 60) * 1000;
 
+        // SHA-256 is computed in the same pass as MD5 when enabled
+        value = (String) params.get("template.checksum.sha256");
+        if (Boolean.parseBoolean(value)) {
+            _checksumAlgorithms = new String[] {ChecksumCalculator.MD5, ChecksumCalculator.SHA256};
+        }
+
+        // number of HTTP connections per template when the server supports range requests
+        value = (String) params.get("template.download.segments");
+        _downloadSegments = NumbersUtil.parseInt(value, 4);
+
         value = (String) params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
@@ -1027,24 +1025,12 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
             scriptsDir = "scripts/storage/secondary";
         }
 
-        listTmpltScr = Script.findScript(scriptsDir, "listvmtmplt.sh");
-        if (listTmpltScr == null) {
-            throw new ConfigurationException("Unable to find the listvmtmplt.sh");
-        }
-        s_logger.info("listvmtmplt.sh found in " + listTmpltScr);
-
         createTmpltScr = Script.findScript(scriptsDir, "createtmplt.sh");
         if (createTmpltScr == null) {
             throw new ConfigurationException("Unable to find createtmplt.sh");
         }
         s_logger.info("createtmplt.sh found in " + createTmpltScr);
 
-        listVolScr = Script.findScript(scriptsDir, "listvolume.sh");
-        if (listVolScr == null) {
-            throw new ConfigurationException("Unable to find the listvolume.sh");
-        }
-        s_logger.info("listvolume.sh found in " + listVolScr);
-
         createVolScr = Script.findScript(scriptsDir, "createvolume.sh");
         if (createVolScr == null) {
             throw new ConfigurationException("Unable to find createvolume.sh");
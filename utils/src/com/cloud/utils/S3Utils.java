@@ -38,29 +38,49 @@ import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.log4j.Logger;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.HttpMethod;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.Bucket;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.BinaryUtils;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 
 public final class S3Utils {
@@ -72,6 +92,22 @@ public final class S3Utils {
     private static final int MIN_BUCKET_NAME_LENGTH = 3;
     private static final int MAX_BUCKET_NAME_LENGTH = 63;
 
+    // S3 rejects multipart uploads with smaller parts (but the last one)
+    // or with more parts
+    public static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+
+    public static final long DEFAULT_PART_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int DEFAULT_PART_RETRIES = 3;
+    public static final long DEFAULT_RETRY_DELAY = 1000;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    // the ETag of an object put at once is its MD5, the one of a multipart
+    // upload the MD5 of the MD5s of its parts followed by the part count
+    private static final Pattern MD5_ETAG = Pattern.compile("\"?([0-9a-fA-F]{32})(?:-([0-9]+))?\"?");
+
     private S3Utils() {
         super();
     }
@@ -130,17 +166,127 @@ public final class S3Utils {
     public static void putFile(final ClientOptions clientOptions,
             final File sourceFile, final String bucketName, final String key) {
 
+        putFile(clientOptions, sourceFile, bucketName, key,
+                new TransferOptions());
+
+    }
+
+    public static void putFile(final ClientOptions clientOptions,
+            final File sourceFile, final String bucketName, final String key,
+            final TransferOptions transferOptions) {
+
         assert clientOptions != null;
         assert sourceFile != null;
         assert !isBlank(bucketName);
         assert !isBlank(key);
+        assert transferOptions != null;
 
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(format("Sending file %1$s as S3 object %2$s in "
                     + "bucket %3$s", sourceFile.getName(), key, bucketName));
         }
 
-        acquireClient(clientOptions).putObject(bucketName, key, sourceFile);
+        putFile(acquireClient(clientOptions), sourceFile, bucketName, key,
+                transferOptions);
+
+    }
+
+    static void putFile(final AmazonS3 client, final File sourceFile,
+            final String bucketName, final String key,
+            final TransferOptions transferOptions) {
+
+        final long length = sourceFile.length();
+        final long partSize = transferOptions.getPartSize(length);
+
+        if (length <= partSize) {
+            client.putObject(bucketName, key, sourceFile);
+            return;
+        }
+
+        // The parts are read straight from the source file at their offset,
+        // nothing is staged in memory or in temporary files, and a failed
+        // part is sent again on its own instead of the whole object
+        final String uploadId = client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(bucketName, key))
+                .getUploadId();
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(format(
+                    "Sending %1$s bytes of file %2$s as S3 object %3$s in bucket "
+                            + "%4$s in parts of %5$s bytes, %6$s at a time (upload id %7$s)",
+                    length, sourceFile.getName(), key, bucketName, partSize,
+                    transferOptions.getConcurrency(), uploadId));
+        }
+
+        final List<Callable<PartETag>> parts = new ArrayList<Callable<PartETag>>();
+        int partNumber = 1;
+        for (long offset = 0; offset < length; offset += partSize, partNumber++) {
+
+            final UploadPartRequest request = new UploadPartRequest()
+                    .withBucketName(bucketName).withKey(key)
+                    .withUploadId(uploadId).withPartNumber(partNumber)
+                    .withFile(sourceFile).withFileOffset(offset)
+                    .withPartSize(Math.min(partSize, length - offset))
+                    .withLastPart(offset + partSize >= length);
+
+            parts.add(new Callable<PartETag>() {
+                @Override
+                public PartETag call() throws Exception {
+                    return uploadPart(client, request, transferOptions);
+                }
+            });
+
+        }
+
+        try {
+
+            final List<PartETag> partETags = runParts(parts,
+                    transferOptions.getConcurrency(), key);
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                    bucketName, key, uploadId, partETags));
+
+        } catch (RuntimeException e) {
+
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(
+                        bucketName, key, uploadId));
+            } catch (AmazonClientException ae) {
+                LOGGER.warn(format(
+                        "Unable to abort multipart upload %1$s of S3 object %2$s in bucket %3$s",
+                        uploadId, key, bucketName), ae);
+            }
+            throw e;
+
+        }
+
+    }
+
+    private static PartETag uploadPart(final AmazonS3 client,
+            final UploadPartRequest request,
+            final TransferOptions transferOptions) {
+
+        for (int attempt = 1;; attempt++) {
+
+            try {
+
+                return client.uploadPart(request).getPartETag();
+
+            } catch (AmazonClientException e) {
+
+                if (!isRetryable(e)
+                        || attempt > transferOptions.getPartRetries()) {
+                    throw e;
+                }
+                LOGGER.warn(format(
+                        "Failed to send part %1$s of S3 object %2$s (attempt %3$s), retrying: %4$s",
+                        request.getPartNumber(), request.getKey(), attempt,
+                        e.getMessage()));
+
+            }
+
+            pause(transferOptions.getRetryDelay() * attempt);
+
+        }
 
     }
 
@@ -209,18 +355,36 @@ public final class S3Utils {
 
     }
 
-    @SuppressWarnings("unchecked")
     public static File getFile(final ClientOptions clientOptions,
             final String bucketName, final String key,
             final File targetDirectory, final FileNamingStrategy namingStrategy) {
 
+        return getFile(clientOptions, bucketName, key, targetDirectory,
+                namingStrategy, new TransferOptions());
+
+    }
+
+    public static File getFile(final ClientOptions clientOptions,
+            final String bucketName, final String key,
+            final File targetDirectory, final FileNamingStrategy namingStrategy,
+            final TransferOptions transferOptions) {
+
         assert clientOptions != null;
         assert isNotBlank(bucketName);
         assert isNotBlank(key);
         assert targetDirectory != null && targetDirectory.isDirectory();
         assert namingStrategy != null;
+        assert transferOptions != null;
 
-        final AmazonS3 connection = acquireClient(clientOptions);
+        return getFile(acquireClient(clientOptions), bucketName, key,
+                targetDirectory, namingStrategy, transferOptions);
+
+    }
+
+    static File getFile(final AmazonS3 connection, final String bucketName,
+            final String key, final File targetDirectory,
+            final FileNamingStrategy namingStrategy,
+            final TransferOptions transferOptions) {
 
         File tempFile = null;
         try {
@@ -230,25 +394,45 @@ public final class S3Utils {
                             "part"), "tmp", targetDirectory);
             tempFile.deleteOnExit();
 
+            final ObjectMetadata metadata = connection.getObjectMetadata(bucketName, key);
+            final long length = metadata.getContentLength();
+            final long partSize = transferOptions.getPartSize(length);
+
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug(format(
-                        "Downloading object %1$s from bucket %2$s to temp file %3$s",
-                        key, bucketName, tempFile.getName()));
+                        "Downloading %1$s bytes of object %2$s from bucket %3$s to temp file %4$s",
+                        length, key, bucketName, tempFile.getName()));
             }
 
-            try {
-                connection.getObject(new GetObjectRequest(bucketName, key), tempFile);
-            } catch (AmazonClientException ex) {
-                // hack to handle different ETAG format generated from RiakCS for multi-part uploaded object
-                String msg = ex.getMessage();
-                if (!msg.contains("verify integrity")){
-                    throw ex;
+            if (length <= partSize) {
+
+                try {
+                    connection.getObject(new GetObjectRequest(bucketName, key), tempFile);
+                } catch (AmazonClientException ex) {
+                    // hack to handle different ETAG format generated from RiakCS for multi-part uploaded object
+                    String msg = ex.getMessage();
+                    if (!msg.contains("verify integrity")){
+                        throw ex;
+                    }
                 }
+
+            } else {
+
+                getFileInParts(connection, bucketName, key, tempFile, length,
+                        partSize, transferOptions);
+                // the SDK checks the MD5 of a single GET, the ranges are
+                // checked here once the file is complete
+                verifyFile(tempFile, metadata.getETag(), partSize, key);
+
             }
 
             final File targetFile = new File(targetDirectory,
                     namingStrategy.determineFileName(key));
-            tempFile.renameTo(targetFile);
+            if (!tempFile.renameTo(targetFile)) {
+                throw new CloudRuntimeException(format(
+                        "Unable to move downloaded object %1$s to %2$s",
+                        key, targetFile.getAbsolutePath()));
+            }
 
             return targetFile;
 
@@ -277,6 +461,252 @@ public final class S3Utils {
 
     }
 
+    private static void getFileInParts(final AmazonS3 connection,
+            final String bucketName, final String key, final File targetFile,
+            final long length, final long partSize,
+            final TransferOptions transferOptions) throws IOException {
+
+        // Every part is fetched with its own ranged GET and written at its
+        // offset of the target file
+        final RandomAccessFile file = new RandomAccessFile(targetFile, "rw");
+        try {
+
+            file.setLength(length);
+            final FileChannel channel = file.getChannel();
+
+            final List<Callable<Long>> parts = new ArrayList<Callable<Long>>();
+            for (long offset = 0; offset < length; offset += partSize) {
+
+                final long start = offset;
+                final long end = Math.min(offset + partSize, length) - 1;
+                parts.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return downloadPart(connection, bucketName, key,
+                                channel, start, end, transferOptions);
+                    }
+                });
+
+            }
+
+            runParts(parts, transferOptions.getConcurrency(), key);
+            channel.force(false);
+
+        } finally {
+            file.close();
+        }
+
+    }
+
+    /**
+     * Compares the MD5 of a downloaded file with the ETag of its object. The
+     * ETag of a multipart upload can only be checked when the object was
+     * uploaded in parts of the given size; ETags of other forms, like the
+     * ones of RiakCS, are not checked.
+     */
+    static void verifyFile(final File file, final String eTag,
+            final long partSize, final String key) throws IOException {
+
+        final Matcher matcher = eTag != null ? MD5_ETAG.matcher(eTag) : null;
+        if (matcher == null || !matcher.matches()) {
+            LOGGER.debug(format("Not verifying object %1$s, its ETag %2$s is not an MD5", key, eTag));
+            return;
+        }
+
+        final String expected = matcher.group(1).toLowerCase();
+        final String actual;
+        if (matcher.group(2) == null) {
+            actual = BinaryUtils.toHex(md5(file, 0, file.length()));
+        } else {
+            final long parts = Long.parseLong(matcher.group(2));
+            if (parts != Math.max(1, (file.length() + partSize - 1) / partSize)) {
+                LOGGER.debug(format("Not verifying object %1$s, it was not uploaded in parts of %2$s bytes", key, partSize));
+                return;
+            }
+            final MessageDigest partMD5s = newMD5();
+            for (long offset = 0; offset < file.length(); offset += partSize) {
+                partMD5s.update(md5(file, offset, Math.min(partSize, file.length() - offset)));
+            }
+            actual = BinaryUtils.toHex(partMD5s.digest());
+        }
+
+        if (!expected.equals(actual)) {
+            throw new CloudRuntimeException(format(
+                    "Downloaded object %1$s is corrupt, its MD5 %2$s does not match the ETag %3$s",
+                    key, actual, eTag));
+        }
+
+    }
+
+    private static byte[] md5(final File file, final long offset,
+            final long length) throws IOException {
+
+        final MessageDigest md5 = newMD5();
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = offset;
+            while (position < offset + length) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), offset + length - position));
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                md5.update(buffer);
+                position += read;
+            }
+        } finally {
+            in.close();
+        }
+        return md5.digest();
+
+    }
+
+    private static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CloudRuntimeException("MD5 is not available", e);
+        }
+    }
+
+    private static long downloadPart(final AmazonS3 connection,
+            final String bucketName, final String key,
+            final FileChannel channel, final long start, final long end,
+            final TransferOptions transferOptions) {
+
+        long position = start;
+        for (int attempt = 1;; attempt++) {
+
+            Exception failure;
+            S3Object object = null;
+            try {
+
+                // a retry only asks for what is still missing
+                object = connection.getObject(new GetObjectRequest(
+                        bucketName, key).withRange(position, end));
+                final InputStream in = object.getObjectContent();
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while (position <= end && (read = in.read(buffer, 0,
+                        (int)Math.min(buffer.length, end - position + 1))) != -1) {
+                    final ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                    while (data.hasRemaining()) {
+                        position += channel.write(data, position);
+                    }
+                }
+                if (position > end) {
+                    return end - start + 1;
+                }
+                failure = new IOException(format(
+                        "Premature end of object %1$s at byte %2$s", key,
+                        position));
+
+            } catch (IOException e) {
+
+                failure = e;
+
+            } catch (AmazonClientException e) {
+
+                if (!isRetryable(e)) {
+                    throw e;
+                }
+                failure = e;
+
+            } finally {
+
+                if (object != null) {
+                    try {
+                        object.getObjectContent().close();
+                    } catch (IOException e) {
+                        LOGGER.trace("Ignored exception while closing S3 object", e);
+                    }
+                }
+
+            }
+
+            if (attempt > transferOptions.getPartRetries()) {
+                throw new CloudRuntimeException(format(
+                        "Failed to get bytes %1$s-%2$s of object %3$s from bucket %4$s",
+                        start, end, key, bucketName), failure);
+            }
+            LOGGER.warn(format(
+                    "Failed to get bytes %1$s-%2$s of object %3$s (attempt %4$s), retrying: %5$s",
+                    position, end, key, attempt, failure.getMessage()));
+
+            pause(transferOptions.getRetryDelay() * attempt);
+
+        }
+
+    }
+
+    /**
+     * Runs the transfer of the parts of an object, at most concurrency at a
+     * time, and returns their results in order. The first failing part cancels
+     * the ones not started yet.
+     */
+    private static <T> List<T> runParts(final List<Callable<T>> parts,
+            final int concurrency, final String key) {
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(concurrency, parts.size())),
+                new NamedThreadFactory("S3Transfer"));
+        try {
+
+            final List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (final Callable<T> part : parts) {
+                futures.add(executor.submit(part));
+            }
+
+            final List<T> results = new ArrayList<T>();
+            for (final Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException)e.getCause();
+                    }
+                    throw new CloudRuntimeException(format(
+                            "Failed to transfer part %1$s of S3 object %2$s",
+                            results.size() + 1, key), e.getCause());
+                } catch (InterruptedException e) {
+                    throw new CloudRuntimeException(format(
+                            "Interrupted while transferring S3 object %1$s",
+                            key), e);
+                }
+            }
+            return results;
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+    }
+
+    private static boolean isRetryable(final AmazonClientException e) {
+
+        // requests the store rejected will be rejected again
+        if (e instanceof AmazonServiceException) {
+            final int statusCode = ((AmazonServiceException)e).getStatusCode();
+            return statusCode < 400 || statusCode >= 500 || statusCode == 408;
+        }
+        return true;
+
+    }
+
+    private static void pause(final long millis) {
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new CloudRuntimeException("Interrupted while waiting to retry an S3 transfer", e);
+        }
+
+    }
+
     public static List<File> getDirectory(final ClientOptions clientOptions,
             final String bucketName, final String sourcePath,
             final File targetDirectory, final FileNamingStrategy namingStrategy) {
@@ -336,6 +766,17 @@ public final class S3Utils {
             final FilenameFilter fileNameFilter,
             final ObjectNamingStrategy namingStrategy) {
 
+        putDirectory(clientOptions, bucketName, directory, fileNameFilter,
+                namingStrategy, new TransferOptions());
+
+    }
+
+    public static void putDirectory(final ClientOptions clientOptions,
+            final String bucketName, final File directory,
+            final FilenameFilter fileNameFilter,
+            final ObjectNamingStrategy namingStrategy,
+            final TransferOptions transferOptions) {
+
         assert clientOptions != null;
         assert isNotBlank(bucketName);
         assert directory != null && directory.isDirectory();
@@ -371,7 +812,7 @@ public final class S3Utils {
                         "Putting file %1$s into bucket %2$s with key %3$s.",
                         file.getAbsolutePath(), bucketName, key));
             }
-            client.putObject(bucketName, key, file);
+            putFile(client, file, bucketName, key, transferOptions);
         }
 
     }
@@ -574,6 +1015,69 @@ public final class S3Utils {
 
     }
 
+    /**
+     * How objects larger than a part are moved: the part size, how many parts
+     * are in flight at the same time and how often a failed part is retried.
+     */
+    public static final class TransferOptions {
+
+        private long partSize = DEFAULT_PART_SIZE;
+        private int concurrency = DEFAULT_CONCURRENCY;
+        private int partRetries = DEFAULT_PART_RETRIES;
+        private long retryDelay = DEFAULT_RETRY_DELAY;
+
+        public TransferOptions() {
+            super();
+        }
+
+        public TransferOptions(final long partSize, final int concurrency) {
+            super();
+            setPartSize(partSize);
+            setConcurrency(concurrency);
+        }
+
+        public long getPartSize() {
+            return partSize;
+        }
+
+        public void setPartSize(final long partSize) {
+            this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        }
+
+        /**
+         * @return the part size to use for an object of the given length,
+         *         grown when the object would otherwise need too many parts
+         */
+        long getPartSize(final long length) {
+            return Math.max(partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public void setConcurrency(final int concurrency) {
+            this.concurrency = Math.max(concurrency, 1);
+        }
+
+        public int getPartRetries() {
+            return partRetries;
+        }
+
+        public void setPartRetries(final int partRetries) {
+            this.partRetries = Math.max(partRetries, 0);
+        }
+
+        public long getRetryDelay() {
+            return retryDelay;
+        }
+
+        public void setRetryDelay(final long retryDelay) {
+            this.retryDelay = Math.max(retryDelay, 0);
+        }
+
+    }
+
     public interface ObjectNamingStrategy {
 
         String determineKey(File file);
@@ -0,0 +1,457 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.ssh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+
+/**
+ * Keeps authenticated ssh connections to system VMs and hosts open between commands.
+ *
+ * Opening a connection costs a TCP handshake, a key exchange and an authentication, which used to be
+ * paid for every command run or file copied. A connection carries several sessions at once, so
+ * concurrent commands to the same host share it up to maxSessionsPerConnection; the number of
+ * sessions to one host is capped by maxSessionsPerHost, further callers wait for a session to be
+ * released. Connections idle for longer than idleTimeout are closed, a connection that was idle for
+ * longer than validationInterval is pinged before it is handed out again, and a connection that
+ * failed is never handed out again. The session cap of a host is forgotten once nobody uses it.
+ */
+public class SshConnectionPool {
+	private static final Logger s_logger = Logger.getLogger(SshConnectionPool.class);
+
+	public interface ConnectionFactory {
+		/**
+		 * @return a connected and authenticated connection
+		 */
+		Connection connect(String host, int port, String user, File pemKeyFile, String password, int connectTimeoutInMs, int kexTimeoutInMs)
+			throws Exception;
+	}
+
+	public static final ConnectionFactory DEFAULT_FACTORY = new ConnectionFactory() {
+		@Override
+		public Connection connect(String host, int port, String user, File pemKeyFile, String password, int connectTimeoutInMs, int kexTimeoutInMs)
+			throws Exception {
+			Connection conn = new Connection(host, port);
+			try {
+				conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
+
+				boolean authenticated;
+				if(pemKeyFile == null)
+					authenticated = conn.authenticateWithPassword(user, password);
+				else
+					authenticated = conn.authenticateWithPublicKey(user, pemKeyFile, password);
+				if(!authenticated) {
+					String msg = "Failed to authentication SSH user " + user + " on host " + host;
+					s_logger.error(msg);
+					throw new Exception(msg);
+				}
+				return conn;
+			} catch(Exception e) {
+				conn.close();
+				throw e;
+			}
+		}
+	};
+
+	private final ConnectionFactory _factory;
+	private final int _maxSessionsPerConnection;
+	private final int _maxSessionsPerHost;
+	private final long _idleTimeout;
+	private final long _validationInterval;
+
+	private final Map<Key, List<PooledConnection>> _connections = new HashMap<Key, List<PooledConnection>>();
+	private final Map<String, HostPermits> _hostPermits = new HashMap<String, HostPermits>();
+	private Timer _evictionTimer;
+
+	private final AtomicLong _handshakes = new AtomicLong();
+	private final AtomicLong _reuses = new AtomicLong();
+	private final AtomicLong _evictions = new AtomicLong();
+	private final AtomicLong _failedValidations = new AtomicLong();
+
+	public SshConnectionPool(ConnectionFactory factory, int maxSessionsPerConnection, int maxSessionsPerHost, long idleTimeoutInMs,
+		long validationIntervalInMs) {
+		_factory = factory;
+		_maxSessionsPerConnection = Math.max(1, maxSessionsPerConnection);
+		_maxSessionsPerHost = Math.max(1, maxSessionsPerHost);
+		_idleTimeout = idleTimeoutInMs;
+		_validationInterval = validationIntervalInMs;
+	}
+
+	/**
+	 * Hands out a session slot on a connection to the host, opening a connection if none has a free slot.
+	 * Every lease has to be given back with {@link #release(PooledConnection, boolean)}.
+	 */
+	public PooledConnection acquire(String host, int port, String user, File pemKeyFile, String password, int connectTimeoutInMs,
+		int kexTimeoutInMs) throws Exception {
+		return acquire(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs, true);
+	}
+
+	/**
+	 * @param reuse false to open a new connection even if an open one has a free slot, e.g. after the
+	 *        open one turned out to be dropped by the other end
+	 */
+	public PooledConnection acquire(String host, int port, String user, File pemKeyFile, String password, int connectTimeoutInMs,
+		int kexTimeoutInMs, boolean reuse) throws Exception {
+
+		HostPermits permits = reservePermits(host, port);
+		boolean acquired = false;
+		try {
+			if(!permits._semaphore.tryAcquire(connectTimeoutInMs, TimeUnit.MILLISECONDS))
+				throw new Exception("Timed out waiting for one of " + _maxSessionsPerHost + " SSH sessions to " + host + ":" + port);
+			acquired = true;
+		} finally {
+			if(!acquired)
+				unreservePermits(host, port, permits);
+		}
+
+		Key key = new Key(host, port, user, pemKeyFile, password);
+		try {
+			while(reuse) {
+				PooledConnection conn = lease(key);
+				if(conn == null)
+					break;
+				if(conn.validate()) {
+					_reuses.incrementAndGet();
+					return conn;
+				}
+				_failedValidations.incrementAndGet();
+				release(conn, true, false);
+			}
+
+			Connection connection = _factory.connect(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs);
+			_handshakes.incrementAndGet();
+			PooledConnection conn = new PooledConnection(key, connection);
+			synchronized(this) {
+				List<PooledConnection> conns = _connections.get(key);
+				if(conns == null) {
+					conns = new ArrayList<PooledConnection>();
+					_connections.put(key, conns);
+				}
+				conns.add(conn);
+				scheduleEviction();
+			}
+			return conn;
+		} catch(Exception e) {
+			permits._semaphore.release();
+			unreservePermits(host, port, permits);
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives a session slot back; a connection that failed is closed once its other sessions are done.
+	 */
+	public void release(PooledConnection conn, boolean broken) {
+		release(conn, broken, true);
+	}
+
+	private void release(PooledConnection conn, boolean broken, boolean releasePermit) {
+		Connection toClose = null;
+		HostPermits permits = null;
+		synchronized(this) {
+			if(releasePermit)
+				permits = _hostPermits.get(getHostKey(conn._key._host, conn._key._port));
+			conn._sessions--;
+			conn._lastUsed = System.currentTimeMillis();
+			if(broken)
+				conn._broken = true;
+			if(conn._broken && conn._sessions == 0) {
+				remove(conn);
+				toClose = conn._connection;
+			}
+		}
+		if(toClose != null)
+			toClose.close();
+		if(permits != null) {
+			permits._semaphore.release();
+			unreservePermits(conn._key._host, conn._key._port, permits);
+		}
+	}
+
+	/**
+	 * Closes connections nobody used for longer than the idle timeout.
+	 */
+	public void evictIdleConnections() {
+		List<Connection> toClose = new ArrayList<Connection>();
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			for(Iterator<List<PooledConnection>> it = _connections.values().iterator(); it.hasNext(); ) {
+				List<PooledConnection> conns = it.next();
+				for(Iterator<PooledConnection> connIt = conns.iterator(); connIt.hasNext(); ) {
+					PooledConnection conn = connIt.next();
+					if(conn._sessions == 0 && (conn._broken || now - conn._lastUsed >= _idleTimeout)) {
+						connIt.remove();
+						toClose.add(conn._connection);
+					}
+				}
+				if(conns.isEmpty())
+					it.remove();
+			}
+			if(_connections.isEmpty() && _evictionTimer != null) {
+				_evictionTimer.cancel();
+				_evictionTimer = null;
+			}
+		}
+		for(Connection conn : toClose)
+			conn.close();
+		_evictions.addAndGet(toClose.size());
+		if(!toClose.isEmpty() && s_logger.isDebugEnabled())
+			s_logger.debug("Closed " + toClose.size() + " idle SSH connections, " + getStatistics());
+	}
+
+	public void shutdown() {
+		List<Connection> toClose = new ArrayList<Connection>();
+		synchronized(this) {
+			for(List<PooledConnection> conns : _connections.values()) {
+				for(PooledConnection conn : conns)
+					toClose.add(conn._connection);
+			}
+			_connections.clear();
+			if(_evictionTimer != null) {
+				_evictionTimer.cancel();
+				_evictionTimer = null;
+			}
+		}
+		for(Connection conn : toClose)
+			conn.close();
+	}
+
+	/**
+	 * @return the number of hosts whose session cap is tracked, i.e. that have sessions in use or callers waiting
+	 */
+	public synchronized int getTrackedHosts() {
+		return _hostPermits.size();
+	}
+
+	public int getMaxSessionsPerConnection() {
+		return _maxSessionsPerConnection;
+	}
+
+	public int getMaxSessionsPerHost() {
+		return _maxSessionsPerHost;
+	}
+
+	public long getIdleTimeout() {
+		return _idleTimeout;
+	}
+
+	public long getValidationInterval() {
+		return _validationInterval;
+	}
+
+	public synchronized int getOpenConnections() {
+		int count = 0;
+		for(List<PooledConnection> conns : _connections.values())
+			count += conns.size();
+		return count;
+	}
+
+	/**
+	 * @return the number of connections opened, each of them cost a key exchange and an authentication
+	 */
+	public long getHandshakes() {
+		return _handshakes.get();
+	}
+
+	/**
+	 * @return the number of leases served by an already open connection
+	 */
+	public long getReuses() {
+		return _reuses.get();
+	}
+
+	public long getEvictions() {
+		return _evictions.get();
+	}
+
+	public long getFailedValidations() {
+		return _failedValidations.get();
+	}
+
+	public String getStatistics() {
+		return "SSH connections open: " + getOpenConnections() + ", handshakes: " + getHandshakes() + ", handshakes avoided: " + getReuses()
+			+ ", evicted: " + getEvictions() + ", failed validations: " + getFailedValidations();
+	}
+
+	private synchronized PooledConnection lease(Key key) {
+		List<PooledConnection> conns = _connections.get(key);
+		if(conns == null)
+			return null;
+
+		// pack sessions onto the busiest connection so that the others go idle and get closed
+		PooledConnection best = null;
+		for(PooledConnection conn : conns) {
+			if(conn._broken || conn._sessions >= _maxSessionsPerConnection)
+				continue;
+			if(best == null || conn._sessions > best._sessions)
+				best = conn;
+		}
+		if(best != null)
+			best._sessions++;
+		return best;
+	}
+
+	private void remove(PooledConnection conn) {
+		List<PooledConnection> conns = _connections.get(conn._key);
+		if(conns != null) {
+			conns.remove(conn);
+			if(conns.isEmpty())
+				_connections.remove(conn._key);
+		}
+	}
+
+	private static String getHostKey(String host, int port) {
+		return host + ":" + port;
+	}
+
+	/**
+	 * Registers the caller as a user of the session cap of the host, until it gives its permit back.
+	 */
+	private synchronized HostPermits reservePermits(String host, int port) {
+		String hostKey = getHostKey(host, port);
+		HostPermits permits = _hostPermits.get(hostKey);
+		if(permits == null) {
+			permits = new HostPermits(_maxSessionsPerHost);
+			_hostPermits.put(hostKey, permits);
+		}
+		permits._users++;
+		return permits;
+	}
+
+	private synchronized void unreservePermits(String host, int port, HostPermits permits) {
+		// nobody holds or waits for a session of the host, a later caller starts with a full cap again
+		if(--permits._users == 0)
+			_hostPermits.remove(getHostKey(host, port));
+	}
+
+	private void scheduleEviction() {
+		if(_evictionTimer != null || _idleTimeout <= 0)
+			return;
+		_evictionTimer = new Timer("SshConnectionPool", true);
+		long period = Math.max(1000, _idleTimeout / 2);
+		_evictionTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					evictIdleConnections();
+				} catch(Throwable e) {
+					s_logger.warn("Unable to evict idle SSH connections", e);
+				}
+			}
+		}, period, period);
+	}
+
+	public class PooledConnection {
+		private final Key _key;
+		private final Connection _connection;
+		private int _sessions = 1;
+		private long _lastUsed = System.currentTimeMillis();
+		private volatile boolean _broken;
+
+		PooledConnection(Key key, Connection connection) {
+			_key = key;
+			_connection = connection;
+			connection.addConnectionMonitor(new ConnectionMonitor() {
+				@Override
+				public void connectionLost(Throwable reason) {
+					_broken = true;
+				}
+			});
+		}
+
+		public Connection getConnection() {
+			return _connection;
+		}
+
+		private boolean validate() {
+			long idle;
+			synchronized(SshConnectionPool.this) {
+				idle = System.currentTimeMillis() - _lastUsed;
+			}
+			if(_broken)
+				return false;
+			if(idle < _validationInterval)
+				return true;
+			try {
+				_connection.ping();
+				return true;
+			} catch(IOException e) {
+				s_logger.debug("SSH connection to " + _key._host + ":" + _key._port + " is gone: " + e.getMessage());
+				return false;
+			}
+		}
+	}
+
+	private static class HostPermits {
+		private final Semaphore _semaphore;
+		// callers holding or waiting for a permit, guarded by the pool
+		private int _users;
+
+		HostPermits(int permits) {
+			_semaphore = new Semaphore(permits, true);
+		}
+	}
+
+	private static class Key {
+		private final String _host;
+		private final int _port;
+		private final String _user;
+		private final String _keyFile;
+		private final String _password;
+
+		Key(String host, int port, String user, File pemKeyFile, String password) {
+			_host = host;
+			_port = port;
+			_user = user;
+			_keyFile = pemKeyFile != null ? pemKeyFile.getAbsolutePath() : null;
+			_password = password;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return _host.equals(other._host) && _port == other._port && equals(_user, other._user) && equals(_keyFile, other._keyFile)
+				&& equals(_password, other._password);
+		}
+
+		@Override
+		public int hashCode() {
+			return _host.hashCode() * 31 + _port;
+		}
+
+		private static boolean equals(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
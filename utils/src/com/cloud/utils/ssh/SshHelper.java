@@ -18,11 +18,15 @@
 package com.cloud.utils.ssh;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
+import com.cloud.utils.ssh.SshConnectionPool.PooledConnection;
 import com.trilead.ssh2.ChannelCondition;
 
 public class SshHelper {
@@ -30,6 +34,49 @@ public class SshHelper {
 	private static int DEFAULT_KEX_TIMEOUT = 60000;
 	
 	private static final Logger s_logger = Logger.getLogger(SshHelper.class);
+
+	private static final int DEFAULT_POOL_SESSIONS_PER_CONNECTION = 8;
+	private static final int DEFAULT_POOL_SESSIONS_PER_HOST = 16;
+	private static final long DEFAULT_POOL_IDLE_TIMEOUT = 60000;
+	private static final long DEFAULT_POOL_VALIDATION_INTERVAL = 5000;
+
+	// connections are kept open between calls, see SshConnectionPool
+	private static volatile SshConnectionPool s_pool = new SshConnectionPool(SshConnectionPool.DEFAULT_FACTORY,
+		DEFAULT_POOL_SESSIONS_PER_CONNECTION, DEFAULT_POOL_SESSIONS_PER_HOST, DEFAULT_POOL_IDLE_TIMEOUT, DEFAULT_POOL_VALIDATION_INTERVAL);
+
+	public static SshConnectionPool getConnectionPool() {
+		return s_pool;
+	}
+
+	/**
+	 * Sizes the connection pool from the configuration of a server resource: ssh.pool.sessions.per.connection,
+	 * ssh.pool.sessions.per.host, ssh.pool.idle.timeout and ssh.pool.validation.interval (in ms).
+	 */
+	public static synchronized void configure(Map<String, Object> params) {
+		int sessionsPerConnection = NumbersUtil.parseInt(getParam(params, "ssh.pool.sessions.per.connection"), DEFAULT_POOL_SESSIONS_PER_CONNECTION);
+		int sessionsPerHost = NumbersUtil.parseInt(getParam(params, "ssh.pool.sessions.per.host"), DEFAULT_POOL_SESSIONS_PER_HOST);
+		long idleTimeout = NumbersUtil.parseLong(getParam(params, "ssh.pool.idle.timeout"), DEFAULT_POOL_IDLE_TIMEOUT);
+		long validationInterval = NumbersUtil.parseLong(getParam(params, "ssh.pool.validation.interval"), DEFAULT_POOL_VALIDATION_INTERVAL);
+
+		SshConnectionPool pool = s_pool;
+		if(pool.getMaxSessionsPerConnection() == Math.max(1, sessionsPerConnection) && pool.getMaxSessionsPerHost() == Math.max(1, sessionsPerHost)
+			&& pool.getIdleTimeout() == idleTimeout && pool.getValidationInterval() == validationInterval)
+			return;
+
+		// calls in progress give their connections back to the old pool, which closes them once idle
+		s_pool = new SshConnectionPool(SshConnectionPool.DEFAULT_FACTORY, sessionsPerConnection, sessionsPerHost, idleTimeout, validationInterval);
+		s_logger.info("SSH connection pool: " + sessionsPerConnection + " sessions per connection, " + sessionsPerHost + " sessions per host, idle timeout "
+			+ idleTimeout + " ms, validation interval " + validationInterval + " ms");
+	}
+
+	private static String getParam(Map<String, Object> params, String name) {
+		Object value = params.get(name);
+		return value != null ? value.toString() : null;
+	}
+
+	static void setConnectionPool(SshConnectionPool pool) {
+		s_pool = pool;
+	}
 	
 	public static Pair<Boolean, String> sshExecute(String host, int port, String user, File pemKeyFile, String password, String command) 
 		throws Exception {
@@ -54,97 +101,73 @@ public class SshHelper {
 	public static void scpTo(String host, int port, String user, File pemKeyFile, String password, String remoteTargetDirectory, 
 		String localFile, String fileMode, int connectTimeoutInMs, int kexTimeoutInMs) throws Exception {
 		
-		com.trilead.ssh2.Connection conn = null;
-		com.trilead.ssh2.SCPClient scpClient = null;
-		
-		try {
-			conn = new com.trilead.ssh2.Connection(host, port);
-			conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
-			
-			if(pemKeyFile == null) {
-				if(!conn.authenticateWithPassword(user, password)) {
-					String msg = "Failed to authentication SSH user " + user + " on host " + host;
-					s_logger.error(msg);
-					throw new Exception(msg);
-				}
-			} else {
-				if(!conn.authenticateWithPublicKey(user, pemKeyFile, password)) {
-					String msg = "Failed to authentication SSH user " + user + " on host " + host;
-					s_logger.error(msg);
-					throw new Exception(msg);
-				}
+		SshConnectionPool pool = s_pool;
+		for(int attempt = 0; ; attempt++) {
+			PooledConnection conn = pool.acquire(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs, attempt == 0);
+			boolean broken = true;
+			try {
+				com.trilead.ssh2.SCPClient scpClient = conn.getConnection().createSCPClient();
+				
+				if(fileMode != null)
+					scpClient.put(localFile, remoteTargetDirectory, fileMode);
+				else
+					scpClient.put(localFile, remoteTargetDirectory);
+				broken = false;
+				return;
+			} catch(IOException e) {
+				// copying again is harmless, the pooled connection may have been dropped by the other end
+				if(attempt > 0)
+					throw e;
+				s_logger.info("Copy to " + host + ":" + port + " failed, retrying on a new SSH connection: " + e.getMessage());
+			} finally {
+				pool.release(conn, broken);
 			}
-			
-			scpClient = conn.createSCPClient();
-			
-			if(fileMode != null)
-				scpClient.put(localFile, remoteTargetDirectory, fileMode);
-			else
-				scpClient.put(localFile, remoteTargetDirectory);
-		} finally {
-			if(conn != null)
-				conn.close();
 		}
 	}
 	
 	public static void scpTo(String host, int port, String user, File pemKeyFile, String password, String remoteTargetDirectory, 
 		byte[] data, String remoteFileName, String fileMode, int connectTimeoutInMs, int kexTimeoutInMs) throws Exception {
 		
-		com.trilead.ssh2.Connection conn = null;
-		com.trilead.ssh2.SCPClient scpClient = null;
-		
-		try {
-			conn = new com.trilead.ssh2.Connection(host, port);
-			conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
-			
-			if(pemKeyFile == null) {
-				if(!conn.authenticateWithPassword(user, password)) {
-					String msg = "Failed to authentication SSH user " + user + " on host " + host;
-					s_logger.error(msg);
-					throw new Exception(msg);
-				}
-			} else {
-				if(!conn.authenticateWithPublicKey(user, pemKeyFile, password)) {
-					String msg = "Failed to authentication SSH user " + user + " on host " + host;
-					s_logger.error(msg);
-					throw new Exception(msg);
-				}
+		SshConnectionPool pool = s_pool;
+		for(int attempt = 0; ; attempt++) {
+			PooledConnection conn = pool.acquire(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs, attempt == 0);
+			boolean broken = true;
+			try {
+				com.trilead.ssh2.SCPClient scpClient = conn.getConnection().createSCPClient();
+				if(fileMode != null)
+					scpClient.put(data, remoteFileName, remoteTargetDirectory, fileMode);
+				else
+					scpClient.put(data, remoteFileName, remoteTargetDirectory);
+				broken = false;
+				return;
+			} catch(IOException e) {
+				if(attempt > 0)
+					throw e;
+				s_logger.info("Copy to " + host + ":" + port + " failed, retrying on a new SSH connection: " + e.getMessage());
+			} finally {
+				pool.release(conn, broken);
 			}
-			
-			scpClient = conn.createSCPClient();
-			if(fileMode != null)
-				scpClient.put(data, remoteFileName, remoteTargetDirectory, fileMode);
-			else
-				scpClient.put(data, remoteFileName, remoteTargetDirectory);
-		} finally {
-			if(conn != null)
-				conn.close();
 		}
 	}
 	
 	public static Pair<Boolean, String> sshExecute(String host, int port, String user, File pemKeyFile, String password, String command, 
 		int connectTimeoutInMs, int kexTimeoutInMs, int waitResultTimeoutInMs) throws Exception {
 		
-		com.trilead.ssh2.Connection conn = null;
+		SshConnectionPool pool = s_pool;
+		PooledConnection conn = pool.acquire(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs);
 		com.trilead.ssh2.Session sess = null; 
+		boolean broken = true;
 		try {
-			conn = new com.trilead.ssh2.Connection(host, port);
-			conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
-
-			if(pemKeyFile == null) {
-				if(!conn.authenticateWithPassword(user, password)) {
-					String msg = "Failed to authentication SSH user " + user + " on host " + host;
-					s_logger.error(msg);
-					throw new Exception(msg);
-				}
-			} else {
-				if(!conn.authenticateWithPublicKey(user, pemKeyFile, password)) {
-					String msg = "Failed to authentication SSH user " + user + " on host " + host;
-					s_logger.error(msg);
-					throw new Exception(msg);
-				}
+			try {
+				sess = conn.getConnection().openSession();
+			} catch(IOException e) {
+				// the pooled connection may have been dropped by the other end, the command has not been sent yet
+				s_logger.info("Unable to open SSH session to " + host + ":" + port + ", retrying on a new connection: " + e.getMessage());
+				pool.release(conn, true);
+				conn = null;
+				conn = pool.acquire(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs, false);
+				sess = conn.getConnection().openSession();
 			}
-			sess = conn.openSession();
 			
 			sess.execCommand(command);
 			
@@ -185,6 +208,7 @@ public class SshHelper {
             }
             
             String result = sbResult.toString();
+            broken = false;
             if (sess.getExitStatus() != null && sess.getExitStatus().intValue() != 0) {
                 s_logger.error("SSH execution of command " + command + " has an error status code in return. result output: " + result);
                 return new Pair<Boolean, String>(false, result);
@@ -196,7 +220,7 @@ public class SshHelper {
 				sess.close();
 			
 			if(conn != null)
-				conn.close();
+				pool.release(conn, broken);
 		}
 	}
 }
@@ -0,0 +1,494 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.util.BinaryUtils;
+import com.cloud.utils.S3Utils.FileNamingStrategy;
+import com.cloud.utils.S3Utils.TransferOptions;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class S3UtilsTest extends TestCase {
+    private static final String BUCKET = "cs-test";
+    private static final long PART_SIZE = S3Utils.MIN_PART_SIZE;
+    private static final int SIZE = (int)(5 * PART_SIZE + 12345);
+
+    private static byte[] s_data;
+
+    private AmazonS3 _client;
+    private TransferOptions _transferOptions;
+    private File _dir;
+
+    // the in memory S3 stand-in
+    private final Map<String, byte[]> _objects = new ConcurrentHashMap<String, byte[]>();
+    private final Map<String, String> _etags = new ConcurrentHashMap<String, String>();
+    private final Map<String, Map<Integer, byte[]>> _uploads = new ConcurrentHashMap<String, Map<Integer, byte[]>>();
+    private final Set<String> _aborted = Collections.synchronizedSet(new HashSet<String>());
+    private final List<String> _requests = Collections.synchronizedList(new ArrayList<String>());
+    // part number -> number of times it is answered with an error
+    private final Map<Integer, Integer> _failParts = new ConcurrentHashMap<Integer, Integer>();
+    // ranges whose first request is cut off after a megabyte
+    private final Set<Long> _dropFirstRangeOf = Collections.synchronizedSet(new HashSet<Long>());
+    private final AtomicInteger _uploadIds = new AtomicInteger();
+    private final AtomicInteger _partsInFlight = new AtomicInteger();
+    private final AtomicInteger _maxPartsInFlight = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        if (s_data == null) {
+            s_data = new byte[SIZE];
+            new Random(17).nextBytes(s_data);
+        }
+
+        _client = mock(AmazonS3.class);
+        when(_client.putObject(anyString(), anyString(), any(File.class))).thenAnswer(new PutObject());
+        when(_client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenAnswer(new InitiateMultipartUpload());
+        when(_client.uploadPart(any(UploadPartRequest.class))).thenAnswer(new UploadPart());
+        when(_client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenAnswer(new CompleteMultipartUpload());
+        when(_client.getObjectMetadata(anyString(), anyString())).thenAnswer(new GetObjectMetadata());
+        when(_client.getObject(any(GetObjectRequest.class))).thenAnswer(new GetObject());
+        when(_client.getObject(any(GetObjectRequest.class), any(File.class))).thenAnswer(new GetObjectToFile());
+        doAnswer(new AbortMultipartUpload()).when(_client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+
+        _transferOptions = new TransferOptions(PART_SIZE, 3);
+        _transferOptions.setRetryDelay(1);
+
+        _dir = File.createTempFile("s3utils", "test");
+        _dir.delete();
+        _dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : _dir.listFiles()) {
+            file.delete();
+        }
+        _dir.delete();
+    }
+
+    public void testSmallFileIsSentInOnePut() throws Exception {
+        byte[] data = Arrays.copyOf(s_data, 1024 * 1024);
+        S3Utils.putFile(_client, writeFile("small.vhd", data), BUCKET, "snapshots/small.vhd", _transferOptions);
+
+        assertTrue(Arrays.equals(data, _objects.get("snapshots/small.vhd")));
+        assertEquals(Collections.singletonList("PUT snapshots/small.vhd"), _requests);
+    }
+
+    public void testLargeFileIsSentInParallelParts() throws Exception {
+        S3Utils.putFile(_client, writeFile("large.vhd", s_data), BUCKET, "snapshots/large.vhd", _transferOptions);
+
+        assertTrue(Arrays.equals(s_data, _objects.get("snapshots/large.vhd")));
+        assertEquals(6, count("PUT snapshots/large.vhd part"));
+        assertEquals(1, count("POST snapshots/large.vhd complete"));
+        assertTrue(_maxPartsInFlight.get() <= 3);
+        assertTrue(_uploads.isEmpty());
+    }
+
+    public void testFailedPartIsRetried() throws Exception {
+        _failParts.put(2, 1);
+        _failParts.put(6, 2);
+
+        S3Utils.putFile(_client, writeFile("large.vhd", s_data), BUCKET, "snapshots/large.vhd", _transferOptions);
+
+        assertTrue(Arrays.equals(s_data, _objects.get("snapshots/large.vhd")));
+        // only the failed parts are sent again
+        assertEquals(9, count("PUT snapshots/large.vhd part"));
+        assertTrue(_aborted.isEmpty());
+    }
+
+    public void testUploadIsAbortedWhenPartKeepsFailing() throws Exception {
+        _failParts.put(3, Integer.MAX_VALUE);
+
+        try {
+            S3Utils.putFile(_client, writeFile("large.vhd", s_data), BUCKET, "snapshots/large.vhd", _transferOptions);
+            fail("upload should have failed");
+        } catch (AmazonClientException e) {
+            // expected
+        }
+
+        assertEquals(1, _aborted.size());
+        assertTrue(_uploads.isEmpty());
+        assertNull(_objects.get("snapshots/large.vhd"));
+        assertEquals(1 + S3Utils.DEFAULT_PART_RETRIES, count("PUT snapshots/large.vhd part 3"));
+    }
+
+    public void testRejectedPartIsNotRetried() throws Exception {
+        _failParts.put(1, -1);
+
+        try {
+            S3Utils.putFile(_client, writeFile("large.vhd", s_data), BUCKET, "snapshots/large.vhd", _transferOptions);
+            fail("upload should have failed");
+        } catch (AmazonServiceException e) {
+            assertEquals(403, e.getStatusCode());
+        }
+
+        assertEquals(1, count("PUT snapshots/large.vhd part 1"));
+        assertEquals(1, _aborted.size());
+    }
+
+    public void testSmallObjectIsFetchedInOneGet() throws Exception {
+        byte[] data = Arrays.copyOf(s_data, 1024 * 1024);
+        _objects.put("template/tmpl/1/2/small.qcow2", data);
+
+        File file = S3Utils.getFile(_client, BUCKET, "template/tmpl/1/2/small.qcow2", _dir, new LastPathElement(), _transferOptions);
+
+        assertEquals(new File(_dir, "small.qcow2"), file);
+        assertTrue(Arrays.equals(data, readFile(file)));
+        assertEquals(1, count("GET template/tmpl/1/2/small.qcow2"));
+    }
+
+    public void testLargeObjectIsFetchedInParallelRanges() throws Exception {
+        _objects.put("template/tmpl/1/2/large.qcow2", s_data);
+
+        File file = S3Utils.getFile(_client, BUCKET, "template/tmpl/1/2/large.qcow2", _dir, new LastPathElement(), _transferOptions);
+
+        assertTrue(Arrays.equals(s_data, readFile(file)));
+        assertEquals(6, count("GET template/tmpl/1/2/large.qcow2 range"));
+        // nothing but the downloaded file is left behind
+        assertEquals(1, _dir.listFiles().length);
+    }
+
+    public void testDroppedRangeIsResumed() throws Exception {
+        _objects.put("template/tmpl/1/2/large.qcow2", s_data);
+        _dropFirstRangeOf.add(PART_SIZE);
+
+        File file = S3Utils.getFile(_client, BUCKET, "template/tmpl/1/2/large.qcow2", _dir, new LastPathElement(), _transferOptions);
+
+        assertTrue(Arrays.equals(s_data, readFile(file)));
+        assertEquals(7, count("GET template/tmpl/1/2/large.qcow2 range"));
+        // the retry asks for what was not received only
+        assertEquals(1, count("GET template/tmpl/1/2/large.qcow2 range " + (PART_SIZE + 1024 * 1024) + "-"));
+    }
+
+    public void testRangedDownloadIsVerified() throws Exception {
+        _objects.put("template/tmpl/1/2/large.qcow2", s_data);
+        _etags.put("template/tmpl/1/2/large.qcow2", "\"" + BinaryUtils.toHex(md5(s_data)) + "\"");
+
+        File file = S3Utils.getFile(_client, BUCKET, "template/tmpl/1/2/large.qcow2", _dir, new LastPathElement(), _transferOptions);
+
+        assertTrue(Arrays.equals(s_data, readFile(file)));
+    }
+
+    public void testRangedDownloadOfMultipartObjectIsVerified() throws Exception {
+        _objects.put("template/tmpl/1/2/large.qcow2", s_data);
+        MessageDigest partMD5s = MessageDigest.getInstance("MD5");
+        for (int offset = 0; offset < SIZE; offset += PART_SIZE) {
+            partMD5s.update(md5(Arrays.copyOfRange(s_data, offset, (int)Math.min(SIZE, offset + PART_SIZE))));
+        }
+        _etags.put("template/tmpl/1/2/large.qcow2", BinaryUtils.toHex(partMD5s.digest()) + "-6");
+
+        File file = S3Utils.getFile(_client, BUCKET, "template/tmpl/1/2/large.qcow2", _dir, new LastPathElement(), _transferOptions);
+
+        assertTrue(Arrays.equals(s_data, readFile(file)));
+    }
+
+    public void testCorruptRangedDownloadFails() throws Exception {
+        _objects.put("template/tmpl/1/2/large.qcow2", s_data);
+        _etags.put("template/tmpl/1/2/large.qcow2", BinaryUtils.toHex(md5(Arrays.copyOf(s_data, 1024))));
+
+        try {
+            S3Utils.getFile(_client, BUCKET, "template/tmpl/1/2/large.qcow2", _dir, new LastPathElement(), _transferOptions);
+            fail("download should have failed");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+
+        // neither the temp file nor a target file is left behind
+        assertEquals(0, _dir.listFiles().length);
+    }
+
+    public void testPartSizeGrowsForHugeObjects() {
+        TransferOptions options = new TransferOptions(1, 0);
+        assertEquals(S3Utils.MIN_PART_SIZE, options.getPartSize());
+        assertEquals(1, options.getConcurrency());
+        assertEquals(S3Utils.MIN_PART_SIZE, options.getPartSize(SIZE));
+
+        long huge = 10000 * S3Utils.MIN_PART_SIZE + 1;
+        assertTrue(options.getPartSize(huge) * 10000 >= huge);
+    }
+
+    private int count(String prefix) {
+        int count = 0;
+        synchronized (_requests) {
+            for (String request : _requests) {
+                if (request.startsWith(prefix)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private File writeFile(String name, byte[] data) throws IOException {
+        File file = new File(_dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        return readFile(file, 0, file.length());
+    }
+
+    private static byte[] readFile(File file, long offset, long length) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.skip(offset);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while (length > 0 && (read = in.read(buffer, 0, (int)Math.min(buffer.length, length))) != -1) {
+                out.write(buffer, 0, read);
+                length -= read;
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] md5(byte[] data) throws Exception {
+        return MessageDigest.getInstance("MD5").digest(data);
+    }
+
+    private static AmazonServiceException serviceException(int statusCode) {
+        AmazonServiceException e = new AmazonServiceException("Injected failure");
+        e.setStatusCode(statusCode);
+        return e;
+    }
+
+    private static class LastPathElement implements FileNamingStrategy {
+        @Override
+        public String determineFileName(String key) {
+            return key.substring(key.lastIndexOf('/') + 1);
+        }
+    }
+
+    private class PutObject implements Answer<PutObjectResult> {
+        @Override
+        public PutObjectResult answer(InvocationOnMock invocation) throws Throwable {
+            String key = (String)invocation.getArguments()[1];
+            _requests.add("PUT " + key);
+            _objects.put(key, readFile((File)invocation.getArguments()[2]));
+            return new PutObjectResult();
+        }
+    }
+
+    private class InitiateMultipartUpload implements Answer<InitiateMultipartUploadResult> {
+        @Override
+        public InitiateMultipartUploadResult answer(InvocationOnMock invocation) throws Throwable {
+            InitiateMultipartUploadRequest request = (InitiateMultipartUploadRequest)invocation.getArguments()[0];
+            _requests.add("POST " + request.getKey() + " initiate");
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId("upload-" + _uploadIds.incrementAndGet());
+            _uploads.put(result.getUploadId(), new TreeMap<Integer, byte[]>());
+            return result;
+        }
+    }
+
+    private class UploadPart implements Answer<UploadPartResult> {
+        @Override
+        public UploadPartResult answer(InvocationOnMock invocation) throws Throwable {
+            UploadPartRequest request = (UploadPartRequest)invocation.getArguments()[0];
+            _requests.add("PUT " + request.getKey() + " part " + request.getPartNumber());
+            int inFlight = _partsInFlight.incrementAndGet();
+            try {
+                synchronized (_maxPartsInFlight) {
+                    _maxPartsInFlight.set(Math.max(inFlight, _maxPartsInFlight.get()));
+                }
+
+                Integer failures = _failParts.get(request.getPartNumber());
+                if (failures != null && failures < 0) {
+                    throw serviceException(403);
+                }
+                if (failures != null && failures > 0) {
+                    _failParts.put(request.getPartNumber(), failures - 1);
+                    throw serviceException(500);
+                }
+
+                byte[] part = readFile(request.getFile(), request.getFileOffset(), request.getPartSize());
+                Map<Integer, byte[]> parts = _uploads.get(request.getUploadId());
+                synchronized (parts) {
+                    parts.put(request.getPartNumber(), part);
+                }
+                UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag("etag-" + request.getPartNumber());
+                return result;
+            } finally {
+                _partsInFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private class CompleteMultipartUpload implements Answer<CompleteMultipartUploadResult> {
+        @Override
+        public CompleteMultipartUploadResult answer(InvocationOnMock invocation) throws Throwable {
+            CompleteMultipartUploadRequest request = (CompleteMultipartUploadRequest)invocation.getArguments()[0];
+            _requests.add("POST " + request.getKey() + " complete");
+            Map<Integer, byte[]> parts = _uploads.remove(request.getUploadId());
+            ByteArrayOutputStream object = new ByteArrayOutputStream();
+            int partNumber = 1;
+            for (PartETag partETag : request.getPartETags()) {
+                assertEquals(partNumber++, partETag.getPartNumber());
+                assertEquals("etag-" + partETag.getPartNumber(), partETag.getETag());
+                object.write(parts.get(partETag.getPartNumber()));
+            }
+            _objects.put(request.getKey(), object.toByteArray());
+            return new CompleteMultipartUploadResult();
+        }
+    }
+
+    private class AbortMultipartUpload implements Answer<Void> {
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+            AbortMultipartUploadRequest request = (AbortMultipartUploadRequest)invocation.getArguments()[0];
+            _requests.add("DELETE " + request.getKey() + " abort");
+            _uploads.remove(request.getUploadId());
+            _aborted.add(request.getUploadId());
+            return null;
+        }
+    }
+
+    private class GetObjectMetadata implements Answer<ObjectMetadata> {
+        @Override
+        public ObjectMetadata answer(InvocationOnMock invocation) throws Throwable {
+            String key = (String)invocation.getArguments()[1];
+            _requests.add("HEAD " + key);
+            byte[] object = _objects.get(key);
+            if (object == null) {
+                throw serviceException(404);
+            }
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(object.length);
+            if (_etags.containsKey(key)) {
+                metadata.setHeader("ETag", _etags.get(key));
+            }
+            return metadata;
+        }
+    }
+
+    private class GetObjectToFile implements Answer<ObjectMetadata> {
+        @Override
+        public ObjectMetadata answer(InvocationOnMock invocation) throws Throwable {
+            GetObjectRequest request = (GetObjectRequest)invocation.getArguments()[0];
+            _requests.add("GET " + request.getKey());
+            FileOutputStream out = new FileOutputStream((File)invocation.getArguments()[1]);
+            try {
+                out.write(_objects.get(request.getKey()));
+            } finally {
+                out.close();
+            }
+            return new ObjectMetadata();
+        }
+    }
+
+    private class GetObject implements Answer<S3Object> {
+        @Override
+        public S3Object answer(InvocationOnMock invocation) throws Throwable {
+            GetObjectRequest request = (GetObjectRequest)invocation.getArguments()[0];
+            final byte[] object = _objects.get(request.getKey());
+            final int start = (int)request.getRange()[0];
+            final int end = (int)Math.min(request.getRange()[1], object.length - 1);
+            _requests.add("GET " + request.getKey() + " range " + start + "-" + end);
+
+            InputStream content = new ByteArrayInputStream(object, start, end - start + 1);
+            if (_dropFirstRangeOf.remove((long)start)) {
+                content = new DroppingInputStream(content, 1024 * 1024);
+            }
+
+            S3Object result = new S3Object();
+            result.setKey(request.getKey());
+            result.setObjectContent(content);
+            return result;
+        }
+    }
+
+    /**
+     * Fails like a dropped connection once a number of bytes went through.
+     */
+    private static class DroppingInputStream extends FilterInputStream {
+        private long _remaining;
+
+        DroppingInputStream(InputStream in, long remaining) {
+            super(in);
+            _remaining = remaining;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (_remaining <= 0) {
+                throw new IOException("Connection reset");
+            }
+            int read = super.read(b, off, (int)Math.min(len, _remaining));
+            if (read > 0) {
+                _remaining -= read;
+            }
+            return read;
+        }
+    }
+}
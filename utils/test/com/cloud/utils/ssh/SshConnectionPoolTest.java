@@ -0,0 +1,259 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.ssh;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.ssh.SshConnectionPool.PooledConnection;
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SCPClient;
+import com.trilead.ssh2.Session;
+
+public class SshConnectionPoolTest extends TestCase {
+    private static final String HOST = "169.254.3.4";
+    private static final int PORT = 3922;
+    private static final File KEY = new File("/root/.ssh/id_rsa.cloud");
+    // what a key exchange and authentication cost in the stand-in
+    private static final long HANDSHAKE_MS = 20;
+
+    private SshConnectionPool _savedPool;
+    private final List<Connection> _connections = new ArrayList<Connection>();
+    private boolean _failSessions;
+
+    private final SshConnectionPool.ConnectionFactory _factory = new SshConnectionPool.ConnectionFactory() {
+        @Override
+        public Connection connect(String host, int port, String user, File pemKeyFile, String password, int connectTimeoutInMs, int kexTimeoutInMs)
+                throws Exception {
+            Thread.sleep(HANDSHAKE_MS);
+            Connection conn = mock(Connection.class);
+            when(conn.openSession()).thenAnswer(new Answer<Session>() {
+                @Override
+                public Session answer(InvocationOnMock invocation) throws Throwable {
+                    if (_failSessions) {
+                        throw new IOException("connection reset");
+                    }
+                    return session("ok");
+                }
+            });
+            when(conn.createSCPClient()).thenReturn(mock(SCPClient.class));
+            synchronized (_connections) {
+                _connections.add(conn);
+            }
+            return conn;
+        }
+    };
+
+    @Override
+    protected void setUp() {
+        _savedPool = SshHelper.getConnectionPool();
+    }
+
+    @Override
+    protected void tearDown() {
+        SshHelper.getConnectionPool().shutdown();
+        SshHelper.setConnectionPool(_savedPool);
+    }
+
+    public void testCommandsShareOneConnection() throws Exception {
+        SshConnectionPool pool = new SshConnectionPool(_factory, 8, 16, 60000, 5000);
+        SshHelper.setConnectionPool(pool);
+
+        for (int i = 0; i < 50; i++) {
+            Pair<Boolean, String> result = SshHelper.sshExecute(HOST, PORT, "root", KEY, null, "/opt/cloud/bin/netusage.sh -g");
+            assertTrue(result.first());
+            assertEquals("ok", result.second());
+        }
+        SshHelper.scpTo(HOST, PORT, "root", KEY, null, "/etc/haproxy/", new byte[10], "haproxy.cfg.new", null);
+
+        assertEquals(1, pool.getHandshakes());
+        assertEquals(50, pool.getReuses());
+        assertEquals(1, pool.getOpenConnections());
+        verify(_connections.get(0), never()).close();
+
+        // other credentials do not share the connection
+        SshHelper.sshExecute(HOST, PORT, "admin", null, "password", "uptime");
+        assertEquals(2, pool.getHandshakes());
+    }
+
+    public void testSessionsAreMultiplexedAndCapped() throws Exception {
+        SshConnectionPool pool = new SshConnectionPool(_factory, 2, 4, 60000, 5000);
+        List<PooledConnection> leases = new ArrayList<PooledConnection>();
+        for (int i = 0; i < 4; i++) {
+            leases.add(pool.acquire(HOST, PORT, "root", KEY, null, 1000, 1000));
+        }
+        assertEquals(2, pool.getHandshakes());
+        assertSame(leases.get(0), leases.get(1));
+        assertSame(leases.get(2), leases.get(3));
+
+        try {
+            pool.acquire(HOST, PORT, "root", KEY, null, 100, 100);
+            fail("the host has all its sessions in use");
+        } catch (Exception e) {
+            // expected
+        }
+
+        // another host has its own cap
+        pool.release(pool.acquire("169.254.3.5", PORT, "root", KEY, null, 100, 100), false);
+
+        pool.release(leases.remove(3), false);
+        leases.add(pool.acquire(HOST, PORT, "root", KEY, null, 100, 100));
+        assertEquals(3, pool.getHandshakes());
+        for (PooledConnection lease : leases) {
+            pool.release(lease, false);
+        }
+        pool.shutdown();
+    }
+
+    public void testBrokenConnectionIsReplaced() throws Exception {
+        SshConnectionPool pool = new SshConnectionPool(_factory, 8, 16, 60000, 5000);
+        SshHelper.setConnectionPool(pool);
+        SshHelper.sshExecute(HOST, PORT, "root", KEY, null, "uptime");
+
+        _failSessions = true;
+        try {
+            SshHelper.sshExecute(HOST, PORT, "root", KEY, null, "uptime");
+            fail("the session could not be opened");
+        } catch (IOException e) {
+            // expected
+        }
+        // the pooled connection and the one of the retry are both gone
+        verify(_connections.get(0)).close();
+        verify(_connections.get(1)).close();
+        assertEquals(0, pool.getOpenConnections());
+        assertEquals(2, pool.getHandshakes());
+
+        _failSessions = false;
+        assertTrue(SshHelper.sshExecute(HOST, PORT, "root", KEY, null, "uptime").first());
+        assertEquals(3, pool.getHandshakes());
+    }
+
+    public void testDroppedConnectionIsRetried() throws Exception {
+        SshConnectionPool pool = new SshConnectionPool(_factory, 8, 16, 60000, 5000);
+        SshHelper.setConnectionPool(pool);
+        SshHelper.sshExecute(HOST, PORT, "root", KEY, null, "uptime");
+
+        // the router closed the pooled connection, the pool has not noticed yet
+        doThrow(new IOException("connection reset")).when(_connections.get(0)).openSession();
+        Pair<Boolean, String> result = SshHelper.sshExecute(HOST, PORT, "root", KEY, null, "uptime");
+        assertTrue(result.first());
+        assertEquals("ok", result.second());
+        assertEquals(2, pool.getHandshakes());
+        verify(_connections.get(0)).close();
+        assertEquals(1, pool.getOpenConnections());
+
+        SCPClient scpClient = mock(SCPClient.class);
+        doThrow(new IOException("connection reset")).when(scpClient).put(any(byte[].class), anyString(), anyString());
+        when(_connections.get(1).createSCPClient()).thenReturn(scpClient);
+        SshHelper.scpTo(HOST, PORT, "root", KEY, null, "/etc/haproxy/", new byte[10], "haproxy.cfg.new", null);
+        assertEquals(3, pool.getHandshakes());
+        verify(_connections.get(1)).close();
+    }
+
+    public void testHostPermitsAreForgotten() throws Exception {
+        SshConnectionPool pool = new SshConnectionPool(_factory, 8, 16, 60000, 5000);
+        PooledConnection busy = pool.acquire(HOST, PORT, "root", KEY, null, 1000, 1000);
+        for (int i = 0; i < 10; i++) {
+            pool.release(pool.acquire("169.254.4." + i, PORT, "root", KEY, null, 1000, 1000), false);
+        }
+        assertEquals(1, pool.getTrackedHosts());
+
+        pool.release(busy, false);
+        assertEquals(0, pool.getTrackedHosts());
+        pool.shutdown();
+    }
+
+    public void testPoolIsSizedFromResourceParams() {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("ssh.pool.sessions.per.host", "4");
+        params.put("ssh.pool.idle.timeout", "30000");
+        SshHelper.configure(params);
+
+        SshConnectionPool pool = SshHelper.getConnectionPool();
+        assertEquals(8, pool.getMaxSessionsPerConnection());
+        assertEquals(4, pool.getMaxSessionsPerHost());
+        assertEquals(30000, pool.getIdleTimeout());
+
+        SshHelper.configure(params);
+        assertSame(pool, SshHelper.getConnectionPool());
+    }
+
+    public void testIdleConnectionsAreEvicted() throws Exception {
+        SshConnectionPool pool = new SshConnectionPool(_factory, 8, 16, 50, 5000);
+        PooledConnection busy = pool.acquire(HOST, PORT, "root", KEY, null, 1000, 1000);
+        pool.release(pool.acquire("169.254.3.5", PORT, "root", KEY, null, 1000, 1000), false);
+        assertEquals(2, pool.getOpenConnections());
+
+        Thread.sleep(100);
+        pool.evictIdleConnections();
+        assertEquals(1, pool.getOpenConnections());
+        assertEquals(1, pool.getEvictions());
+        verify(_connections.get(1)).close();
+        verify(_connections.get(0), never()).close();
+
+        pool.release(busy, false);
+        pool.shutdown();
+        verify(_connections.get(0)).close();
+    }
+
+    public void testIdleConnectionIsCheckedBeforeReuse() throws Exception {
+        SshConnectionPool pool = new SshConnectionPool(_factory, 8, 16, 60000, 0);
+        pool.release(pool.acquire(HOST, PORT, "root", KEY, null, 1000, 1000), false);
+        pool.release(pool.acquire(HOST, PORT, "root", KEY, null, 1000, 1000), false);
+        verify(_connections.get(0), times(1)).ping();
+        assertEquals(1, pool.getHandshakes());
+
+        doThrow(new IOException("gone")).when(_connections.get(0)).ping();
+        pool.release(pool.acquire(HOST, PORT, "root", KEY, null, 1000, 1000), false);
+        assertEquals(2, pool.getHandshakes());
+        assertEquals(1, pool.getFailedValidations());
+        verify(_connections.get(0)).close();
+        pool.shutdown();
+    }
+
+    private static Session session(String output) throws IOException {
+        Session sess = mock(Session.class);
+        when(sess.getStdout()).thenReturn(new ByteArrayInputStream(output.getBytes()));
+        when(sess.getStderr()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(sess.waitForCondition(anyInt(), anyLong())).thenReturn(ChannelCondition.EOF);
+        when(sess.getExitStatus()).thenReturn(0);
+        return sess;
+    }
+}
@@ -18,7 +18,10 @@ package com.cloud.hypervisor.vmware.mo;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
@@ -37,6 +40,9 @@ import com.vmware.vim25.PerfQuerySpec;
 import java.util.Arrays;
 
 public class PerfManagerMO extends BaseMO {
+    // the counters of a vCenter do not change while it runs, they are fetched once per vCenter
+    private static final Map<String, Map<String, PerfCounterInfo>> s_counterCache = new ConcurrentHashMap<String, Map<String, PerfCounterInfo>>();
+
     public PerfManagerMO(VmwareContext context, ManagedObjectReference mor) {
         super(context, mor);
     }
@@ -118,6 +124,35 @@ public class PerfManagerMO extends BaseMO {
         return (List<PerfCounterInfo>)_context.getVimClient().getDynamicProperty(_mor, "perfCounter");
     }
 
+    /**
+     * Looks up a counter by its group and name key, e.g. "net" and "received".
+     *
+     * @return the counter, null if the vCenter does not have it
+     */
+    public PerfCounterInfo getCounterInfo(String groupKey, String nameKey) throws Exception {
+        String cacheKey = _context.getServerAddress() + "/" + _mor.getValue();
+        Map<String, PerfCounterInfo> counters = s_counterCache.get(cacheKey);
+        if (counters == null) {
+            counters = new HashMap<String, PerfCounterInfo>();
+            List<PerfCounterInfo> infos = getCounterInfo();
+            if (infos != null) {
+                for (PerfCounterInfo info : infos) {
+                    counters.put(getCounterKey(info.getGroupInfo().getKey(), info.getNameInfo().getKey()), info);
+                }
+            }
+            s_counterCache.put(cacheKey, counters);
+        }
+        return counters.get(getCounterKey(groupKey, nameKey));
+    }
+
+    public static void clearCounterInfoCache() {
+        s_counterCache.clear();
+    }
+
+    private static String getCounterKey(String groupKey, String nameKey) {
+        return (groupKey + "." + nameKey).toLowerCase();
+    }
+
     public List<PerfInterval> getIntervalInfo() throws Exception {
         return (List<PerfInterval>)_context.getVimClient().getDynamicProperty(_mor, "historicalInterval");
     }
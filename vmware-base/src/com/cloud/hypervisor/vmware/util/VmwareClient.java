@@ -167,6 +167,23 @@ public class VmwareClient {
         isConnected = false;
     }
 
+    /**
+     * Checks that the session is still logged in, vCenter drops sessions that were idle for too long.
+     *
+     * @return true if the session can be used
+     */
+    public boolean validate() {
+        if (!isConnected) {
+            return false;
+        }
+        try {
+            ServiceContent serviceContent = getServiceContent();
+            return serviceContent != null && getDynamicProperty(serviceContent.getSessionManager(), "currentSession") != null;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     /**
      * @return Service instance
      */
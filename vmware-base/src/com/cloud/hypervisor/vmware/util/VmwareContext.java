@@ -68,6 +68,7 @@ public class VmwareContext {
 
 	private VmwareContextPool _pool;
 	private String _poolKey;
+	private volatile boolean _closed;
 	
 	private static volatile int s_outstandingCount = 0;
 
@@ -164,10 +165,18 @@ public class VmwareContext {
 	public String getPoolKey() {
 		return _poolKey;
 	}
+
+	public boolean isClosed() {
+		return _closed;
+	}
 	
 	public void idleCheck() throws Exception {
 		getRootFolder();
 	}
+
+	public boolean validate() {
+		return _vimClient.validate();
+	}
 	
 	public static int getOutstandingContextCount() {
 		return s_outstandingCount;
@@ -618,6 +627,11 @@ public class VmwareContext {
 	}
 
 	public void close() {
+		// the pool may have closed an abandoned context already
+		if(_closed)
+			return;
+		_closed = true;
+
 		clearStockObjects();
 		try {
 			_vimClient.disconnect();
@@ -17,186 +17,375 @@
 package com.cloud.hypervisor.vmware.util;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Pool of logged in vCenter sessions, one pool per vCenter and user.
+ *
+ * At most maxSize contexts of a vCenter are borrowed at a time; a borrower waits up to the borrow
+ * timeout for one to be returned. An idle context that has not been used for a while is validated
+ * before it is handed out, as vCenter drops idle sessions, and idle contexts are closed by a
+ * background sweep once they have been idle for the idle timeout. The same sweep reclaims contexts
+ * that have been borrowed for longer than the max borrow time and were never returned or closed,
+ * so a leaked context cannot take a slot of the vCenter forever.
+ */
 public class VmwareContextPool {
     private static final Logger s_logger = Logger.getLogger(VmwareContextPool.class);
-    
+
     private static final long DEFAULT_CHECK_INTERVAL = 10000;
     private static final int DEFAULT_IDLE_QUEUE_LENGTH = 128;
-	
-    private List<VmwareContext> _outstandingRegistry = new ArrayList<VmwareContext>();
-    
-	private Map<String, List<VmwareContext>> _pool;
-	private int _maxIdleQueueLength = DEFAULT_IDLE_QUEUE_LENGTH;
-	private long _idleCheckIntervalMs = DEFAULT_CHECK_INTERVAL;
-			
-	private Timer _timer = new Timer();
-	
-	public VmwareContextPool() {
-		this(DEFAULT_IDLE_QUEUE_LENGTH, DEFAULT_CHECK_INTERVAL);
-	}
-	
-	public VmwareContextPool(int maxIdleQueueLength) {
-		this(maxIdleQueueLength, DEFAULT_CHECK_INTERVAL);
-	}
-	
-	public VmwareContextPool(int maxIdleQueueLength, long idleCheckIntervalMs) {
-		_pool = new HashMap<String, List<VmwareContext>>();
-		
-		_maxIdleQueueLength = maxIdleQueueLength;
-		_idleCheckIntervalMs = idleCheckIntervalMs;
-		
-		_timer.scheduleAtFixedRate(getTimerTask(), _idleCheckIntervalMs, _idleCheckIntervalMs);
-	}
-	
-	public void registerOutstandingContext(VmwareContext context) {
-		assert(context != null);
-		synchronized(this) {
-			_outstandingRegistry.add(context);
-		}
-	}
-	
-	public void unregisterOutstandingContext(VmwareContext context) {
-		assert(context != null);
-		synchronized(this) {
-			_outstandingRegistry.remove(context);
-		}
-	}
-	
-	public VmwareContext getContext(String vCenterAddress, String vCenterUserName) {
-		String poolKey = composePoolKey(vCenterAddress, vCenterUserName);
-		synchronized(this) {
-			List<VmwareContext> l = _pool.get(poolKey);
-			if(l == null)
-				return null;
-
-			if(l.size() > 0) {
-				VmwareContext context = l.remove(0);
-				context.setPoolInfo(this, poolKey);
-				
-				if(s_logger.isTraceEnabled())
-					s_logger.trace("Return a VmwareContext from the idle pool: " + poolKey + ". current pool size: " + l.size() + ", outstanding count: " + VmwareContext.getOutstandingContextCount());
-				return context;
-			}
-			
-			// TODO, we need to control the maximum number of outstanding VmwareContext object in the future
-			return null;
-		}
-	}
-	
-	public void returnContext(VmwareContext context) {
-		assert(context.getPool() == this);
-		assert(context.getPoolKey() != null);
-		synchronized(this) {
-			List<VmwareContext> l = _pool.get(context.getPoolKey());
-			if(l == null) {
-				l = new ArrayList<VmwareContext>();
-				_pool.put(context.getPoolKey(), l);
-			}
-			
-			if(l.size() < _maxIdleQueueLength) {
-				context.clearStockObjects();
-				l.add(context);
-				
-				if(s_logger.isTraceEnabled())
-					s_logger.trace("Recycle VmwareContext into idle pool: " + context.getPoolKey() + ", current idle pool size: " 
-						+ l.size() + ", outstanding count: " + VmwareContext.getOutstandingContextCount());
-			} else {
-				if(s_logger.isTraceEnabled())
-					s_logger.trace("VmwareContextPool queue exceeds limits, queue size: " + l.size());
-				context.close();
-			}
-		}
-	}
-	
-	private TimerTask getTimerTask() {
-		return new TimerTask() {
-			@Override
-			public void run() {
-				try {
-					// doIdleCheck();
-					
-					doKeepAlive();
-				} catch (Throwable e) {
-					s_logger.error("Unexpected exception", e);
-				}
-			}
-		};
-	}
-	
-	private void getIdleCheckContexts(List<VmwareContext> l, int batchSize) {
-		synchronized(this) {
-			for(Map.Entry<String, List<VmwareContext>> entry : _pool.entrySet()) {
-				if(entry.getValue() != null) {
-					int count = 0;
-					while(entry.getValue().size() > 0 && count < batchSize) {
-						VmwareContext context = entry.getValue().remove(0);
-						context.setPoolInfo(this, entry.getKey());
-						l.add(context);
-						count++;
-					}
-				}
-			}
-		}
-	}
-	
-	private void doIdleCheck() {
-		List<VmwareContext> l = new ArrayList<VmwareContext>();
-		int batchSize = (int)(_idleCheckIntervalMs / 1000);	// calculate batch size at 1 request/sec rate
-		getIdleCheckContexts(l, batchSize);
-		
-		for(VmwareContext context : l) {
-			try {
-				context.idleCheck();
-				
-				if(s_logger.isTraceEnabled())
-					s_logger.trace("Recyle context after idle check");
-				returnContext(context);
-			} catch(Throwable e) {
-				s_logger.warn("Exception caught during VmwareContext idle check, close and discard the context", e);
-				context.close();
-			}
-		}
-	}
-	
-	private void getKeepAliveCheckContexts(List<VmwareContext> l, int batchSize) {
-		synchronized(this) {
-			int size = Math.min(_outstandingRegistry.size(), batchSize);
-			while(size > 0) {
-				VmwareContext context = _outstandingRegistry.remove(0);
-				l.add(context);
-				
-				_outstandingRegistry.add(context);
-				size--;
-			}
-		}
-	}
-	
-	private void doKeepAlive() {
-		List<VmwareContext> l = new ArrayList<VmwareContext>();
-		int batchSize = (int)(_idleCheckIntervalMs / 1000);	// calculate batch size at 1 request/sec rate
-		getKeepAliveCheckContexts(l, batchSize);
-		
-		for(VmwareContext context : l) {
-			try {
-				context.idleCheck();
-			} catch(Throwable e) {
-				s_logger.warn("Exception caught during VmwareContext idle check, close and discard the context", e);
-				context.close();
-			}
-		}
-	}
-	
-	public static String composePoolKey(String vCenterAddress, String vCenterUserName) {
-		assert(vCenterUserName != null);
-		assert(vCenterAddress != null);
-		return vCenterUserName + "@" + vCenterAddress;
-	}
+    private static final int DEFAULT_MAX_SIZE = 64;
+    private static final long DEFAULT_BORROW_TIMEOUT = 60000;
+    private static final long DEFAULT_VALIDATION_INTERVAL = 60000;
+    // below the 30 minutes after which vCenter drops an idle session
+    private static final long DEFAULT_IDLE_TIMEOUT = 20 * 60000;
+    // well above the time the longest commands, e.g. copying a large volume, hold a context
+    private static final long DEFAULT_MAX_BORROW_TIME = 6 * 3600000;
+
+    /**
+     * Logs in a new session when the pool has no idle one.
+     */
+    public interface ContextCreator {
+        VmwareContext create() throws Exception;
+    }
+
+    private static class IdleContext {
+        final VmwareContext _context;
+        final long _idleSince;
+
+        IdleContext(VmwareContext context) {
+            _context = context;
+            _idleSince = System.currentTimeMillis();
+        }
+    }
+
+    private static class KeyedPool {
+        final LinkedBlockingDeque<IdleContext> _idle = new LinkedBlockingDeque<IdleContext>();
+        final Semaphore _permits;
+        // borrowed contexts, each holds one of the permits
+        final ConcurrentMap<VmwareContext, Long> _borrowed = new ConcurrentHashMap<VmwareContext, Long>();
+
+        KeyedPool(int maxSize) {
+            _permits = new Semaphore(maxSize, true);
+        }
+    }
+
+    private final ConcurrentMap<String, KeyedPool> _pools = new ConcurrentHashMap<String, KeyedPool>();
+    private final Map<VmwareContext, Boolean> _outstandingRegistry = new ConcurrentHashMap<VmwareContext, Boolean>();
+
+    private final int _maxIdleQueueLength;
+    private final long _idleCheckIntervalMs;
+    private final int _maxSize;
+    private final long _borrowTimeoutMs;
+    private final long _validationIntervalMs;
+    private final long _idleTimeoutMs;
+    private final long _maxBorrowTimeMs;
+
+    private final ScheduledExecutorService _sweeper;
+
+    private final AtomicLong _borrows = new AtomicLong();
+    private final AtomicLong _borrowWaitNanos = new AtomicLong();
+    private final AtomicLong _maxBorrowWaitNanos = new AtomicLong();
+    private final AtomicLong _borrowTimeouts = new AtomicLong();
+    private final AtomicLong _created = new AtomicLong();
+    private final AtomicLong _reused = new AtomicLong();
+    private final AtomicLong _closed = new AtomicLong();
+    private final AtomicLong _failedValidations = new AtomicLong();
+    private final AtomicLong _reclaimed = new AtomicLong();
+
+    public VmwareContextPool() {
+        this(DEFAULT_IDLE_QUEUE_LENGTH, DEFAULT_CHECK_INTERVAL);
+    }
+
+    public VmwareContextPool(int maxIdleQueueLength) {
+        this(maxIdleQueueLength, DEFAULT_CHECK_INTERVAL);
+    }
+
+    public VmwareContextPool(int maxIdleQueueLength, long idleCheckIntervalMs) {
+        this(maxIdleQueueLength, idleCheckIntervalMs, DEFAULT_MAX_SIZE, DEFAULT_BORROW_TIMEOUT, DEFAULT_VALIDATION_INTERVAL, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public VmwareContextPool(int maxIdleQueueLength, long idleCheckIntervalMs, int maxSize, long borrowTimeoutMs, long validationIntervalMs, long idleTimeoutMs) {
+        this(maxIdleQueueLength, idleCheckIntervalMs, maxSize, borrowTimeoutMs, validationIntervalMs, idleTimeoutMs, DEFAULT_MAX_BORROW_TIME);
+    }
+
+    public VmwareContextPool(int maxIdleQueueLength, long idleCheckIntervalMs, int maxSize, long borrowTimeoutMs, long validationIntervalMs, long idleTimeoutMs,
+            long maxBorrowTimeMs) {
+        _maxIdleQueueLength = maxIdleQueueLength;
+        _idleCheckIntervalMs = idleCheckIntervalMs;
+        _maxSize = maxSize;
+        _borrowTimeoutMs = borrowTimeoutMs;
+        _validationIntervalMs = validationIntervalMs;
+        _idleTimeoutMs = idleTimeoutMs;
+        _maxBorrowTimeMs = maxBorrowTimeMs;
+
+        _sweeper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("VmwareContextPool"));
+        _sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evictIdleContexts();
+                    reclaimAbandonedContexts();
+                } catch (Throwable e) {
+                    s_logger.error("Unexpected exception", e);
+                }
+            }
+        }, _idleCheckIntervalMs, _idleCheckIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void registerOutstandingContext(VmwareContext context) {
+        assert(context != null);
+        _outstandingRegistry.put(context, Boolean.TRUE);
+    }
+
+    public void unregisterOutstandingContext(VmwareContext context) {
+        assert(context != null);
+        _outstandingRegistry.remove(context);
+        _closed.incrementAndGet();
+
+        // a borrowed context that is closed instead of returned gives its permit back
+        if (context.getPoolKey() != null) {
+            KeyedPool pool = _pools.get(context.getPoolKey());
+            if (pool != null && pool._borrowed.remove(context) != null) {
+                pool._permits.release();
+            }
+        }
+    }
+
+    /**
+     * Borrows a context of the vCenter, reusing an idle one when possible. The context goes back with
+     * {@link #returnContext(VmwareContext)}, or is given up with {@link VmwareContext#close()}.
+     */
+    public VmwareContext getContext(String vCenterAddress, String vCenterUserName, ContextCreator creator) throws Exception {
+        String poolKey = composePoolKey(vCenterAddress, vCenterUserName);
+        KeyedPool pool = getPool(poolKey);
+
+        long start = System.nanoTime();
+        if (!pool._permits.tryAcquire(_borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+            _borrowTimeouts.incrementAndGet();
+            throw new CloudRuntimeException("Timed out after " + _borrowTimeoutMs + " ms waiting for one of the " + _maxSize
+                    + " VmwareContexts of " + poolKey + " to be returned");
+        }
+
+        VmwareContext context = null;
+        try {
+            context = pollIdleContext(pool, poolKey);
+            if (context == null) {
+                context = creator.create();
+                _created.incrementAndGet();
+            } else {
+                _reused.incrementAndGet();
+            }
+        } finally {
+            if (context == null) {
+                pool._permits.release();
+            }
+        }
+
+        context.setPoolInfo(this, poolKey);
+        pool._borrowed.put(context, System.currentTimeMillis());
+        recordBorrow(System.nanoTime() - start);
+
+        if (s_logger.isTraceEnabled())
+            s_logger.trace("Borrowed a VmwareContext of " + poolKey + ", idle: " + pool._idle.size() + ", borrowed: " + pool._borrowed.size()
+                    + ", outstanding count: " + VmwareContext.getOutstandingContextCount());
+        return context;
+    }
+
+    public void returnContext(VmwareContext context) {
+        assert(context.getPool() == this);
+        assert(context.getPoolKey() != null);
+        KeyedPool pool = getPool(context.getPoolKey());
+        boolean borrowed = pool._borrowed.remove(context) != null;
+
+        if (context.isClosed()) {
+            // reclaimed by the pool while it was borrowed
+            s_logger.info("Drop a returned VmwareContext of " + context.getPoolKey() + " that has been closed");
+        } else if (pool._idle.size() < _maxIdleQueueLength) {
+            context.clearStockObjects();
+            // most recently used first, so the ones left at the tail are the ones to expire
+            pool._idle.offerFirst(new IdleContext(context));
+
+            if (s_logger.isTraceEnabled())
+                s_logger.trace("Recycle VmwareContext into idle pool: " + context.getPoolKey() + ", current idle pool size: "
+                        + pool._idle.size() + ", outstanding count: " + VmwareContext.getOutstandingContextCount());
+        } else {
+            if (s_logger.isTraceEnabled())
+                s_logger.trace("VmwareContextPool queue exceeds limits, queue size: " + pool._idle.size());
+            context.close();
+        }
+
+        // only now, so a borrower waiting for the permit finds the context in the idle queue
+        if (borrowed) {
+            pool._permits.release();
+        }
+    }
+
+    public long getBorrows() {
+        return _borrows.get();
+    }
+
+    public long getBorrowTimeouts() {
+        return _borrowTimeouts.get();
+    }
+
+    public long getCreated() {
+        return _created.get();
+    }
+
+    public long getReused() {
+        return _reused.get();
+    }
+
+    public long getClosed() {
+        return _closed.get();
+    }
+
+    public long getFailedValidations() {
+        return _failedValidations.get();
+    }
+
+    public long getReclaimed() {
+        return _reclaimed.get();
+    }
+
+    public int getIdleCount(String poolKey) {
+        KeyedPool pool = _pools.get(poolKey);
+        return pool != null ? pool._idle.size() : 0;
+    }
+
+    public int getBorrowedCount(String poolKey) {
+        KeyedPool pool = _pools.get(poolKey);
+        return pool != null ? pool._borrowed.size() : 0;
+    }
+
+    public String getStatistics() {
+        long borrows = _borrows.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append("borrows: ").append(borrows);
+        sb.append(", average borrow wait: ").append(borrows > 0 ? TimeUnit.NANOSECONDS.toMillis(_borrowWaitNanos.get() / borrows) : 0).append(" ms");
+        sb.append(", max borrow wait: ").append(TimeUnit.NANOSECONDS.toMillis(_maxBorrowWaitNanos.get())).append(" ms");
+        sb.append(", borrow timeouts: ").append(_borrowTimeouts.get());
+        sb.append(", created: ").append(_created.get());
+        sb.append(", reused: ").append(_reused.get());
+        sb.append(", closed: ").append(_closed.get());
+        sb.append(", failed validations: ").append(_failedValidations.get());
+        sb.append(", reclaimed: ").append(_reclaimed.get());
+        for (Map.Entry<String, KeyedPool> entry : _pools.entrySet()) {
+            sb.append(", ").append(entry.getKey()).append(" idle/borrowed: ").append(entry.getValue()._idle.size()).append("/").append(entry.getValue()._borrowed.size());
+        }
+        return sb.toString();
+    }
+
+    public void shutdown() {
+        _sweeper.shutdownNow();
+        for (KeyedPool pool : _pools.values()) {
+            IdleContext idle;
+            while ((idle = pool._idle.pollFirst()) != null) {
+                idle._context.close();
+            }
+        }
+    }
+
+    private KeyedPool getPool(String poolKey) {
+        KeyedPool pool = _pools.get(poolKey);
+        if (pool == null) {
+            pool = new KeyedPool(_maxSize);
+            KeyedPool existing = _pools.putIfAbsent(poolKey, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    private VmwareContext pollIdleContext(KeyedPool pool, String poolKey) {
+        IdleContext idle;
+        while ((idle = pool._idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - idle._idleSince < _validationIntervalMs || idle._context.validate()) {
+                return idle._context;
+            }
+            _failedValidations.incrementAndGet();
+            s_logger.info("Discard a stale VmwareContext of " + poolKey + " that was idle for " + (System.currentTimeMillis() - idle._idleSince) + " ms");
+            idle._context.close();
+        }
+        return null;
+    }
+
+    private void recordBorrow(long waitNanos) {
+        _borrows.incrementAndGet();
+        _borrowWaitNanos.addAndGet(waitNanos);
+        long max = _maxBorrowWaitNanos.get();
+        while (waitNanos > max && !_maxBorrowWaitNanos.compareAndSet(max, waitNanos)) {
+            max = _maxBorrowWaitNanos.get();
+        }
+    }
+
+    void evictIdleContexts() {
+        List<VmwareContext> expired = new ArrayList<VmwareContext>();
+        long now = System.currentTimeMillis();
+        for (KeyedPool pool : _pools.values()) {
+            Iterator<IdleContext> it = pool._idle.descendingIterator();
+            while (it.hasNext()) {
+                IdleContext idle = it.next();
+                if (now - idle._idleSince < _idleTimeoutMs) {
+                    break;
+                }
+                // a concurrent borrower may have taken it meanwhile
+                if (pool._idle.removeLastOccurrence(idle)) {
+                    expired.add(idle._context);
+                }
+            }
+        }
+
+        for (VmwareContext context : expired) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("Close VmwareContext of " + context.getPoolKey() + " idle for more than " + _idleTimeoutMs + " ms");
+            context.close();
+        }
+        if (!expired.isEmpty() && s_logger.isDebugEnabled()) {
+            s_logger.debug("VmwareContextPool " + getStatistics());
+        }
+    }
+
+    void reclaimAbandonedContexts() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, KeyedPool> entry : _pools.entrySet()) {
+            KeyedPool pool = entry.getValue();
+            for (Map.Entry<VmwareContext, Long> borrowed : pool._borrowed.entrySet()) {
+                if (now - borrowed.getValue() < _maxBorrowTimeMs) {
+                    continue;
+                }
+                // it may be returned or closed meanwhile, then that gives the permit back
+                if (pool._borrowed.remove(borrowed.getKey(), borrowed.getValue())) {
+                    pool._permits.release();
+                    _reclaimed.incrementAndGet();
+                    s_logger.warn("Reclaim a VmwareContext of " + entry.getKey() + " that has been borrowed for " + (now - borrowed.getValue())
+                            + " ms without being returned");
+                    borrowed.getKey().close();
+                }
+            }
+        }
+    }
+
+    public static String composePoolKey(String vCenterAddress, String vCenterUserName) {
+        assert(vCenterUserName != null);
+        assert(vCenterAddress != null);
+        return vCenterUserName + "@" + vCenterAddress;
+    }
 }
@@ -0,0 +1,185 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.util;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class VmwareContextPoolTest {
+    private static final String ADDRESS = "vcenter";
+    private static final String USER = "admin";
+    private static final String KEY = VmwareContextPool.composePoolKey(ADDRESS, USER);
+
+    private VmwareContextPool _pool;
+    private final AtomicInteger _logins = new AtomicInteger();
+
+    private final VmwareContextPool.ContextCreator _creator = new VmwareContextPool.ContextCreator() {
+        @Override
+        public VmwareContext create() throws Exception {
+            _logins.incrementAndGet();
+            VmwareClient client = mock(VmwareClient.class);
+            when(client.validate()).thenReturn(true);
+            VmwareContext context = new VmwareContext(client, ADDRESS);
+            context.setPoolInfo(_pool, KEY);
+            _pool.registerOutstandingContext(context);
+            return context;
+        }
+    };
+
+    @After
+    public void tearDown() {
+        if (_pool != null) {
+            _pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testReturnedContextIsReused() throws Exception {
+        _pool = new VmwareContextPool(10, 60000, 4, 1000, 60000, 60000);
+
+        VmwareContext first = _pool.getContext(ADDRESS, USER, _creator);
+        _pool.returnContext(first);
+        VmwareContext second = _pool.getContext(ADDRESS, USER, _creator);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, _logins.get());
+        Assert.assertEquals(2, _pool.getBorrows());
+        Assert.assertEquals(1, _pool.getCreated());
+        Assert.assertEquals(1, _pool.getReused());
+        Assert.assertEquals(1, _pool.getBorrowedCount(KEY));
+        Assert.assertEquals(0, _pool.getIdleCount(KEY));
+    }
+
+    @Test
+    public void testBorrowWaitsForReturnedContext() throws Exception {
+        _pool = new VmwareContextPool(10, 60000, 2, 5000, 60000, 60000);
+        VmwareContext first = _pool.getContext(ADDRESS, USER, _creator);
+        final VmwareContext second = _pool.getContext(ADDRESS, USER, _creator);
+
+        final CountDownLatch borrowing = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    borrowing.await();
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                }
+                _pool.returnContext(second);
+            }
+        }.start();
+
+        borrowing.countDown();
+        long start = System.currentTimeMillis();
+        VmwareContext third = _pool.getContext(ADDRESS, USER, _creator);
+
+        Assert.assertSame(second, third);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+        Assert.assertEquals(2, _logins.get());
+        Assert.assertEquals(2, _pool.getBorrowedCount(KEY));
+        first.close();
+    }
+
+    @Test
+    public void testBorrowTimesOut() throws Exception {
+        _pool = new VmwareContextPool(10, 60000, 1, 100, 60000, 60000);
+        VmwareContext context = _pool.getContext(ADDRESS, USER, _creator);
+        try {
+            _pool.getContext(ADDRESS, USER, _creator);
+            Assert.fail("the pool is exhausted");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+        Assert.assertEquals(1, _pool.getBorrowTimeouts());
+
+        // a context closed instead of returned frees its slot
+        context.close();
+        Assert.assertNotNull(_pool.getContext(ADDRESS, USER, _creator));
+        Assert.assertEquals(2, _logins.get());
+    }
+
+    @Test
+    public void testPoolsArePerVCenter() throws Exception {
+        _pool = new VmwareContextPool(10, 60000, 1, 100, 60000, 60000);
+        _pool.getContext(ADDRESS, USER, _creator);
+        Assert.assertNotNull(_pool.getContext("other-vcenter", USER, _creator));
+    }
+
+    @Test
+    public void testStaleContextIsReplaced() throws Exception {
+        // every idle context is validated before use
+        _pool = new VmwareContextPool(10, 60000, 4, 1000, 0, 60000);
+        VmwareContext stale = _pool.getContext(ADDRESS, USER, _creator);
+        when(stale.getVimClient().validate()).thenReturn(false);
+        _pool.returnContext(stale);
+
+        VmwareContext context = _pool.getContext(ADDRESS, USER, _creator);
+
+        Assert.assertNotSame(stale, context);
+        Assert.assertEquals(1, _pool.getFailedValidations());
+        Assert.assertEquals(1, _pool.getClosed());
+        verify(stale.getVimClient(), times(1)).disconnect();
+    }
+
+    @Test
+    public void testIdleContextsExpire() throws Exception {
+        _pool = new VmwareContextPool(10, 60000, 4, 1000, 60000, 50);
+        VmwareContext first = _pool.getContext(ADDRESS, USER, _creator);
+        VmwareContext second = _pool.getContext(ADDRESS, USER, _creator);
+        _pool.returnContext(first);
+        TimeUnit.MILLISECONDS.sleep(100);
+        _pool.returnContext(second);
+
+        _pool.evictIdleContexts();
+
+        Assert.assertEquals(1, _pool.getIdleCount(KEY));
+        Assert.assertEquals(1, _pool.getClosed());
+        Assert.assertSame(second, _pool.getContext(ADDRESS, USER, _creator));
+    }
+
+    @Test
+    public void testAbandonedContextIsReclaimed() throws Exception {
+        _pool = new VmwareContextPool(10, 60000, 1, 100, 60000, 60000, 50);
+        VmwareContext leaked = _pool.getContext(ADDRESS, USER, _creator);
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        _pool.reclaimAbandonedContexts();
+
+        Assert.assertEquals(1, _pool.getReclaimed());
+        Assert.assertTrue(leaked.isClosed());
+        VmwareContext context = _pool.getContext(ADDRESS, USER, _creator);
+        Assert.assertNotSame(leaked, context);
+
+        // a late return of the reclaimed context neither frees a slot nor recycles it
+        _pool.returnContext(leaked);
+        Assert.assertEquals(0, _pool.getIdleCount(KEY));
+        Assert.assertEquals(1, _pool.getBorrowedCount(KEY));
+    }
+}